@@ -1068,6 +1068,7 @@ public abstract class AbstractDatabase<C> implements Database {
         if (hasValidates) {
             for (State state : validates) {
                 state.setStatus(StateStatus.SAVED);
+                state.markTypeIdSaved();
                 state.fireTrigger(new AfterSaveTrigger());
             }
         }
@@ -1440,6 +1441,8 @@ public abstract class AbstractDatabase<C> implements Database {
             populateJunctions(state, type);
         }
 
+        state.markTypeIdSaved();
+
         if (object instanceof ObjectType) {
             ObjectType asType = environment.getTypeById(((ObjectType) object).getId());
 
@@ -1,6 +1,9 @@
 package com.psddev.dari.db;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,13 +48,13 @@ public class CachingDatabase extends ForwardingDatabase {
 
     private final Cache<UUID, Object> objectCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
     private final Cache<UUID, Object> referenceCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
-    private final Cache<Query<?>, List<?>> readAllCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
-    private final Cache<Query<?>, Long> readCountCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
-    private final Cache<Query<?>, Object> readFirstCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
-    private final LoadingCache<Query<?>, Map<Range, PaginatedResult<?>>> readPartialCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build(
-            new CacheLoader<Query<?>, Map<Range, PaginatedResult<?>>>() {
+    private final Cache<Query<?>, Result<List<?>>> readAllCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
+    private final Cache<Query<?>, Result<Long>> readCountCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
+    private final Cache<Query<?>, Result<Object>> readFirstCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build();
+    private final LoadingCache<Query<?>, Map<Range, Result<PaginatedResult<?>>>> readPartialCache = CacheBuilder.newBuilder().maximumSize(getCacheSize()).build(
+            new CacheLoader<Query<?>, Map<Range, Result<PaginatedResult<?>>>>() {
                 @Override
-                public Map<Range, PaginatedResult<?>> load(Query<?> key) throws Exception {
+                public Map<Range, Result<PaginatedResult<?>>> load(Query<?> key) throws Exception {
                     return new ConcurrentHashMap<>();
                 }
             });
@@ -88,6 +91,78 @@ public class CachingDatabase extends ForwardingDatabase {
         }
     }
 
+    /**
+     * Part of a cached paginated result that isn't known to extend to the
+     * end, so the count is only fetched when it's needed.
+     */
+    private static class SlicedResult<E> extends PaginatedResult<E> {
+
+        private final PaginatedResult<?> source;
+        private final boolean hasNext;
+
+        public SlicedResult(long offset, int limit, List<E> items, PaginatedResult<?> source, boolean hasNext) {
+            super(offset, limit, 0L, items);
+            this.source = source;
+            this.hasNext = hasNext;
+        }
+
+        @Override
+        public long getCount() {
+            return source.getCount();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+    }
+
+    /**
+     * Part of a cached paginated result that extends to the end, so the
+     * count is known even if the part starts past the end.
+     */
+    private static class TailResult<E> extends PaginatedResult<E> {
+
+        private final long count;
+
+        public TailResult(long offset, int limit, List<E> items, long count) {
+            super(offset, limit, count, items);
+            this.count = count;
+        }
+
+        @Override
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Cached query result, tagged with the IDs of the types that the query
+     * can read and the IDs of the objects in it, so that it can be
+     * invalidated selectively.
+     */
+    private static class Result<V> {
+
+        public final V value;
+        public final Set<UUID> typeIds;
+        public final Set<UUID> ids;
+
+        public Result(V value, Set<UUID> typeIds, Set<UUID> ids) {
+            this.value = value;
+            this.typeIds = typeIds;
+            this.ids = ids;
+        }
+
+        // Returns true if saving an object with the given typeId and id
+        // could change this result.
+        public boolean isAffectedBy(UUID typeId, UUID id) {
+            return typeIds == null
+                    || typeId == null
+                    || typeIds.contains(typeId)
+                    || ids.contains(id);
+        }
+    }
+
     /**
      * Returns the set of all IDs which were results of ID-only queries.
      *
@@ -147,6 +222,43 @@ public class CachingDatabase extends ForwardingDatabase {
         return object;
     }
 
+    // Returns the IDs of all the types that the given query can read, or
+    // null if they can't be determined, e.g. because the query depends on
+    // the results of a sub-query or on the fields of the other objects
+    // that it references through a path like author/name.
+    private Set<UUID> findTypeIds(Query<?> query) {
+        if (query.isFromAll() || query.hasJoin()) {
+            return null;
+        }
+
+        Set<ObjectType> types = query.getConcreteTypes(getEnvironment());
+
+        if (types.isEmpty()) {
+            return null;
+        }
+
+        Set<UUID> typeIds = new HashSet<UUID>();
+
+        for (ObjectType type : types) {
+            typeIds.add(type.getId());
+        }
+
+        return typeIds;
+    }
+
+    // Returns the IDs of all the given objects.
+    private Set<UUID> findIds(Collection<?> objects) {
+        Set<UUID> ids = new HashSet<UUID>();
+
+        for (Object object : objects) {
+            if (object instanceof Recordable) {
+                ids.add(((Recordable) object).getState().getId());
+            }
+        }
+
+        return ids;
+    }
+
     private void cacheObject(Object object) {
         State state = ((Recordable) object).getState();
         UUID id = state.getId();
@@ -199,11 +311,15 @@ public class CachingDatabase extends ForwardingDatabase {
             }
         }
 
-        List<?> list = readAllCache.getIfPresent(query);
+        Result<List<?>> cached = readAllCache.getIfPresent(query);
+        List<?> list;
+
+        if (cached != null) {
+            list = cached.value;
 
-        if (list == null) {
+        } else {
             list = super.readAll(query);
-            readAllCache.put(query, list);
+            readAllCache.put(query, new Result<List<?>>(list, findTypeIds(query), findIds(list)));
 
             for (Object item : list) {
                 cacheObject(item);
@@ -220,34 +336,37 @@ public class CachingDatabase extends ForwardingDatabase {
             return super.readCount(query);
         }
 
-        Long count = readCountCache.getIfPresent(query);
+        Result<Long> cached = readCountCache.getIfPresent(query);
 
-        if (count == null) {
-            COUNT: {
-                if (readAllCache != null) {
-                    List<?> list = readAllCache.getIfPresent(query);
+        if (cached != null) {
+            return cached.value;
+        }
 
-                    if (list != null) {
-                        count = (long) list.size();
-                        break COUNT;
-                    }
-                }
+        long count;
 
-                if (readPartialCache != null) {
-                    Map<Range, PaginatedResult<?>> subCache = readPartialCache.getIfPresent(query);
+        COUNT: {
+            if (readAllCache != null) {
+                Result<List<?>> list = readAllCache.getIfPresent(query);
 
-                    if (subCache != null && !subCache.isEmpty()) {
-                        count = subCache.values().iterator().next().getCount();
-                        break COUNT;
-                    }
+                if (list != null) {
+                    count = (long) list.value.size();
+                    break COUNT;
                 }
+            }
+
+            if (readPartialCache != null) {
+                Map<Range, Result<PaginatedResult<?>>> subCache = readPartialCache.getIfPresent(query);
 
-                count = super.readCount(query);
+                if (subCache != null && !subCache.isEmpty()) {
+                    count = subCache.values().iterator().next().value.getCount();
+                    break COUNT;
+                }
             }
 
-            readCountCache.put(query, count);
+            count = super.readCount(query);
         }
 
+        readCountCache.put(query, new Result<Long>(count, findTypeIds(query), Collections.<UUID>emptySet()));
         return count;
     }
 
@@ -275,16 +394,20 @@ public class CachingDatabase extends ForwardingDatabase {
             }
         }
 
-        Object first = readFirstCache.getIfPresent(query);
+        Result<Object> cached = readFirstCache.getIfPresent(query);
+        Object first;
+
+        if (cached != null) {
+            first = cached.value;
 
-        if (first == null) {
+        } else {
             first = super.readFirst(query);
             if (first == null) {
                 first = MISSING;
             } else {
                 cacheObject(first);
             }
-            readFirstCache.put(query, first);
+            readFirstCache.put(query, new Result<Object>(first, findTypeIds(query), findIds(Collections.singleton(first))));
         }
 
         return first != MISSING ? (T) first : null;
@@ -297,31 +420,195 @@ public class CachingDatabase extends ForwardingDatabase {
             return super.readPartial(query, offset, limit);
         }
 
-        Map<Range, PaginatedResult<?>> subCache = readPartialCache.getUnchecked(query);
+        Map<Range, Result<PaginatedResult<?>>> subCache = readPartialCache.getUnchecked(query);
 
         Range range = new Range(offset, limit);
-        PaginatedResult<?> result = subCache.get(range);
+        Result<PaginatedResult<?>> cached = subCache.get(range);
+        PaginatedResult<?> result;
 
-        if (result == null) {
-            result = super.readPartial(query, offset, limit);
-            subCache.put(range, result);
+        if (cached != null) {
+            result = cached.value;
 
-            for (Object item : result.getItems()) {
-                cacheObject(item);
+        } else {
+            result = findCachedPartial(query, subCache, offset, limit);
+
+            if (result == null) {
+                result = super.readPartial(query, offset, limit);
+                cachePartial(query, subCache, range, result);
+
+                for (Object item : result.getItems()) {
+                    cacheObject(item);
+                }
             }
         }
 
         return (PaginatedResult<T>) result;
     }
 
+    // Returns true if the given result contains all the items from its
+    // offset to the end.
+    private static boolean isPartialComplete(PaginatedResult<?> result) {
+        return result.getItems().size() < result.getLimit();
+    }
+
+    // Slices the requested range out of a cached range that contains it,
+    // or out of the cached readAll result for the same query.
+    private PaginatedResult<?> findCachedPartial(Query<?> query, Map<Range, Result<PaginatedResult<?>>> subCache, long offset, int limit) {
+        Result<List<?>> all = readAllCache.getIfPresent(query);
+
+        if (all != null) {
+            List<?> allItems = all.value;
+            int size = allItems.size();
+            int start = (int) Math.min(size, offset);
+            int end = (int) Math.min(size, offset + limit);
+
+            return new PaginatedResult<Object>(offset, limit, size, new ArrayList<Object>(allItems.subList(start, end)));
+        }
+
+        for (Result<PaginatedResult<?>> cached : subCache.values()) {
+            PaginatedResult<?> source = cached.value;
+            List<?> sourceItems = source.getItems();
+            long start = offset - source.getOffset();
+            long end = start + limit;
+            int size = sourceItems.size();
+
+            if (start < 0) {
+                continue;
+
+            } else if (end <= size) {
+                return new SlicedResult<Object>(
+                        offset,
+                        limit,
+                        new ArrayList<Object>(sourceItems.subList((int) start, (int) end)),
+                        source,
+                        end < size || source.hasNext());
+
+            } else if (isPartialComplete(source)) {
+                return new TailResult<Object>(
+                        offset,
+                        limit,
+                        start < size ? new ArrayList<Object>(sourceItems.subList((int) start, size)) : new ArrayList<Object>(),
+                        source.getOffset() + size);
+            }
+        }
+
+        return null;
+    }
+
+    // Caches the given result, coalescing it with the cached ranges that
+    // are adjacent to it, so that they can be sliced as one.
+    private void cachePartial(Query<?> query, Map<Range, Result<PaginatedResult<?>>> subCache, Range range, PaginatedResult<?> result) {
+        Set<UUID> typeIds = findTypeIds(query);
+
+        subCache.put(range, new Result<PaginatedResult<?>>(result, typeIds, findIds(result.getItems())));
+
+        Range previousRange = null;
+        Range nextRange = null;
+
+        for (Map.Entry<Range, Result<PaginatedResult<?>>> entry : subCache.entrySet()) {
+            PaginatedResult<?> other = entry.getValue().value;
+
+            if (other == result || other.getItems().isEmpty()) {
+                continue;
+
+            } else if (!isPartialComplete(other)
+                    && other.getOffset() + other.getItems().size() == range.offset) {
+
+                previousRange = entry.getKey();
+
+            } else if (!isPartialComplete(result)
+                    && !result.getItems().isEmpty()
+                    && range.offset + result.getItems().size() == other.getOffset()) {
+
+                nextRange = entry.getKey();
+            }
+        }
+
+        if (previousRange == null && nextRange == null) {
+            return;
+        }
+
+        List<Object> items = new ArrayList<Object>();
+        Result<PaginatedResult<?>> first = previousRange != null ? subCache.get(previousRange) : null;
+        Result<PaginatedResult<?>> last = nextRange != null ? subCache.get(nextRange) : null;
+
+        if ((previousRange != null && first == null)
+                || (nextRange != null && last == null)) {
+            return;
+        }
+
+        long offset = first != null ? first.value.getOffset() : range.offset;
+        PaginatedResult<?> source = last != null ? last.value : result;
+
+        if (first != null) {
+            items.addAll(first.value.getItems());
+        }
+
+        items.addAll(result.getItems());
+
+        if (last != null) {
+            items.addAll(last.value.getItems());
+        }
+
+        int limit = (int) Math.min(Integer.MAX_VALUE, source.getOffset() + source.getLimit() - offset);
+        PaginatedResult<?> merged = isPartialComplete(source)
+                ? new TailResult<Object>(offset, limit, items, source.getOffset() + source.getItems().size())
+                : new SlicedResult<Object>(offset, limit, items, source, source.hasNext());
+
+        if (previousRange != null) {
+            subCache.remove(previousRange, first);
+        }
+
+        if (nextRange != null) {
+            subCache.remove(nextRange, last);
+        }
+
+        subCache.remove(range);
+        subCache.put(new Range(offset, limit), new Result<PaginatedResult<?>>(merged, typeIds, findIds(items)));
+    }
+
     @Override
     public void save(State state) {
+        UUID savedTypeId = state.getSavedTypeId();
+
         super.save(state);
-        flush();
+        invalidate(state);
+
+        // The cached counts and results for the type that the object had
+        // before the save may still include it.
+        if (savedTypeId != null && !savedTypeId.equals(state.getTypeId())) {
+            invalidateResults(savedTypeId, state.getId());
+        }
+    }
+
+    /**
+     * Invalidates the cached object with the same ID as the given
+     * {@code state}, and all the cached query results that can read its
+     * type or that contain it. This is executed after every .save() to
+     * avoid inconsistent results.
+     */
+    protected void invalidate(State state) {
+        UUID id = state.getId();
+
+        objectCache.invalidate(id);
+        referenceCache.invalidate(id);
+        invalidateResults(state.getTypeId(), id);
+    }
+
+    // Removes all the cached query results that can read the type with the
+    // given typeId or that contain the object with the given id.
+    private void invalidateResults(UUID typeId, UUID id) {
+        readAllCache.asMap().values().removeIf(result -> result.isAffectedBy(typeId, id));
+        readCountCache.asMap().values().removeIf(result -> result.isAffectedBy(typeId, id));
+        readFirstCache.asMap().values().removeIf(result -> result.isAffectedBy(typeId, id));
+
+        for (Map<Range, Result<PaginatedResult<?>>> subCache : readPartialCache.asMap().values()) {
+            subCache.values().removeIf(result -> result.isAffectedBy(typeId, id));
+        }
     }
 
     /**
-     * Flush the entire cache. This is executed after every .save() to avoid inconsistent results.
+     * Flush the entire cache.
      */
     protected void flush() {
         objectCache.invalidateAll();
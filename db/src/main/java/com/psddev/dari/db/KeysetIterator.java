@@ -0,0 +1,184 @@
+package com.psddev.dari.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the objects matching a sorted query by seeking past the
+ * sort values and the ID of the last object read, so that each batch
+ * costs the same regardless of how far into the results it is.
+ *
+ * <p>The seek is passed to the database using the
+ * {@link #SEEK_QUERY_OPTION} instead of a predicate, so that it can compare
+ * the same columns that it sorts on, including the ones that are missing
+ * the sort values.</p>
+ */
+public final class KeysetIterator<T> implements Iterator<T> {
+
+    /**
+     * Query option for the sort values of the last object read, in the same
+     * order as the sorters, that the database should seek past.
+     *
+     * <p>A {@code null} value is a missing one, which the database should
+     * sort the same as it does without the seek.</p>
+     */
+    public static final String SEEK_QUERY_OPTION = "db.keysetSeek";
+
+    private final Query<T> query;
+    private final List<String> keys;
+    private final int fetchSize;
+    private List<Object> lastValues;
+    private List<T> items;
+    private int index;
+
+    /**
+     * Returns {@code true} if the given {@code query} can be iterated over
+     * using this iterator, i.e. it's only sorted in ascending or descending
+     * order on single-valued fields that can be compared.
+     */
+    public static boolean isSupported(Query<?> query) {
+        List<Sorter> sorters = query.getSorters();
+
+        if (sorters.isEmpty()) {
+            return false;
+        }
+
+        DatabaseEnvironment environment = query.getDatabase().getEnvironment();
+
+        for (Sorter sorter : sorters) {
+            String operator = sorter.getOperator();
+            List<Object> options = sorter.getOptions();
+
+            if ((!Sorter.ASCENDING_OPERATOR.equals(operator)
+                    && !Sorter.DESCENDING_OPERATOR.equals(operator))
+                    || options.size() != 1
+                    || !(options.get(0) instanceof String)) {
+                return false;
+            }
+
+            String key = (String) options.get(0);
+
+            if (key.startsWith("_")) {
+                return false;
+            }
+
+            try {
+                Query.MappedKey mappedKey = query.mapEmbeddedKey(environment, key);
+                ObjectField field = mappedKey.getField();
+                String internalType = mappedKey.getInternalType();
+
+                if (mappedKey.isInternalCollectionType()
+                        || mappedKey.hasSubQuery()
+                        || (field != null && field.isMetric())
+                        || ObjectField.LOCATION_TYPE.equals(internalType)
+                        || ObjectField.REGION_TYPE.equals(internalType)) {
+                    return false;
+                }
+
+            } catch (RuntimeException error) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns an iterable that iterates over the objects matching the given
+     * {@code query} using this iterator.
+     *
+     * @param query Must be {@linkplain #isSupported supported}.
+     */
+    public static <T> Iterable<T> iterable(Query<T> query, int fetchSize) {
+        return () -> new KeysetIterator<>(query, fetchSize);
+    }
+
+    private KeysetIterator(Query<T> query, int fetchSize) {
+        if (!isSupported(query)) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't seek through [%s]!", query));
+        }
+
+        this.query = query.clone().sortAscending(Query.ID_KEY);
+        this.keys = new ArrayList<>();
+        this.fetchSize = fetchSize > 0 ? fetchSize : 200;
+
+        for (Sorter sorter : this.query.getSorters()) {
+            keys.add((String) sorter.getOptions().get(0));
+        }
+    }
+
+    // Remembers the sort values of the given object, converted the same way
+    // as the values in a comparison.
+    private void updateLast(T object) {
+        State state = State.getInstance(object);
+        List<Object> values = new ArrayList<>();
+
+        for (String key : keys) {
+            Object value = Query.ID_KEY.equals(key) ? state.getId() : state.getByPath(key);
+
+            if (value instanceof Collection) {
+                throw new IllegalStateException(String.format(
+                        "Can't seek past [%s] in [%s]!", key, state.getId()));
+            }
+
+            values.add(value != null
+                    ? new ComparisonPredicate(PredicateParser.EQUALS_ANY_OPERATOR, false, key, Collections.singleton(value)).getValues().get(0)
+                    : null);
+        }
+
+        lastValues = values;
+    }
+
+    private List<T> select() {
+        Query<T> nextQuery = lastValues != null
+                ? query.clone().option(SEEK_QUERY_OPTION, lastValues)
+                : query;
+
+        return nextQuery.select(0, fetchSize).getItems();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (items != null && items.isEmpty()) {
+            return false;
+        }
+
+        if (items == null || index >= items.size()) {
+            items = select();
+            int size = items.size();
+
+            if (size < 1) {
+                return false;
+            }
+
+            index = 0;
+
+            updateLast(items.get(size - 1));
+        }
+
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (hasNext()) {
+            T object = items.get(index);
+            ++ index;
+
+            return object;
+
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -1,11 +1,13 @@
 package com.psddev.dari.db;
 
+import java.lang.ref.WeakReference;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -417,6 +419,8 @@ public class Metric extends Record {
     public static class Static {
 
         private static final String EXTRA_METRICS_FETCHED_PREFIX = "dari.metric.preFetched.";
+        private static final int PRE_FETCH_PEERS_SIZE = 500;
+        private static final ThreadLocal<PreFetchPeers> PRE_FETCH_PEERS = new ThreadLocal<PreFetchPeers>();
 
         /**
          * Resummarize all metric values in the given field (all dimensions)
@@ -442,6 +446,46 @@ public class Metric extends Record {
             return mdb.submitResummarizeAllTask(interval, startTimestamp, endTimestamp, parallel, executor, name);
         }
 
+        /**
+         * Remembers the given {@code state} as one whose metrics may be read
+         * along with the others loaded within the same CachingDatabase, so
+         * that they can all be prefetched in a single query.
+         */
+        static void addPreFetchPeer(State state) {
+            UUID id = state.getId();
+            CachingDatabase cachingDb = MetricAccess.Static.getCachingDatabase();
+            if (id == null || cachingDb == null) {
+                return;
+            }
+            PreFetchPeers peers = PRE_FETCH_PEERS.get();
+            if (peers == null || peers.cachingDatabase.get() != cachingDb) {
+                peers = new PreFetchPeers(cachingDb);
+                PRE_FETCH_PEERS.set(peers);
+            }
+            peers.states.put(id, new WeakReference<State>(state));
+        }
+
+        // Returns the peers of the given state of the same type that haven't been prefetched yet.
+        private static List<State> getPreFetchPeers(State state, String extraKey) {
+            List<State> states = new ArrayList<State>();
+            PreFetchPeers peers = PRE_FETCH_PEERS.get();
+            if (peers == null || peers.cachingDatabase.get() != MetricAccess.Static.getCachingDatabase()) {
+                return states;
+            }
+            for (Iterator<WeakReference<State>> i = peers.states.values().iterator(); i.hasNext();) {
+                State peer = i.next().get();
+                if (peer == null) {
+                    i.remove();
+                } else if (peer != state
+                        && peer.getDatabase() == state.getDatabase()
+                        && ObjectUtils.equals(peer.getTypeId(), state.getTypeId())
+                        && !Boolean.TRUE.equals(peer.getExtra(extraKey))) {
+                    states.add(peer);
+                }
+            }
+            return states;
+        }
+
         private static void preFetchMetrics(State state, UUID dimensionId, Long startTimestamp, Long endTimestamp) {
             if (state == null || state.getType() == null) {
                 return;
@@ -450,7 +494,13 @@ public class Metric extends Record {
             if (Boolean.TRUE.equals(state.getExtra(extraKey))) {
                 return;
             }
+            List<UUID> ids = new ArrayList<UUID>();
             state.getExtras().put(extraKey, true);
+            ids.add(state.getId());
+            for (State peer : getPreFetchPeers(state, extraKey)) {
+                peer.getExtras().put(extraKey, true);
+                ids.add(peer.getId());
+            }
             List<ObjectField> fields = new ArrayList<ObjectField>(state.getType().getMetricFields());
             fields.addAll(state.getDatabase().getEnvironment().getMetricFields());
             Set<MetricAccess> metricAccesses = new HashSet<MetricAccess>();
@@ -460,17 +510,17 @@ public class Metric extends Record {
                     metricAccesses.add(mdb);
                 }
             }
-            doDatabasePreFetch(state.getId(), dimensionId, startTimestamp, endTimestamp, metricAccesses);
+            doDatabasePreFetch(ids, dimensionId, startTimestamp, endTimestamp, metricAccesses);
         }
 
-        private static void doDatabasePreFetch(UUID id, UUID dimensionId, Long startTimestamp, Long endTimestamp, Collection<MetricAccess> metricAccesses) {
+        private static void doDatabasePreFetch(List<UUID> ids, UUID dimensionId, Long startTimestamp, Long endTimestamp, Collection<MetricAccess> metricAccesses) {
             if (metricAccesses.isEmpty()) {
                 return;
             }
             try {
-                MetricAccess.Static.preFetchMetricSums(id, dimensionId, startTimestamp, endTimestamp, metricAccesses, false);
+                MetricAccess.Static.preFetchMetricSums(ids, dimensionId, startTimestamp, endTimestamp, metricAccesses, false);
             } catch (SQLException ex) {
-                LOGGER.warn("Exception when prefetching Metrics for object " + id + ": " + ex.getLocalizedMessage());
+                LOGGER.warn("Exception when prefetching Metrics for object " + ids.get(0) + ": " + ex.getLocalizedMessage());
             }
         }
 
@@ -486,6 +536,26 @@ public class Metric extends Record {
 
             return MetricAccess.Static.getDistinctIds(mdbDatabase, type != null ? type.getId() : null, mdb.getSymbolId(), startTimestamp, endTimestamp);
         }
+
+        // States loaded within a CachingDatabase, most recent last.
+        private static final class PreFetchPeers {
+
+            public final WeakReference<CachingDatabase> cachingDatabase;
+
+            public final Map<UUID, WeakReference<State>> states = new LinkedHashMap<UUID, WeakReference<State>>() {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, WeakReference<State>> eldest) {
+                    return size() > PRE_FETCH_PEERS_SIZE;
+                }
+            };
+
+            public PreFetchPeers(CachingDatabase cachingDatabase) {
+                this.cachingDatabase = new WeakReference<CachingDatabase>(cachingDatabase);
+            }
+        }
     }
 
     /**
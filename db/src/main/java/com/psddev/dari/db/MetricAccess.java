@@ -5,14 +5,20 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -30,6 +36,7 @@ import com.google.common.cache.CacheBuilder;
 import com.psddev.dari.util.AsyncConsumer;
 import com.psddev.dari.util.AsyncQueue;
 import com.psddev.dari.util.CompactMap;
+import com.psddev.dari.util.Settings;
 import com.psddev.dari.util.Task;
 import com.psddev.dari.util.UuidUtils;
 
@@ -45,6 +52,10 @@ class MetricAccess {
     public static final String METRIC_DIMENSION_TABLE = "MetricDimension";
     public static final String METRIC_DIMENSION_VALUE_FIELD = "value";
     public static final String METRIC_DATA_FIELD = "data";
+    public static final String METRIC_EVENT_TABLE = "MetricEvent";
+    public static final String METRIC_EVENT_ID_FIELD = "eventId";
+    public static final String METRIC_EVENT_DATE_FIELD = "eventDate";
+    public static final String METRIC_EVENT_AMOUNT_FIELD = "amount";
     public static final String METRIC_CACHE_EXTRA_PREFIX = "dari.metric.cache.";
 
     public static final int AMOUNT_DECIMAL_PLACES = 6;
@@ -56,6 +67,8 @@ class MetricAccess {
     public static final int AMOUNT_BYTE_SIZE = 8;
 
     private static final int QUERY_TIMEOUT = 3;
+    private static final int EVENT_FOLD_LIMIT = 1000;
+    private static final int BULK_READ_SIZE = 500;
     private static final int DIMENSION_CACHE_SIZE = 1000;
 
     private static final String CACHE_MIN = "min";
@@ -65,6 +78,11 @@ class MetricAccess {
 
     private static final ConcurrentMap<String, MetricAccess> METRIC_ACCESSES = new ConcurrentHashMap<String, MetricAccess>();
 
+    static final MetricRollupCache ROLLUP_CACHE = new MetricRollupCache(
+            Settings.getOrDefault(long.class, "dari/metricRollupCacheSize", 1000L),
+            Settings.getOrDefault(long.class, "dari/metricRollupCacheTtl", 3600L),
+            Settings.getOrDefault(long.class, "dari/metricRollupCacheGracePeriod", 300L));
+
     private final String symbol;
     private final String fieldName;
     private final MetricAccessDatabase db;
@@ -123,24 +141,230 @@ class MetricAccess {
     }
 
     public Double getMetric(UUID id, String dimensionValue, Long startTimestamp, Long endTimestamp) throws SQLException {
+
+        // The increments that haven't been folded into the rows yet must be
+        // read in the same statement as the rows, since a fold committing
+        // between two separate reads would count them twice or not at all.
+        if (getDatabase().isMetricEventLog()) {
+            return getMetrics(Collections.singleton(id), dimensionValue, startTimestamp, endTimestamp).get(id);
+        }
+
+        return getFoldedMetric(id, dimensionValue, startTimestamp, endTimestamp);
+    }
+
+    /**
+     * Returns the metric values for all the given {@code ids} using a single
+     * query, and caches the data in CachingDatabase (if available) so that
+     * the subsequent {@link #getMetric} calls for the same range don't need
+     * to query again.
+     *
+     * @param ids Can't be {@code null}.
+     * @param dimensionValue May be {@code null}.
+     * @return Never {@code null}. Doesn't contain the ids without any data.
+     */
+    Map<UUID, Double> getMetrics(Collection<UUID> ids, String dimensionValue, Long startTimestamp, Long endTimestamp) throws SQLException {
+        Map<UUID, Double> amounts = new LinkedHashMap<UUID, Double>();
+        if (ids.isEmpty()) {
+            return amounts;
+        }
+
+        UUID dimensionId = getDimensionId(dimensionValue);
+        Map<List<Object>, Double> eventAmounts = getDatabase().isMetricEventLog() ? new HashMap<List<Object>, Double>() : null;
+        Map<List<Object>, byte[][]> datas = Static.getMaxMinDataByIds(ids, dimensionId, startTimestamp, endTimestamp, Collections.singleton(this), false, eventAmounts);
+
+        for (UUID id : ids) {
+            List<Object> key = Arrays.<Object>asList(id, getSymbolId());
+            byte[][] data = datas.get(key);
+            Double amount = null;
+            if (data != null && data[0] != null) {
+                amount = Static.calculateAmount(data[0], startTimestamp != null ? data[1] : null);
+            }
+
+            // Merge the increments that haven't been folded into the rows yet.
+            Double eventAmount = eventAmounts != null ? eventAmounts.get(key) : null;
+            if (eventAmount != null) {
+                amount = amount != null ? amount + eventAmount : eventAmount;
+            }
+
+            if (amount != null) {
+                amounts.put(id, amount);
+            }
+        }
+
+        return amounts;
+    }
+
+    private Double getFoldedMetric(UUID id, String dimensionValue, Long startTimestamp, Long endTimestamp) throws SQLException {
+        UUID dimensionId = getDimensionId(dimensionValue);
+        CachingDatabase cachingDb = Static.getCachingDatabase();
+
+        // Prefer the data that's already been read for this request.
+        if (!hasCachedData(cachingDb, id, dimensionId, endTimestamp, CACHE_MAX)
+                || (startTimestamp != null && !hasCachedData(cachingDb, id, dimensionId, startTimestamp, CACHE_MIN))) {
+            Double closedAmount = getClosedMetric(id, dimensionId, startTimestamp, endTimestamp);
+            if (closedAmount != null) {
+                return closedAmount.isNaN() ? null : closedAmount;
+            }
+        }
+
         if (startTimestamp == null) {
-            byte[] data = getMaxData(id, getDimensionId(dimensionValue), endTimestamp);
+            byte[] data = getMaxData(id, dimensionId, endTimestamp);
             if (data == null) {
                 return null;
             }
-            return Static.amountFromBytes(data, CUMULATIVEAMOUNT_POSITION);
+            return Static.calculateAmount(data, null);
         } else {
-            List<byte[]> datas = getMaxMinData(id, getDimensionId(dimensionValue), startTimestamp, endTimestamp);
+            List<byte[]> datas = getMaxMinData(id, dimensionId, startTimestamp, endTimestamp);
             if (datas.get(0) == null) {
                 return null;
             }
-            double maxCumulativeAmount = Static.amountFromBytes(datas.get(0), CUMULATIVEAMOUNT_POSITION);
-            double minCumulativeAmount = Static.amountFromBytes(datas.get(1), CUMULATIVEAMOUNT_POSITION);
-            double minAmount = Static.amountFromBytes(datas.get(1), AMOUNT_POSITION);
-            return maxCumulativeAmount - (minCumulativeAmount - minAmount);
+            return Static.calculateAmount(datas.get(0), datas.get(1));
         }
     }
 
+    /**
+     * Returns the amount between the given timestamps from the rollups if
+     * the range only covers the closed buckets, NaN if there isn't any
+     * data, or {@code null} if the range can't be read from the rollups.
+     */
+    private Double getClosedMetric(UUID id, UUID dimensionId, Long startTimestamp, Long endTimestamp) throws SQLException {
+        MetricInterval interval = getEventDateProcessor();
+
+        if (startTimestamp == null
+                || endTimestamp == null
+                || !ROLLUP_CACHE.isEnabled()
+                || interval instanceof MetricInterval.None) {
+            return null;
+        }
+
+        // The rows are stored at the bucket boundaries, so the range can be
+        // widened to them without changing the result.
+        long start = getBucketCeiling(interval, startTimestamp);
+        long end = getBucketCeiling(interval, endTimestamp);
+
+        if (end > getClosedBoundary(interval) || start >= end) {
+            return null;
+        }
+
+        NavigableMap<Long, Double> amounts = getRollup(id, dimensionId, start, end, interval);
+        if (amounts.isEmpty()) {
+            return Double.NaN;
+        }
+
+        double amount = 0.0;
+        for (Double bucketAmount : amounts.values()) {
+            amount += bucketAmount;
+        }
+        return amount;
+    }
+
+    /**
+     * Returns the amounts in each bucket of the given {@code interval}
+     * between the given timestamps, keyed by the start of the bucket. The
+     * closed buckets are read from the rollup cache when possible, so that
+     * only the open ones need to be read from the database.
+     */
+    private NavigableMap<Long, Double> getRollup(UUID id, UUID dimensionId, Long startTimestamp, Long endTimestamp, MetricInterval interval) throws SQLException {
+        NavigableMap<Long, Double> amounts = new TreeMap<Long, Double>();
+        Long closedStart = startTimestamp != null ? getBucketCeiling(interval, startTimestamp) : null;
+        long closedEnd = getClosedBoundary(interval);
+
+        if (endTimestamp != null) {
+            closedEnd = Math.min(closedEnd, interval.process(new DateTime(endTimestamp)));
+        }
+
+        if (closedStart != null && closedStart >= closedEnd) {
+            amounts.putAll(readTimeline(id, dimensionId, startTimestamp, endTimestamp, interval));
+            return amounts;
+        }
+
+        Map<List<Object>, MetricRollupCache.Rollup> rollups = ROLLUP_CACHE.getRollups(id);
+        List<Object> key = Arrays.<Object>asList(getDatabase().getName(), getSymbolId(), dimensionId, interval.getClass().getName());
+        MetricRollupCache.Rollup rollup = rollups.get(key);
+
+        if (rollup == null || !rollup.reaches(closedStart)) {
+            // Read everything at once and remember the closed buckets.
+            amounts.putAll(readTimeline(id, dimensionId, startTimestamp, endTimestamp, interval));
+            rollups.put(key, new MetricRollupCache.Rollup(closedStart, closedEnd, closedStart != null
+                    ? amounts.subMap(closedStart, true, closedEnd, false)
+                    : amounts.headMap(closedEnd, false)));
+            return amounts;
+        }
+
+        // Partial first bucket.
+        if (startTimestamp != null && startTimestamp < closedStart) {
+            amounts.putAll(readTimeline(id, dimensionId, startTimestamp, closedStart, interval));
+        }
+
+        amounts.putAll(rollup.getAmounts(closedStart, Math.min(rollup.getTo(), closedEnd)));
+
+        if (rollup.getTo() < closedEnd) {
+            NavigableMap<Long, Double> newer = readTimeline(id, dimensionId, rollup.getTo(), endTimestamp, interval);
+            amounts.putAll(newer);
+            rollups.put(key, rollup.extend(closedEnd, newer.headMap(closedEnd, false)));
+
+        } else if (endTimestamp == null || endTimestamp > closedEnd) {
+            amounts.putAll(readTimeline(id, dimensionId, closedEnd, endTimestamp, interval));
+        }
+
+        return amounts;
+    }
+
+    private NavigableMap<Long, Double> readTimeline(UUID id, UUID dimensionId, Long startTimestamp, Long endTimestamp, MetricInterval interval) throws SQLException {
+        NavigableMap<Long, Double> amounts = new TreeMap<Long, Double>();
+        for (Map.Entry<DateTime, Double> entry : Static.getMetricTimelineByIdAndDimension(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, startTimestamp, endTimestamp, interval, false).entrySet()) {
+            amounts.put(entry.getKey().getMillis(), entry.getValue());
+        }
+        return amounts;
+    }
+
+    /**
+     * Returns the start of the earliest bucket in the given
+     * {@code interval} that could still receive increments without an
+     * explicit event date.
+     */
+    long getClosedBoundary(MetricInterval interval) {
+        DateTime time = new DateTime(db.now() - ROLLUP_CACHE.getGracePeriod() * 1000L);
+
+        // The increments are stored at the start of the event date bucket,
+        // which may be before the start of the given interval bucket.
+        long boundary = Math.min(interval.process(time), getEventDateProcessor().process(time));
+        return interval.process(new DateTime(boundary));
+    }
+
+    /**
+     * Returns the given {@code timestamp} if it's at the start of a bucket
+     * in the given {@code interval}, or the start of the next bucket.
+     * MetricInterval can only truncate, so the next bucket is found by
+     * searching.
+     */
+    static long getBucketCeiling(MetricInterval interval, long timestamp) {
+        long bucket = interval.process(new DateTime(timestamp));
+        if (bucket == timestamp) {
+            return timestamp;
+        }
+
+        long low = timestamp;
+        long high = timestamp;
+        for (long step = 1000L; interval.process(new DateTime(high)) == bucket; step *= 2) {
+            if (step > 1L << 42) {
+                return Long.MAX_VALUE;
+            }
+            low = high;
+            high = timestamp + step;
+        }
+
+        while (high - low > 1) {
+            long middle = low + (high - low) / 2;
+            if (interval.process(new DateTime(middle)) == bucket) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high;
+    }
+
     /**
      * Cached in CachingDatabase (if available) on id, dimensionId, and endTimestamp
      * @param id Can't be {@code null}.
@@ -251,7 +475,18 @@ class MetricAccess {
         if (metricInterval == null) {
             metricInterval = getEventDateProcessor();
         }
-        return Static.getMetricTimelineByIdAndDimension(getDatabase(), id, getTypeId(), getSymbolId(), getDimensionId(dimensionValue), startTimestamp, endTimestamp, metricInterval, false);
+        // The closed buckets can't be cached with the event log, since the
+        // increments in it are only added to them once they're folded.
+        if (!ROLLUP_CACHE.isEnabled()
+                || getDatabase().isMetricEventLog()
+                || metricInterval instanceof MetricInterval.None) {
+            return Static.getMetricTimelineByIdAndDimension(getDatabase(), id, getTypeId(), getSymbolId(), getDimensionId(dimensionValue), startTimestamp, endTimestamp, metricInterval, false);
+        }
+        Map<DateTime, Double> values = new CompactMap<DateTime, Double>();
+        for (Map.Entry<Long, Double> entry : getRollup(id, getDimensionId(dimensionValue), startTimestamp, endTimestamp, metricInterval).entrySet()) {
+            values.put(new DateTime(entry.getKey()), entry.getValue());
+        }
+        return values;
     }
 
     public void incrementMetric(UUID id, DateTime time, String dimensionValue, Double amount) throws SQLException {
@@ -265,6 +500,17 @@ class MetricAccess {
         }
         boolean isImplicitEventDate = (time == null);
         long eventDate = getEventDate(time);
+        if (!isImplicitEventDate) {
+            ROLLUP_CACHE.invalidate(id);
+        }
+        if (getDatabase().isMetricEventLog()) {
+            List<List<Object>> events = new ArrayList<List<Object>>();
+            addEvents(events, id, dimensionId, eventDate, amount);
+            Static.doInsertEvents(getDatabase(), events);
+            clearCachedData(Static.getCachingDatabase(), id);
+            recalculateImmediateIndexedMethods(id);
+            return;
+        }
         Static.doIncrementUpdateOrInsert(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, amount, eventDate, isImplicitEventDate);
         if (!dimensionId.equals(UuidUtils.ZERO_UUID)) {
             // Do an additional increment for the null dimension to maintain the sum
@@ -274,6 +520,125 @@ class MetricAccess {
         recalculateImmediateIndexedMethods(id);
     }
 
+    /**
+     * Increments the metric by all the given {@code increments}, which must
+     * all be for this metric, using as few statements as possible.
+     *
+     * <p>The increments without an explicit event date are combined per ID
+     * and dimension, and applied as a batch of updates. The ones that don't
+     * match an existing row, or that have an explicit event date, are
+     * applied one at a time. Everything is done in a single transaction,
+     * so that none of the increments are applied if this method throws,
+     * and they can all be retried.</p>
+     */
+    void incrementMetricsByDimensionId(Collection<QueuedMetricIncrement> increments) throws SQLException {
+        if (getDatabase().isMetricEventLog()) {
+            appendMetrics(increments);
+            return;
+        }
+
+        Map<List<Object>, Double> datedAmounts = new LinkedHashMap<List<Object>, Double>();
+        Map<List<UUID>, Double> amounts = new LinkedHashMap<List<UUID>, Double>();
+        Set<UUID> ids = new LinkedHashSet<UUID>();
+        Set<UUID> datedIds = new LinkedHashSet<UUID>();
+
+        for (QueuedMetricIncrement increment : increments) {
+            if (increment.amount == 0) {
+                continue;
+
+            } else if (increment.eventDate != null) {
+                long eventDate = getEventDate(increment.eventDate);
+
+                addDatedAmount(datedAmounts, increment.id, increment.dimensionId, eventDate, increment.amount);
+
+                if (!increment.dimensionId.equals(UuidUtils.ZERO_UUID)) {
+                    // Do an additional increment for the null dimension to maintain the sum
+                    addDatedAmount(datedAmounts, increment.id, UuidUtils.ZERO_UUID, eventDate, increment.amount);
+                }
+
+                datedIds.add(increment.id);
+
+            } else {
+                addAmount(amounts, increment.id, increment.dimensionId, increment.amount);
+
+                if (!increment.dimensionId.equals(UuidUtils.ZERO_UUID)) {
+                    // Do an additional increment for the null dimension to maintain the sum
+                    addAmount(amounts, increment.id, UuidUtils.ZERO_UUID, increment.amount);
+                }
+            }
+
+            ids.add(increment.id);
+        }
+
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        Static.doIncrementBatch(getDatabase(), getTypeId(), getSymbolId(), datedAmounts, amounts, getEventDate(null));
+
+        for (UUID id : datedIds) {
+            ROLLUP_CACHE.invalidate(id);
+        }
+
+        for (UUID id : ids) {
+            clearCachedData(Static.getCachingDatabase(), id);
+            recalculateImmediateIndexedMethods(id);
+        }
+    }
+
+    // Appends all the given increments to the event log in one batch.
+    private void appendMetrics(Collection<QueuedMetricIncrement> increments) throws SQLException {
+        List<List<Object>> events = new ArrayList<List<Object>>();
+        Set<UUID> ids = new LinkedHashSet<UUID>();
+
+        for (QueuedMetricIncrement increment : increments) {
+            if (increment.amount != 0) {
+                addEvents(events, increment.id, increment.dimensionId, getEventDate(increment.eventDate), increment.amount);
+                ids.add(increment.id);
+                if (increment.eventDate != null) {
+                    ROLLUP_CACHE.invalidate(increment.id);
+                }
+            }
+        }
+
+        if (events.isEmpty()) {
+            return;
+        }
+
+        Static.doInsertEvents(getDatabase(), events);
+
+        for (UUID id : ids) {
+            clearCachedData(Static.getCachingDatabase(), id);
+            recalculateImmediateIndexedMethods(id);
+        }
+    }
+
+    // Adds the event log rows for the given increment, including the one
+    // for the null dimension to maintain the sum.
+    private void addEvents(List<List<Object>> events, UUID id, UUID dimensionId, long eventDate, double amount) {
+        long shiftedAmount = (long) (amount * AMOUNT_DECIMAL_SHIFT);
+
+        events.add(Arrays.<Object>asList(id, getTypeId(), getSymbolId(), dimensionId, eventDate, shiftedAmount));
+
+        if (!dimensionId.equals(UuidUtils.ZERO_UUID)) {
+            events.add(Arrays.<Object>asList(id, getTypeId(), getSymbolId(), UuidUtils.ZERO_UUID, eventDate, shiftedAmount));
+        }
+    }
+
+    private static void addAmount(Map<List<UUID>, Double> amounts, UUID id, UUID dimensionId, double amount) {
+        List<UUID> key = Arrays.asList(id, dimensionId);
+        Double oldAmount = amounts.get(key);
+
+        amounts.put(key, oldAmount != null ? oldAmount + amount : amount);
+    }
+
+    private static void addDatedAmount(Map<List<Object>, Double> amounts, UUID id, UUID dimensionId, long eventDate, double amount) {
+        List<Object> key = Arrays.<Object>asList(id, dimensionId, eventDate);
+        Double oldAmount = amounts.get(key);
+
+        amounts.put(key, oldAmount != null ? oldAmount + amount : amount);
+    }
+
     public void setMetric(UUID id, DateTime time, String dimensionValue, Double amount) throws SQLException {
         setMetricByDimensionId(id, time, getDimensionId(dimensionValue), amount);
         clearCachedData(Static.getCachingDatabase(), id);
@@ -284,6 +649,8 @@ class MetricAccess {
         if (getEventDate(time) != 0L) {
             throw new RuntimeException("MetricAccess.setMetric() can only be used if EventDateProcessor is None");
         }
+        foldEvents(id);
+        ROLLUP_CACHE.invalidate(id);
         Static.doSetUpdateOrInsert(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, amount, 0L);
         if (!dimensionId.equals(UuidUtils.ZERO_UUID)) {
             // Do an additional increment for the null dimension to maintain the sum
@@ -295,22 +662,40 @@ class MetricAccess {
     }
 
     public void deleteMetric(UUID id) throws SQLException {
+        if (getDatabase().isMetricEventLog()) {
+            Static.doDeleteEvents(getDatabase(), id, getTypeId(), getSymbolId());
+        }
         Static.doMetricDelete(getDatabase(), id, getTypeId(), getSymbolId());
+        ROLLUP_CACHE.invalidate(id);
         clearCachedData(Static.getCachingDatabase(), id);
         recalculateImmediateIndexedMethods(id);
     }
 
     public void reconstructCumulativeAmounts(UUID id) throws SQLException {
+        foldEvents(id);
         Static.doReconstructCumulativeAmounts(getDatabase(), id, getTypeId(), getSymbolId(), null);
+        ROLLUP_CACHE.invalidate(id);
         clearCachedData(Static.getCachingDatabase(), id);
         recalculateImmediateIndexedMethods(id);
     }
 
     public void resummarize(UUID id, UUID dimensionId, MetricInterval interval, Long startTimestamp, Long endTimestamp) throws SQLException {
+        foldEvents(id);
         Static.doResummarize(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, interval, startTimestamp, endTimestamp);
+        ROLLUP_CACHE.invalidate(id);
         clearCachedData(Static.getCachingDatabase(), id);
     }
 
+    // Folds the logged increments for the given id into the rows, so that
+    // they can be modified directly.
+    private void foldEvents(UUID id) throws SQLException {
+        if (getDatabase().isMetricEventLog()) {
+            while (Static.doFoldEvents(getDatabase(), id, EVENT_FOLD_LIMIT) >= EVENT_FOLD_LIMIT) {
+                // Keep folding until there's nothing left.
+            }
+        }
+    }
+
     public Task submitResummarizeAllTask(MetricInterval interval, Long startTimestamp, Long endTimestamp, int numParallel, String executor, String name) {
         ResummarizeTask task = new ResummarizeTask(getDatabase(), getSymbolId(), interval, startTimestamp, endTimestamp, numParallel, executor, name);
         task.submit();
@@ -405,6 +790,10 @@ class MetricAccess {
         // Methods that generate SQL statements
 
         private static String getDataSql(MetricAccessDatabase db, UUID id, UUID typeId, Integer symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean selectMinData, boolean doDecodeToBytes, String extraSelectSql, String extraGroupBySql, String extraWhereSql) {
+            return getDataSql(db, Collections.singleton(id), typeId, symbolId, dimensionId, minEventDate, maxEventDate, selectMinData, doDecodeToBytes, extraSelectSql, extraGroupBySql, extraWhereSql);
+        }
+
+        private static String getDataSql(MetricAccessDatabase db, Collection<UUID> ids, UUID typeId, Integer symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean selectMinData, boolean doDecodeToBytes, String extraSelectSql, String extraGroupBySql, String extraWhereSql) {
             StringBuilder sqlBuilder = new StringBuilder();
             SqlVendor vendor = db.getMetricVendor();
 
@@ -448,9 +837,7 @@ class MetricAccess {
             sqlBuilder.append(" FROM ");
             sqlBuilder.append(Static.getMetricTableIdentifier(db));
             sqlBuilder.append(" WHERE ");
-            vendor.appendIdentifier(sqlBuilder, METRIC_ID_FIELD);
-            sqlBuilder.append(" = ");
-            vendor.appendValue(sqlBuilder, id);
+            appendIdsWhere(sqlBuilder, vendor, ids);
 
             if (symbolId != null) {
                 sqlBuilder.append(" AND ");
@@ -510,6 +897,22 @@ class MetricAccess {
             return sqlBuilder.toString();
         }
 
+        private static void appendIdsWhere(StringBuilder sqlBuilder, SqlVendor vendor, Collection<UUID> ids) {
+            vendor.appendIdentifier(sqlBuilder, METRIC_ID_FIELD);
+            if (ids.size() == 1) {
+                sqlBuilder.append(" = ");
+                vendor.appendValue(sqlBuilder, ids.iterator().next());
+            } else {
+                sqlBuilder.append(" IN (");
+                for (UUID id : ids) {
+                    vendor.appendValue(sqlBuilder, id);
+                    sqlBuilder.append(", ");
+                }
+                sqlBuilder.setLength(sqlBuilder.length() - 2);
+                sqlBuilder.append(")");
+            }
+        }
+
         private static String getAllDataSql(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean doDecodeToBytes) {
             StringBuilder sqlBuilder = new StringBuilder();
             SqlVendor vendor = db.getMetricVendor();
@@ -862,6 +1265,21 @@ class MetricAccess {
 
         // Methods that generate complicated bits of SQL
 
+        /**
+         * Returns the amount between the rows with the given data.
+         *
+         * @param minData If {@code null}, returns the cumulative amount.
+         */
+        static double calculateAmount(byte[] maxData, byte[] minData) {
+            double maxCumulativeAmount = amountFromBytes(maxData, CUMULATIVEAMOUNT_POSITION);
+            if (minData == null) {
+                return maxCumulativeAmount;
+            }
+            double minCumulativeAmount = amountFromBytes(minData, CUMULATIVEAMOUNT_POSITION);
+            double minAmount = amountFromBytes(minData, AMOUNT_POSITION);
+            return maxCumulativeAmount - (minCumulativeAmount - minAmount);
+        }
+
         public static void appendSelectCalculatedAmountSql(StringBuilder str, SqlVendor vendor, String minDataColumnIdentifier, String maxDataColumnIdentifier, boolean includeSum) {
 
             str.append("ROUND(");
@@ -887,7 +1305,7 @@ class MetricAccess {
 
         // methods that convert bytes into values and back again
 
-        private static byte[] toBytes(long eventDate, double cumulativeAmount, double amount) {
+        static byte[] toBytes(long eventDate, double cumulativeAmount, double amount) {
 
             Long cumulativeAmountLong = (long) (cumulativeAmount * AMOUNT_DECIMAL_SHIFT);
             Long amountLong = (long) (amount * AMOUNT_DECIMAL_SHIFT);
@@ -944,8 +1362,18 @@ class MetricAccess {
         // methods that actually touch the database
 
         private static void doIncrementUpdateOrInsert(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, double incrementAmount, long eventDate, boolean isImplicitEventDate) throws SQLException {
-            SqlVendor vendor = db.getMetricVendor();
             Connection connection = db.openConnection();
+            try {
+                doIncrementUpdateOrInsert(db, connection, id, typeId, symbolId, dimensionId, incrementAmount, eventDate, isImplicitEventDate);
+            } finally {
+                db.closeConnection(connection);
+            }
+        }
+
+        // Does all the reads on the given connection, so that it can be
+        // used within a transaction.
+        private static void doIncrementUpdateOrInsert(MetricAccessDatabase db, Connection connection, UUID id, UUID typeId, int symbolId, UUID dimensionId, double incrementAmount, long eventDate, boolean isImplicitEventDate) throws SQLException {
+            SqlVendor vendor = db.getMetricVendor();
             try {
 
                 if (isImplicitEventDate) {
@@ -961,7 +1389,7 @@ class MetricAccess {
                     if (0 == rowsAffected) {
                         // There is no data for the current date. Now we have to read
                         // the previous cumulative amount so we can insert a new row.
-                        byte[] data = getDataByIdAndDimension(db, id, typeId, symbolId, dimensionId, null, null, true);
+                        byte[] data = getDataByIdAndDimension(db, connection, id, typeId, symbolId, dimensionId, null, null);
                         double previousCumulativeAmount = 0.0d;
                         if (data != null) {
                             previousCumulativeAmount = amountFromBytes(data, CUMULATIVEAMOUNT_POSITION);
@@ -975,7 +1403,7 @@ class MetricAccess {
                 } else {
 
                     // First, find the max eventDate. Under normal circumstances, this will either be null (INSERT), before our eventDate (INSERT) or equal to our eventDate (UPDATE).
-                    byte[] data = getDataByIdAndDimension(db, id, typeId, symbolId, dimensionId, null, null, true);
+                    byte[] data = getDataByIdAndDimension(db, connection, id, typeId, symbolId, dimensionId, null, null);
 
                     if (data == null || timestampFromBytes(data) < eventDate) {
                         // No data for this eventDate; insert.
@@ -1002,7 +1430,7 @@ class MetricAccess {
                         // or if not, INSERT. Either way we will be updating future
                         // data, so just INSERT with a value of 0 if necessary, then
                         // UPDATE all rows.
-                        byte[] oldData = getDataByIdAndDimension(db, id, typeId, symbolId, dimensionId, null, eventDate, true);
+                        byte[] oldData = getDataByIdAndDimension(db, connection, id, typeId, symbolId, dimensionId, null, eventDate);
                         if (oldData == null || timestampFromBytes(oldData) < eventDate) {
                             double previousCumulativeAmount = 0.0d;
                             if (oldData != null) {
@@ -1025,13 +1453,118 @@ class MetricAccess {
                 List<Object> repairParameters = new ArrayList<Object>();
                 String repairSql = getRepairTypeIdSql(db, repairParameters, id, typeId, dimensionId, symbolId, eventDate);
                 SqlDatabase.Static.executeUpdateWithList(vendor, connection, repairSql, repairParameters);
-                doIncrementUpdateOrInsert(db, id, typeId, symbolId, dimensionId, incrementAmount, eventDate, isImplicitEventDate);
+                doIncrementUpdateOrInsert(db, connection, id, typeId, symbolId, dimensionId, incrementAmount, eventDate, isImplicitEventDate);
+            }
+        }
+
+        // Applies all the given increments in a single transaction. The
+        // dated amounts are keyed by [id, dimensionId, eventDate], and the
+        // rest are at the given eventDate keyed by [id, dimensionId].
+        static void doIncrementBatch(MetricAccessDatabase db, UUID typeId, int symbolId, Map<List<Object>, Double> datedAmounts, Map<List<UUID>, Double> amounts, long eventDate) throws SQLException {
+            Connection connection = db.openConnection();
+            try {
+                connection.setAutoCommit(false);
+                try {
+                    for (Map.Entry<List<Object>, Double> entry : sortByKey(datedAmounts)) {
+                        List<Object> key = entry.getKey();
+                        doIncrementUpdateOrInsert(db, connection, (UUID) key.get(0), typeId, symbolId, (UUID) key.get(1), entry.getValue(), (Long) key.get(2), false);
+                    }
+
+                    if (!amounts.isEmpty()) {
+                        for (List<UUID> key : doIncrementUpdateBatch(db, connection, typeId, symbolId, amounts, eventDate)) {
+                            doIncrementUpdateOrInsert(db, connection, key.get(0), typeId, symbolId, key.get(1), amounts.get(key), eventDate, true);
+                        }
+                    }
+
+                    connection.commit();
+
+                } catch (SQLException | RuntimeException error) {
+                    connection.rollback();
+                    throw error;
+
+                } finally {
+                    connection.setAutoCommit(true);
+                }
             } finally {
                 db.closeConnection(connection);
             }
         }
 
+        // Increments the rows at the given eventDate for all the given
+        // [id, dimensionId] keys in batches, and returns the keys whose
+        // rows don't exist yet.
+        private static List<List<UUID>> doIncrementUpdateBatch(MetricAccessDatabase db, Connection connection, UUID typeId, int symbolId, Map<List<UUID>, Double> amounts, long eventDate) throws SQLException {
+            Map<String, List<List<UUID>>> keysBySql = new LinkedHashMap<String, List<List<UUID>>>();
+            Map<String, List<List<Object>>> parametersBySql = new HashMap<String, List<List<Object>>>();
+
+            // The statements are grouped by their text in case the vendor
+            // inlines any of the values.
+            for (Map.Entry<List<UUID>, Double> entry : sortByKey(amounts)) {
+                List<UUID> key = entry.getKey();
+                List<Object> parameters = new ArrayList<Object>();
+                String updateSql = getUpdateSql(db, parameters, key.get(0), typeId, symbolId, key.get(1), entry.getValue(), eventDate, true, false);
+
+                keysBySql.computeIfAbsent(updateSql, k -> new ArrayList<List<UUID>>()).add(key);
+                parametersBySql.computeIfAbsent(updateSql, k -> new ArrayList<List<Object>>()).add(parameters);
+            }
+
+            List<List<UUID>> missing = new ArrayList<List<UUID>>();
+
+            for (Map.Entry<String, List<List<UUID>>> entry : keysBySql.entrySet()) {
+                String updateSql = entry.getKey();
+                List<List<UUID>> keys = entry.getValue();
+                int[] affected = SqlDatabase.Static.executeBatchUpdate(connection, updateSql, parametersBySql.get(updateSql));
+
+                // Unlike the other updates, these aren't idempotent, so
+                // the rows whose counts weren't reported by the driver
+                // are checked instead of being retried.
+                for (int i = 0, size = keys.size(); i < size; ++ i) {
+                    List<UUID> key = keys.get(i);
+                    int count = i < affected.length ? affected[i] : Statement.SUCCESS_NO_INFO;
+
+                    if (count == 0) {
+                        missing.add(key);
+
+                    } else if (count == Statement.SUCCESS_NO_INFO) {
+                        byte[] data = getDataByIdAndDimension(db, connection, key.get(0), typeId, symbolId, key.get(1), null, null);
+
+                        if (data == null || timestampFromBytes(data) != eventDate) {
+                            missing.add(key);
+                        }
+                    }
+                }
+            }
+
+            return missing;
+        }
+
+        // Returns the entries in the given amounts ordered by their keys, so
+        // that the concurrent batches lock the rows, especially the shared
+        // ones for the null dimension, in the same order.
+        private static <K extends List<?>> List<Map.Entry<K, Double>> sortByKey(Map<K, Double> amounts) {
+            List<Map.Entry<K, Double>> entries = new ArrayList<Map.Entry<K, Double>>(amounts.entrySet());
+
+            entries.sort((x, y) -> compareKeys(x.getKey(), y.getKey()));
+            return entries;
+        }
+
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        private static int compareKeys(List<?> x, List<?> y) {
+            for (int i = 0, size = Math.min(x.size(), y.size()); i < size; ++ i) {
+                int compare = ((Comparable) x.get(i)).compareTo(y.get(i));
+
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+
+            return 0;
+        }
+
         // This is for the occasional race condition when we check for the existence of a row, it does not exist, then two threads try to insert at (almost) the same time.
+        // Within a transaction, such as the one in #doFoldEvents, the failed INSERT must not take the rest of the transaction down with it.
+        // PostgreSQL aborts the whole transaction on any error, so executeUpdateWithList wraps the INSERT in a savepoint and rolls back to it on failure
+        // whenever the connection isn't in auto-commit mode and the vendor uses savepoints. MySQL only rolls back the failed statement, so it doesn't need one.
         private static void tryInsertThenUpdate(MetricAccessDatabase db, Connection connection, String insertSql, List<Object> insertParameters, String updateSql, List<Object> updateParameters) throws SQLException, UpdateFailedException {
             SqlVendor vendor = db.getMetricVendor();
 
@@ -1090,6 +1623,259 @@ class MetricAccess {
             }
         }
 
+        // Each event is [id, typeId, symbolId, dimensionId, eventDate, shifted amount].
+        static void doInsertEvents(MetricAccessDatabase db, List<List<Object>> events) throws SQLException {
+            SqlVendor vendor = db.getMetricVendor();
+            Map<String, List<List<Object>>> parametersBySql = new LinkedHashMap<String, List<List<Object>>>();
+
+            // The statements are grouped by their text in case the vendor
+            // inlines any of the values.
+            for (List<Object> event : events) {
+                List<Object> parameters = new ArrayList<Object>();
+                StringBuilder insertBuilder = new StringBuilder("INSERT INTO ");
+                insertBuilder.append(getMetricEventTableIdentifier(db));
+                insertBuilder.append(" (");
+                vendor.appendIdentifier(insertBuilder, METRIC_ID_FIELD);
+                insertBuilder.append(", ");
+                vendor.appendIdentifier(insertBuilder, METRIC_TYPE_FIELD);
+                insertBuilder.append(", ");
+                vendor.appendIdentifier(insertBuilder, METRIC_SYMBOL_FIELD);
+                insertBuilder.append(", ");
+                vendor.appendIdentifier(insertBuilder, METRIC_DIMENSION_FIELD);
+                insertBuilder.append(", ");
+                vendor.appendIdentifier(insertBuilder, METRIC_EVENT_DATE_FIELD);
+                insertBuilder.append(", ");
+                vendor.appendIdentifier(insertBuilder, METRIC_EVENT_AMOUNT_FIELD);
+                insertBuilder.append(") VALUES (");
+
+                for (int i = 0, size = event.size(); i < size; ++ i) {
+                    if (i > 0) {
+                        insertBuilder.append(", ");
+                    }
+                    vendor.appendBindValue(insertBuilder, event.get(i), parameters);
+                }
+
+                insertBuilder.append(")");
+                parametersBySql.computeIfAbsent(insertBuilder.toString(), k -> new ArrayList<List<Object>>()).add(parameters);
+            }
+
+            // All or nothing, so that the events can be appended again
+            // if this throws.
+            Connection connection = db.openConnection();
+            try {
+                connection.setAutoCommit(false);
+                try {
+                    for (Map.Entry<String, List<List<Object>>> entry : parametersBySql.entrySet()) {
+                        SqlDatabase.Static.executeBatchUpdate(connection, entry.getKey(), entry.getValue());
+                    }
+                    connection.commit();
+
+                } catch (SQLException | RuntimeException error) {
+                    connection.rollback();
+                    throw error;
+
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                db.closeConnection(connection);
+            }
+        }
+
+        // Returns the SQL that sums the events that haven't been folded yet
+        // for each id and symbolId, with the same leading columns as the
+        // bulk #getDataSql in #getMaxMinDataByIds so that the two can be
+        // combined using UNION ALL.
+        private static String getEventSumsSql(MetricAccessDatabase db, Collection<UUID> ids, UUID typeId, String symbolIdsSql, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean selectMinData) {
+            SqlVendor vendor = db.getMetricVendor();
+            StringBuilder sqlBuilder = new StringBuilder();
+            sqlBuilder.append("SELECT NULL, ");
+            if (selectMinData) {
+                sqlBuilder.append("NULL, ");
+            }
+            vendor.appendIdentifier(sqlBuilder, METRIC_SYMBOL_FIELD);
+            sqlBuilder.append(", ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_ID_FIELD);
+            sqlBuilder.append(", SUM(");
+            vendor.appendIdentifier(sqlBuilder, METRIC_EVENT_AMOUNT_FIELD);
+            sqlBuilder.append(") FROM ");
+            sqlBuilder.append(getMetricEventTableIdentifier(db));
+            sqlBuilder.append(" WHERE ");
+            appendIdsWhere(sqlBuilder, vendor, ids);
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_SYMBOL_FIELD);
+            sqlBuilder.append(" IN (");
+            sqlBuilder.append(symbolIdsSql);
+            sqlBuilder.append(") AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_TYPE_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, typeId);
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_DIMENSION_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, dimensionId);
+
+            if (minEventDate != null) {
+                sqlBuilder.append(" AND ");
+                vendor.appendIdentifier(sqlBuilder, METRIC_EVENT_DATE_FIELD);
+                sqlBuilder.append(" >= ");
+                vendor.appendValue(sqlBuilder, minEventDate);
+            }
+
+            if (maxEventDate != null) {
+                sqlBuilder.append(" AND ");
+                vendor.appendIdentifier(sqlBuilder, METRIC_EVENT_DATE_FIELD);
+                sqlBuilder.append(" < ");
+                vendor.appendValue(sqlBuilder, maxEventDate);
+            }
+
+            sqlBuilder.append(" GROUP BY ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_SYMBOL_FIELD);
+            sqlBuilder.append(", ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_ID_FIELD);
+            return sqlBuilder.toString();
+        }
+
+        /**
+         * Folds up to the given {@code limit} oldest events into the Metric
+         * table and removes them from the MetricEvent table in a single
+         * transaction.
+         *
+         * @param id If {@code null}, folds the events for all ids.
+         * @return Number of events folded.
+         */
+        static int doFoldEvents(MetricAccessDatabase db, UUID id, int limit) throws SQLException {
+            SqlVendor vendor = db.getMetricVendor();
+            StringBuilder selectBuilder = new StringBuilder();
+            selectBuilder.append("SELECT ");
+            vendor.appendIdentifier(selectBuilder, METRIC_EVENT_ID_FIELD);
+            selectBuilder.append(", ");
+            vendor.appendIdentifier(selectBuilder, METRIC_ID_FIELD);
+            selectBuilder.append(", ");
+            vendor.appendIdentifier(selectBuilder, METRIC_TYPE_FIELD);
+            selectBuilder.append(", ");
+            vendor.appendIdentifier(selectBuilder, METRIC_SYMBOL_FIELD);
+            selectBuilder.append(", ");
+            vendor.appendIdentifier(selectBuilder, METRIC_DIMENSION_FIELD);
+            selectBuilder.append(", ");
+            vendor.appendIdentifier(selectBuilder, METRIC_EVENT_DATE_FIELD);
+            selectBuilder.append(", ");
+            vendor.appendIdentifier(selectBuilder, METRIC_EVENT_AMOUNT_FIELD);
+            selectBuilder.append(" FROM ");
+            selectBuilder.append(getMetricEventTableIdentifier(db));
+
+            if (id != null) {
+                selectBuilder.append(" WHERE ");
+                vendor.appendIdentifier(selectBuilder, METRIC_ID_FIELD);
+                selectBuilder.append(" = ");
+                vendor.appendValue(selectBuilder, id);
+            }
+
+            selectBuilder.append(" ORDER BY ");
+            vendor.appendIdentifier(selectBuilder, METRIC_EVENT_ID_FIELD);
+            selectBuilder.append(" LIMIT ");
+            selectBuilder.append(limit);
+            selectBuilder.append(" FOR UPDATE");
+
+            Connection connection = db.openConnection();
+            try {
+                connection.setAutoCommit(false);
+                try {
+                    List<Long> eventIds = new ArrayList<Long>();
+                    Map<List<Object>, Long> amounts = new LinkedHashMap<List<Object>, Long>();
+                    Statement statement = connection.createStatement();
+                    try {
+                        ResultSet result = db.executeQueryBeforeTimeout(statement, selectBuilder.toString(), QUERY_TIMEOUT);
+                        try {
+                            while (result.next()) {
+                                eventIds.add(result.getLong(1));
+                                List<Object> key = Arrays.<Object>asList(
+                                        UuidUtils.fromBytes(result.getBytes(2)),
+                                        UuidUtils.fromBytes(result.getBytes(3)),
+                                        result.getInt(4),
+                                        UuidUtils.fromBytes(result.getBytes(5)),
+                                        result.getLong(6));
+                                amounts.merge(key, result.getLong(7), Long::sum);
+                            }
+                        } finally {
+                            result.close();
+                        }
+                    } finally {
+                        statement.close();
+                    }
+
+                    if (eventIds.isEmpty()) {
+                        connection.commit();
+                        return 0;
+                    }
+
+                    // The amounts for the null dimension were logged separately,
+                    // so each row is only incremented once here.
+                    for (Map.Entry<List<Object>, Long> entry : amounts.entrySet()) {
+                        List<Object> key = entry.getKey();
+                        double amount = (double) entry.getValue() / AMOUNT_DECIMAL_SHIFT;
+                        if (amount != 0) {
+                            doIncrementUpdateOrInsert(db, connection, (UUID) key.get(0), (UUID) key.get(1), (Integer) key.get(2), (UUID) key.get(3), amount, (Long) key.get(4), false);
+                        }
+                    }
+
+                    for (int i = 0, size = eventIds.size(); i < size; i += EVENT_FOLD_LIMIT) {
+                        StringBuilder deleteBuilder = new StringBuilder();
+                        deleteBuilder.append("DELETE FROM ");
+                        deleteBuilder.append(getMetricEventTableIdentifier(db));
+                        deleteBuilder.append(" WHERE ");
+                        vendor.appendIdentifier(deleteBuilder, METRIC_EVENT_ID_FIELD);
+                        deleteBuilder.append(" IN (");
+                        for (Long eventId : eventIds.subList(i, Math.min(i + EVENT_FOLD_LIMIT, size))) {
+                            vendor.appendValue(deleteBuilder, eventId);
+                            deleteBuilder.append(", ");
+                        }
+                        deleteBuilder.setLength(deleteBuilder.length() - 2);
+                        deleteBuilder.append(")");
+                        SqlDatabase.Static.executeUpdateWithList(vendor, connection, deleteBuilder.toString(), null);
+                    }
+
+                    connection.commit();
+                    return eventIds.size();
+
+                } catch (SQLException | RuntimeException error) {
+                    connection.rollback();
+                    throw error;
+
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                db.closeConnection(connection);
+            }
+        }
+
+        static void doDeleteEvents(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId) throws SQLException {
+            SqlVendor vendor = db.getMetricVendor();
+            StringBuilder sqlBuilder = new StringBuilder();
+            sqlBuilder.append("DELETE FROM ");
+            sqlBuilder.append(getMetricEventTableIdentifier(db));
+            sqlBuilder.append(" WHERE ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_SYMBOL_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, symbolId);
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_ID_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, id);
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, METRIC_TYPE_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, typeId);
+
+            Connection connection = db.openConnection();
+            try {
+                SqlDatabase.Static.executeUpdateWithList(vendor, connection, sqlBuilder.toString(), null);
+            } finally {
+                db.closeConnection(connection);
+            }
+        }
+
         static void doInsertDimensionValue(MetricAccessDatabase db, UUID dimensionId, String dimensionValue) throws SQLException {
             Connection connection = db.openConnection();
             List<Object> parameters = new ArrayList<Object>();
@@ -1366,25 +2152,29 @@ class MetricAccess {
         }
 
         private static byte[] getDataByIdAndDimension(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean master) throws SQLException {
+            Connection connection = master ? db.openConnection() : db.openReadConnection();
+            try {
+                return getDataByIdAndDimension(db, connection, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate);
+            } finally {
+                db.closeConnection(connection);
+            }
+        }
+
+        private static byte[] getDataByIdAndDimension(MetricAccessDatabase db, Connection connection, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate) throws SQLException {
             String sql = getDataSql(db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate, false, true, null, null, null);
             byte[] data = null;
-            Connection connection = master ? db.openConnection() : db.openReadConnection();
+            Statement statement = connection.createStatement();
             try {
-                Statement statement = connection.createStatement();
+                ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
                 try {
-                    ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
-                    try {
-                        if (result.next()) {
-                            data = result.getBytes(1);
-                        }
-                    } finally {
-                        result.close();
+                    if (result.next()) {
+                        data = result.getBytes(1);
                     }
                 } finally {
-                    statement.close();
+                    result.close();
                 }
             } finally {
-                db.closeConnection(connection);
+                statement.close();
             }
             return data;
         }
@@ -1600,84 +2390,126 @@ class MetricAccess {
         }
 
         public static void preFetchMetricSums(UUID id, UUID dimensionId, Long startTimestamp, Long endTimestamp, Collection<MetricAccess> metricAccesses, boolean master) throws SQLException {
-            if (metricAccesses.isEmpty()) {
+            preFetchMetricSums(Collections.singleton(id), dimensionId, startTimestamp, endTimestamp, metricAccesses, master);
+        }
+
+        /**
+         * Reads the metric data for all the given {@code ids} and
+         * {@code metricAccesses}, which must all be for the same type, in a
+         * single query and caches it in the CachingDatabase (if available).
+         *
+         * @param dimensionId Can't be {@code null}.
+         */
+        public static void preFetchMetricSums(Collection<UUID> ids, UUID dimensionId, Long startTimestamp, Long endTimestamp, Collection<MetricAccess> metricAccesses, boolean master) throws SQLException {
+            if (ids.isEmpty() || metricAccesses.isEmpty()) {
                 return;
             }
             CachingDatabase cachingDb = getCachingDatabase();
             if (cachingDb == null) {
                 return;
             }
-            Iterator<MetricAccess> iter = metricAccesses.iterator();
-            MetricAccess ma = iter.next();
+            getMaxMinDataByIds(ids, dimensionId, startTimestamp, endTimestamp, metricAccesses, master, null);
+        }
+
+        /**
+         * Reads the max data and the min data (only if the given
+         * {@code startTimestamp} isn't {@code null}) for all the given
+         * {@code ids} and {@code metricAccesses}, which must all be for the
+         * same type, in a single query per 500 ids.
+         * The results, including the missing ones, are cached in the
+         * CachingDatabase (if available).
+         *
+         * @param dimensionId Can't be {@code null}.
+         * @param eventAmounts If not {@code null}, the sums of the events
+         *        that haven't been folded yet are read in the same statement
+         *        and put into it, keyed by id and symbolId.
+         * @return Two elements, maxData and minData, keyed by id and
+         *         symbolId. Never {@code null}.
+         */
+        private static Map<List<Object>, byte[][]> getMaxMinDataByIds(Collection<UUID> ids, UUID dimensionId, Long startTimestamp, Long endTimestamp, Collection<MetricAccess> metricAccesses, boolean master, Map<List<Object>, Double> eventAmounts) throws SQLException {
+            Map<List<Object>, byte[][]> datas = new HashMap<List<Object>, byte[][]>();
+            if (ids.isEmpty() || metricAccesses.isEmpty()) {
+                return datas;
+            }
+            MetricAccess ma = metricAccesses.iterator().next();
             UUID typeId = ma.getTypeId();
             MetricAccessDatabase db = ma.getDatabase();
             if (db == null) {
-                return;
+                return datas;
             }
             Map<Integer, MetricAccess> maBySymbolId = new HashMap<Integer, MetricAccess>();
             StringBuilder symbolIdsString = new StringBuilder();
-            do {
-                symbolIdsString.append(ma.getSymbolId());
+            for (MetricAccess metricAccess : metricAccesses) {
+                symbolIdsString.append(metricAccess.getSymbolId());
                 symbolIdsString.append(',');
-                maBySymbolId.put(ma.getSymbolId(), ma);
-            } while (iter.hasNext() && (ma = iter.next()) != null);
+                maBySymbolId.put(metricAccess.getSymbolId(), metricAccess);
+            }
             symbolIdsString.setLength(symbolIdsString.length() - 1);
 
             boolean selectMinData = true;
             if (startTimestamp == null) {
                 selectMinData = false;
             }
-            String extraSelectSql = METRIC_SYMBOL_FIELD;
-            String extraGroupBySql = METRIC_SYMBOL_FIELD;
+            String extraSelectSql = METRIC_SYMBOL_FIELD + ", " + METRIC_ID_FIELD + (eventAmounts != null ? ", NULL" : "");
+            String extraGroupBySql = METRIC_SYMBOL_FIELD + ", " + METRIC_ID_FIELD;
             String extraWhereSql = METRIC_SYMBOL_FIELD + " IN (" + symbolIdsString.toString() + ")";
-
-            String sql = getDataSql(db, id, typeId, null, dimensionId, startTimestamp, endTimestamp, selectMinData, true, extraSelectSql, extraGroupBySql, extraWhereSql);
+            List<UUID> idsList = new ArrayList<UUID>(new LinkedHashSet<UUID>(ids));
 
             Connection connection = master ? db.openConnection() : db.openReadConnection();
             try {
-                Statement statement = connection.createStatement();
-                try {
-                    ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
+                for (int i = 0, size = idsList.size(); i < size; i += BULK_READ_SIZE) {
+                    List<UUID> subIds = idsList.subList(i, Math.min(i + BULK_READ_SIZE, size));
+                    String sql = getDataSql(db, subIds, typeId, null, dimensionId, startTimestamp, endTimestamp, selectMinData, true, extraSelectSql, extraGroupBySql, extraWhereSql);
+                    if (eventAmounts != null) {
+                        sql += " UNION ALL " + getEventSumsSql(db, subIds, typeId, symbolIdsString.toString(), dimensionId, startTimestamp, endTimestamp, selectMinData);
+                    }
+                    Statement statement = connection.createStatement();
                     try {
-                        while (result.next()) {
-
-                            byte[] maxData = result.getBytes(1);
-                            byte[] minData = null;
-                            int symbolId;
-                            if (selectMinData) {
-                                minData = result.getBytes(2);
-                                symbolId = result.getInt(3);
-                            } else {
-                                minData = null;
-                                symbolId = result.getInt(2);
-                            }
-                            MetricAccess metricAccess = maBySymbolId.get(symbolId);
-                            if (selectMinData) {
-                                metricAccess.putCachedData(cachingDb, id, dimensionId, startTimestamp, minData, CACHE_MIN);
+                        ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
+                        try {
+                            while (result.next()) {
+                                byte[] maxData = result.getBytes(1);
+                                int column = 2;
+                                byte[] minData = selectMinData ? result.getBytes(column++) : null;
+                                int symbolId = result.getInt(column++);
+                                UUID id = UuidUtils.fromBytes(result.getBytes(column++));
+                                List<Object> key = Arrays.<Object>asList(id, symbolId);
+                                if (eventAmounts != null) {
+                                    long eventSum = result.getLong(column);
+                                    if (!result.wasNull()) {
+                                        eventAmounts.put(key, (double) eventSum / AMOUNT_DECIMAL_SHIFT);
+                                        continue;
+                                    }
+                                }
+                                datas.put(key, new byte[][] { maxData, minData });
                             }
-                            metricAccess.putCachedData(cachingDb, id, dimensionId, endTimestamp, maxData, CACHE_MAX);
-                            metricAccesses.remove(metricAccess);
+                        } finally {
+                            result.close();
                         }
                     } finally {
-                        result.close();
+                        statement.close();
                     }
-                } finally {
-                    statement.close();
                 }
             } finally {
                 db.closeConnection(connection);
             }
 
             // If we did not find data, we still need to cache that fact.
-            iter = metricAccesses.iterator();
-            while (iter.hasNext()) {
-                MetricAccess metricAccess = iter.next();
-                if (selectMinData) {
-                    metricAccess.putCachedData(cachingDb, id, dimensionId, startTimestamp, null, CACHE_MIN);
+            CachingDatabase cachingDb = getCachingDatabase();
+            if (cachingDb != null) {
+                for (UUID id : idsList) {
+                    for (Map.Entry<Integer, MetricAccess> entry : maBySymbolId.entrySet()) {
+                        MetricAccess metricAccess = entry.getValue();
+                        byte[][] data = datas.get(Arrays.<Object>asList(id, entry.getKey()));
+                        if (selectMinData) {
+                            metricAccess.putCachedData(cachingDb, id, dimensionId, startTimestamp, data != null ? data[1] : null, CACHE_MIN);
+                        }
+                        metricAccess.putCachedData(cachingDb, id, dimensionId, endTimestamp, data != null ? data[0] : null, CACHE_MAX);
+                    }
                 }
-                metricAccess.putCachedData(cachingDb, id, dimensionId, endTimestamp, null, CACHE_MAX);
             }
 
+            return datas;
         }
 
         public static MetricAccess getMetricAccess(Database db, ObjectType type, ObjectField field) {
@@ -1754,6 +2586,21 @@ class MetricAccess {
             }
         }
 
+        public static String getMetricEventTableIdentifier(MetricAccessDatabase database) {
+            SqlVendor vendor = database.getMetricVendor();
+            String catalog = database.getMetricCatalog();
+            StringBuilder str = new StringBuilder();
+
+            if (catalog != null) {
+                vendor.appendIdentifier(str, catalog);
+                str.append(".");
+            }
+
+            vendor.appendIdentifier(str, METRIC_EVENT_TABLE);
+
+            return str.toString();
+        }
+
     }
 
     // MODIFICATIONS
@@ -1968,6 +2815,7 @@ class ResummarizeConsumer extends AsyncConsumer<Metric.DistinctIds> {
     @Override
     protected void consume(Metric.DistinctIds tuple) throws Exception {
         MetricAccess.Static.doResummarize(database, tuple.id, tuple.typeId, symbolId, tuple.dimensionId, interval, startTimestamp, endTimestamp);
+        MetricAccess.ROLLUP_CACHE.invalidate(tuple.id);
     }
 
 }
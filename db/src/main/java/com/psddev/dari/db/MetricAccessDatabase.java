@@ -24,4 +24,12 @@ public interface MetricAccessDatabase extends Database {
             throws SQLException;
 
     void closeConnection(Connection connection);
+
+    /**
+     * Returns {@code true} if the metric increments should be appended to
+     * the MetricEvent table instead of updating the Metric table directly.
+     */
+    default boolean isMetricEventLog() {
+        return false;
+    }
 }
@@ -0,0 +1,56 @@
+package com.psddev.dari.db;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.psddev.dari.util.RepeatingTask;
+import com.psddev.dari.util.Settings;
+
+/**
+ * Folds the metric increments appended to the MetricEvent table into the
+ * Metric table every minute, for all databases that have the
+ * {@linkplain MetricAccessDatabase#isMetricEventLog event log} enabled.
+ *
+ * <p>The events are folded in batches of {@code
+ * dari/metricEventCompactionBatchSize} (1000 by default), each in its own
+ * transaction, so that the locks on the Metric rows are held briefly.</p>
+ */
+public class MetricEventCompactionTask extends RepeatingTask {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricEventCompactionTask.class);
+
+    @Override
+    protected DateTime calculateRunTime(DateTime currentTime) {
+        return everyMinute(currentTime);
+    }
+
+    @Override
+    protected void doRepeatingTask(DateTime runTime) throws Exception {
+        int batchSize = Settings.getOrDefault(int.class, "dari/metricEventCompactionBatchSize", 1000);
+
+        for (MetricAccessDatabase database : Database.Static.getByClass(MetricAccessDatabase.class)) {
+            if (!database.isMetricEventLog()) {
+                continue;
+            }
+
+            long total = 0L;
+
+            try {
+                int folded;
+
+                do {
+                    folded = MetricAccess.Static.doFoldEvents(database, null, batchSize);
+                    total += folded;
+                } while (folded >= batchSize && shouldContinue());
+
+            } catch (Exception error) {
+                LOGGER.warn(String.format("Can't fold the metric events in [%s]!", database.getName()), error);
+            }
+
+            if (total > 0) {
+                LOGGER.debug("Folded {} metric events in [{}]", total, database.getName());
+            }
+        }
+    }
+}
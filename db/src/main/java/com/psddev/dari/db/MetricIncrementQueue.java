@@ -2,75 +2,77 @@ package com.psddev.dari.db;
 
 import java.math.BigDecimal;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Settings;
 import com.psddev.dari.util.Task;
+import com.psddev.dari.util.TaskExecutor;
 
 final class MetricIncrementQueue {
 
     //private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
 
-    private static final ConcurrentHashMap<Double, ConcurrentHashMap<String, QueuedMetricIncrement>> QUEUED_INCREMENTS = new ConcurrentHashMap<Double, ConcurrentHashMap<String, QueuedMetricIncrement>>();
+    private static final ConcurrentHashMap<Double, MetricIncrementAccumulator> QUEUED_INCREMENTS = new ConcurrentHashMap<Double, MetricIncrementAccumulator>();
+
+    // Almost all increments use the same withinSeconds, so remember the
+    // last one to avoid boxing and looking it up on every increment.
+    private static volatile Target lastTarget;
 
     public static void queueIncrement(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount, double withinSeconds) {
 
-        double waitSeconds = new BigDecimal(withinSeconds * .75d).setScale(2).doubleValue();
-        double executeSeconds = new BigDecimal(withinSeconds * .25d).setScale(2).doubleValue();
+        Target target = lastTarget;
+        if (target == null || target.withinSeconds != withinSeconds) {
+            target = new Target(withinSeconds);
+            lastTarget = target;
+        }
 
-        putInMap(id, dimensionId, eventDate, metricAccess, amount, waitSeconds);
+        target.accumulator.add(id, dimensionId, eventDate, metricAccess, amount);
 
         // If the task is already running or has been scheduled, this won't do anything.
-        MetricIncrementQueueTask task = MetricIncrementQueueTask.getInstance(executeSeconds, waitSeconds, QUEUED_INCREMENTS.get(waitSeconds));
-        task.schedule(waitSeconds);
+        Future<?> future = target.task.getFuture();
+        if (future == null || future.isDone()) {
+            target.task.schedule(target.waitSeconds);
+        }
 
     }
 
-    private static void putInMap(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount, double waitSeconds) {
+    private static final class Target {
 
-        ConcurrentHashMap<String, QueuedMetricIncrement> queue = QUEUED_INCREMENTS.get(waitSeconds);
-        if (queue == null) {
-            QUEUED_INCREMENTS.putIfAbsent(waitSeconds, new ConcurrentHashMap<String, QueuedMetricIncrement>());
-            queue = QUEUED_INCREMENTS.get(waitSeconds);
-        }
+        public final double withinSeconds;
+        public final double waitSeconds;
+        public final MetricIncrementAccumulator accumulator;
+        public final MetricIncrementQueueTask task;
 
-        String key = getKey(id, dimensionId, eventDate, metricAccess);
-        QueuedMetricIncrement placeholder = new QueuedMetricIncrement(id, dimensionId, eventDate, metricAccess, 0d);
-        while (true) {
-            QueuedMetricIncrement current = queue.putIfAbsent(key, placeholder);
-            if (current == null) {
-                current = placeholder;
-            }
-            QueuedMetricIncrement next = new QueuedMetricIncrement(id, dimensionId, eventDate, metricAccess, current.amount + amount);
-            if (queue.replace(key, current, next)) {
-                return;
-            } else {
-                continue;
-            }
-        }
+        public Target(double withinSeconds) {
+            double waitSeconds = new BigDecimal(withinSeconds * .75d).setScale(2).doubleValue();
+            double executeSeconds = new BigDecimal(withinSeconds * .25d).setScale(2).doubleValue();
 
-    }
+            MetricIncrementAccumulator accumulator = QUEUED_INCREMENTS.get(waitSeconds);
+            if (accumulator == null) {
+                QUEUED_INCREMENTS.putIfAbsent(waitSeconds, new MetricIncrementAccumulator());
+                accumulator = QUEUED_INCREMENTS.get(waitSeconds);
+            }
 
-    private static String getKey(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess) {
-        StringBuilder str = new StringBuilder();
-        str.append(id);
-        str.append(':');
-        str.append(metricAccess.getTypeId());
-        str.append(':');
-        str.append(metricAccess.getSymbolId());
-        str.append(':');
-        if (eventDate != null) {
-            str.append(eventDate.getMillis());
+            this.withinSeconds = withinSeconds;
+            this.waitSeconds = waitSeconds;
+            this.accumulator = accumulator;
+            this.task = MetricIncrementQueueTask.getInstance(executeSeconds, waitSeconds, accumulator);
         }
-        str.append(':');
-        str.append(dimensionId);
-        return str.toString();
     }
 
 }
@@ -110,23 +112,228 @@ class QueuedMetricIncrement {
     }
 }
 
+/**
+ * Sums of the queued metric increments, keyed by the ID, the dimension, the
+ * metric, and the event date.
+ *
+ * <p>Once a key exists, adding to it doesn't allocate, since the lookup
+ * uses a per-thread probe key and the amounts are kept in a
+ * {@link DoubleAdder}, which is striped under contention. Instead of being
+ * reset, each sum is {@linkplain #drain drained} by the difference since
+ * the last drain, so that concurrent increments are never lost. Keys that
+ * stay idle for a drain are retired and removed, but only while nothing is
+ * being added to them, and any increment that finds its key retired is
+ * added to a new one instead.</p>
+ */
+final class MetricIncrementAccumulator {
+
+    private final ConcurrentHashMap<Key, Cell> cells = new ConcurrentHashMap<Key, Cell>();
+    private final ThreadLocal<Key> probes = ThreadLocal.withInitial(Key::new);
+
+    public void add(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount) {
+        Key probe = probes.get();
+        probe.set(id, dimensionId, eventDate, metricAccess);
+
+        try {
+            while (true) {
+                Cell cell = cells.get(probe);
+                if (cell == null) {
+                    cell = cells.computeIfAbsent(probe.copy(), k -> new Cell(id, dimensionId, eventDate, metricAccess));
+                }
+
+                if (cell.add(amount)) {
+                    return;
+                }
+
+                // Retired by a concurrent drain, so try again with a new one.
+                cells.remove(probe, cell);
+            }
+
+        } finally {
+            probe.set(null, null, null, null);
+        }
+    }
+
+    public boolean isEmpty() {
+        return cells.isEmpty();
+    }
+
+    public int size() {
+        return cells.size();
+    }
+
+    /**
+     * Removes all the amounts without draining them.
+     */
+    public synchronized void clear() {
+        cells.clear();
+    }
+
+    /**
+     * Returns the amounts added since the last drain.
+     */
+    public synchronized List<QueuedMetricIncrement> drain() {
+        List<QueuedMetricIncrement> increments = new ArrayList<QueuedMetricIncrement>();
+
+        for (Map.Entry<Key, Cell> entry : cells.entrySet()) {
+            Cell cell = entry.getValue();
+
+            if (!cell.drain(increments) && cell.retire()) {
+                cells.remove(entry.getKey(), cell);
+
+                // Nothing can be added to a retired cell, but something may
+                // have been between the drain and the retire.
+                cell.drain(increments);
+            }
+        }
+
+        return increments;
+    }
+
+    private static final class Key {
+
+        private long idMost;
+        private long idLeast;
+        private long dimensionIdMost;
+        private long dimensionIdLeast;
+        private long eventDate;
+        private MetricAccess metricAccess;
+        private int hash;
+
+        public void set(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess) {
+            if (metricAccess == null) {
+                this.metricAccess = null;
+                return;
+            }
+
+            this.idMost = id.getMostSignificantBits();
+            this.idLeast = id.getLeastSignificantBits();
+            this.dimensionIdMost = dimensionId.getMostSignificantBits();
+            this.dimensionIdLeast = dimensionId.getLeastSignificantBits();
+            this.eventDate = eventDate != null ? eventDate.getMillis() : Long.MIN_VALUE;
+            this.metricAccess = metricAccess;
+
+            long h = idMost ^ idLeast;
+            h = 31 * h + (dimensionIdMost ^ dimensionIdLeast);
+            h = 31 * h + this.eventDate;
+            h = 31 * h + metricAccess.getSymbolId();
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+
+        public Key copy() {
+            Key copy = new Key();
+            copy.idMost = idMost;
+            copy.idLeast = idLeast;
+            copy.dimensionIdMost = dimensionIdMost;
+            copy.dimensionIdLeast = dimensionIdLeast;
+            copy.eventDate = eventDate;
+            copy.metricAccess = metricAccess;
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+
+            } else if (other instanceof Key) {
+                Key otherKey = (Key) other;
+                return idMost == otherKey.idMost
+                        && idLeast == otherKey.idLeast
+                        && dimensionIdMost == otherKey.dimensionIdMost
+                        && dimensionIdLeast == otherKey.dimensionIdLeast
+                        && eventDate == otherKey.eventDate
+                        && metricAccess == otherKey.metricAccess;
+
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Cell {
+
+        public final UUID id;
+        public final UUID dimensionId;
+        public final DateTime eventDate;
+        public final MetricAccess metricAccess;
+        public final DoubleAdder amount = new DoubleAdder();
+        private final AtomicInteger adders = new AtomicInteger();
+        private double drained;
+
+        public Cell(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess) {
+            this.id = id;
+            this.dimensionId = dimensionId;
+            this.eventDate = eventDate;
+            this.metricAccess = metricAccess;
+        }
+
+        // Adds the given amount, and returns false if the cell has been
+        // retired.
+        public boolean add(double value) {
+            for (int count; (count = adders.get()) >= 0;) {
+                if (adders.compareAndSet(count, count + 1)) {
+                    amount.add(value);
+                    adders.decrementAndGet();
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // Stops anything else from being added, unless something is being
+        // added right now, in which case returns false.
+        public boolean retire() {
+            return adders.compareAndSet(0, Integer.MIN_VALUE);
+        }
+
+        // Adds the amount since the last drain to the given increments, and
+        // returns false if there wasn't any.
+        public boolean drain(List<QueuedMetricIncrement> increments) {
+            double sum = amount.sum();
+            double difference = sum - drained;
+
+            if (difference == 0.0) {
+                return false;
+            }
+
+            drained = sum;
+            increments.add(new QueuedMetricIncrement(id, dimensionId, eventDate, metricAccess, difference));
+            return true;
+        }
+    }
+}
+
 final class MetricIncrementQueueTask extends Task {
     private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
     //private static MetricIncrementQueueTask instance;
     private static final transient ConcurrentHashMap<Double, MetricIncrementQueueTask> INSTANCES = new ConcurrentHashMap<Double, MetricIncrementQueueTask>();
 
-    private final transient ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements;
+    private static final String BATCH_SIZE_SETTING = "dari/metricIncrementQueueBatchSize";
+    private static final String THREADS_SETTING = "dari/metricIncrementQueueThreads";
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final int DEFAULT_THREADS = 1;
+    private static final String EXECUTOR_NAME = "Dari Metric Increments";
+
+    private final transient MetricIncrementAccumulator queuedIncrements;
 
     private final transient double executeSeconds;
     private final transient double waitSeconds;
 
-    private MetricIncrementQueueTask(double executeSeconds, double waitSeconds, ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements) {
+    private MetricIncrementQueueTask(double executeSeconds, double waitSeconds, MetricIncrementAccumulator queuedIncrements) {
         this.queuedIncrements = queuedIncrements;
         this.executeSeconds = executeSeconds;
         this.waitSeconds = waitSeconds;
     }
 
-    public static MetricIncrementQueueTask getInstance(double executeSeconds, double waitSeconds, ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements) {
+    public static MetricIncrementQueueTask getInstance(double executeSeconds, double waitSeconds, MetricIncrementAccumulator queuedIncrements) {
 
         MetricIncrementQueueTask instance = INSTANCES.get(executeSeconds);
         if (instance == null) {
@@ -139,45 +346,126 @@ final class MetricIncrementQueueTask extends Task {
 
     public void doTask() {
 
-        long sleepMilliseconds = 0L;
-        Iterator<String> iter = null;
-        while (true) {
-            if (queuedIncrements.isEmpty()) {
-                break;
-            }
-            if (iter == null || !iter.hasNext()) {
-                if (iter != null) {
-                    long waitMilliseconds = (long) (1000 * waitSeconds);
-                    try {
-                        Thread.sleep(waitMilliseconds);
-                    } catch (InterruptedException ex) {
-                        getThread().interrupt();
-                    }
+        while (!queuedIncrements.isEmpty()) {
+            long begin = System.currentTimeMillis();
+            boolean flushed = flush();
+
+            // Flush the rest right away when stopping, e.g. on shutdown,
+            // instead of waiting for more increments to combine.
+            if (isStopRequested()) {
+                if (!flushed) {
+                    LOGGER.error("Dropping " + queuedIncrements.size() + " queued metric increments because the database isn't available!");
+                    queuedIncrements.clear();
                 }
-                sleepMilliseconds = (long) (1000 * (executeSeconds / (double) queuedIncrements.size())) - 10L;
-                if (sleepMilliseconds <= 0) {
-                    sleepMilliseconds = 10L;
+                continue;
+            }
+
+            // The longer the flush takes, the less it waits, so that a
+            // growing backlog is flushed back-to-back.
+            long waitMilliseconds = (long) (1000 * waitSeconds) - (System.currentTimeMillis() - begin);
+            if (!flushed || (waitMilliseconds > 0 && queuedIncrements.size() < getBatchSize() * getThreads())) {
+                try {
+                    Thread.sleep(flushed ? waitMilliseconds : (long) (1000 * waitSeconds));
+                } catch (InterruptedException ex) {
+                    getThread().interrupt();
                 }
-                //LOGGER.info("running MetricIncrementQueueTask within " + executeSeconds + " seconds, approx. size: " + queuedIncrements.size() + " sleeping for " + sleepMilliseconds + " milliseconds between executions");
-                iter = queuedIncrements.keySet().iterator();
             }
-            String key = iter.next();
-            QueuedMetricIncrement queuedIncrement = queuedIncrements.remove(key);
-            //LOGGER.info("Incrementing : " + queuedIncrement.metricAccess.getSymbolId() + " / " + queuedIncrement.id + " : " + queuedIncrement.dimensionId + " += " + queuedIncrement.amount );
-            try {
-                queuedIncrement.metricAccess.incrementMetricByDimensionId(queuedIncrement.id, queuedIncrement.eventDate, queuedIncrement.dimensionId, queuedIncrement.amount);
-            } catch (SQLException ex) {
-                LOGGER.error("SQLException during incrementMetricByDimensionId: " + ex.getLocalizedMessage());
-                // TODO: log this somewhere so it can be recovered if the database fails catastrophically
-                throw new DatabaseException(queuedIncrement.metricAccess.getDatabase(), "SQLException during MetricAccess.incrementMetricByDimensionId", ex);
+        }
+
+    }
+
+    private static int getBatchSize() {
+        return Math.max(1, Settings.getOrDefault(int.class, BATCH_SIZE_SETTING, DEFAULT_BATCH_SIZE));
+    }
+
+    private static int getThreads() {
+        return Math.max(1, Settings.getOrDefault(int.class, THREADS_SETTING, DEFAULT_THREADS));
+    }
+
+    // Takes all the queued increments, and applies them in batches of the
+    // same metric spread across the threads. Returns false if any of them
+    // failed, in which case they're queued again.
+    private boolean flush() {
+        Map<MetricAccess, List<QueuedMetricIncrement>> incrementsByMetric = new LinkedHashMap<MetricAccess, List<QueuedMetricIncrement>>();
+
+        for (QueuedMetricIncrement increment : queuedIncrements.drain()) {
+            incrementsByMetric.computeIfAbsent(increment.metricAccess, k -> new ArrayList<QueuedMetricIncrement>()).add(increment);
+        }
+
+        int batchSize = getBatchSize();
+        int threads = getThreads();
+        List<List<List<QueuedMetricIncrement>>> batchesByThread = new ArrayList<List<List<QueuedMetricIncrement>>>();
+        int batchCount = 0;
+
+        for (int i = 0; i < threads; ++ i) {
+            batchesByThread.add(new ArrayList<List<QueuedMetricIncrement>>());
+        }
+
+        for (List<QueuedMetricIncrement> increments : incrementsByMetric.values()) {
+            for (int i = 0, size = increments.size(); i < size; i += batchSize) {
+                batchesByThread.get(batchCount % threads).add(increments.subList(i, Math.min(i + batchSize, size)));
+                ++ batchCount;
+            }
+        }
+
+        if (batchCount <= 1 || threads == 1) {
+            boolean flushed = true;
+
+            for (List<List<QueuedMetricIncrement>> batches : batchesByThread) {
+                flushed &= flushBatches(batches);
+            }
+
+            return flushed;
+        }
+
+        List<Callable<Boolean>> flushers = new ArrayList<Callable<Boolean>>();
+
+        for (List<List<QueuedMetricIncrement>> batches : batchesByThread) {
+            if (!batches.isEmpty()) {
+                flushers.add(() -> flushBatches(batches));
+            }
+        }
+
+        boolean flushed = true;
+
+        try {
+            for (Future<Boolean> future : TaskExecutor.Static.getInstance(EXECUTOR_NAME).invokeAll(flushers)) {
+                flushed &= future.get();
             }
+
+        } catch (ExecutionException ex) {
+            LOGGER.error("Can't flush the queued metric increments!", ex.getCause());
+            flushed = false;
+
+        } catch (InterruptedException ex) {
+            getThread().interrupt();
+            flushed = false;
+        }
+
+        return flushed;
+    }
+
+    private boolean flushBatches(List<List<QueuedMetricIncrement>> batches) {
+        boolean flushed = true;
+
+        for (List<QueuedMetricIncrement> batch : batches) {
             try {
-                Thread.sleep(sleepMilliseconds);
-            } catch (InterruptedException ex) {
-                getThread().interrupt();
+                batch.get(0).metricAccess.incrementMetricsByDimensionId(batch);
+
+            } catch (SQLException | RuntimeException ex) {
+                LOGGER.error("Can't flush " + batch.size() + " queued metric increments! Queueing them again.", ex);
+
+                // The batch is applied in a single transaction, so none of
+                // it has been applied yet.
+                for (QueuedMetricIncrement increment : batch) {
+                    queuedIncrements.add(increment.id, increment.dimensionId, increment.eventDate, increment.metricAccess, increment.amount);
+                }
+
+                flushed = false;
             }
         }
 
+        return flushed;
     }
 
 }
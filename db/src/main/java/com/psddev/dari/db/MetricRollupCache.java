@@ -0,0 +1,147 @@
+package com.psddev.dari.db;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * JVM-wide cache of the metric amounts in {@link MetricAccess}, rolled up
+ * into the buckets of a {@link MetricInterval}.
+ *
+ * <p>Only the buckets that are closed, i.e. can't receive any more
+ * increments without an explicit event date, are cached. The rollups are
+ * grouped by the object ID, so that {@linkplain #invalidate modifying a
+ * metric} on an object drops all of its rollups at once. The writes in
+ * other JVMs that target the closed buckets aren't seen until the
+ * entries expire. It isn't used with the
+ * {@linkplain MetricAccessDatabase#isMetricEventLog event log}, since the
+ * increments in it can still be folded into the closed buckets.</p>
+ */
+class MetricRollupCache {
+
+    private final Cache<UUID, Map<List<Object>, Rollup>> rollupsById;
+    private final long gracePeriod;
+
+    /**
+     * Creates an instance that holds the rollups for up to the given
+     * {@code maximumSize} objects, each for up to the given {@code ttl}
+     * seconds.
+     *
+     * @param gracePeriod Number of seconds that a bucket must be over
+     *        before it's considered closed, to allow for the increments
+     *        that are queued or in flight.
+     */
+    public MetricRollupCache(long maximumSize, long ttl, long gracePeriod) {
+        this.rollupsById = maximumSize > 0L
+                ? CacheBuilder.newBuilder()
+                        .maximumSize(maximumSize)
+                        .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                        .<UUID, Map<List<Object>, Rollup>>build()
+                : null;
+        this.gracePeriod = gracePeriod;
+    }
+
+    public boolean isEnabled() {
+        return rollupsById != null;
+    }
+
+    public long getGracePeriod() {
+        return gracePeriod;
+    }
+
+    /**
+     * Returns the mutable map of the rollups for the object with the given
+     * {@code id}. This must be called before reading the amounts that are
+     * to be put into it, so that any modification that happens
+     * concurrently discards them.
+     */
+    public Map<List<Object>, Rollup> getRollups(UUID id) {
+        try {
+            return rollupsById.get(id, ConcurrentHashMap::new);
+
+        } catch (ExecutionException error) {
+            throw new IllegalStateException(error.getCause());
+        }
+    }
+
+    /**
+     * Removes all the rollups for the object with the given {@code id}.
+     */
+    public void invalidate(UUID id) {
+        if (rollupsById != null) {
+            rollupsById.invalidate(id);
+        }
+    }
+
+    /**
+     * Amounts in the closed buckets between two bucket boundaries.
+     */
+    public static final class Rollup {
+
+        private final Long from;
+        private final long to;
+        private final NavigableMap<Long, Double> amounts;
+
+        /**
+         * @param from If {@code null}, from the first bucket.
+         * @param amounts Amounts keyed by the start of each bucket.
+         */
+        public Rollup(Long from, long to, Map<Long, Double> amounts) {
+            this.from = from;
+            this.to = to;
+            this.amounts = Collections.unmodifiableNavigableMap(new TreeMap<>(amounts));
+        }
+
+        public long getTo() {
+            return to;
+        }
+
+        /**
+         * Returns {@code true} if this rollup includes the bucket starting
+         * at the given {@code start}, or reaches up to it so that it can be
+         * {@linkplain #extend extended}.
+         *
+         * @param start If {@code null}, the first bucket.
+         */
+        public boolean reaches(Long start) {
+            if (start == null) {
+                return from == null;
+
+            } else {
+                return (from == null || from <= start) && start <= to;
+            }
+        }
+
+        /**
+         * Returns the amounts in the buckets between the given
+         * {@code start} and {@code end}.
+         *
+         * @param start If {@code null}, from the first bucket.
+         */
+        public NavigableMap<Long, Double> getAmounts(Long start, long end) {
+            return start != null
+                    ? amounts.subMap(start, true, end, false)
+                    : amounts.headMap(end, false);
+        }
+
+        /**
+         * Returns a new rollup that also includes the given {@code newer}
+         * amounts up to the given {@code newTo}.
+         */
+        public Rollup extend(long newTo, Map<Long, Double> newer) {
+            Map<Long, Double> combined = new TreeMap<>(amounts);
+
+            combined.putAll(newer);
+            return new Rollup(from, newTo, combined);
+        }
+    }
+}
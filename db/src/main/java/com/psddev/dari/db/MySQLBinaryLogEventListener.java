@@ -18,7 +18,9 @@ import com.github.shyiko.mysql.binlog.event.DeleteRowsEventData;
 import com.github.shyiko.mysql.binlog.event.Event;
 import com.github.shyiko.mysql.binlog.event.EventData;
 import com.github.shyiko.mysql.binlog.event.EventHeader;
+import com.github.shyiko.mysql.binlog.event.EventHeaderV4;
 import com.github.shyiko.mysql.binlog.event.EventType;
+import com.github.shyiko.mysql.binlog.event.RotateEventData;
 import com.github.shyiko.mysql.binlog.event.TableMapEventData;
 import com.github.shyiko.mysql.binlog.event.UpdateRowsEventData;
 import com.google.common.cache.Cache;
@@ -42,12 +44,44 @@ class MySQLBinaryLogEventListener implements EventListener {
     private final List<Event> events = new ArrayList<Event>();
     private boolean isFlushCache = false;
 
+    private String binlogFilename;
+    private volatile MySQLBinaryLogPosition seenPosition;
+    private volatile MySQLBinaryLogPosition committedPosition;
+
     public MySQLBinaryLogEventListener(SqlDatabase database, Cache<UUID, Object[]> cache, String catalog) {
         this.database = database;
         this.cache = cache;
         this.catalog = catalog;
     }
 
+    /**
+     * Sets the position that the client starts reading from.
+     */
+    public void setStartPosition(MySQLBinaryLogPosition position) {
+        this.binlogFilename = position != null ? position.getFilename() : null;
+        this.seenPosition = position;
+        this.committedPosition = position;
+    }
+
+    /**
+     * Returns the position right after the last event that's been read.
+     *
+     * @return May be {@code null}.
+     */
+    public MySQLBinaryLogPosition getSeenPosition() {
+        return seenPosition;
+    }
+
+    /**
+     * Returns the position right after the last transaction that's been
+     * applied to the cache, which is safe to resume reading from.
+     *
+     * @return May be {@code null}.
+     */
+    public MySQLBinaryLogPosition getCommittedPosition() {
+        return committedPosition;
+    }
+
     /**
      * Makes sure length of the given {@code in} is 16.
      */
@@ -69,17 +103,14 @@ class MySQLBinaryLogEventListener implements EventListener {
         id = confirm16Bytes(id);
         if (id != null) {
             UUID bid = ObjectUtils.to(UUID.class, id);
-            Object[] value = new Object[3];
-            value[1] = data;
-            Map<String, Object> jsonData = SqlDatabase.unserializeData(data);
-            value[2] = jsonData;
-            value[0] = UuidUtils.toBytes(ObjectUtils.to(UUID.class, jsonData.get(StateSerializer.TYPE_KEY)));
+            Map<String, Object> jsonData = SharedData.freeze(SqlDatabase.unserializeData(data));
+            byte[] jsonTypeId = UuidUtils.toBytes(ObjectUtils.to(UUID.class, jsonData.get(StateSerializer.TYPE_KEY)));
 
-            database.notifyUpdate(database.createSavedObjectFromReplicationCache((byte[]) value[0], bid, (byte[]) value[1], jsonData, null));
+            database.notifyUpdate(database.createSavedObjectFromReplicationCache(jsonTypeId, bid, data, jsonData, null));
 
             // populate cache
             if (cache.getIfPresent(bid) != null) {
-                cache.put(bid, value);
+                cache.put(bid, database.createReplicationCacheValue(jsonTypeId, data, jsonData));
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Cache update: typeId=[{}], id=[{}]", StringUtils.hex(typeId), StringUtils.hex(id));
                 }
@@ -98,6 +129,14 @@ class MySQLBinaryLogEventListener implements EventListener {
         }
     }
 
+    // Makes the query results that could include the objects of the given
+    // type stale, or all of them if the type isn't known.
+    private void invalidateQueryResults(Serializable typeId) {
+        byte[] typeIdBytes = typeId instanceof byte[] ? confirm16Bytes((byte[]) typeId) : null;
+
+        database.invalidateQueryResults(typeIdBytes != null ? ObjectUtils.to(UUID.class, typeIdBytes) : null);
+    }
+
     private void commitTransaction() {
 
         for (Event event : events) {
@@ -124,12 +163,17 @@ class MySQLBinaryLogEventListener implements EventListener {
                             : row[2] instanceof String ? ((String) row[2]).getBytes(Charsets.UTF_8)
                             : null;
 
+                    invalidateQueryResults(row[1]);
                     updateCache((byte[]) row[0], (byte[]) row[1], data);
                 }
 
             } else if (eventType == EventType.UPDATE_ROWS || eventType == EventType.EXT_UPDATE_ROWS) {
                 for (Map.Entry<Serializable[], Serializable[]> row : ((UpdateRowsEventData) eventData).getRows()) {
                     Serializable[] newValue = row.getValue();
+
+                    invalidateQueryResults(row.getKey()[1]);
+                    invalidateQueryResults(newValue[1]);
+
                     byte[] data = newValue[2] instanceof byte[] ? (byte[]) newValue[2]
                             : newValue[2] instanceof String ? ((String) newValue[2]).getBytes(Charsets.UTF_8)
                             : null;
@@ -138,10 +182,14 @@ class MySQLBinaryLogEventListener implements EventListener {
                 }
             } else if (eventType == EventType.DELETE_ROWS || eventType == EventType.EXT_DELETE_ROWS) {
                 for (Serializable[] row : ((DeleteRowsEventData) eventData).getRows()) {
+                    invalidateQueryResults(row[1]);
                     invalidateCache((byte[]) row[0]);
                 }
             } else if (eventType == EventType.QUERY) {
                 DariQueryEventData queryEventData = (DariQueryEventData) eventData;
+
+                invalidateQueryResults(queryEventData.getTypeId());
+
                 if (queryEventData.getAction() == DariQueryEventData.Action.UPDATE) {
                     updateCache(queryEventData.getId(), queryEventData.getTypeId(), queryEventData.getData());
                 } else if (queryEventData.getAction() == DariQueryEventData.Action.DELETE) {
@@ -156,6 +204,7 @@ class MySQLBinaryLogEventListener implements EventListener {
 
     private void flushCache() {
         cache.invalidateAll();
+        database.invalidateQueryResults((UUID) null);
     }
 
     private byte[] getByteData(byte[] source, String strSource, int begin, int end) {
@@ -282,7 +331,36 @@ class MySQLBinaryLogEventListener implements EventListener {
 
     @Override
     public void onEvent(Event event) {
+        try {
+            processEvent(event);
+
+        } finally {
+            updatePositions(event);
+        }
+    }
+
+    private void updatePositions(Event event) {
+        EventHeader eventHeader = event.getHeader();
+
+        if (eventHeader.getEventType() == EventType.ROTATE) {
+            RotateEventData rotateData = (RotateEventData) event.getData();
+
+            binlogFilename = rotateData.getBinlogFilename();
+            seenPosition = new MySQLBinaryLogPosition(binlogFilename, rotateData.getBinlogPosition());
+
+        } else if (binlogFilename != null
+                && eventHeader instanceof EventHeaderV4
+                && ((EventHeaderV4) eventHeader).getNextPosition() > 0) {
+
+            seenPosition = new MySQLBinaryLogPosition(binlogFilename, ((EventHeaderV4) eventHeader).getNextPosition());
+        }
+
+        if (!transactionBegin) {
+            committedPosition = seenPosition;
+        }
+    }
 
+    private void processEvent(Event event) {
         EventHeader eventHeader = event.getHeader();
         EventType eventType = eventHeader.getEventType();
         EventData eventData = event.getData();
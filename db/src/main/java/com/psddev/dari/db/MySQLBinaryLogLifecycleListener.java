@@ -13,11 +13,15 @@ class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MySQLBinaryLogLifecycleListener.class);
 
+    private final SqlDatabase database;
     private final Cache<UUID, Object[]> cache;
+    private final MySQLBinaryLogReader reader;
     private volatile boolean connected;
 
-    public MySQLBinaryLogLifecycleListener(Cache<UUID, Object[]> cache) {
+    public MySQLBinaryLogLifecycleListener(SqlDatabase database, Cache<UUID, Object[]> cache, MySQLBinaryLogReader reader) {
+        this.database = database;
         this.cache = cache;
+        this.reader = reader;
     }
 
     public boolean isConnected() {
@@ -33,6 +37,7 @@ class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
     @Override
     public void onCommunicationFailure(BinaryLogClient client, Exception error) {
         LOGGER.warn("Can't communicate with MySQL as a slave!", error);
+        reader.onCommunicationFailure(error);
     }
 
     @Override
@@ -40,5 +45,6 @@ class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
         LOGGER.info("Disconnected from MySQL as a slave");
         connected = false;
         cache.invalidateAll();
+        database.invalidateQueryResults((UUID) null);
     }
 }
@@ -0,0 +1,40 @@
+package com.psddev.dari.db;
+
+/**
+ * Position within the MySQL binary logs.
+ */
+final class MySQLBinaryLogPosition {
+
+    private final String filename;
+    private final long position;
+
+    public MySQLBinaryLogPosition(String filename, long position) {
+        this.filename = filename;
+        this.position = position;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns {@code true} if this position is the same as, or after, the
+     * given {@code other} position. The binary log file names end with a
+     * fixed width sequence number, so they can be compared as strings.
+     */
+    public boolean isAtOrAfter(MySQLBinaryLogPosition other) {
+        int filenameCompare = filename.compareTo(other.getFilename());
+
+        return filenameCompare > 0
+                || (filenameCompare == 0 && position >= other.getPosition());
+    }
+
+    @Override
+    public String toString() {
+        return filename + ":" + position;
+    }
+}
@@ -44,80 +44,32 @@ class MySQLBinaryLogReader {
     private static final SecureRandom RANDOM = new SecureRandom();
 
     private final SqlDatabase database;
+    private final Cache<UUID, Object[]> cache;
     private final BinaryLogClient client;
     private final MySQLBinaryLogLifecycleListener lifecycleListener;
+    private final MySQLBinaryLogEventListener eventListener;
     private final AtomicBoolean running = new AtomicBoolean();
+    private volatile MySQLBinaryLogPosition catchUpPosition;
+    private volatile boolean restart;
 
     public MySQLBinaryLogReader(SqlDatabase database, Cache<UUID, Object[]> cache, DataSource dataSource) {
-        this.database = database;
-
-        Class<?> dataSourceClass = dataSource.getClass();
-        String dataSourceClassName = dataSourceClass.getName();
-        String jdbcUrl = null;
-        String username = null;
-        String password = null;
-        Throwable dataSourceError = null;
-
-        try {
-            if (dataSourceClassName.equals("com.jolbox.bonecp.BoneCPDataSource")) {
-                jdbcUrl = (String) dataSourceClass.getMethod("getJdbcUrl").invoke(dataSource);
-                username = (String) dataSourceClass.getMethod("getUsername").invoke(dataSource);
-                password = (String) dataSourceClass.getMethod("getPassword").invoke(dataSource);
-
-            } else if (dataSource instanceof HikariDataSource) {
-                HikariDataSource hikari = (HikariDataSource) dataSource;
-                jdbcUrl = hikari.getJdbcUrl();
-                username = hikari.getUsername();
-                password = hikari.getPassword();
-
-            } else if (dataSourceClassName.equals("org.apache.tomcat.jdbc.pool.DataSource")) {
-                jdbcUrl = (String) dataSourceClass.getMethod("getUrl").invoke(dataSource);
-                Properties dbProperties = (Properties) dataSourceClass.getMethod("getDbProperties").invoke(dataSource);
-                username = dbProperties.getProperty("user");
-                password = dbProperties.getProperty("password");
-
-            } else {
-                jdbcUrl = (String) dataSourceClass.getMethod("getUrl").invoke(dataSource);
-                username = (String) dataSourceClass.getMethod("getUsername").invoke(dataSource);
-                password = (String) dataSourceClass.getMethod("getPassword").invoke(dataSource);
-            }
-
-        } catch (IllegalAccessException error) {
-            dataSourceError = error;
-
-        } catch (InvocationTargetException error) {
-            dataSourceError = error.getCause();
-
-        } catch (NoSuchMethodException error) {
-            dataSourceError = error;
-        }
-
-        if (dataSourceError != null) {
-            throw new IllegalArgumentException(String.format(
-                    "Can't extract MySQL information from data source [%s]!",
-                    dataSource.getClass().getName()),
-                    dataSourceError);
-        }
-
-        Matcher jdbcUrlMatcher = MYSQL_JDBC_URL_PATTERN.matcher(jdbcUrl);
+        this(database, cache, ConnectionInfo.fromDataSource(dataSource));
+    }
 
-        if (!jdbcUrlMatcher.matches()) {
-            throw new IllegalArgumentException(String.format(
-                    "[%s] isn't a valid MySQL JDBC URL!",
-                    jdbcUrl));
-        }
+    private MySQLBinaryLogReader(SqlDatabase database, Cache<UUID, Object[]> cache, ConnectionInfo info) {
+        this(database, cache, new BinaryLogClient(info.host, info.port, info.catalog, info.username, info.password), info.catalog);
+    }
 
-        String host = jdbcUrlMatcher.group(1);
-        int port = ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, jdbcUrlMatcher.group(2)), 3306);
-        String catalog = jdbcUrlMatcher.group(3);
-        username = ObjectUtils.firstNonNull(username, "");
-        password = ObjectUtils.firstNonNull(password, "");
-        this.client = new BinaryLogClient(host, port, catalog, username, password);
-        this.lifecycleListener = new MySQLBinaryLogLifecycleListener(cache);
+    MySQLBinaryLogReader(SqlDatabase database, Cache<UUID, Object[]> cache, BinaryLogClient client, String catalog) {
+        this.database = database;
+        this.cache = cache;
+        this.client = client;
+        this.lifecycleListener = new MySQLBinaryLogLifecycleListener(database, cache, this);
+        this.eventListener = new MySQLBinaryLogEventListener(database, cache, catalog);
 
         client.setServerId(RANDOM.nextLong());
         client.registerLifecycleListener(lifecycleListener);
-        client.registerEventListener(new MySQLBinaryLogEventListener(database, cache, catalog));
+        client.registerEventListener(eventListener);
 
         @SuppressWarnings("rawtypes")
         Map<EventType, EventDataDeserializer> eventDataDeserializers = new HashMap<EventType, EventDataDeserializer>();
@@ -145,18 +97,53 @@ class MySQLBinaryLogReader {
                         tableMapEventByTableId));
     }
 
+    /**
+     * Resumes reading from the given {@code position}, for example, after
+     * the cache is loaded from a snapshot. The reader won't be considered
+     * connected until it reads up to the given {@code catchUpPosition}.
+     * Must be called before {@link #start}.
+     */
+    public void setStartPosition(MySQLBinaryLogPosition position, MySQLBinaryLogPosition catchUpPosition) {
+        client.setBinlogFilename(position.getFilename());
+        client.setBinlogPosition(position.getPosition());
+        eventListener.setStartPosition(position);
+        this.catchUpPosition = catchUpPosition;
+    }
+
+    /**
+     * Returns the position right after the last transaction that's been
+     * applied to the cache.
+     *
+     * @return May be {@code null}.
+     */
+    public MySQLBinaryLogPosition getCommittedPosition() {
+        return eventListener.getCommittedPosition();
+    }
+
     public void start() {
         if (running.compareAndSet(false, true)) {
             Thread connectThread = new Thread() {
 
                 @Override
                 public void run() {
-                    try {
-                        client.connect();
+                    do {
+                        restart = false;
+
+                        try {
+                            client.connect();
+
+                        } catch (IOException error) {
+                            cache.invalidateAll();
+
+                            if (!restartFromCurrentPosition(error)) {
+                                LOGGER.warn("Can't connect to MySQL as a slave!", error);
+                                return;
+                            }
+                        }
 
-                    } catch (IOException error) {
-                        LOGGER.warn("Can't connect to MySQL as a slave!", error);
-                    }
+                    // The keep alive thread in the client may have already
+                    // reconnected.
+                    } while (restart && running.get() && !client.isConnected());
                 }
             };
 
@@ -164,12 +151,61 @@ class MySQLBinaryLogReader {
         }
     }
 
+    /**
+     * Called by the lifecycle listener when the communication with the
+     * server fails. If that happens while catching up, the resume position
+     * is probably no longer available, for example, because the binary log
+     * has been purged. The server reports that (ERROR 1236) after
+     * {@link BinaryLogClient#connect} already succeeded, so it doesn't
+     * throw, and the reader must start over from the current position
+     * instead.
+     */
+    void onCommunicationFailure(Exception error) {
+        restartFromCurrentPosition(error);
+    }
+
+    // Makes the client start reading from the current position the next
+    // time it connects, and returns false if it was already doing so.
+    private boolean restartFromCurrentPosition(Exception error) {
+        if (catchUpPosition == null) {
+            return false;
+        }
+
+        LOGGER.warn("Can't resume reading MySQL binary log! Starting from the current position.", error);
+        client.setBinlogFilename(null);
+        client.setBinlogPosition(4);
+        eventListener.setStartPosition(null);
+        catchUpPosition = null;
+        restart = true;
+        return true;
+    }
+
     public boolean isRunning() {
         return running.get();
     }
 
     public boolean isConnected() {
-        return isRunning() && lifecycleListener.isConnected();
+        return isRunning() && lifecycleListener.isConnected() && isCaughtUp();
+    }
+
+    // Returns true if the events since the start position have all been
+    // read, so that the cache loaded from a snapshot is up to date.
+    private boolean isCaughtUp() {
+        MySQLBinaryLogPosition catchUp = catchUpPosition;
+
+        if (catchUp == null) {
+            return true;
+        }
+
+        MySQLBinaryLogPosition seen = eventListener.getSeenPosition();
+
+        if (seen != null && seen.isAtOrAfter(catchUp)) {
+            catchUpPosition = null;
+            return true;
+
+        } else {
+            return false;
+        }
     }
 
     public void stop() {
@@ -182,4 +218,87 @@ class MySQLBinaryLogReader {
             }
         }
     }
+
+    // Connection information extracted from the data source.
+    private static final class ConnectionInfo {
+
+        public final String host;
+        public final int port;
+        public final String catalog;
+        public final String username;
+        public final String password;
+
+        public ConnectionInfo(String host, int port, String catalog, String username, String password) {
+            this.host = host;
+            this.port = port;
+            this.catalog = catalog;
+            this.username = username;
+            this.password = password;
+        }
+
+        public static ConnectionInfo fromDataSource(DataSource dataSource) {
+            Class<?> dataSourceClass = dataSource.getClass();
+            String dataSourceClassName = dataSourceClass.getName();
+            String jdbcUrl = null;
+            String username = null;
+            String password = null;
+            Throwable dataSourceError = null;
+
+            try {
+                if (dataSourceClassName.equals("com.jolbox.bonecp.BoneCPDataSource")) {
+                    jdbcUrl = (String) dataSourceClass.getMethod("getJdbcUrl").invoke(dataSource);
+                    username = (String) dataSourceClass.getMethod("getUsername").invoke(dataSource);
+                    password = (String) dataSourceClass.getMethod("getPassword").invoke(dataSource);
+
+                } else if (dataSource instanceof HikariDataSource) {
+                    HikariDataSource hikari = (HikariDataSource) dataSource;
+                    jdbcUrl = hikari.getJdbcUrl();
+                    username = hikari.getUsername();
+                    password = hikari.getPassword();
+
+                } else if (dataSourceClassName.equals("org.apache.tomcat.jdbc.pool.DataSource")) {
+                    jdbcUrl = (String) dataSourceClass.getMethod("getUrl").invoke(dataSource);
+                    Properties dbProperties = (Properties) dataSourceClass.getMethod("getDbProperties").invoke(dataSource);
+                    username = dbProperties.getProperty("user");
+                    password = dbProperties.getProperty("password");
+
+                } else {
+                    jdbcUrl = (String) dataSourceClass.getMethod("getUrl").invoke(dataSource);
+                    username = (String) dataSourceClass.getMethod("getUsername").invoke(dataSource);
+                    password = (String) dataSourceClass.getMethod("getPassword").invoke(dataSource);
+                }
+
+            } catch (IllegalAccessException error) {
+                dataSourceError = error;
+
+            } catch (InvocationTargetException error) {
+                dataSourceError = error.getCause();
+
+            } catch (NoSuchMethodException error) {
+                dataSourceError = error;
+            }
+
+            if (dataSourceError != null) {
+                throw new IllegalArgumentException(String.format(
+                        "Can't extract MySQL information from data source [%s]!",
+                        dataSource.getClass().getName()),
+                        dataSourceError);
+            }
+
+            Matcher jdbcUrlMatcher = MYSQL_JDBC_URL_PATTERN.matcher(jdbcUrl);
+
+            if (!jdbcUrlMatcher.matches()) {
+                throw new IllegalArgumentException(String.format(
+                        "[%s] isn't a valid MySQL JDBC URL!",
+                        jdbcUrl));
+            }
+
+            return new ConnectionInfo(
+                    jdbcUrlMatcher.group(1),
+                    ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, jdbcUrlMatcher.group(2)), 3306),
+                    jdbcUrlMatcher.group(3),
+                    ObjectUtils.firstNonNull(username, ""),
+                    ObjectUtils.firstNonNull(password, ""));
+        }
+    }
 }
@@ -0,0 +1,355 @@
+package com.psddev.dari.db;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import com.google.common.cache.AbstractCache;
+
+/**
+ * Replication cache that keeps the encoded data outside of the Java heap,
+ * so that it's never scanned by the garbage collector.
+ *
+ * <p>The data is appended to a ring of direct buffer slabs, and the
+ * location of each entry is kept in an open addressing hash table that's
+ * also in a direct buffer. When the ring wraps around, all the entries in
+ * the oldest slab are evicted, so the cache is bounded by the total size
+ * of the data. The values returned by {@link #getIfPresent} only contain
+ * the type ID and the encoded data, and must be decoded by the caller.</p>
+ *
+ * <p>The direct memory used is roughly the maximum weight plus
+ * {@value #BUCKET_SIZE} bytes per expected entry, and must be allowed by
+ * {@code -XX:MaxDirectMemorySize}.</p>
+ */
+class OffHeapReplicationCache extends AbstractCache<UUID, Object[]> {
+
+    private static final int MAXIMUM_SLAB_SIZE = 64 * 1024 * 1024;
+    private static final int MINIMUM_SLAB_SIZE = 64 * 1024;
+    private static final int MINIMUM_SLAB_COUNT = 4;
+    private static final int ESTIMATED_ENTRY_SIZE = 512;
+    private static final int MINIMUM_BUCKET_COUNT = 1024;
+    private static final int MAXIMUM_BUCKET_COUNT = 1 << 26;
+
+    // id (16 bytes), type id (16 bytes), and data length (4 bytes).
+    private static final int ENTRY_HEADER_SIZE = 36;
+    private static final int TYPE_ID_SIZE = 16;
+
+    // id (16 bytes) and location (8 bytes).
+    private static final int BUCKET_SIZE = 24;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final int[] slabLengths;
+    private final int bucketMask;
+    private final int maximumEntries;
+    private ByteBuffer index;
+    private int currentSlab;
+    private int size;
+
+    /**
+     * Creates an instance that can hold up to the given
+     * {@code maximumWeight} bytes of data.
+     */
+    public OffHeapReplicationCache(long maximumWeight) {
+        int slabCount = (int) Math.max(MINIMUM_SLAB_COUNT, (maximumWeight + MAXIMUM_SLAB_SIZE - 1) / MAXIMUM_SLAB_SIZE);
+        int bucketCount = Integer.highestOneBit((int) Math.min(MAXIMUM_BUCKET_COUNT, Math.max(MINIMUM_BUCKET_COUNT, maximumWeight / ESTIMATED_ENTRY_SIZE * 2)));
+
+        this.slabSize = (int) Math.max(MINIMUM_SLAB_SIZE, Math.min(MAXIMUM_SLAB_SIZE, maximumWeight / slabCount));
+        this.slabs = new ByteBuffer[slabCount];
+        this.slabLengths = new int[slabCount];
+        this.bucketMask = bucketCount - 1;
+        this.maximumEntries = bucketCount / 4 * 3;
+        this.index = ByteBuffer.allocateDirect(bucketCount * BUCKET_SIZE);
+    }
+
+    @Override
+    public Object[] getIfPresent(Object key) {
+        if (!(key instanceof UUID)) {
+            return null;
+        }
+
+        UUID id = (UUID) key;
+
+        lock.readLock().lock();
+
+        try {
+            int bucket = findBucket(id.getMostSignificantBits(), id.getLeastSignificantBits());
+
+            if (bucket < 0) {
+                return null;
+            }
+
+            long location = getLocation(bucket);
+            ByteBuffer slab = slabs[(int) (location >>> 32)].duplicate();
+            int offset = (int) location;
+            byte[] typeId = new byte[TYPE_ID_SIZE];
+            byte[] data = new byte[slab.getInt(offset + 32)];
+
+            slab.position(offset + 16);
+            slab.get(typeId);
+            slab.position(offset + ENTRY_HEADER_SIZE);
+            slab.get(data);
+
+            return new Object[] { typeId, data, null };
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(UUID id, Object[] value) {
+        byte[] typeId = (byte[]) value[0];
+        byte[] data = (byte[]) value[1];
+
+        if (typeId == null
+                || typeId.length != TYPE_ID_SIZE
+                || data == null
+                || data.length > slabSize - ENTRY_HEADER_SIZE) {
+
+            invalidate(id);
+            return;
+        }
+
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        int entrySize = ENTRY_HEADER_SIZE + data.length;
+
+        lock.writeLock().lock();
+
+        try {
+            int bucket = findBucket(msb, lsb);
+
+            if (bucket >= 0) {
+                removeBucket(bucket);
+            }
+
+            if (slabLengths[currentSlab] + entrySize > slabSize) {
+                currentSlab = (currentSlab + 1) % slabs.length;
+                evictSlab(currentSlab);
+            }
+
+            // Too many entries for the index, so evict the oldest slabs
+            // until there's room.
+            for (int i = 1; size >= maximumEntries && i < slabs.length; ++ i) {
+                evictSlab((currentSlab + i) % slabs.length);
+            }
+
+            if (size >= maximumEntries) {
+                return;
+            }
+
+            ByteBuffer slab = slabs[currentSlab];
+
+            if (slab == null) {
+                slab = ByteBuffer.allocateDirect(slabSize);
+                slabs[currentSlab] = slab;
+            }
+
+            int offset = slabLengths[currentSlab];
+            ByteBuffer entry = slab.duplicate();
+
+            entry.position(offset);
+            entry.putLong(msb);
+            entry.putLong(lsb);
+            entry.put(typeId);
+            entry.putInt(data.length);
+            entry.put(data);
+            slabLengths[currentSlab] = offset + entrySize;
+
+            int emptyBucket = -1 - findBucket(msb, lsb);
+            int bucketOffset = emptyBucket * BUCKET_SIZE;
+
+            index.putLong(bucketOffset, msb);
+            index.putLong(bucketOffset + 8, lsb);
+            index.putLong(bucketOffset + 16, (((long) currentSlab << 32) | offset) + 1);
+            ++ size;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        if (!(key instanceof UUID)) {
+            return;
+        }
+
+        UUID id = (UUID) key;
+
+        lock.writeLock().lock();
+
+        try {
+            int bucket = findBucket(id.getMostSignificantBits(), id.getLeastSignificantBits());
+
+            if (bucket >= 0) {
+                removeBucket(bucket);
+            }
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        lock.writeLock().lock();
+
+        try {
+            index = ByteBuffer.allocateDirect(index.capacity());
+
+            for (int i = 0, length = slabLengths.length; i < length; ++ i) {
+                slabLengths[i] = 0;
+            }
+
+            currentSlab = 0;
+            size = 0;
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+
+        try {
+            return size;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Passes all the entries to the given {@code consumer}, starting with
+     * the oldest ones. The cache can't be modified until this returns.
+     */
+    public void forEach(BiConsumer<UUID, Object[]> consumer) {
+        lock.readLock().lock();
+
+        try {
+            for (int i = 1, count = slabs.length; i <= count; ++ i) {
+                int slabIndex = (currentSlab + i) % count;
+                ByteBuffer slab = slabs[slabIndex];
+                int length = slabLengths[slabIndex];
+
+                for (int offset = 0; offset < length;) {
+                    long msb = slab.getLong(offset);
+                    long lsb = slab.getLong(offset + 8);
+                    int dataLength = slab.getInt(offset + 32);
+                    int bucket = findBucket(msb, lsb);
+
+                    // Skip the entries that have been replaced or removed.
+                    if (bucket >= 0 && getLocation(bucket) == (((long) slabIndex << 32) | offset)) {
+                        ByteBuffer entry = slab.duplicate();
+                        byte[] typeId = new byte[TYPE_ID_SIZE];
+                        byte[] data = new byte[dataLength];
+
+                        entry.position(offset + 16);
+                        entry.get(typeId);
+                        entry.position(offset + ENTRY_HEADER_SIZE);
+                        entry.get(data);
+                        consumer.accept(new UUID(msb, lsb), new Object[] { typeId, data, null });
+                    }
+
+                    offset += ENTRY_HEADER_SIZE + dataLength;
+                }
+            }
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int hash(long msb, long lsb) {
+        long hash = msb ^ lsb;
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    // Returns the location stored in the given bucket, or -1 if empty.
+    private long getLocation(int bucket) {
+        return index.getLong(bucket * BUCKET_SIZE + 16) - 1;
+    }
+
+    // Returns the bucket that contains the given id, or -1 - the empty
+    // bucket where it can be inserted.
+    private int findBucket(long msb, long lsb) {
+        for (int bucket = hash(msb, lsb) & bucketMask;; bucket = (bucket + 1) & bucketMask) {
+            int bucketOffset = bucket * BUCKET_SIZE;
+
+            if (index.getLong(bucketOffset + 16) == 0) {
+                return -1 - bucket;
+
+            } else if (index.getLong(bucketOffset) == msb
+                    && index.getLong(bucketOffset + 8) == lsb) {
+
+                return bucket;
+            }
+        }
+    }
+
+    // Removes the given bucket, shifting the following ones back so that
+    // the linear probing doesn't need tombstones.
+    private void removeBucket(int bucket) {
+        int empty = bucket;
+
+        for (int next = (empty + 1) & bucketMask;; next = (next + 1) & bucketMask) {
+            int nextOffset = next * BUCKET_SIZE;
+
+            if (index.getLong(nextOffset + 16) == 0) {
+                break;
+            }
+
+            int home = hash(index.getLong(nextOffset), index.getLong(nextOffset + 8)) & bucketMask;
+            boolean stays = empty <= next
+                    ? empty < home && home <= next
+                    : empty < home || home <= next;
+
+            if (!stays) {
+                int emptyOffset = empty * BUCKET_SIZE;
+
+                index.putLong(emptyOffset, index.getLong(nextOffset));
+                index.putLong(emptyOffset + 8, index.getLong(nextOffset + 8));
+                index.putLong(emptyOffset + 16, index.getLong(nextOffset + 16));
+                empty = next;
+            }
+        }
+
+        int emptyOffset = empty * BUCKET_SIZE;
+
+        index.putLong(emptyOffset, 0L);
+        index.putLong(emptyOffset + 8, 0L);
+        index.putLong(emptyOffset + 16, 0L);
+        -- size;
+    }
+
+    // Removes all the entries in the given slab from the index.
+    private void evictSlab(int slabIndex) {
+        ByteBuffer slab = slabs[slabIndex];
+        int length = slabLengths[slabIndex];
+
+        for (int offset = 0; offset < length;) {
+            long msb = slab.getLong(offset);
+            long lsb = slab.getLong(offset + 8);
+            int bucket = findBucket(msb, lsb);
+
+            if (bucket >= 0 && getLocation(bucket) == (((long) slabIndex << 32) | offset)) {
+                removeBucket(bucket);
+            }
+
+            offset += ENTRY_HEADER_SIZE + slab.getInt(offset + 32);
+        }
+
+        slabLengths[slabIndex] = 0;
+    }
+}
@@ -0,0 +1,231 @@
+package com.psddev.dari.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.psddev.dari.util.TaskExecutor;
+
+/**
+ * Iterator that reads the objects from another iterator in the background,
+ * so that the next page of objects is fetched while the current one is
+ * being processed.
+ *
+ * <p>At most the given number of pages are buffered. If the iterator is
+ * abandoned before reaching the end, it should be {@linkplain #close
+ * closed} so that the background fetching stops right away. Otherwise, it
+ * only stops once the iterator is garbage collected.</p>
+ */
+public final class PrefetchingIterator<T> implements Closeable, Iterator<T> {
+
+    private static final String EXECUTOR_NAME = "Dari Prefetching Iterators";
+    private static final Object END = new Object();
+
+    private final Producer<T> producer;
+    private List<T> items;
+    private int index;
+    private boolean done;
+
+    /**
+     * Returns an iterable that iterates over the objects in the given
+     * {@code delegate} while prefetching up to the given
+     * {@code maximumPages} pages of the given {@code pageSize} objects.
+     *
+     * <p>The queries in the given {@code delegate} are executed in
+     * another thread, so they shouldn't depend on the
+     * {@linkplain Database.Static#getDefault default database}, or any
+     * other thread local state, of the current thread.</p>
+     */
+    public static <T> PrefetchingIterable<T> iterable(Iterable<T> delegate, int pageSize, int maximumPages) {
+        return new PrefetchingIterable<>(delegate, pageSize, maximumPages);
+    }
+
+    private PrefetchingIterator(Iterator<T> delegate, int pageSize, int maximumPages) {
+        this.producer = new Producer<>(this, delegate, pageSize > 0 ? pageSize : 200, Math.max(1, maximumPages));
+
+        TaskExecutor.Static.getInstance(EXECUTOR_NAME).execute(producer);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+        while (!done && (items == null || index >= items.size())) {
+            Object next = producer.take();
+
+            if (next == END) {
+                done = true;
+
+            } else if (next instanceof Throwable) {
+                done = true;
+
+                if (next instanceof RuntimeException) {
+                    throw (RuntimeException) next;
+
+                } else if (next instanceof Error) {
+                    throw (Error) next;
+
+                } else {
+                    throw new IllegalStateException((Throwable) next);
+                }
+
+            } else {
+                items = (List<T>) next;
+                index = 0;
+            }
+        }
+
+        return !done;
+    }
+
+    @Override
+    public T next() {
+        if (hasNext()) {
+            T object = items.get(index);
+            ++ index;
+
+            return object;
+
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        done = true;
+        producer.close();
+    }
+
+    /**
+     * Iterable whose iterators are {@link PrefetchingIterator}s, so that
+     * they can be closed.
+     */
+    public static final class PrefetchingIterable<T> implements Iterable<T> {
+
+        private final Iterable<T> delegate;
+        private final int pageSize;
+        private final int maximumPages;
+
+        private PrefetchingIterable(Iterable<T> delegate, int pageSize, int maximumPages) {
+            this.delegate = delegate;
+            this.pageSize = pageSize;
+            this.maximumPages = maximumPages;
+        }
+
+        @Override
+        public PrefetchingIterator<T> iterator() {
+            return new PrefetchingIterator<>(delegate.iterator(), pageSize, maximumPages);
+        }
+    }
+
+    // Kept separate from the iterator, which is only weakly referenced, so
+    // that the background thread can stop once an abandoned iterator is
+    // garbage collected.
+    private static class Producer<T> implements Runnable {
+
+        private final WeakReference<PrefetchingIterator<T>> owner;
+        private final Iterator<T> delegate;
+        private final int pageSize;
+        private final BlockingQueue<Object> pages;
+        private volatile boolean closed;
+
+        public Producer(PrefetchingIterator<T> owner, Iterator<T> delegate, int pageSize, int maximumPages) {
+            this.owner = new WeakReference<>(owner);
+            this.delegate = delegate;
+            this.pageSize = pageSize;
+            this.pages = new ArrayBlockingQueue<>(maximumPages);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isClosed() && delegate.hasNext()) {
+                    List<T> page = new ArrayList<>(pageSize);
+
+                    while (!isClosed() && page.size() < pageSize && delegate.hasNext()) {
+                        page.add(delegate.next());
+                    }
+
+                    put(page);
+                }
+
+                put(END);
+
+            } catch (Throwable error) {
+                put(error);
+
+            } finally {
+                if (delegate instanceof Closeable) {
+                    try {
+                        ((Closeable) delegate).close();
+
+                    } catch (IOException error) {
+                        // Nothing else to do since the iteration is over.
+                    }
+                }
+            }
+        }
+
+        // Returns true if the iterator was closed or garbage collected.
+        private boolean isClosed() {
+            if (!closed && owner.get() == null) {
+                closed = true;
+            }
+
+            return closed;
+        }
+
+        // Waits for room in the queue, giving up if closed in the meantime.
+        private void put(Object page) {
+            try {
+                while (!isClosed()) {
+                    if (pages.offer(page, 1, TimeUnit.SECONDS)) {
+                        return;
+                    }
+                }
+
+            } catch (InterruptedException error) {
+                closed = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Waits for the next page, giving up if the background thread was
+        // interrupted before it could finish.
+        public Object take() {
+            try {
+                while (true) {
+                    Object page = pages.poll(1, TimeUnit.SECONDS);
+
+                    if (page != null) {
+                        return page;
+
+                    } else if (closed) {
+                        return new IllegalStateException("Prefetching was interrupted!");
+                    }
+                }
+
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                return error;
+            }
+        }
+
+        public void close() {
+            closed = true;
+            pages.clear();
+        }
+    }
+}
@@ -803,6 +803,48 @@ public class Query<E> extends Record {
         return null;
     }
 
+    /**
+     * Returns {@code true} if the results of this query can depend on the
+     * objects that it doesn't read directly, i.e. if it has a sub-query,
+     * or a path like {@code author/name} in a predicate or a sorter.
+     */
+    boolean hasJoin() {
+        if (hasJoin(getPredicate())) {
+            return true;
+        }
+
+        for (Sorter sorter : getSorters()) {
+            List<Object> options = sorter.getOptions();
+
+            if (!options.isEmpty() && isPath(options.get(0))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean hasJoin(Predicate predicate) {
+        if (predicate instanceof CompoundPredicate) {
+            for (Predicate child : ((CompoundPredicate) predicate).getChildren()) {
+                if (hasJoin(child)) {
+                    return true;
+                }
+            }
+
+        } else if (predicate instanceof ComparisonPredicate) {
+            ComparisonPredicate comparison = (ComparisonPredicate) predicate;
+
+            return isPath(comparison.getKey()) || comparison.findValueQuery() != null;
+        }
+
+        return false;
+    }
+
+    private static boolean isPath(Object key) {
+        return key instanceof String && ((String) key).indexOf('/') > -1;
+    }
+
     private void addVisibilityAwareTypeIds(
             Database database,
             DatabaseEnvironment environment,
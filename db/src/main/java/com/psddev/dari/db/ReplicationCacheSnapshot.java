@@ -0,0 +1,184 @@
+package com.psddev.dari.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import com.google.common.cache.Cache;
+
+/**
+ * Snapshot of the replication cache stored in a local file, so that the
+ * cache doesn't have to be rebuilt from scratch after a restart.
+ *
+ * <p>The snapshot includes the position in the MySQL binary log up to
+ * which the cached data is known to be current. After loading it, the
+ * binary log should be read from that position so that the entries that
+ * changed in the meantime are updated or invalidated.</p>
+ */
+final class ReplicationCacheSnapshot {
+
+    private static final int MAGIC = 0x44524331;
+    private static final int END_MARKER = -1;
+    private static final long MAXIMUM_SIZE = Integer.MAX_VALUE;
+
+    private ReplicationCacheSnapshot() {
+    }
+
+    /**
+     * Writes all the entries in the given {@code cache} to the given
+     * {@code path}, along with the given binary log {@code position}.
+     * The file is replaced atomically.
+     */
+    public static void write(Path path, Cache<UUID, Object[]> cache, MySQLBinaryLogPosition position) throws IOException {
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryPath)))) {
+            output.writeInt(MAGIC);
+            output.writeUTF(position.getFilename());
+            output.writeLong(position.getPosition());
+
+            IOException[] error = new IOException[1];
+
+            forEach(cache, (id, value) -> {
+                byte[] typeId = (byte[]) value[0];
+                byte[] data = (byte[]) value[1];
+
+                if (error[0] != null
+                        || typeId == null
+                        || data == null
+                        || output.size() + 40L + typeId.length + data.length > MAXIMUM_SIZE) {
+                    return;
+                }
+
+                try {
+                    output.writeLong(id.getMostSignificantBits());
+                    output.writeLong(id.getLeastSignificantBits());
+                    output.writeInt(typeId.length);
+                    output.write(typeId);
+                    output.writeInt(data.length);
+                    output.write(data);
+
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+
+            if (error[0] != null) {
+                throw error[0];
+            }
+
+            output.writeLong(0L);
+            output.writeLong(0L);
+            output.writeInt(END_MARKER);
+        }
+
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void forEach(Cache<UUID, Object[]> cache, BiConsumer<UUID, Object[]> consumer) {
+        if (cache instanceof OffHeapReplicationCache) {
+            ((OffHeapReplicationCache) cache).forEach(consumer);
+
+        } else {
+            for (Map.Entry<UUID, Object[]> entry : cache.asMap().entrySet()) {
+                consumer.accept(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Loads the entries in the snapshot at the given {@code path} into the
+     * given {@code cache} using the given {@code database} to create the
+     * cache values.
+     *
+     * @return The binary log position that the snapshot was taken at, or
+     *         {@code null} if the snapshot isn't valid, in which case
+     *         nothing is loaded.
+     */
+    public static MySQLBinaryLogPosition load(Path path, Cache<UUID, Object[]> cache, SqlDatabase database) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size > MAXIMUM_SIZE) {
+                return null;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+                return null;
+            }
+
+            byte[] filenameBytes = new byte[buffer.getShort() & 0xFFFF];
+
+            buffer.get(filenameBytes);
+
+            MySQLBinaryLogPosition position = new MySQLBinaryLogPosition(
+                    new String(filenameBytes, StandardCharsets.UTF_8),
+                    buffer.getLong());
+
+            int entriesStart = buffer.position();
+
+            // Make sure that the snapshot is complete before loading any
+            // of it.
+            if (!readEntries(buffer, null, null)) {
+                return null;
+            }
+
+            buffer.position(entriesStart);
+            readEntries(buffer, cache, database);
+            return position;
+
+        } catch (RuntimeException error) {
+            return null;
+        }
+    }
+
+    private static boolean readEntries(ByteBuffer buffer, Cache<UUID, Object[]> cache, SqlDatabase database) {
+        while (buffer.remaining() >= 20) {
+            long msb = buffer.getLong();
+            long lsb = buffer.getLong();
+            int typeIdLength = buffer.getInt();
+
+            if (typeIdLength == END_MARKER) {
+                return true;
+
+            } else if (typeIdLength < 0 || typeIdLength > buffer.remaining() - 4) {
+                return false;
+            }
+
+            byte[] typeId = new byte[typeIdLength];
+
+            buffer.get(typeId);
+
+            int dataLength = buffer.getInt();
+
+            if (dataLength < 0 || dataLength > buffer.remaining()) {
+                return false;
+            }
+
+            if (cache == null) {
+                buffer.position(buffer.position() + dataLength);
+
+            } else {
+                byte[] data = new byte[dataLength];
+
+                buffer.get(data);
+                cache.put(new UUID(msb, lsb), database.createReplicationCacheValue(typeId, data, null));
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,237 @@
+package com.psddev.dari.db;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.psddev.dari.util.CompactMap;
+
+/**
+ * Unserialized state data that's shared between multiple readers, for
+ * example, through the replication cache.
+ *
+ * <p>The shared data is {@linkplain #freeze frozen} once so that it can't
+ * be modified, and each reader gets a {@linkplain #share copy-on-write
+ * view} of it. A view copies a map or a list in the data only when it or
+ * one of its nested maps or lists is accessed in a way that could modify
+ * it, so the parts that are only read, such as the references, are never
+ * copied.</p>
+ */
+final class SharedData {
+
+    private SharedData() {
+    }
+
+    /**
+     * Makes the given unserialized {@code data}, and all the maps and the
+     * lists nested within it, unmodifiable. The given {@code data} is
+     * updated in place, so it must not be shared yet.
+     *
+     * @param data If {@code null}, returns {@code null}.
+     * @return The unmodifiable view of the given {@code data}.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> freeze(Map<String, Object> data) {
+        return (Map<String, Object>) freezeRecursively(data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object freezeRecursively(Object object) {
+        if (object instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) object;
+
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                Object value = entry.getValue();
+
+                if (value instanceof Map || value instanceof List) {
+                    map.put(entry.getKey(), freezeRecursively(value));
+                }
+            }
+
+            return Collections.unmodifiableMap(map);
+
+        } else if (object instanceof List) {
+            List<Object> list = (List<Object>) object;
+
+            list.replaceAll(SharedData::freezeRecursively);
+            return Collections.unmodifiableList(list);
+
+        } else {
+            return object;
+        }
+    }
+
+    /**
+     * Returns a copy-on-write view of the given {@linkplain #freeze frozen}
+     * {@code data}. Any modification to the view, or to the maps and the
+     * lists nested within it, is only visible through the view.
+     *
+     * @param data If {@code null}, returns {@code null}.
+     */
+    public static Map<String, Object> share(Map<String, Object> data) {
+        return data != null ? new MapView(data) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object shareValue(Object value) {
+        if (value instanceof Map) {
+            return new MapView((Map<String, Object>) value);
+
+        } else if (value instanceof List) {
+            return new ListView((List<Object>) value);
+
+        } else {
+            return value;
+        }
+    }
+
+    private static boolean isShareable(Object value) {
+        return value instanceof Map || value instanceof List;
+    }
+
+    private static class MapView extends AbstractMap<String, Object> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, Object> source;
+        private Map<String, Object> copy;
+
+        public MapView(Map<String, Object> source) {
+            this.source = source;
+        }
+
+        // Copies the source map, replacing all the nested maps and lists
+        // with their views, so that they can be modified.
+        private Map<String, Object> copy() {
+            if (copy == null) {
+                int size = source.size();
+                Map<String, Object> newCopy = size <= 8
+                        ? new CompactMap<String, Object>()
+                        : new LinkedHashMap<String, Object>(size);
+
+                for (Map.Entry<String, Object> entry : source.entrySet()) {
+                    newCopy.put(entry.getKey(), shareValue(entry.getValue()));
+                }
+
+                copy = newCopy;
+            }
+
+            return copy;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (copy != null) {
+                return copy.get(key);
+            }
+
+            Object value = source.get(key);
+
+            return isShareable(value) ? copy().get(key) : value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return copy != null ? copy.containsKey(key) : source.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return copy != null ? copy.size() : source.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return copy != null ? copy.isEmpty() : source.isEmpty();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return copy().entrySet();
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return copy().put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return copy().remove(key);
+        }
+
+        @Override
+        public void clear() {
+            copy().clear();
+        }
+    }
+
+    private static class ListView extends AbstractList<Object> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Object> source;
+        private List<Object> copy;
+
+        public ListView(List<Object> source) {
+            this.source = source;
+        }
+
+        // Copies the source list, replacing all the nested maps and lists
+        // with their views, so that they can be modified.
+        private List<Object> copy() {
+            if (copy == null) {
+                List<Object> newCopy = new ArrayList<Object>(source.size());
+
+                for (Object item : source) {
+                    newCopy.add(shareValue(item));
+                }
+
+                copy = newCopy;
+            }
+
+            return copy;
+        }
+
+        @Override
+        public Object get(int index) {
+            if (copy != null) {
+                return copy.get(index);
+            }
+
+            Object item = source.get(index);
+
+            return isShareable(item) ? copy().get(index) : item;
+        }
+
+        @Override
+        public int size() {
+            return copy != null ? copy.size() : source.size();
+        }
+
+        @Override
+        public Object set(int index, Object item) {
+            return copy().set(index, item);
+        }
+
+        @Override
+        public void add(int index, Object item) {
+            copy().add(index, item);
+            ++ modCount;
+        }
+
+        @Override
+        public Object remove(int index) {
+            Object removed = copy().remove(index);
+
+            ++ modCount;
+            return removed;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.psddev.dari.db;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Unsynchronized and reusable output stream that collects the bytes
+ * written to it in an array that can be accessed directly.
+ *
+ * <p>Used to serialize the data in the {@link SqlDatabase#RECORD_TABLE}
+ * without the intermediate copies that a {@link java.io.ByteArrayOutputStream}
+ * would require.</p>
+ */
+public class SqlDataBuffer extends OutputStream {
+
+    private byte[] bytes;
+    private int length;
+
+    /** Creates an instance with the default initial capacity. */
+    public SqlDataBuffer() {
+        this(256);
+    }
+
+    /** Creates an instance with the given {@code initialCapacity}. */
+    public SqlDataBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    /**
+     * Returns the internal array. Only the bytes up to the
+     * {@linkplain #getLength length} are valid.
+     *
+     * @return Never {@code null}.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /** Returns the number of the bytes written so far. */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Sets the number of the valid bytes, after writing to the
+     * {@linkplain #getBytes internal array} directly.
+     */
+    public void setLength(int length) {
+        if (length < 0 || length > bytes.length) {
+            throw new IllegalArgumentException(String.format(
+                    "[%s] is outside the capacity! ([%s])",
+                    length, bytes.length));
+        }
+
+        this.length = length;
+    }
+
+    /** Returns the size of the internal array. */
+    public int getCapacity() {
+        return bytes.length;
+    }
+
+    /**
+     * Makes sure that the given number of {@code extra} bytes can be
+     * written without growing the internal array.
+     */
+    public void ensureCapacity(int extra) {
+        int required = length + extra;
+
+        if (required < 0) {
+            throw new OutOfMemoryError();
+
+        } else if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length * 2));
+        }
+    }
+
+    /** Discards all the bytes written so far, keeping the internal array. */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * Returns a copy of the bytes written so far.
+     *
+     * @return Never {@code null}.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        bytes[length] = (byte) b;
+        ++ length;
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(b, offset, bytes, length, count);
+        length += count;
+    }
+}
@@ -0,0 +1,630 @@
+package com.psddev.dari.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.iq80.snappy.Snappy;
+
+import com.psddev.dari.util.CompactMap;
+import com.psddev.dari.util.JsonProcessor;
+import com.psddev.dari.util.ObjectUtils;
+
+/**
+ * Format used to serialize the state values into the
+ * {@link SqlDatabase#DATA_COLUMN} in the {@link SqlDatabase#RECORD_TABLE}.
+ *
+ * <p>Each format is identified by the first byte of the data that it
+ * writes, so that the rows written using different formats can be read
+ * back regardless of which format is currently used for writing.</p>
+ */
+public abstract class SqlDataFormat {
+
+    /**
+     * First byte of the data that's been compressed using Snappy. This
+     * can't be used as the prefix of any format.
+     */
+    public static final byte SNAPPY_PREFIX = 's';
+
+    /** Format that writes the state values as a JSON object. */
+    public static final SqlDataFormat JSON = new Json();
+
+    /** Format that writes the state values in a compact binary form. */
+    public static final SqlDataFormat BINARY = new Binary();
+
+    /**
+     * Returns the unique name used to select this format in the settings.
+     *
+     * @return Never blank.
+     */
+    public abstract String getName();
+
+    /** Returns the first byte of the data that this format writes. */
+    public abstract byte getPrefix();
+
+    /**
+     * Encodes the given state {@code values}.
+     *
+     * @param values Can't be {@code null}.
+     * @return Never {@code null}. The first byte is always the
+     *         {@linkplain #getPrefix prefix}.
+     */
+    public abstract byte[] encode(Map<String, Object> values);
+
+    /**
+     * Encodes the given state {@code values} and writes them to the given
+     * {@code output}. The default implementation writes the result of
+     * {@link #encode(Map)}, so the subclasses should override this to
+     * avoid the intermediate array.
+     *
+     * @param values Can't be {@code null}.
+     * @param output Can't be {@code null}. Isn't closed.
+     */
+    public void encode(Map<String, Object> values, OutputStream output) throws IOException {
+        output.write(encode(values));
+    }
+
+    /**
+     * Decodes the given {@code data} back into the state values.
+     *
+     * @param data Can't be {@code null}. The first byte is always the
+     *        {@linkplain #getPrefix prefix}.
+     * @return Never {@code null}.
+     */
+    public abstract Map<String, Object> decode(byte[] data);
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /** Format that writes the state values as a JSON object. */
+    public static class Json extends SqlDataFormat {
+
+        private static final JsonProcessor JSON_PROCESSOR = new JsonProcessor();
+
+        @Override
+        public String getName() {
+            return "json";
+        }
+
+        @Override
+        public byte getPrefix() {
+            return '{';
+        }
+
+        @Override
+        public byte[] encode(Map<String, Object> values) {
+            return ObjectUtils.toJson(values).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void encode(Map<String, Object> values, OutputStream output) throws IOException {
+            JSON_PROCESSOR.generate(output, values);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, Object> decode(byte[] data) {
+            return (Map<String, Object>) ObjectUtils.fromJson(data);
+        }
+    }
+
+    /**
+     * Format that writes the state values in a compact binary form.
+     *
+     * <p>The values are written as type tagged items with variable length
+     * integers, and the map keys and the short strings are written only
+     * once per document and referenced by their positions afterwards.
+     * The decoded values are of the same types as the ones produced by
+     * the {@link Json} format, except that {@link BigDecimal} and
+     * {@link BigInteger} keep their types instead of becoming strings.</p>
+     */
+    public static class Binary extends SqlDataFormat {
+
+        private static final byte VERSION = 1;
+
+        private static final int NULL_TAG = 0;
+        private static final int TRUE_TAG = 1;
+        private static final int FALSE_TAG = 2;
+        private static final int LONG_TAG = 3;
+        private static final int DOUBLE_TAG = 4;
+        private static final int STRING_TAG = 5;
+        private static final int DEFINE_STRING_TAG = 6;
+        private static final int STRING_REFERENCE_TAG = 7;
+        private static final int MAP_TAG = 8;
+        private static final int LIST_TAG = 9;
+        private static final int BIG_DECIMAL_TAG = 10;
+        private static final int BIG_INTEGER_TAG = 11;
+
+        private static final int MAXIMUM_SHARED_STRING_LENGTH = 64;
+
+        @Override
+        public String getName() {
+            return "binary";
+        }
+
+        @Override
+        public byte getPrefix() {
+            return 'b';
+        }
+
+        @Override
+        public byte[] encode(Map<String, Object> values) {
+            SqlDataBuffer buffer = new SqlDataBuffer();
+
+            encodeInto(values, buffer);
+            return buffer.toByteArray();
+        }
+
+        @Override
+        public void encode(Map<String, Object> values, OutputStream output) throws IOException {
+            if (output instanceof SqlDataBuffer) {
+                encodeInto(values, (SqlDataBuffer) output);
+
+            } else {
+                SqlDataBuffer buffer = new SqlDataBuffer();
+
+                encodeInto(values, buffer);
+                output.write(buffer.getBytes(), 0, buffer.getLength());
+            }
+        }
+
+        private void encodeInto(Map<String, Object> values, SqlDataBuffer buffer) {
+            Encoder encoder = new Encoder(buffer);
+
+            buffer.write(getPrefix());
+            buffer.write(VERSION);
+            encoder.writeAny(values);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, Object> decode(byte[] data) {
+            if (data.length < 2 || data[1] != VERSION) {
+                throw new IllegalArgumentException(String.format(
+                        "Unknown binary data version! ([%s])",
+                        data.length < 2 ? "" : data[1]));
+            }
+
+            Object values = new Decoder(data, 2).readAny();
+
+            if (!(values instanceof Map)) {
+                throw new IllegalArgumentException("Binary data isn't a map!");
+            }
+
+            return (Map<String, Object>) values;
+        }
+
+        private static class Encoder {
+
+            private final SqlDataBuffer buffer;
+            private final Map<String, Integer> strings = new HashMap<String, Integer>();
+            private final IdentityHashMap<Object, Boolean> parents = new IdentityHashMap<Object, Boolean>();
+
+            public Encoder(SqlDataBuffer buffer) {
+                this.buffer = buffer;
+            }
+
+            private void writeByte(int value) {
+                buffer.write(value);
+            }
+
+            private void writeVarLong(long value) {
+                while ((value & ~0x7FL) != 0) {
+                    buffer.write((int) ((value & 0x7F) | 0x80));
+                    value >>>= 7;
+                }
+
+                buffer.write((int) value);
+            }
+
+            private void writeString(String string) {
+                Integer position = strings.get(string);
+
+                if (position != null) {
+                    writeByte(STRING_REFERENCE_TAG);
+                    writeVarLong(position);
+                    return;
+                }
+
+                if (string.length() <= MAXIMUM_SHARED_STRING_LENGTH) {
+                    strings.put(string, strings.size());
+                    writeByte(DEFINE_STRING_TAG);
+
+                } else {
+                    writeByte(STRING_TAG);
+                }
+
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+                writeVarLong(bytes.length);
+                buffer.write(bytes, 0, bytes.length);
+            }
+
+            public void writeAny(Object value) {
+                if (value == null) {
+                    writeByte(NULL_TAG);
+
+                } else if (value instanceof CharSequence
+                        || value instanceof Character) {
+                    writeString(value.toString());
+
+                } else if (value instanceof Boolean) {
+                    writeByte(((Boolean) value) ? TRUE_TAG : FALSE_TAG);
+
+                } else if (value instanceof Long
+                        || value instanceof Integer
+                        || value instanceof Short
+                        || value instanceof Byte) {
+                    long longValue = ((Number) value).longValue();
+
+                    writeByte(LONG_TAG);
+                    writeVarLong((longValue << 1) ^ (longValue >> 63));
+
+                } else if (value instanceof Double
+                        || value instanceof Float) {
+                    long bits = Double.doubleToRawLongBits(((Number) value).doubleValue());
+
+                    writeByte(DOUBLE_TAG);
+
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        buffer.write((int) (bits >>> shift));
+                    }
+
+                } else if (value instanceof BigDecimal) {
+                    writeByte(BIG_DECIMAL_TAG);
+                    writeString(value.toString());
+
+                } else if (value instanceof BigInteger) {
+                    writeByte(BIG_INTEGER_TAG);
+                    writeString(value.toString());
+
+                } else if (value instanceof Number) {
+                    writeString(value.toString());
+
+                } else if (parents.containsKey(value)) {
+                    writeByte(NULL_TAG);
+
+                } else if (value instanceof Map) {
+                    Map<?, ?> map = (Map<?, ?>) value;
+                    int size = 0;
+
+                    for (Object key : map.keySet()) {
+                        if (key != null) {
+                            ++ size;
+                        }
+                    }
+
+                    parents.put(value, Boolean.TRUE);
+                    writeByte(MAP_TAG);
+                    writeVarLong(size);
+
+                    for (Map.Entry<?, ?> entry : map.entrySet()) {
+                        Object key = entry.getKey();
+
+                        if (key != null) {
+                            writeString(key.toString());
+                            writeAny(entry.getValue());
+                        }
+                    }
+
+                    parents.remove(value);
+
+                } else if (value instanceof List) {
+                    List<?> list = (List<?>) value;
+
+                    parents.put(value, Boolean.TRUE);
+                    writeByte(LIST_TAG);
+                    writeVarLong(list.size());
+
+                    for (Object item : list) {
+                        writeAny(item);
+                    }
+
+                    parents.remove(value);
+
+                } else if (value instanceof Iterable) {
+                    List<Object> list = new ArrayList<Object>();
+
+                    for (Object item : (Iterable<?>) value) {
+                        list.add(item);
+                    }
+
+                    parents.put(value, Boolean.TRUE);
+                    writeAny(list);
+                    parents.remove(value);
+
+                } else if (value.getClass().isArray()) {
+                    int arrayLength = Array.getLength(value);
+                    List<Object> list = new ArrayList<Object>(arrayLength);
+
+                    for (int i = 0; i < arrayLength; ++ i) {
+                        list.add(Array.get(value, i));
+                    }
+
+                    parents.put(value, Boolean.TRUE);
+                    writeAny(list);
+                    parents.remove(value);
+
+                } else {
+
+                    // Let the JSON processor decide how to convert any other
+                    // object, so that both formats agree on the result.
+                    writeAny(ObjectUtils.fromJson(ObjectUtils.toJson(value)));
+                }
+            }
+        }
+
+        private static class Decoder {
+
+            private final byte[] data;
+            private int position;
+            private final List<String> strings = new ArrayList<String>();
+
+            public Decoder(byte[] data, int position) {
+                this.data = data;
+                this.position = position;
+            }
+
+            private int readByte() {
+                if (position >= data.length) {
+                    throw new IllegalArgumentException("Binary data ended unexpectedly!");
+                }
+
+                int value = data[position] & 0xFF;
+
+                ++ position;
+                return value;
+            }
+
+            private long readVarLong() {
+                long value = 0L;
+
+                for (int shift = 0; shift < 64; shift += 7) {
+                    int b = readByte();
+
+                    value |= (long) (b & 0x7F) << shift;
+
+                    if ((b & 0x80) == 0) {
+                        return value;
+                    }
+                }
+
+                throw new IllegalArgumentException("Invalid variable length integer in binary data!");
+            }
+
+            private int readSize() {
+                long size = readVarLong();
+
+                if (size < 0 || size > data.length - position) {
+                    throw new IllegalArgumentException(String.format(
+                            "Invalid size in binary data! ([%s])", size));
+                }
+
+                return (int) size;
+            }
+
+            private String readStringBytes() {
+                int stringLength = readSize();
+                String string = new String(data, position, stringLength, StandardCharsets.UTF_8);
+
+                position += stringLength;
+                return string;
+            }
+
+            private String readString(int tag) {
+                switch (tag) {
+                    case STRING_TAG :
+                        return readStringBytes();
+
+                    case DEFINE_STRING_TAG :
+                        String string = readStringBytes();
+
+                        strings.add(string);
+                        return string;
+
+                    case STRING_REFERENCE_TAG :
+                        long index = readVarLong();
+
+                        if (index < 0 || index >= strings.size()) {
+                            throw new IllegalArgumentException(String.format(
+                                    "Invalid string reference in binary data! ([%s])", index));
+                        }
+
+                        return strings.get((int) index);
+
+                    default :
+                        throw new IllegalArgumentException(String.format(
+                                "Expected a string in binary data but found tag [%s]!", tag));
+                }
+            }
+
+            public Object readAny() {
+                int tag = readByte();
+
+                switch (tag) {
+                    case NULL_TAG :
+                        return null;
+
+                    case TRUE_TAG :
+                        return Boolean.TRUE;
+
+                    case FALSE_TAG :
+                        return Boolean.FALSE;
+
+                    case LONG_TAG :
+                        long zigZag = readVarLong();
+
+                        return (zigZag >>> 1) ^ -(zigZag & 1);
+
+                    case DOUBLE_TAG :
+                        long bits = 0L;
+
+                        for (int i = 0; i < 8; ++ i) {
+                            bits = (bits << 8) | readByte();
+                        }
+
+                        return Double.longBitsToDouble(bits);
+
+                    case STRING_TAG :
+                    case DEFINE_STRING_TAG :
+                    case STRING_REFERENCE_TAG :
+                        return readString(tag);
+
+                    case BIG_DECIMAL_TAG :
+                        return new BigDecimal(readString(readByte()));
+
+                    case BIG_INTEGER_TAG :
+                        return new BigInteger(readString(readByte()));
+
+                    case MAP_TAG :
+                        int mapSize = readSize();
+                        Map<String, Object> map = new CompactMap<String, Object>();
+
+                        for (int i = 0; i < mapSize; ++ i) {
+                            String key = readString(readByte());
+
+                            map.put(key, readAny());
+                        }
+
+                        return map;
+
+                    case LIST_TAG :
+                        int listSize = readSize();
+                        List<Object> list = new ArrayList<Object>(listSize);
+
+                        for (int i = 0; i < listSize; ++ i) {
+                            list.add(readAny());
+                        }
+
+                        return list;
+
+                    default :
+                        throw new IllegalArgumentException(String.format(
+                                "Unknown tag in binary data! ([%s])", tag));
+                }
+            }
+        }
+    }
+
+    /** {@link SqlDataFormat} utility methods. */
+    public static final class Static {
+
+        private static volatile SqlDataFormat[] byPrefix = new SqlDataFormat[256];
+        private static final Map<String, SqlDataFormat> BY_NAME = new HashMap<String, SqlDataFormat>();
+
+        static {
+            register(JSON);
+            register(BINARY);
+        }
+
+        private Static() {
+        }
+
+        /**
+         * Registers the given {@code format} so that the data written
+         * using it can be read back.
+         *
+         * @param format Can't be {@code null}.
+         * @throws IllegalArgumentException If the prefix of the given
+         *         {@code format} is already used by a different format.
+         */
+        public static synchronized void register(SqlDataFormat format) {
+            byte prefix = format.getPrefix();
+            SqlDataFormat existing = byPrefix[prefix & 0xFF];
+
+            if (prefix == SNAPPY_PREFIX) {
+                throw new IllegalArgumentException(String.format(
+                        "[%s] can't use the Snappy prefix!", format));
+
+            } else if (existing != null && !existing.getClass().equals(format.getClass())) {
+                throw new IllegalArgumentException(String.format(
+                        "[%s] prefix is already used by [%s]!",
+                        (char) prefix, existing));
+            }
+
+            SqlDataFormat[] newByPrefix = Arrays.copyOf(byPrefix, byPrefix.length);
+
+            newByPrefix[prefix & 0xFF] = format;
+            byPrefix = newByPrefix;
+            BY_NAME.put(format.getName().toLowerCase(Locale.ENGLISH), format);
+        }
+
+        /**
+         * Returns the format that writes data starting with the given
+         * {@code prefix}.
+         *
+         * @return May be {@code null}.
+         */
+        public static SqlDataFormat getByPrefix(byte prefix) {
+            return byPrefix[prefix & 0xFF];
+        }
+
+        /**
+         * Returns the format registered with the given {@code name}.
+         *
+         * @return May be {@code null}.
+         */
+        public static synchronized SqlDataFormat getByName(String name) {
+            return name != null ? BY_NAME.get(name.toLowerCase(Locale.ENGLISH)) : null;
+        }
+
+        /**
+         * Removes any compression from the given {@code data}, leaving it
+         * in one of the registered formats.
+         *
+         * @param data Can't be {@code null}.
+         * @return Never {@code null}.
+         * @throws IllegalStateException If the given {@code data} isn't in
+         *         any of the registered formats.
+         */
+        public static byte[] decompress(byte[] data) {
+            byte prefix;
+
+            while (true) {
+                prefix = data[0];
+
+                if (prefix == SNAPPY_PREFIX) {
+                    data = Snappy.uncompress(data, 1, data.length - 1);
+
+                } else if (getByPrefix(prefix) != null) {
+                    return data;
+
+                } else {
+                    break;
+                }
+            }
+
+            throw new IllegalStateException(String.format(
+                    "Unknown format! ([%s])",
+                    (char) prefix));
+        }
+
+        /**
+         * Decodes the given {@code data}, as stored in the
+         * {@link SqlDatabase#DATA_COLUMN}, into the state values using
+         * whichever format it was written in.
+         *
+         * @param data Can't be {@code null}.
+         * @return Never {@code null}.
+         * @throws IllegalStateException If the given {@code data} isn't in
+         *         any of the registered formats.
+         */
+        public static Map<String, Object> decode(byte[] data) {
+            byte[] decompressed = decompress(data);
+
+            return getByPrefix(decompressed[0]).decode(decompressed);
+        }
+    }
+}
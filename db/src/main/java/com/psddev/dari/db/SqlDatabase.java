@@ -11,6 +11,9 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -40,8 +43,14 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 
@@ -60,6 +69,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.psddev.dari.util.CompactMap;
 import com.psddev.dari.util.Lazy;
@@ -92,9 +102,12 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
     public static final String READ_JDBC_USER_SETTING = "readJdbcUser";
     public static final String READ_JDBC_PASSWORD_SETTING = "readJdbcPassword";
     public static final String READ_JDBC_POOL_SIZE_SETTING = "readJdbcPoolSize";
+    public static final String READ_REPLICAS_SETTING = "readReplicas";
+    public static final String READ_REPLICA_WEIGHT_SETTING = "weight";
 
     public static final String CATALOG_SUB_SETTING = "catalog";
     public static final String METRIC_CATALOG_SUB_SETTING = "metricCatalog";
+    public static final String METRIC_EVENT_LOG_SUB_SETTING = "metricEventLog";
     public static final String VENDOR_CLASS_SETTING = "vendorClass";
     public static final String COMPRESS_DATA_SUB_SETTING = "compressData";
 
@@ -106,8 +119,31 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
     public static final String ENABLE_REPLICATION_CACHE_SUB_SETTING = "enableReplicationCache";
     public static final String ENABLE_FUNNEL_CACHE_SUB_SETTING = "enableFunnelCache";
+    public static final String ENABLE_QUERY_RESULT_CACHE_SUB_SETTING = "enableQueryResultCache";
+    public static final String QUERY_RESULT_CACHE_WEIGHT_SUB_SETTING = "queryResultCacheWeight";
+    public static final String QUERY_RESULT_CACHE_TTL_SUB_SETTING = "queryResultCacheTtl";
+    public static final String PARALLEL_DECODE_THRESHOLD_SUB_SETTING = "parallelDecodeThreshold";
+    public static final String PARALLEL_DECODE_THREADS_SUB_SETTING = "parallelDecodeThreads";
+    public static final String APPROXIMATE_COUNT_THRESHOLD_SUB_SETTING = "approximateCountThreshold";
+    public static final String APPROXIMATE_COUNT_CACHE_TTL_SUB_SETTING = "approximateCountCacheTtl";
+    public static final String CONCURRENT_QUERY_THREADS_SUB_SETTING = "concurrentQueryThreads";
+    public static final String READ_REPLICA_MAXIMUM_LAG_SUB_SETTING = "readReplicaMaximumLag";
+    public static final String READ_REPLICA_CHECK_INTERVAL_SUB_SETTING = "readReplicaCheckInterval";
+    public static final String READ_REPLICA_LAG_QUERY_SUB_SETTING = "readReplicaLagQuery";
+    public static final String READ_YOUR_WRITES_WINDOW_SUB_SETTING = "readYourWritesWindow";
+    public static final String READ_YOUR_WRITES_WAIT_TIMEOUT_SUB_SETTING = "readYourWritesWaitTimeout";
     public static final String REPLICATION_CACHE_SIZE_SUB_SETTING = "replicationCacheSize";
+    public static final String REPLICATION_CACHE_COMPACT_SUB_SETTING = "replicationCacheCompact";
+    public static final String REPLICATION_CACHE_WEIGHT_SUB_SETTING = "replicationCacheWeight";
+    public static final String REPLICATION_CACHE_DECODED_SIZE_SUB_SETTING = "replicationCacheDecodedSize";
+    public static final String REPLICATION_CACHE_OFF_HEAP_SUB_SETTING = "replicationCacheOffHeap";
+    public static final String REPLICATION_CACHE_SNAPSHOT_PATH_SUB_SETTING = "replicationCacheSnapshotPath";
     public static final String INDEX_SPATIAL_SUB_SETTING = "indexSpatial";
+    public static final String BATCH_WRITES_SUB_SETTING = "batchWrites";
+    public static final String DIFF_INDEXES_SUB_SETTING = "diffIndexes";
+    public static final String DATA_FORMAT_SUB_SETTING = "dataFormat";
+    public static final String PARAMETERIZED_QUERIES_SUB_SETTING = "parameterizedQueries";
+    public static final String STATEMENT_CACHE_SIZE_SUB_SETTING = "statementCacheSize";
 
     public static final String RECORD_TABLE = "Record";
     public static final String RECORD_UPDATE_TABLE = "RecordUpdate";
@@ -128,6 +164,10 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
     public static final String MYSQL_INDEX_HINT_QUERY_OPTION = "sql.mysqlIndexHint";
     public static final String RETURN_ORIGINAL_DATA_QUERY_OPTION = "sql.returnOriginalData";
     public static final String USE_JDBC_FETCH_SIZE_QUERY_OPTION = "sql.useJdbcFetchSize";
+    public static final String PREFETCH_PAGES_QUERY_OPTION = "sql.prefetchPages";
+    public static final String APPROXIMATE_COUNT_QUERY_OPTION = "sql.approximateCount";
+    public static final String CONCURRENT_OR_QUERY_OPTION = "sql.concurrentOr";
+    public static final String MAXIMUM_REPLICA_LAG_QUERY_OPTION = "sql.maximumReplicaLag";
     public static final String USE_READ_DATA_SOURCE_QUERY_OPTION = "sql.useReadDataSource";
     public static final String DISABLE_REPLICATION_CACHE_QUERY_OPTION = "sql.disableReplicationCache";
     public static final String SKIP_INDEX_STATE_EXTRA = "sql.skipIndex";
@@ -152,8 +192,33 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
     private static final String FUNNEL_CACHE_GET_PROFILER_EVENT = SHORT_NAME + " Funnel Cache Get";
     private static final String FUNNEL_CACHE_PUT_PROFILER_EVENT = SHORT_NAME + " Funnel Cache Put";
     private static final long NOW_EXPIRATION_SECONDS = 300;
+
+    // Maximum number of rows read and locked by a single SELECT ... FOR
+    // UPDATE while finding the changed indexes.
+    private static final int MAXIMUM_LOCK_IDS = 1000;
+
+    // Recent writes of the thread that created the query, for when it's
+    // executed in another thread.
+    private static final String RECENT_WRITES_QUERY_OPTION = "sql.recentWrites";
+
+    // Buffers used to serialize the state data, reused per thread unless
+    // they grew past the maximum capacity while serializing a large object.
+    private static final int MAXIMUM_POOLED_DATA_BUFFER_CAPACITY = 1024 * 1024;
+    private static final ThreadLocal<SqlDataBuffer[]> DATA_BUFFERS = ThreadLocal.withInitial(() -> new SqlDataBuffer[] {
+            new SqlDataBuffer(4096),
+            new SqlDataBuffer(4096) });
     public static final long DEFAULT_REPLICATION_CACHE_SIZE = 10000L;
+    public static final long DEFAULT_REPLICATION_CACHE_WEIGHT = 128L * 1024L * 1024L;
+    public static final long DEFAULT_REPLICATION_CACHE_DECODED_SIZE = 1000L;
     public static final long DEFAULT_DATA_CACHE_SIZE = 10000L;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 250;
+    public static final long DEFAULT_QUERY_RESULT_CACHE_WEIGHT = 16L * 1024L * 1024L;
+    public static final long DEFAULT_QUERY_RESULT_CACHE_TTL = 60L;
+    public static final long DEFAULT_APPROXIMATE_COUNT_THRESHOLD = 10000L;
+    public static final long DEFAULT_APPROXIMATE_COUNT_CACHE_TTL = 60L;
+    public static final long DEFAULT_READ_REPLICA_CHECK_INTERVAL = 5L;
+    public static final long DEFAULT_READ_YOUR_WRITES_WINDOW = 30L;
+    private static final long APPROXIMATE_COUNT_CACHE_SIZE = 10000L;
 
     private static final List<SqlDatabase> INSTANCES = new ArrayList<SqlDatabase>();
 
@@ -165,18 +230,47 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
     private volatile DataSource readDataSource;
     private volatile String catalog;
     private volatile String metricCatalog;
+    private volatile boolean metricEventLog;
     private transient volatile String defaultCatalog;
     private volatile SqlVendor vendor;
     private volatile boolean compressData;
     private volatile boolean enableReplicationCache;
     private volatile boolean enableFunnelCache;
+    private volatile boolean enableQueryResultCache;
+    private volatile long queryResultCacheMaximumWeight;
+    private volatile long queryResultCacheTtl;
+    private volatile int parallelDecodeThreshold;
+    private volatile int parallelDecodeThreads;
+    private volatile long approximateCountThreshold;
+    private volatile long approximateCountCacheTtl;
+    private volatile int concurrentQueryThreads;
+    private volatile long readReplicaMaximumLag = -1L;
+    private volatile long readYourWritesWindow = DEFAULT_READ_YOUR_WRITES_WINDOW;
+    private volatile double readYourWritesWaitTimeout;
     private volatile long replicationCacheMaximumSize;
+    private volatile boolean replicationCacheCompact;
+    private volatile long replicationCacheMaximumWeight;
+    private volatile long replicationCacheDecodedMaximumSize;
+    private volatile boolean replicationCacheOffHeap;
+    private volatile String replicationCacheSnapshotPath;
     private volatile boolean indexSpatial;
+    private volatile boolean batchWrites;
+    private volatile boolean diffIndexes;
+    private volatile SqlDataFormat dataFormat;
+    private volatile boolean parameterizedQueries;
 
     private final transient ConcurrentMap<Class<?>, UUID> singletonIds = new ConcurrentHashMap<>();
     private transient volatile Cache<UUID, Object[]> replicationCache;
+    private transient volatile Cache<byte[], Map<String, Object>> replicationDecodedCache;
     private transient volatile MySQLBinaryLogReader mysqlBinaryLogReader;
     private transient volatile FunnelCache<SqlDatabase> funnelCache;
+    private transient volatile SqlQueryResultCache queryResultCache;
+    private transient volatile ThreadPoolExecutor decodeExecutor;
+    private transient volatile ExecutorService concurrentQueryExecutor;
+    private transient volatile SqlReadReplicaPool readReplicaPool;
+    private final transient ThreadLocal<SqlRecentWrites> recentWritesLocal = new ThreadLocal<SqlRecentWrites>();
+    private final transient ThreadLocal<Set<UUID>> pendingInvalidationsLocal = new ThreadLocal<Set<UUID>>();
+    private transient volatile Cache<String, Long> approximateCounts;
     private final List<UpdateNotifier<?>> updateNotifiers = new ArrayList<>();
 
     /**
@@ -221,6 +315,8 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             Query<?> query) {
 
         String message = error.getMessage();
+        sqlQuery = SqlQueryParameters.inline(vendor, sqlQuery);
+
         if (error instanceof SQLTimeoutException || message.contains("timeout")) {
             return new SqlDatabaseException.ReadTimeout(this, error, sqlQuery, query);
         } else {
@@ -363,6 +459,20 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         }
     }
 
+    /**
+     * Returns {@code true} if the metric increments should be appended to
+     * the MetricEvent table and folded into the Metric table in the
+     * background by {@link MetricEventCompactionTask}.
+     */
+    @Override
+    public boolean isMetricEventLog() {
+        return metricEventLog;
+    }
+
+    public void setMetricEventLog(boolean metricEventLog) {
+        this.metricEventLog = metricEventLog;
+    }
+
     /** Returns the vendor-specific SQL engine information. */
     public SqlVendor getVendor() {
         return vendor;
@@ -422,6 +532,191 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         this.enableFunnelCache = enableFunnelCache;
     }
 
+    /**
+     * Returns {@code true} if the IDs of the objects returned by the
+     * queries should be cached across all requests. The objects are then
+     * read through the replication cache, so this only takes effect if
+     * the {@linkplain #isEnableReplicationCache replication cache} is
+     * also enabled.
+     */
+    public boolean isEnableQueryResultCache() {
+        return enableQueryResultCache;
+    }
+
+    /**
+     * Sets whether the IDs of the objects returned by the queries should
+     * be cached across all requests.
+     */
+    public void setEnableQueryResultCache(boolean enableQueryResultCache) {
+        this.enableQueryResultCache = enableQueryResultCache;
+    }
+
+    /**
+     * Returns the approximate maximum number of bytes that the query
+     * result cache can use.
+     */
+    public long getQueryResultCacheMaximumWeight() {
+        return queryResultCacheMaximumWeight;
+    }
+
+    /**
+     * Sets the approximate maximum number of bytes that the query result
+     * cache can use.
+     */
+    public void setQueryResultCacheMaximumWeight(long queryResultCacheMaximumWeight) {
+        this.queryResultCacheMaximumWeight = queryResultCacheMaximumWeight;
+    }
+
+    /**
+     * Returns the number of seconds that a query result can be cached
+     * for. This limits how stale a result can get when its objects change
+     * without the {@link #RECORD_TABLE} being updated, e.g. when only the
+     * indexes are rewritten on another server.
+     */
+    public long getQueryResultCacheTtl() {
+        return queryResultCacheTtl;
+    }
+
+    /**
+     * Sets the number of seconds that a query result can be cached for.
+     */
+    public void setQueryResultCacheTtl(long queryResultCacheTtl) {
+        this.queryResultCacheTtl = queryResultCacheTtl;
+    }
+
+    /**
+     * Returns the minimum number of rows that a query must return for
+     * their data to be decoded in parallel. {@code 0} disables the parallel
+     * decoding.
+     */
+    public int getParallelDecodeThreshold() {
+        return parallelDecodeThreshold;
+    }
+
+    /**
+     * Sets the minimum number of rows that a query must return for their
+     * data to be decoded in parallel.
+     */
+    public void setParallelDecodeThreshold(int parallelDecodeThreshold) {
+        this.parallelDecodeThreshold = parallelDecodeThreshold;
+    }
+
+    /**
+     * Returns the number of threads used to decode the data in parallel.
+     */
+    public int getParallelDecodeThreads() {
+        return parallelDecodeThreads;
+    }
+
+    /**
+     * Sets the number of threads used to decode the data in parallel.
+     */
+    public void setParallelDecodeThreads(int parallelDecodeThreads) {
+        this.parallelDecodeThreads = parallelDecodeThreads;
+    }
+
+    /**
+     * Returns the estimated count below which the exact count is used
+     * instead for the queries with the {@link #APPROXIMATE_COUNT_QUERY_OPTION}.
+     */
+    public long getApproximateCountThreshold() {
+        return approximateCountThreshold;
+    }
+
+    /**
+     * Sets the estimated count below which the exact count is used instead
+     * for the queries with the {@link #APPROXIMATE_COUNT_QUERY_OPTION}.
+     */
+    public void setApproximateCountThreshold(long approximateCountThreshold) {
+        this.approximateCountThreshold = approximateCountThreshold;
+    }
+
+    /**
+     * Returns the number of seconds that the estimated counts for the
+     * queries with the {@link #APPROXIMATE_COUNT_QUERY_OPTION} are cached
+     * for.
+     */
+    public long getApproximateCountCacheTtl() {
+        return approximateCountCacheTtl;
+    }
+
+    /**
+     * Sets the number of seconds that the estimated counts for the queries
+     * with the {@link #APPROXIMATE_COUNT_QUERY_OPTION} are cached for.
+     */
+    public void setApproximateCountCacheTtl(long approximateCountCacheTtl) {
+        this.approximateCountCacheTtl = approximateCountCacheTtl;
+    }
+
+    /**
+     * Returns the maximum number of threads used to run the parts of the
+     * queries with the {@link #CONCURRENT_OR_QUERY_OPTION} concurrently.
+     */
+    public int getConcurrentQueryThreads() {
+        return concurrentQueryThreads;
+    }
+
+    /**
+     * Sets the maximum number of threads used to run the parts of the
+     * queries with the {@link #CONCURRENT_OR_QUERY_OPTION} concurrently.
+     */
+    public void setConcurrentQueryThreads(int concurrentQueryThreads) {
+        this.concurrentQueryThreads = concurrentQueryThreads;
+    }
+
+    /**
+     * Returns the maximum number of seconds that a read replica can be
+     * behind the primary and still be used for reading, or a negative
+     * number if there's no limit. This can be overridden per query using
+     * the {@link #MAXIMUM_REPLICA_LAG_QUERY_OPTION}.
+     */
+    public long getReadReplicaMaximumLag() {
+        return readReplicaMaximumLag;
+    }
+
+    /**
+     * Sets the maximum number of seconds that a read replica can be behind
+     * the primary and still be used for reading.
+     */
+    public void setReadReplicaMaximumLag(long readReplicaMaximumLag) {
+        this.readReplicaMaximumLag = readReplicaMaximumLag;
+    }
+
+    /**
+     * Returns the number of seconds after a write during which the reads in
+     * the same thread that could observe it avoid the read replicas that
+     * haven't caught up, or {@code 0} if they don't.
+     */
+    public long getReadYourWritesWindow() {
+        return readYourWritesWindow;
+    }
+
+    /**
+     * Sets the number of seconds after a write during which the reads in
+     * the same thread that could observe it avoid the read replicas that
+     * haven't caught up.
+     */
+    public void setReadYourWritesWindow(long readYourWritesWindow) {
+        this.readYourWritesWindow = readYourWritesWindow;
+    }
+
+    /**
+     * Returns the maximum number of seconds to wait on a read replica to
+     * replicate the recent writes before reading from the primary instead,
+     * or {@code 0} if it shouldn't wait.
+     */
+    public double getReadYourWritesWaitTimeout() {
+        return readYourWritesWaitTimeout;
+    }
+
+    /**
+     * Sets the maximum number of seconds to wait on a read replica to
+     * replicate the recent writes before reading from the primary instead.
+     */
+    public void setReadYourWritesWaitTimeout(double readYourWritesWaitTimeout) {
+        this.readYourWritesWaitTimeout = readYourWritesWaitTimeout;
+    }
+
     public void setReplicationCacheMaximumSize(long replicationCacheMaximumSize) {
         this.replicationCacheMaximumSize = replicationCacheMaximumSize;
     }
@@ -430,6 +725,160 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         return this.replicationCacheMaximumSize;
     }
 
+    /**
+     * Returns {@code true} if the replication cache should only keep the
+     * encoded data and be bounded by the
+     * {@linkplain #getReplicationCacheMaximumWeight total size of the data}
+     * instead of the number of the entries.
+     */
+    public boolean isReplicationCacheCompact() {
+        return replicationCacheCompact;
+    }
+
+    /**
+     * Sets whether the replication cache should only keep the encoded data
+     * and be bounded by the
+     * {@linkplain #getReplicationCacheMaximumWeight total size of the data}
+     * instead of the number of the entries.
+     */
+    public void setReplicationCacheCompact(boolean replicationCacheCompact) {
+        this.replicationCacheCompact = replicationCacheCompact;
+    }
+
+    /**
+     * Returns the maximum number of the bytes that the compact replication
+     * cache can hold.
+     */
+    public long getReplicationCacheMaximumWeight() {
+        return replicationCacheMaximumWeight;
+    }
+
+    /**
+     * Sets the maximum number of the bytes that the compact replication
+     * cache can hold.
+     */
+    public void setReplicationCacheMaximumWeight(long replicationCacheMaximumWeight) {
+        this.replicationCacheMaximumWeight = replicationCacheMaximumWeight;
+    }
+
+    /**
+     * Returns the maximum number of the decoded entries that the compact
+     * replication cache keeps alongside the encoded data. {@code 0}
+     * disables this tier.
+     */
+    public long getReplicationCacheDecodedMaximumSize() {
+        return replicationCacheDecodedMaximumSize;
+    }
+
+    /**
+     * Sets the maximum number of the decoded entries that the compact
+     * replication cache keeps alongside the encoded data. {@code 0}
+     * disables this tier.
+     */
+    public void setReplicationCacheDecodedMaximumSize(long replicationCacheDecodedMaximumSize) {
+        this.replicationCacheDecodedMaximumSize = replicationCacheDecodedMaximumSize;
+    }
+
+    /**
+     * Returns {@code true} if the replication cache should keep the encoded
+     * data outside of the Java heap. The cache is then bounded by the
+     * {@linkplain #getReplicationCacheMaximumWeight total size of the data}
+     * and doesn't use the decoded tier.
+     */
+    public boolean isReplicationCacheOffHeap() {
+        return replicationCacheOffHeap;
+    }
+
+    /**
+     * Sets whether the replication cache should keep the encoded data
+     * outside of the Java heap.
+     */
+    public void setReplicationCacheOffHeap(boolean replicationCacheOffHeap) {
+        this.replicationCacheOffHeap = replicationCacheOffHeap;
+    }
+
+    /**
+     * Returns the path to the file where the replication cache is saved
+     * when this database is closed, and loaded from when it's initialized.
+     *
+     * @return May be {@code null} to disable the snapshot.
+     */
+    public String getReplicationCacheSnapshotPath() {
+        return replicationCacheSnapshotPath;
+    }
+
+    /**
+     * Sets the path to the file where the replication cache is saved and
+     * loaded from.
+     *
+     * @param replicationCacheSnapshotPath May be {@code null}.
+     */
+    public void setReplicationCacheSnapshotPath(String replicationCacheSnapshotPath) {
+        this.replicationCacheSnapshotPath = replicationCacheSnapshotPath;
+    }
+
+    /**
+     * Creates the value to be stored in the replication cache. In the
+     * compact mode, the given {@code dataJson} is only kept in the decoded
+     * tier.
+     */
+    Object[] createReplicationCacheValue(byte[] typeIdBytes, byte[] data, Map<String, Object> dataJson) {
+        if (!isReplicationCacheCompact() && !isReplicationCacheOffHeap()) {
+            return new Object[] { typeIdBytes, data, dataJson };
+        }
+
+        Cache<byte[], Map<String, Object>> decodedCache = replicationDecodedCache;
+
+        if (decodedCache != null && dataJson != null) {
+            decodedCache.put(data, dataJson);
+        }
+
+        return new Object[] { typeIdBytes, data, null };
+    }
+
+    /**
+     * Returns the frozen data in the given replication cache
+     * {@code value}, decoding it if necessary.
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Object> getReplicationCacheData(Object[] value) {
+        Map<String, Object> dataJson = (Map<String, Object>) value[2];
+
+        if (dataJson != null) {
+            return dataJson;
+        }
+
+        byte[] data = (byte[]) value[1];
+        Cache<byte[], Map<String, Object>> decodedCache = replicationDecodedCache;
+
+        if (decodedCache != null) {
+            dataJson = decodedCache.getIfPresent(data);
+
+            if (dataJson != null) {
+                return dataJson;
+            }
+        }
+
+        dataJson = SharedData.freeze(unserializeData(data));
+
+        if (decodedCache != null) {
+            decodedCache.put(data, dataJson);
+        }
+
+        return dataJson;
+    }
+
+    // Estimates the number of the bytes used by the given replication
+    // cache value, including the overhead of the entry itself.
+    private static int weighReplicationCacheValue(UUID id, Object[] value) {
+        byte[] typeIdBytes = (byte[]) value[0];
+        byte[] data = (byte[]) value[1];
+
+        return 128
+                + (typeIdBytes != null ? typeIdBytes.length : 0)
+                + (data != null ? data.length : 0);
+    }
+
     public boolean isIndexSpatial() {
         return indexSpatial;
     }
@@ -438,6 +887,86 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         this.indexSpatial = indexSpatial;
     }
 
+    /**
+     * Returns {@code true} if the rows in the {@link #RECORD_TABLE} and
+     * the {@link #RECORD_UPDATE_TABLE} should be written using JDBC batches
+     * when saving multiple objects at once.
+     */
+    public boolean isBatchWrites() {
+        return batchWrites;
+    }
+
+    /**
+     * Sets whether the rows in the {@link #RECORD_TABLE} and the
+     * {@link #RECORD_UPDATE_TABLE} should be written using JDBC batches
+     * when saving multiple objects at once.
+     */
+    public void setBatchWrites(boolean batchWrites) {
+        this.batchWrites = batchWrites;
+    }
+
+    /**
+     * Returns {@code true} if only the index rows whose values changed
+     * since the last save should be rewritten when saving an existing
+     * object.
+     */
+    public boolean isDiffIndexes() {
+        return diffIndexes;
+    }
+
+    /**
+     * Sets whether only the index rows whose values changed since the
+     * last save should be rewritten when saving an existing object.
+     */
+    public void setDiffIndexes(boolean diffIndexes) {
+        this.diffIndexes = diffIndexes;
+    }
+
+    /**
+     * Returns {@code true} if the values in the generated read queries
+     * should be bound as parameters instead of being written inline, so
+     * that the queries with the same shape share the same statement.
+     *
+     * <p>The statements built in this mode must be executed using
+     * {@link #createQueryStatement} and {@link #executeQueryBeforeTimeout}.</p>
+     */
+    public boolean isParameterizedQueries() {
+        return parameterizedQueries;
+    }
+
+    /**
+     * Sets whether the values in the generated read queries should be
+     * bound as parameters.
+     */
+    public void setParameterizedQueries(boolean parameterizedQueries) {
+        this.parameterizedQueries = parameterizedQueries;
+    }
+
+    /**
+     * Returns the format used to write the data in the
+     * {@link #RECORD_TABLE}.
+     *
+     * @return Never {@code null}. Defaults to {@link SqlDataFormat#JSON}.
+     */
+    public SqlDataFormat getDataFormat() {
+        return dataFormat != null ? dataFormat : SqlDataFormat.JSON;
+    }
+
+    /**
+     * Sets the format used to write the data in the {@link #RECORD_TABLE}.
+     * The data written using any other registered format can still be
+     * read.
+     *
+     * @param dataFormat If {@code null}, uses {@link SqlDataFormat#JSON}.
+     */
+    public void setDataFormat(SqlDataFormat dataFormat) {
+        if (dataFormat != null) {
+            SqlDataFormat.Static.register(dataFormat);
+        }
+
+        this.dataFormat = dataFormat;
+    }
+
     /**
      * Returns {@code true} if the {@link #RECORD_TABLE} in this database
      * has the {@link #IN_ROW_INDEX_COLUMN}.
@@ -771,51 +1300,225 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         setDataSource(null);
         setReadDataSource(null);
 
+        SqlReadReplicaPool pool = readReplicaPool;
+
+        if (pool != null) {
+            readReplicaPool = null;
+            pool.close();
+
+            for (SqlReadReplicaPool.Replica replica : pool.getReplicas()) {
+                DataSource replicaDataSource = replica.getDataSource();
+
+                if (replicaDataSource instanceof HikariDataSource) {
+                    LOGGER.info("Closing [{}] read replica connection pool in {}", replica.getName(), getName());
+                    ((HikariDataSource) replicaDataSource).close();
+                }
+            }
+        }
+
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdown();
+            decodeExecutor = null;
+        }
+
+        if (concurrentQueryExecutor != null) {
+            concurrentQueryExecutor.shutdown();
+            concurrentQueryExecutor = null;
+        }
+
         if (mysqlBinaryLogReader != null) {
+            saveReplicationCacheSnapshot();
             LOGGER.info("Stopping MySQL binary log reader");
             mysqlBinaryLogReader.stop();
             mysqlBinaryLogReader = null;
         }
     }
 
-    private String addComment(String sql, Query<?> query) {
-        if (query != null) {
-            String comment = query.getComment();
+    // Creates a pool of daemon threads that time out when they're idle.
+    private ThreadPoolExecutor createExecutor(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60L,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat(getName() + " " + name + " %d").setDaemon(true).build());
+
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
-            if (!ObjectUtils.isBlank(comment)) {
-                return "/*" + comment + "*/ " + sql;
+    // Creates the replication cache, along with the decoded tier in the
+    // compact mode, according to the current settings.
+    Cache<UUID, Object[]> createReplicationCache() {
+        Cache<UUID, Object[]> cache;
+
+        if (isReplicationCacheOffHeap()) {
+            cache = new OffHeapReplicationCache(getReplicationCacheMaximumWeight());
+            replicationDecodedCache = null;
+
+        } else if (isReplicationCacheCompact()) {
+            cache = CacheBuilder.newBuilder()
+                    .maximumWeight(getReplicationCacheMaximumWeight())
+                    .<UUID, Object[]>weigher(SqlDatabase::weighReplicationCacheValue)
+                    .build();
+
+            long decodedMaximumSize = getReplicationCacheDecodedMaximumSize();
+
+            // Keyed by the identity of the encoded data, so that the
+            // decoded entries of updated or evicted data are never used.
+            if (decodedMaximumSize > 0) {
+                replicationDecodedCache = CacheBuilder.newBuilder().weakKeys().maximumSize(decodedMaximumSize).build();
+
+            } else {
+                replicationDecodedCache = null;
             }
+
+        } else {
+            cache = CacheBuilder.newBuilder().maximumSize(getReplicationCacheMaximumSize()).build();
+            replicationDecodedCache = null;
         }
 
-        return sql;
+        return cache;
     }
 
-    /**
-     * Builds an SQL statement that can be used to get a count of all
-     * objects matching the given {@code query}.
-     */
-    public String buildCountStatement(Query<?> query) {
-        return addComment(new SqlQuery(this, query).countStatement(), query);
-    }
+    // Saves the replication cache along with the binary log position that
+    // it's current to, but only if the reader is caught up, since the cache
+    // is invalidated whenever the reader disconnects.
+    private void saveReplicationCacheSnapshot() {
+        String snapshotPath = getReplicationCacheSnapshotPath();
+        Cache<UUID, Object[]> cache = replicationCache;
 
-    /**
-     * Builds an SQL statement that can be used to delete all rows
-     * matching the given {@code query}.
-     */
-    public String buildDeleteStatement(Query<?> query) {
-        return addComment(new SqlQuery(this, query).deleteStatement(), query);
-    }
+        if (ObjectUtils.isBlank(snapshotPath)
+                || cache == null
+                || !mysqlBinaryLogReader.isConnected()) {
+            return;
+        }
 
-    /**
-     * Builds an SQL statement that can be used to get all objects
-     * grouped by the values of the given {@code groupFields}.
-     */
-    public String buildGroupStatement(Query<?> query, String... groupFields) {
-        return addComment(new SqlQuery(this, query).groupStatement(groupFields), query);
-    }
+        MySQLBinaryLogPosition position = mysqlBinaryLogReader.getCommittedPosition();
 
-    public String buildGroupedMetricStatement(Query<?> query, String metricFieldName, String... groupFields) {
-        return addComment(new SqlQuery(this, query).groupedMetricSql(metricFieldName, groupFields), query);
+        if (position == null) {
+            return;
+        }
+
+        try {
+            LOGGER.info("Saving replication cache snapshot to [{}] at [{}]", snapshotPath, position);
+            ReplicationCacheSnapshot.write(Paths.get(snapshotPath), cache, position);
+
+        } catch (IOException | RuntimeException error) {
+            LOGGER.warn(String.format("Can't save replication cache snapshot to [%s]!", snapshotPath), error);
+        }
+    }
+
+    // Loads the replication cache saved by #saveReplicationCacheSnapshot
+    // and makes the reader resume from the position in it. The snapshot is
+    // deleted afterwards, because it becomes stale as soon as the reader
+    // moves past that position.
+    private void loadReplicationCacheSnapshot(MySQLBinaryLogReader reader, DataSource dataSource) {
+        String snapshotPath = getReplicationCacheSnapshotPath();
+
+        if (ObjectUtils.isBlank(snapshotPath)) {
+            return;
+        }
+
+        Path path = Paths.get(snapshotPath);
+
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+
+        try {
+            MySQLBinaryLogPosition position = ReplicationCacheSnapshot.load(path, replicationCache, this);
+
+            if (position != null) {
+                MySQLBinaryLogPosition masterPosition = null;
+
+                try (Connection connection = dataSource.getConnection();
+                        Statement statement = connection.createStatement();
+                        ResultSet result = statement.executeQuery("SHOW MASTER STATUS")) {
+
+                    if (result.next()) {
+                        masterPosition = new MySQLBinaryLogPosition(result.getString(1), result.getLong(2));
+                    }
+                }
+
+                if (masterPosition != null) {
+                    LOGGER.info("Loaded replication cache snapshot from [{}] at [{}], catching up to [{}]", new Object[] { snapshotPath, position, masterPosition });
+                    reader.setStartPosition(position, masterPosition);
+
+                } else {
+                    replicationCache.invalidateAll();
+                }
+            }
+
+        } catch (IOException | SQLException | RuntimeException error) {
+            replicationCache.invalidateAll();
+            LOGGER.warn(String.format("Can't load replication cache snapshot from [%s]!", snapshotPath), error);
+
+        } finally {
+            try {
+                Files.deleteIfExists(path);
+
+            } catch (IOException error) {
+                LOGGER.warn(String.format("Can't delete replication cache snapshot at [%s]!", snapshotPath), error);
+            }
+        }
+    }
+
+    private String addComment(String sql, Query<?> query) {
+        if (query != null) {
+            String comment = query.getComment();
+
+            if (!ObjectUtils.isBlank(comment)) {
+                return "/*" + comment + "*/ " + sql;
+            }
+        }
+
+        return sql;
+    }
+
+    /**
+     * Builds an SQL statement that can be used to get a count of all
+     * objects matching the given {@code query}.
+     */
+    public String buildCountStatement(Query<?> query) {
+        return SqlQueryParameters.inline(vendor, buildCountSql(query));
+    }
+
+    // Builds the count statement that may contain the parameter markers in
+    // the parameterized mode.
+    private String buildCountSql(Query<?> query) {
+        return addComment(new SqlQuery(this, query).countStatement(), query);
+    }
+
+    /**
+     * Builds an SQL statement that can be used to delete all rows
+     * matching the given {@code query}.
+     */
+    public String buildDeleteStatement(Query<?> query) {
+        return SqlQueryParameters.inline(vendor, addComment(new SqlQuery(this, query).deleteStatement(), query));
+    }
+
+    /**
+     * Builds an SQL statement that can be used to get all objects
+     * grouped by the values of the given {@code groupFields}.
+     */
+    public String buildGroupStatement(Query<?> query, String... groupFields) {
+        return SqlQueryParameters.inline(vendor, buildGroupSql(query, groupFields));
+    }
+
+    // Builds the group statement that may contain the parameter markers in
+    // the parameterized mode.
+    private String buildGroupSql(Query<?> query, String... groupFields) {
+        return addComment(new SqlQuery(this, query).groupStatement(groupFields), query);
+    }
+
+    public String buildGroupedMetricStatement(Query<?> query, String metricFieldName, String... groupFields) {
+        return SqlQueryParameters.inline(vendor, buildGroupedMetricSql(query, metricFieldName, groupFields));
+    }
+
+    private String buildGroupedMetricSql(Query<?> query, String metricFieldName, String... groupFields) {
+        return addComment(new SqlQuery(this, query).groupedMetricSql(metricFieldName, groupFields), query);
     }
 
     /**
@@ -823,6 +1526,12 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
      * matching the given {@code query} were last updated.
      */
     public String buildLastUpdateStatement(Query<?> query) {
+        return SqlQueryParameters.inline(vendor, buildLastUpdateSql(query));
+    }
+
+    // Builds the last update statement that may contain the parameter
+    // markers in the parameterized mode.
+    private String buildLastUpdateSql(Query<?> query) {
         return addComment(new SqlQuery(this, query).lastUpdateStatement(), query);
     }
 
@@ -845,6 +1554,13 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
      * matching the given {@code query}.
      */
     public String buildSelectStatement(Query<?> query) {
+        return SqlQueryParameters.inline(vendor, buildSelectSql(query));
+    }
+
+    // Builds the select statement that may contain the parameter markers
+    // in the parameterized mode, so that it can be executed as a prepared
+    // statement.
+    private String buildSelectSql(Query<?> query) {
         try {
             Query<?> strippedQuery = query.clone();
             // Remove any possibility that multiple CachingDatabases will be cached in the sqlQueryCache.
@@ -909,62 +1625,56 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             }
         }
 
-        byte[] dataBytes = ObjectUtils.toJson(values).getBytes(StandardCharsets.UTF_8);
+        SqlDataBuffer[] buffers = DATA_BUFFERS.get();
+        SqlDataBuffer dataBuffer = buffers[0];
 
-        if (isCompressData()) {
-            byte[] compressed = new byte[Snappy.maxCompressedLength(dataBytes.length)];
-            int compressedLength = Snappy.compress(dataBytes, 0, dataBytes.length, compressed, 0);
+        try {
+            getDataFormat().encode(values, dataBuffer);
 
-            dataBytes = new byte[compressedLength + 1];
-            dataBytes[0] = 's';
-            System.arraycopy(compressed, 0, dataBytes, 1, compressedLength);
-        }
+            if (!isCompressData()) {
+                return dataBuffer.toByteArray();
+            }
 
-        return dataBytes;
-    }
+            SqlDataBuffer compressedBuffer = buffers[1];
+            int dataLength = dataBuffer.getLength();
 
-    private static byte[] decodeData(byte[] dataBytes) {
-        char format;
+            compressedBuffer.ensureCapacity(Snappy.maxCompressedLength(dataLength) + 1);
 
-        while (true) {
-            format = (char) dataBytes[0];
+            byte[] compressed = compressedBuffer.getBytes();
 
-            if (format == 's') {
-                dataBytes = Snappy.uncompress(dataBytes, 1, dataBytes.length - 1);
+            compressed[0] = SqlDataFormat.SNAPPY_PREFIX;
+            compressedBuffer.setLength(Snappy.compress(dataBuffer.getBytes(), 0, dataLength, compressed, 1) + 1);
+            return compressedBuffer.toByteArray();
 
-            } else if (format == '{') {
-                return dataBytes;
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
 
-            } else {
-                break;
+        } finally {
+            for (int i = 0, length = buffers.length; i < length; ++ i) {
+                if (buffers[i].getCapacity() > MAXIMUM_POOLED_DATA_BUFFER_CAPACITY) {
+                    buffers[i] = new SqlDataBuffer(4096);
+
+                } else {
+                    buffers[i].reset();
+                }
             }
         }
-
-        throw new IllegalStateException(String.format(
-                "Unknown format! ([%s])",
-                format));
     }
 
-    @SuppressWarnings("unchecked")
-    protected static Map<String, Object> unserializeData(byte[] dataBytes) {
-        char format = '\0';
-
-        while (true) {
-            format = (char) dataBytes[0];
-
-            if (format == 's') {
-                dataBytes = Snappy.uncompress(dataBytes, 1, dataBytes.length - 1);
-
-            } else if (format == '{') {
-                return (Map<String, Object>) ObjectUtils.fromJson(dataBytes);
+    // Removes any compression from the given data, leaving it in one of
+    // the registered formats.
+    private static byte[] decodeData(byte[] dataBytes) {
+        return SqlDataFormat.Static.decompress(dataBytes);
+    }
 
-            } else {
-                break;
-            }
-        }
+    // Converts the given data, already decoded using #decodeData, into
+    // the state values.
+    private static Map<String, Object> decodeValues(byte[] decodedData) {
+        return SqlDataFormat.Static.getByPrefix(decodedData[0]).decode(decodedData);
+    }
 
-        throw new IllegalStateException(String.format(
-                "Unknown format! ([%s])", format));
+    protected static Map<String, Object> unserializeData(byte[] dataBytes) {
+        return decodeValues(decodeData(dataBytes));
     }
 
     private class ConnectionRef {
@@ -998,38 +1708,16 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             ConnectionRef extraConnectionRef)
             throws SQLException {
 
-        T object = createSavedObject(resultSet.getObject(2), resultSet.getObject(1), query);
+        T object = createSavedObjectWithId(resultSet.getObject(2), resultSet.getObject(1), query);
         State objectState = State.getInstance(object);
 
-        if (object instanceof Singleton) {
-            ObjectType objectType = objectState.getType();
-
-            if (objectType != null) {
-                Class<?> objectClass = objectType.getObjectClass();
-
-                if (objectClass != null) {
-                    singletonIds.put(objectClass, objectState.getId());
-                }
-            }
-        }
-
         if (!objectState.isReferenceOnly()) {
             byte[] data = resultSet.getBytes(3);
 
             if (data != null) {
                 byte[] decodedData = decodeData(data);
-                @SuppressWarnings("unchecked")
-                Map<String, Object> unserializedData = (Map<String, Object>) ObjectUtils.fromJson(decodedData);
 
-                objectState.setValues(unserializedData);
-                objectState.getExtras().put(DATA_LENGTH_EXTRA, decodedData.length);
-                Boolean returnOriginal = ObjectUtils.to(Boolean.class, query.getOptions().get(RETURN_ORIGINAL_DATA_QUERY_OPTION));
-                if (returnOriginal == null) {
-                    returnOriginal = Boolean.FALSE;
-                }
-                if (returnOriginal) {
-                    objectState.getExtras().put(ORIGINAL_DATA_EXTRA, data);
-                }
+                setSavedData(objectState, data, decodedData, decodeValues(decodedData), query);
             }
         }
 
@@ -1064,6 +1752,49 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             }
         }
 
+        loadExtraSourceFields(objectState, query, extraConnectionRef);
+        return swapObjectType(query, object);
+    }
+
+    // Creates a previously saved object with the given typeId and id,
+    // keeping track of the singletons.
+    private <T> T createSavedObjectWithId(Object typeId, Object id, Query<T> query) {
+        T object = createSavedObject(typeId, id, query);
+
+        if (object instanceof Singleton) {
+            State objectState = State.getInstance(object);
+            ObjectType objectType = objectState.getType();
+
+            if (objectType != null) {
+                Class<?> objectClass = objectType.getObjectClass();
+
+                if (objectClass != null) {
+                    singletonIds.put(objectClass, objectState.getId());
+                }
+            }
+        }
+
+        return object;
+    }
+
+    // Sets the given data, already decoded into the given values, on the
+    // given objectState.
+    private void setSavedData(State objectState, byte[] data, byte[] decodedData, Map<String, Object> values, Query<?> query) {
+        objectState.setValues(values);
+        objectState.getExtras().put(DATA_LENGTH_EXTRA, decodedData.length);
+        Boolean returnOriginal = ObjectUtils.to(Boolean.class, query.getOptions().get(RETURN_ORIGINAL_DATA_QUERY_OPTION));
+        if (returnOriginal == null) {
+            returnOriginal = Boolean.FALSE;
+        }
+        if (returnOriginal) {
+            objectState.getExtras().put(ORIGINAL_DATA_EXTRA, data);
+        }
+    }
+
+    // Loads the fields that are stored in the source index tables.
+    private void loadExtraSourceFields(State objectState, Query<?> query, ConnectionRef extraConnectionRef) throws SQLException {
+        ResultSetMetaData meta;
+
         // Load some extra column from source index tables.
         @SuppressWarnings("unchecked")
         Set<UUID> unresolvedTypeIds = (Set<UUID>) query.getOptions().get(State.UNRESOLVED_TYPE_IDS_QUERY_OPTION);
@@ -1111,8 +1842,106 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 }
             }
         }
+    }
 
-        return swapObjectType(query, object);
+    // Returns true if the rows in the given result should be read before
+    // they're decoded, so that the decoding can be done in parallel.
+    private boolean isParallelDecode(ResultSet result, Query<?> query) throws SQLException {
+        return decodeExecutor != null
+                && query != null
+                && !query.isReferenceOnly()
+                && query.getExtraSourceColumns().isEmpty()
+                && result.getMetaData().getColumnCount() == 3;
+    }
+
+    // Creates the previously saved objects using all the rows in the given
+    // result, decoding their data in parallel if there are enough of them.
+    @SuppressWarnings("unchecked")
+    private <T> List<T> createSavedObjectsWithResultSet(ResultSet result, Query<T> query, ConnectionRef extraConnectionRef) throws SQLException {
+        List<Object[]> rows = new ArrayList<Object[]>();
+
+        while (result.next()) {
+            rows.add(new Object[] { result.getObject(1), result.getObject(2), result.getBytes(3) });
+        }
+
+        int size = rows.size();
+        List<Future<List<Object[]>>> decodes = new ArrayList<Future<List<Object[]>>>();
+        ThreadPoolExecutor executor = decodeExecutor;
+
+        // Split by the number of threads that the executor was created
+        // with, since the setting may have changed since.
+        if (executor != null && size >= getParallelDecodeThreshold()) {
+            int threads = executor.getMaximumPoolSize();
+            int chunkSize = (size + threads - 1) / threads;
+
+            for (int start = 0; start < size; start += chunkSize) {
+                List<Object[]> chunk = rows.subList(start, Math.min(start + chunkSize, size));
+
+                decodes.add(executor.submit(() -> decodeRows(chunk)));
+            }
+
+        } else {
+            decodes.add(CompletableFuture.completedFuture(decodeRows(rows)));
+        }
+
+        List<T> objects = new ArrayList<T>(size);
+        int index = 0;
+
+        try {
+            for (Future<List<Object[]>> decode : decodes) {
+                for (Object[] decoded : decode.get()) {
+                    Object[] row = rows.get(index);
+                    T object = createSavedObjectWithId(row[1], row[0], query);
+                    State objectState = State.getInstance(object);
+
+                    if (decoded != null && !objectState.isReferenceOnly()) {
+                        setSavedData(objectState, (byte[]) row[2], (byte[]) decoded[0], (Map<String, Object>) decoded[1], query);
+                    }
+
+                    loadExtraSourceFields(objectState, query, extraConnectionRef);
+                    objects.add(swapObjectType(query, object));
+                    ++ index;
+                }
+            }
+
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException(this, "Interrupted while decoding the objects!", error);
+
+        } catch (ExecutionException error) {
+            Throwable cause = error.getCause();
+
+            throw cause instanceof RuntimeException
+                    ? (RuntimeException) cause
+                    : new DatabaseException(this, "Can't decode the objects!", cause);
+
+        } finally {
+            for (Future<List<Object[]>> decode : decodes) {
+                decode.cancel(false);
+            }
+        }
+
+        return objects;
+    }
+
+    // Decodes the data in the given rows into [decodedData, values].
+    private static List<Object[]> decodeRows(List<Object[]> rows) {
+        List<Object[]> decodedRows = new ArrayList<Object[]>(rows.size());
+
+        for (Object[] row : rows) {
+            byte[] data = (byte[]) row[2];
+
+            if (data == null) {
+                decodedRows.add(null);
+
+            } else {
+                byte[] decodedData = decodeData(data);
+
+                decodedRows.add(new Object[] { decodedData, decodeValues(decodedData) });
+            }
+        }
+
+        return decodedRows;
     }
 
     // Creates an SQL statement to return a single row from a FieldIndexTable
@@ -1194,15 +2023,47 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         Profiler.Static.startThreadEvent(QUERY_PROFILER_EVENT);
 
         try {
-            return statement.executeQuery(sqlQuery);
+            return statement instanceof PreparedStatement
+                    ? ((PreparedStatement) statement).executeQuery()
+                    : statement.executeQuery(SqlQueryParameters.inline(vendor, sqlQuery));
 
         } finally {
             double duration = timer.stop(QUERY_STATS_OPERATION);
             Profiler.Static.stopThreadEvent(sqlQuery);
 
-            LOGGER.debug(
-                    "Read from the SQL database using [{}] in [{}]ms",
-                    sqlQuery, duration * 1000.0);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        "Read from the SQL database using [{}] in [{}]ms",
+                        SqlQueryParameters.inline(vendor, sqlQuery), duration * 1000.0);
+            }
+        }
+    }
+
+    /**
+     * Creates a statement for executing the given read {@code sqlQuery}
+     * within the given {@code connection}. If the query was built in the
+     * {@linkplain #isParameterizedQueries parameterized mode}, the
+     * statement is prepared with all the parameters bound, so it can be
+     * reused from the statement cache in the JDBC driver.
+     */
+    protected Statement createQueryStatement(Connection connection, String sqlQuery) throws SQLException {
+        if (!SqlQueryParameters.hasMarkers(sqlQuery)) {
+            return connection.createStatement();
+        }
+
+        List<Object> parameters = new ArrayList<Object>();
+        PreparedStatement prepared = connection.prepareStatement(SqlQueryParameters.bind(vendor, sqlQuery, parameters));
+
+        try {
+            for (int i = 0, size = parameters.size(); i < size; ++ i) {
+                Static.bindParameter(prepared, i + 1, parameters.get(i));
+            }
+
+            return prepared;
+
+        } catch (SQLException | RuntimeException error) {
+            prepared.close();
+            throw error;
         }
     }
 
@@ -1211,7 +2072,7 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         T object = createSavedObject(typeId, id, query);
         State objectState = State.getInstance(object);
 
-        objectState.setValues(cloneDataJson(dataJson));
+        objectState.setValues(SharedData.share(dataJson));
 
         Boolean returnOriginal = query != null ? ObjectUtils.to(Boolean.class, query.getOptions().get(RETURN_ORIGINAL_DATA_QUERY_OPTION)) : null;
 
@@ -1226,40 +2087,6 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         return swapObjectType(query, object);
     }
 
-    @SuppressWarnings("unchecked")
-    private static Map<String, Object> cloneDataJson(Map<String, Object> dataJson) {
-        return (Map<String, Object>) cloneDataJsonRecursively(dataJson);
-    }
-
-    private static Object cloneDataJsonRecursively(Object object) {
-        if (object instanceof Map) {
-            Map<?, ?> objectMap = (Map<?, ?>) object;
-            int objectMapSize = objectMap.size();
-            Map<String, Object> clone = objectMapSize <= 8
-                    ? new CompactMap<String, Object>()
-                    : new LinkedHashMap<String, Object>(objectMapSize);
-
-            for (Map.Entry<?, ?> entry : objectMap.entrySet()) {
-                clone.put((String) entry.getKey(), cloneDataJsonRecursively(entry.getValue()));
-            }
-
-            return clone;
-
-        } else if (object instanceof List) {
-            List<?> objectList = (List<?>) object;
-            List<Object> clone = new ArrayList<Object>(objectList.size());
-
-            for (Object item : objectList) {
-                clone.add(cloneDataJsonRecursively(item));
-            }
-
-            return clone;
-
-        } else {
-            return object;
-        }
-    }
-
     // Tries to find objects by the given ids from the replication cache.
     // If not found, execute the given query to populate it.
     private <T> List<T> findObjectsFromReplicationCache(List<Object> ids, Query<T> query) {
@@ -1309,8 +2136,7 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                     continue;
                 }
 
-                @SuppressWarnings("unchecked")
-                T object = createSavedObjectFromReplicationCache((byte[]) value[0], id, (byte[]) value[1], (Map<String, Object>) value[2], query);
+                T object = createSavedObjectFromReplicationCache((byte[]) value[0], id, (byte[]) value[1], getReplicationCacheData(value), query);
 
                 if (object != null) {
                     if (objects == null) {
@@ -1365,11 +2191,11 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                     while (result.next()) {
                         UUID id = ObjectUtils.to(UUID.class, result.getBytes(3));
                         byte[] data = result.getBytes(2);
-                        Map<String, Object> dataJson = unserializeData(data);
+                        Map<String, Object> dataJson = SharedData.freeze(unserializeData(data));
                         byte[] typeIdBytes = UuidUtils.toBytes(ObjectUtils.to(UUID.class, dataJson.get(StateSerializer.TYPE_KEY)));
 
                         if (!Arrays.equals(typeIdBytes, UuidUtils.ZERO_BYTES) && id != null) {
-                            replicationCache.put(id, new Object[] { typeIdBytes, data, dataJson });
+                            replicationCache.put(id, createReplicationCacheValue(typeIdBytes, data, dataJson));
                         }
 
                         UUID typeId = ObjectUtils.to(UUID.class, typeIdBytes);
@@ -1438,6 +2264,10 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
      * with options from the given {@code query}.
      */
     public <T> T selectFirstWithOptions(String sqlQuery, Query<T> query) {
+        return selectFirstWithOptions(sqlQuery, query, null);
+    }
+
+    private <T> T selectFirstWithOptions(String sqlQuery, Query<T> query, BranchStatements statementListener) {
         sqlQuery = vendor.rewriteQueryWithLimitClause(sqlQuery, 1, 0);
         if (checkFunnelCache(query)) {
             List<T> objects = findObjectsFromFunnelCache(sqlQuery, query);
@@ -1453,7 +2283,13 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
         try {
             connection = openQueryConnection(query);
-            statement = connection.createStatement();
+            statement = createQueryStatement(connection, sqlQuery);
+
+            // Already cancelled.
+            if (statementListener != null && !statementListener.add(statement)) {
+                return null;
+            }
+
             result = executeQueryBeforeTimeout(statement, sqlQuery, getQueryReadTimeout(query));
             return result.next() ? createSavedObjectWithResultSet(result, query, extraConnectionRef) : null;
 
@@ -1494,8 +2330,13 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
         try {
             connection = openQueryConnection(query);
-            statement = connection.createStatement();
+            statement = createQueryStatement(connection, sqlQuery);
             result = executeQueryBeforeTimeout(statement, sqlQuery, timeout);
+
+            if (isParallelDecode(result, query)) {
+                return createSavedObjectsWithResultSet(result, query, extraConnectionRef);
+            }
+
             while (result.next()) {
                 objects.add(createSavedObjectWithResultSet(result, query, extraConnectionRef));
             }
@@ -1555,11 +2396,13 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
             try {
                 connection = openQueryConnection(query);
-                statement = connection.createStatement();
+                statement = createQueryStatement(connection, sqlQuery);
                 statement.setFetchSize(getVendor() instanceof SqlVendor.MySQL ? Integer.MIN_VALUE
                         : fetchSize <= 0 ? 200
                         : fetchSize);
-                result = statement.executeQuery(sqlQuery);
+                result = statement instanceof PreparedStatement
+                        ? ((PreparedStatement) statement).executeQuery()
+                        : statement.executeQuery(sqlQuery);
                 moveToNext();
 
             } catch (SQLException ex) {
@@ -1744,12 +2587,26 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
     @Override
     protected Connection doOpenReadConnection() {
+        SqlRecentWrites writes = getRecentWrites(null);
+        Connection replicaConnection = openReplicaConnection(getReadReplicaMaximumLag(), writes);
+
+        if (replicaConnection != null) {
+            return replicaConnection;
+
+        } else if (writes != null) {
+            return openReadConnection(getDataSource());
+        }
+
         DataSource readDataSource = getReadDataSource();
 
         if (readDataSource == null) {
             readDataSource = getDataSource();
         }
 
+        return openReadConnection(readDataSource);
+    }
+
+    private Connection openReadConnection(DataSource readDataSource) {
         if (readDataSource == null) {
             throw new SqlDatabaseException(this, "No SQL data source!");
         }
@@ -1765,24 +2622,182 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         }
     }
 
-    @Override
-    public Connection openQueryConnection(Query<?> query) {
-        if (query != null) {
-            Connection connection = (Connection) query.getOptions().get(CONNECTION_QUERY_OPTION);
+    // Opens a connection to one of the read replicas that's at most the
+    // given maximumLag seconds behind and includes the given writes, trying
+    // the others if it fails, or returns null if none are available.
+    private Connection openReplicaConnection(long maximumLag, SqlRecentWrites writes) {
+        SqlReadReplicaPool pool = readReplicaPool;
 
-            if (connection != null) {
-                return connection;
-            }
+        if (pool == null) {
+            return null;
+        }
 
-            Boolean useRead = ObjectUtils.to(Boolean.class, query.getOptions().get(USE_READ_DATA_SOURCE_QUERY_OPTION));
+        long writeTime = writes != null ? writes.getTime() : 0L;
+        List<SqlReadReplicaPool.Replica> failed = null;
 
-            if (useRead == null) {
+        for (SqlReadReplicaPool.Replica replica; (replica = pool.pick(maximumLag, writeTime, failed)) != null;) {
+            try {
+                Connection connection = getConnectionFromDataSource(replica.getDataSource());
+
+                connection.setReadOnly(true);
+                return connection;
+
+            } catch (SQLException error) {
+                LOGGER.warn(String.format("Can't connect to [%s] read replica!", replica.getName()), error);
+                replica.recordFailure();
+
+                if (failed == null) {
+                    failed = new ArrayList<SqlReadReplicaPool.Replica>();
+                }
+
+                failed.add(replica);
+            }
+        }
+
+        return writes != null ? openWaitingReplicaConnection(pool, maximumLag, writes) : null;
+    }
+
+    // Opens a connection to one of the read replicas and waits for it to
+    // catch up to the position of the given writes, or returns null if
+    // that's not possible in time.
+    private Connection openWaitingReplicaConnection(SqlReadReplicaPool pool, long maximumLag, SqlRecentWrites writes) {
+        double timeout = getReadYourWritesWaitTimeout();
+        String position = writes.getPosition();
+
+        if (timeout <= 0.0 || position == null) {
+            return null;
+        }
+
+        SqlReadReplicaPool.Replica replica = pool.pick(maximumLag, 0L, null);
+
+        if (replica == null) {
+            return null;
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = getConnectionFromDataSource(replica.getDataSource());
+
+            if (getVendor().waitForReplicationPosition(connection, position, timeout)) {
+                connection.setReadOnly(true);
+
+                Connection caughtUp = connection;
+
+                connection = null;
+                return caughtUp;
+            }
+
+        } catch (SQLException error) {
+            LOGGER.debug(String.format("Can't wait for [%s] read replica!", replica.getName()), error);
+
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+
+                } catch (SQLException error) {
+                    // Not likely and probably harmless.
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // Returns the recent writes in the current thread, or the ones pinned
+    // to the given query, if it could observe them, or null otherwise.
+    private SqlRecentWrites getRecentWrites(Query<?> query) {
+        SqlRecentWrites writes = query != null ? (SqlRecentWrites) query.getOptions().get(RECENT_WRITES_QUERY_OPTION) : null;
+
+        if (writes == null) {
+            writes = recentWritesLocal.get();
+        }
+
+        if (writes == null
+                || readReplicaPool == null
+                || writes.isExpired(getReadYourWritesWindow() * 1000L)
+                || !writes.isObservableBy(query, getEnvironment())) {
+            return null;
+        }
+
+        return writes;
+    }
+
+    // Remembers the given states as written in the current thread so that
+    // the subsequent reads can see them.
+    private void addRecentWrites(List<State> states) {
+        if (readReplicaPool == null || getReadYourWritesWindow() <= 0L) {
+            return;
+        }
+
+        SqlRecentWrites writes = recentWritesLocal.get();
+
+        if (writes == null) {
+            writes = new SqlRecentWrites();
+            recentWritesLocal.set(writes);
+        }
+
+        writes.addPending(states);
+    }
+
+    // Pins the read routing of the current thread to the given query, so
+    // that it's executed against the same data source in another thread.
+    private void pinReadRouting(Query<?> query) {
+        if (isIgnoreReadConnection()) {
+            query.setMaster(true);
+
+        } else {
+            SqlRecentWrites writes = getRecentWrites(query);
+
+            if (writes != null) {
+                query.getOptions().put(RECENT_WRITES_QUERY_OPTION, writes.copy());
+            }
+        }
+    }
+
+    @Override
+    public Connection openQueryConnection(Query<?> query) {
+        if (query != null) {
+            Connection connection = (Connection) query.getOptions().get(CONNECTION_QUERY_OPTION);
+
+            if (connection != null) {
+                return connection;
+            }
+
+            Boolean useRead = ObjectUtils.to(Boolean.class, query.getOptions().get(USE_READ_DATA_SOURCE_QUERY_OPTION));
+
+            if (useRead == null) {
                 useRead = Boolean.TRUE;
             }
 
             if (!useRead) {
                 return openConnection();
             }
+
+            // Reads that need to be fresher than the default, or that could
+            // observe the recent writes in the current thread, fall back to
+            // the primary instead of the other read data source.
+            if (readReplicaPool != null
+                    && !query.isMaster()
+                    && !isIgnoreReadConnection()) {
+
+                Long maximumLag = ObjectUtils.to(Long.class, query.getOptions().get(MAXIMUM_REPLICA_LAG_QUERY_OPTION));
+                SqlRecentWrites writes = getRecentWrites(query);
+                Connection replicaConnection = openReplicaConnection(
+                        maximumLag != null ? maximumLag : getReadReplicaMaximumLag(),
+                        writes);
+
+                if (replicaConnection != null) {
+                    return replicaConnection;
+
+                } else if (maximumLag != null || writes != null) {
+                    return openReadConnection(getDataSource());
+
+                } else {
+                    return openReadConnection(ObjectUtils.firstNonNull(getReadDataSource(), getDataSource()));
+                }
+            }
         }
 
         return super.openQueryConnection(query);
@@ -1810,6 +2825,11 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         }
     }
 
+    @SuppressWarnings("deprecation")
+    private boolean isIgnoreReadConnection() {
+        return Database.Static.isIgnoreReadConnection();
+    }
+
     @Override
     protected boolean isRecoverableError(Exception error) {
         if (error instanceof SQLException) {
@@ -1842,9 +2862,14 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 JDBC_PASSWORD_SETTING,
                 JDBC_POOL_SIZE_SETTING));
 
+        setReadReplicaMaximumLag(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(READ_REPLICA_MAXIMUM_LAG_SUB_SETTING)), -1L));
+        setReadYourWritesWindow(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(READ_YOUR_WRITES_WINDOW_SUB_SETTING)), DEFAULT_READ_YOUR_WRITES_WINDOW));
+        setReadYourWritesWaitTimeout(ObjectUtils.to(double.class, settings.get(READ_YOUR_WRITES_WAIT_TIMEOUT_SUB_SETTING)));
+
         setCatalog(ObjectUtils.to(String.class, settings.get(CATALOG_SUB_SETTING)));
 
         setMetricCatalog(ObjectUtils.to(String.class, settings.get(METRIC_CATALOG_SUB_SETTING)));
+        setMetricEventLog(ObjectUtils.to(boolean.class, settings.get(METRIC_EVENT_LOG_SUB_SETTING)));
 
         String vendorClassName = ObjectUtils.to(String.class, settings.get(VENDOR_CLASS_SETTING));
         Class<?> vendorClass = null;
@@ -1877,20 +2902,68 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
         setEnableReplicationCache(ObjectUtils.to(boolean.class, settings.get(ENABLE_REPLICATION_CACHE_SUB_SETTING)));
         setEnableFunnelCache(ObjectUtils.to(boolean.class, settings.get(ENABLE_FUNNEL_CACHE_SUB_SETTING)));
+        setEnableQueryResultCache(ObjectUtils.to(boolean.class, settings.get(ENABLE_QUERY_RESULT_CACHE_SUB_SETTING)));
+        setQueryResultCacheMaximumWeight(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(QUERY_RESULT_CACHE_WEIGHT_SUB_SETTING)), DEFAULT_QUERY_RESULT_CACHE_WEIGHT));
+        setQueryResultCacheTtl(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(QUERY_RESULT_CACHE_TTL_SUB_SETTING)), DEFAULT_QUERY_RESULT_CACHE_TTL));
+        setParallelDecodeThreshold(ObjectUtils.to(int.class, settings.get(PARALLEL_DECODE_THRESHOLD_SUB_SETTING)));
+        setParallelDecodeThreads(ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, settings.get(PARALLEL_DECODE_THREADS_SUB_SETTING)), Runtime.getRuntime().availableProcessors()));
+        setApproximateCountThreshold(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(APPROXIMATE_COUNT_THRESHOLD_SUB_SETTING)), DEFAULT_APPROXIMATE_COUNT_THRESHOLD));
+        setApproximateCountCacheTtl(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(APPROXIMATE_COUNT_CACHE_TTL_SUB_SETTING)), DEFAULT_APPROXIMATE_COUNT_CACHE_TTL));
+        setConcurrentQueryThreads(ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, settings.get(CONCURRENT_QUERY_THREADS_SUB_SETTING)), Runtime.getRuntime().availableProcessors() * 2));
         Long replicationCacheMaxSize = ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_SIZE_SUB_SETTING));
         setReplicationCacheMaximumSize(replicationCacheMaxSize != null ? replicationCacheMaxSize : DEFAULT_REPLICATION_CACHE_SIZE);
+        setReplicationCacheCompact(ObjectUtils.to(boolean.class, settings.get(REPLICATION_CACHE_COMPACT_SUB_SETTING)));
+        setReplicationCacheMaximumWeight(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_WEIGHT_SUB_SETTING)), DEFAULT_REPLICATION_CACHE_WEIGHT));
+        setReplicationCacheDecodedMaximumSize(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_DECODED_SIZE_SUB_SETTING)), DEFAULT_REPLICATION_CACHE_DECODED_SIZE));
+        setReplicationCacheOffHeap(ObjectUtils.to(boolean.class, settings.get(REPLICATION_CACHE_OFF_HEAP_SUB_SETTING)));
+        setReplicationCacheSnapshotPath(ObjectUtils.to(String.class, settings.get(REPLICATION_CACHE_SNAPSHOT_PATH_SUB_SETTING)));
         setIndexSpatial(ObjectUtils.firstNonNull(ObjectUtils.to(Boolean.class, settings.get(INDEX_SPATIAL_SUB_SETTING)), Boolean.TRUE));
+        setBatchWrites(ObjectUtils.to(boolean.class, settings.get(BATCH_WRITES_SUB_SETTING)));
+        setDiffIndexes(ObjectUtils.to(boolean.class, settings.get(DIFF_INDEXES_SUB_SETTING)));
+        setParameterizedQueries(ObjectUtils.to(boolean.class, settings.get(PARAMETERIZED_QUERIES_SUB_SETTING)));
+
+        String dataFormatName = ObjectUtils.to(String.class, settings.get(DATA_FORMAT_SUB_SETTING));
+        SqlDataFormat dataFormat = null;
+
+        if (!ObjectUtils.isBlank(dataFormatName)) {
+            dataFormat = SqlDataFormat.Static.getByName(dataFormatName);
+
+            if (dataFormat == null) {
+                Class<?> dataFormatClass = ObjectUtils.getClassByName(dataFormatName);
+
+                if (dataFormatClass == null) {
+                    throw new SettingsException(
+                            DATA_FORMAT_SUB_SETTING,
+                            String.format("Can't find [%s]!",
+                            dataFormatName));
+
+                } else if (!SqlDataFormat.class.isAssignableFrom(dataFormatClass)) {
+                    throw new SettingsException(
+                            DATA_FORMAT_SUB_SETTING,
+                            String.format("[%s] doesn't extend [%s]!",
+                            dataFormatClass, SqlDataFormat.class));
+                }
+
+                dataFormat = (SqlDataFormat) TypeDefinition.getInstance(dataFormatClass).newInstance();
+            }
+        }
+
+        setDataFormat(dataFormat);
 
         if (isEnableReplicationCache()
                 && vendor instanceof SqlVendor.MySQL
                 && (mysqlBinaryLogReader == null
                 || !mysqlBinaryLogReader.isRunning())) {
 
-            replicationCache = CacheBuilder.newBuilder().maximumSize(getReplicationCacheMaximumSize()).build();
+            replicationCache = createReplicationCache();
 
             try {
                 LOGGER.info("Starting MySQL binary log reader");
-                mysqlBinaryLogReader = new MySQLBinaryLogReader(this, replicationCache, ObjectUtils.firstNonNull(getReadDataSource(), getDataSource()));
+                DataSource binaryLogDataSource = ObjectUtils.firstNonNull(getReadDataSource(), getDataSource());
+                MySQLBinaryLogReader reader = new MySQLBinaryLogReader(this, replicationCache, binaryLogDataSource);
+
+                loadReplicationCacheSnapshot(reader, binaryLogDataSource);
+                mysqlBinaryLogReader = reader;
                 mysqlBinaryLogReader.start();
 
             } catch (IllegalArgumentException error) {
@@ -1899,11 +2972,106 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             }
         }
 
+        if (isEnableQueryResultCache() && isEnableReplicationCache()) {
+            queryResultCache = new SqlQueryResultCache(getQueryResultCacheMaximumWeight(), getQueryResultCacheTtl());
+
+        } else {
+            queryResultCache = null;
+        }
+
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdown();
+        }
+
+        decodeExecutor = getParallelDecodeThreshold() > 0 && getParallelDecodeThreads() > 1
+                ? createExecutor("Decoder", getParallelDecodeThreads())
+                : null;
+
+        if (concurrentQueryExecutor != null) {
+            concurrentQueryExecutor.shutdown();
+        }
+
+        concurrentQueryExecutor = getConcurrentQueryThreads() > 1
+                ? createExecutor("Concurrent Query", getConcurrentQueryThreads())
+                : null;
+
+        if (readReplicaPool != null) {
+            readReplicaPool.close();
+        }
+
+        readReplicaPool = createReadReplicaPool(settings);
+
+        approximateCounts = CacheBuilder.newBuilder()
+                .maximumSize(APPROXIMATE_COUNT_CACHE_SIZE)
+                .expireAfterWrite(getApproximateCountCacheTtl(), TimeUnit.SECONDS)
+                .build();
+
         if (isEnableFunnelCache()) {
             funnelCache = new FunnelCache<SqlDatabase>(this, settings);
         }
     }
 
+    // Creates the read replicas using the same settings as the primary
+    // data source, e.g. readReplicas/replica1/jdbcUrl.
+    private SqlReadReplicaPool createReadReplicaPool(Map<String, Object> settings) {
+        Object replicasObject = settings.get(READ_REPLICAS_SETTING);
+
+        if (!(replicasObject instanceof Map)) {
+            return null;
+        }
+
+        List<SqlReadReplicaPool.Replica> replicas = new ArrayList<SqlReadReplicaPool.Replica>();
+
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) replicasObject).entrySet()) {
+            Object value = entry.getValue();
+
+            if (!(value instanceof Map)) {
+                continue;
+            }
+
+            Map<String, Object> replicaSettings = new HashMap<String, Object>();
+
+            replicaSettings.put(PARAMETERIZED_QUERIES_SUB_SETTING, settings.get(PARAMETERIZED_QUERIES_SUB_SETTING));
+            replicaSettings.put(STATEMENT_CACHE_SIZE_SUB_SETTING, settings.get(STATEMENT_CACHE_SIZE_SUB_SETTING));
+
+            for (Map.Entry<?, ?> replicaEntry : ((Map<?, ?>) value).entrySet()) {
+                replicaSettings.put(String.valueOf(replicaEntry.getKey()), replicaEntry.getValue());
+            }
+
+            String name = String.valueOf(entry.getKey());
+            DataSource replicaDataSource = createDataSource(
+                    replicaSettings,
+                    DATA_SOURCE_SETTING,
+                    DATA_SOURCE_JNDI_NAME_SETTING,
+                    JDBC_DRIVER_CLASS_SETTING,
+                    JDBC_URL_SETTING,
+                    JDBC_USER_SETTING,
+                    JDBC_PASSWORD_SETTING,
+                    JDBC_POOL_SIZE_SETTING);
+
+            if (replicaDataSource == null) {
+                throw new SettingsException(
+                        READ_REPLICAS_SETTING + "/" + name,
+                        "No data source!");
+            }
+
+            replicas.add(new SqlReadReplicaPool.Replica(
+                    name,
+                    replicaDataSource,
+                    ObjectUtils.to(double.class, replicaSettings.get(READ_REPLICA_WEIGHT_SETTING))));
+        }
+
+        if (replicas.isEmpty()) {
+            return null;
+        }
+
+        return new SqlReadReplicaPool(
+                this,
+                replicas,
+                ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(READ_REPLICA_CHECK_INTERVAL_SUB_SETTING)), DEFAULT_READ_REPLICA_CHECK_INTERVAL),
+                ObjectUtils.to(String.class, settings.get(READ_REPLICA_LAG_QUERY_SUB_SETTING)));
+    }
+
     private static final Map<String, String> DRIVER_CLASS_NAMES; static {
         Map<String, String> m = new HashMap<String, String>();
         m.put("h2", "org.h2.Driver");
@@ -2027,11 +3195,35 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 ds.setPassword(password);
                 ds.setMaximumPoolSize(poolSize);
 
+                if (ObjectUtils.to(boolean.class, settings.get(PARAMETERIZED_QUERIES_SUB_SETTING))) {
+                    configureStatementCache(ds, url, settings);
+                }
+
                 return ds;
             }
         }
     }
 
+    // Turns on the prepared statement cache in the JDBC driver, so that the
+    // parameterized queries are only parsed and planned once per connection
+    // for each shape.
+    private void configureStatementCache(HikariDataSource ds, String url, Map<String, Object> settings) {
+        int statementCacheSize = ObjectUtils.firstNonNull(
+                ObjectUtils.to(Integer.class, settings.get(STATEMENT_CACHE_SIZE_SUB_SETTING)),
+                DEFAULT_STATEMENT_CACHE_SIZE);
+
+        if (url.startsWith("jdbc:mysql:")) {
+            ds.addDataSourceProperty("useServerPrepStmts", "true");
+            ds.addDataSourceProperty("cachePrepStmts", "true");
+            ds.addDataSourceProperty("prepStmtCacheSize", String.valueOf(statementCacheSize));
+            ds.addDataSourceProperty("prepStmtCacheSqlLimit", "65536");
+
+        } else if (url.startsWith("jdbc:postgresql:")) {
+            ds.addDataSourceProperty("prepareThreshold", "1");
+            ds.addDataSourceProperty("preparedStatementCacheQueries", String.valueOf(statementCacheSize));
+        }
+    }
+
     /** Returns the read timeout associated with the given {@code query}. */
     private int getQueryReadTimeout(Query<?> query) {
         if (query != null) {
@@ -2055,6 +3247,169 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 && mysqlBinaryLogReader.isConnected();
     }
 
+    // Only the queries whose results can be recreated exactly from the
+    // replication cache, and that only depend on the objects of the types
+    // that they read, are eligible.
+    private boolean checkQueryResultCache(Query<?> query) {
+        if (queryResultCache == null
+                || !checkReplicationCache(query)
+                || !query.getExtraSourceColumns().isEmpty()
+                || query.hasJoin()) {
+            return false;
+        }
+
+        Map<String, Object> options = query.getOptions();
+
+        if (options.get(CONNECTION_QUERY_OPTION) != null
+                || options.get(EXTRA_COLUMNS_QUERY_OPTION) != null
+                || options.get(EXTRA_JOINS_QUERY_OPTION) != null
+                || options.get(RETURN_ORIGINAL_DATA_QUERY_OPTION) != null) {
+            return false;
+        }
+
+        for (Sorter sorter : query.getSorters()) {
+            String operator = sorter.getOperator();
+
+            if (!Sorter.ASCENDING_OPERATOR.equals(operator)
+                    && !Sorter.DESCENDING_OPERATOR.equals(operator)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private List<Object> createQueryResultCacheKey(String operation, Query<?> query, long offset, int limit) {
+        Query<?> strippedQuery = query.clone();
+
+        strippedQuery.setDatabase(this);
+        strippedQuery.getOptions().remove(State.REFERENCE_RESOLVING_QUERY_OPTION);
+        return Arrays.asList(operation, strippedQuery, offset, limit);
+    }
+
+    // Returns the versions of the types that the given query can read,
+    // which must be taken before the query is executed.
+    private SqlQueryResultCache.Versions getQueryResultCacheVersions(SqlQueryResultCache cache, Query<?> query) {
+        Set<UUID> typeIds = null;
+
+        if (!query.isFromAll()) {
+            Set<ObjectType> types = query.getConcreteTypes(getEnvironment());
+
+            if (!types.isEmpty()) {
+                typeIds = new HashSet<UUID>();
+
+                for (ObjectType type : types) {
+                    typeIds.add(type.getId());
+                }
+            }
+        }
+
+        return cache.getVersions(typeIds);
+    }
+
+    // Selects the objects using the given selector, or, if possible, reads
+    // them from the replication cache using the IDs in the query result
+    // cache.
+    private <T> List<T> selectListWithQueryResultCache(String operation, Query<T> query, long offset, int limit, Supplier<List<T>> selector) {
+        SqlQueryResultCache cache = queryResultCache;
+
+        if (cache == null || !checkQueryResultCache(query)) {
+            return selector.get();
+        }
+
+        List<Object> key = createQueryResultCacheKey(operation, query, offset, limit);
+        @SuppressWarnings("unchecked")
+        List<Object> ids = (List<Object>) cache.get(key);
+
+        if (ids != null) {
+            List<T> objects = ids.isEmpty() ? null : findObjectsFromReplicationCache(ids, query);
+
+            if (objects == null) {
+                return new ArrayList<T>();
+            }
+
+            // Objects that weren't in the replication cache are added at
+            // the end, so restore the original order.
+            Map<UUID, T> objectsById = new HashMap<UUID, T>();
+
+            for (T object : objects) {
+                objectsById.put(State.getInstance(object).getId(), object);
+            }
+
+            List<T> ordered = new ArrayList<T>(objects.size());
+
+            for (Object id : ids) {
+                T object = objectsById.get(id);
+
+                if (object != null) {
+                    ordered.add(object);
+                }
+            }
+
+            return ordered;
+        }
+
+        SqlQueryResultCache.Versions versions = getQueryResultCacheVersions(cache, query);
+        List<T> objects = selector.get();
+        List<Object> newIds = new ArrayList<Object>(objects.size());
+
+        for (T object : objects) {
+            newIds.add(State.getInstance(object).getId());
+        }
+
+        cache.put(key, versions, Collections.unmodifiableList(newIds));
+        return objects;
+    }
+
+    // Returns the query result cache, or null if it's disabled.
+    SqlQueryResultCache getQueryResultCache() {
+        return queryResultCache;
+    }
+
+    /**
+     * Makes all the query results that could include the objects of the
+     * type with the given {@code typeId} stale.
+     *
+     * @param typeId If {@code null}, makes all the query results stale.
+     */
+    void invalidateQueryResults(UUID typeId) {
+        SqlQueryResultCache cache = queryResultCache;
+
+        if (cache != null) {
+            cache.invalidateType(typeId);
+        }
+    }
+
+    // Invalidates the query results for the current and the previously
+    // saved types of all the given states, and remembers them so that they
+    // can be invalidated again after the commit, since a concurrent read
+    // could cache the old rows before then.
+    private void invalidateQueryResults(List<State> states) {
+        if (queryResultCache == null) {
+            return;
+        }
+
+        Set<UUID> pending = pendingInvalidationsLocal.get();
+
+        if (pending == null) {
+            pending = new HashSet<UUID>();
+            pendingInvalidationsLocal.set(pending);
+        }
+
+        for (State state : states) {
+            UUID typeId = state.getTypeId();
+            UUID savedTypeId = state.getSavedTypeId();
+
+            invalidateQueryResults(typeId);
+            pending.add(typeId);
+
+            if (savedTypeId != null && !savedTypeId.equals(typeId)) {
+                invalidateQueryResults(savedTypeId);
+                pending.add(savedTypeId);
+            }
+        }
+    }
+
     private boolean checkFunnelCache(Query<?> query) {
         return query.isCache()
                 && !query.isReferenceOnly()
@@ -2075,19 +3430,79 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             }
         }
 
-        return selectListWithOptions(buildSelectStatement(query), query);
+        return selectListWithQueryResultCache("readAll", query, 0L, 0, () -> selectListWithOptions(buildSelectSql(query), query));
     }
 
     @Override
     public long readCount(Query<?> query) {
-        String sqlQuery = buildCountStatement(query);
+        if (ObjectUtils.to(boolean.class, query.getOptions().get(APPROXIMATE_COUNT_QUERY_OPTION))) {
+            return selectApproximateCount(query);
+        }
+
+        SqlQueryResultCache cache = queryResultCache;
+
+        if (cache == null || !checkQueryResultCache(query)) {
+            return selectCount(query);
+        }
+
+        List<Object> key = createQueryResultCacheKey("readCount", query, 0L, 0);
+        Long count = (Long) cache.get(key);
+
+        if (count == null) {
+            SqlQueryResultCache.Versions versions = getQueryResultCacheVersions(cache, query);
+
+            count = selectCount(query);
+            cache.put(key, versions, count);
+        }
+
+        return count;
+    }
+
+    // Returns the estimate from the query planner, cached by the statement,
+    // or the exact count if the estimate is too small to be useful. The
+    // exact counts aren't cached, since they're cheap and would be stale.
+    private long selectApproximateCount(Query<?> query) {
+        Cache<String, Long> counts = approximateCounts;
+        String sqlQuery = buildSelectStatement(query);
+        Long count = counts != null ? counts.getIfPresent(sqlQuery) : null;
+
+        if (count != null) {
+            return count;
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = openQueryConnection(query);
+            count = vendor.estimateCount(connection, sqlQuery);
+
+        } catch (SQLException error) {
+            LOGGER.debug("Can't estimate the count!", error);
+
+        } finally {
+            closeResources(query, connection, null, null);
+        }
+
+        if (count == null || count < getApproximateCountThreshold()) {
+            return selectCount(query);
+        }
+
+        if (counts != null) {
+            counts.put(sqlQuery, count);
+        }
+
+        return count;
+    }
+
+    private long selectCount(Query<?> query) {
+        String sqlQuery = buildCountSql(query);
         Connection connection = null;
         Statement statement = null;
         ResultSet result = null;
 
         try {
             connection = openQueryConnection(query);
-            statement = connection.createStatement();
+            statement = createQueryStatement(connection, sqlQuery);
             result = executeQueryBeforeTimeout(statement, sqlQuery, getQueryReadTimeout(query));
 
             if (result.next()) {
@@ -2109,6 +3524,12 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
     @Override
     public <T> T readFirst(Query<T> query) {
+        return readFirst(query, null);
+    }
+
+    // Reads the first object, passing all the statements that are executed
+    // to the given statementListener if it's not null.
+    private <T> T readFirst(Query<T> query, BranchStatements statementListener) {
         if (query.getSorters().isEmpty()) {
 
             Predicate predicate = query.getPredicate();
@@ -2117,11 +3538,15 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 CompoundPredicate compoundPredicate = (CompoundPredicate) predicate;
                 if (PredicateParser.OR_OPERATOR.equals(compoundPredicate.getOperator())) {
 
+                    if (statementListener == null && checkConcurrentOr(query, compoundPredicate)) {
+                        return readFirstConcurrently(query, compoundPredicate);
+                    }
+
                     for (Predicate child : compoundPredicate.getChildren()) {
                         Query<T> childQuery = query.clone();
                         childQuery.setPredicate(child);
 
-                        T first = readFirst(childQuery);
+                        T first = readFirst(childQuery, statementListener);
                         if (first != null) {
                             return first;
                         }
@@ -2143,18 +3568,134 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 UUID id = singletonIds.get(objectClass);
                 ids = id != null ? Collections.singletonList(id) : null;
 
-            } else {
-                ids = query.findIdOnlyQueryValues();
+            } else {
+                ids = query.findIdOnlyQueryValues();
+            }
+
+            if (ids != null && !ids.isEmpty()) {
+                List<T> objects = findObjectsFromReplicationCache(ids, query);
+
+                return objects == null || objects.isEmpty() ? null : objects.get(0);
+            }
+        }
+
+        return selectFirstWithOptions(buildSelectSql(query), query, statementListener);
+    }
+
+    private boolean checkConcurrentOr(Query<?> query, CompoundPredicate predicate) {
+        return concurrentQueryExecutor != null
+                && predicate.getChildren().size() > 1
+                && ObjectUtils.to(boolean.class, query.getOptions().get(CONCURRENT_OR_QUERY_OPTION))
+                && query.getOptions().get(CONNECTION_QUERY_OPTION) == null
+                && !hasPendingWrites();
+    }
+
+    // Returns true if the current thread has written anything that's not
+    // committed yet.
+    private boolean hasPendingWrites() {
+        SqlRecentWrites writes = recentWritesLocal.get();
+
+        return writes != null && writes.hasPending();
+    }
+
+    // Runs all the children of the given OR predicate at the same time, and
+    // returns the first object found in the order of the children.
+    private <T> T readFirstConcurrently(Query<T> query, CompoundPredicate predicate) {
+        ExecutorService executor = concurrentQueryExecutor;
+        List<BranchStatements> branches = new ArrayList<BranchStatements>();
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+
+        try {
+            for (Predicate child : predicate.getChildren()) {
+                Query<T> childQuery = query.clone();
+                BranchStatements branch = new BranchStatements();
+
+                // Each child is read in another thread, which may not have
+                // the same default database, or read routing.
+                childQuery.setPredicate(child);
+                childQuery.setDatabase(query.getDatabase());
+                pinReadRouting(childQuery);
+                branches.add(branch);
+                futures.add(executor.submit(() -> {
+                    try {
+                        return readFirst(childQuery, branch);
+
+                    } finally {
+                        branch.finish();
+                    }
+                }));
+            }
+
+            for (Future<T> future : futures) {
+                T first = future.get();
+
+                if (first != null) {
+                    return first;
+                }
+            }
+
+            return null;
+
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException(this, "Interrupted while reading the first object!", error);
+
+        } catch (ExecutionException error) {
+            Throwable cause = error.getCause();
+
+            throw cause instanceof RuntimeException
+                    ? (RuntimeException) cause
+                    : new DatabaseException(this, "Can't read the first object!", cause);
+
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+
+            for (BranchStatements branch : branches) {
+                branch.cancel();
+            }
+        }
+    }
+
+    /**
+     * Statements executed for one of the children of an OR predicate that
+     * are run concurrently, so that they can be cancelled once the result
+     * is known.
+     */
+    private static class BranchStatements {
+
+        private final List<Statement> statements = new ArrayList<Statement>();
+        private boolean finished;
+
+        public synchronized boolean add(Statement statement) {
+            if (finished) {
+                return false;
             }
 
-            if (ids != null && !ids.isEmpty()) {
-                List<T> objects = findObjectsFromReplicationCache(ids, query);
+            statements.add(statement);
+            return true;
+        }
 
-                return objects == null || objects.isEmpty() ? null : objects.get(0);
-            }
+        public synchronized void finish() {
+            finished = true;
+            statements.clear();
         }
 
-        return selectFirstWithOptions(buildSelectStatement(query), query);
+        public synchronized void cancel() {
+            finished = true;
+
+            for (Statement statement : statements) {
+                try {
+                    statement.cancel();
+
+                } catch (SQLException error) {
+                    // Already finished, so nothing to cancel.
+                }
+            }
+
+            statements.clear();
+        }
     }
 
     @Override
@@ -2164,10 +3705,26 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             useJdbc = Boolean.TRUE;
         }
         if (useJdbc) {
-            return selectIterableWithOptions(buildSelectStatement(query), fetchSize, query);
-        } else {
-            return new ByIdIterable<T>(query, fetchSize);
+            return selectIterableWithOptions(buildSelectSql(query), fetchSize, query);
+        }
+
+        int prefetchPages = ObjectUtils.to(int.class, query.getOptions().get(PREFETCH_PAGES_QUERY_OPTION));
+
+        // The pages are fetched in another thread, which may not have the
+        // same default database, or read routing.
+        if (prefetchPages > 0) {
+            query = query.clone();
+            query.setDatabase(query.getDatabase());
+            pinReadRouting(query);
         }
+
+        Iterable<T> iterable = !query.getSorters().isEmpty() && KeysetIterator.isSupported(query)
+                ? KeysetIterator.iterable(query, fetchSize)
+                : new ByIdIterable<T>(query, fetchSize);
+
+        return prefetchPages > 0
+                ? PrefetchingIterator.iterable(iterable, fetchSize, prefetchPages)
+                : iterable;
     }
 
     private static class ByIdIterable<T> implements Iterable<T> {
@@ -2263,14 +3820,14 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
     @Override
     public Date readLastUpdate(Query<?> query) {
-        String sqlQuery = buildLastUpdateStatement(query);
+        String sqlQuery = buildLastUpdateSql(query);
         Connection connection = null;
         Statement statement = null;
         ResultSet result = null;
 
         try {
             connection = openQueryConnection(query);
-            statement = connection.createStatement();
+            statement = createQueryStatement(connection, sqlQuery);
             result = executeQueryBeforeTimeout(statement, sqlQuery, getQueryReadTimeout(query));
 
             if (result.next()) {
@@ -2296,9 +3853,10 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         if (limit == Integer.MAX_VALUE) {
             limit --;
         }
-        List<T> objects = selectListWithOptions(
-                vendor.rewriteQueryWithLimitClause(buildSelectStatement(query), limit + 1, offset),
-                query);
+        int selectLimit = limit + 1;
+        List<T> objects = selectListWithQueryResultCache("readPartial", query, offset, selectLimit, () -> selectListWithOptions(
+                vendor.rewriteQueryWithLimitClause(buildSelectSql(query), selectLimit, offset),
+                query));
 
         int size = objects.size();
         if (size <= limit) {
@@ -2313,7 +3871,9 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 @Override
                 public long getCount() {
                     if (count == null) {
-                        count = readCount(query);
+                        // The approximate count may be lower than the
+                        // number of objects already seen.
+                        count = Math.max(readCount(query), offset + selectLimit);
                     }
                     return count;
                 }
@@ -2336,14 +3896,14 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         }
 
         List<Grouping<T>> groupings = new ArrayList<Grouping<T>>();
-        String sqlQuery = buildGroupStatement(query, fields);
+        String sqlQuery = buildGroupSql(query, fields);
         Connection connection = null;
         Statement statement = null;
         ResultSet result = null;
 
         try {
             connection = openQueryConnection(query);
-            statement = connection.createStatement();
+            statement = createQueryStatement(connection, sqlQuery);
             result = executeQueryBeforeTimeout(statement, sqlQuery, getQueryReadTimeout(query));
 
             int fieldsLength = fields.length;
@@ -2461,13 +4021,13 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             if (sumField.isMetric()) {
                 if (!metricSums.containsKey(field)) {
 
-                    String sqlQuery = buildGroupedMetricStatement(query, field, fields);
+                    String sqlQuery = buildGroupedMetricSql(query, field, fields);
                     Connection connection = null;
                     Statement statement = null;
                     ResultSet result = null;
                     try {
                         connection = openQueryConnection(query);
-                        statement = connection.createStatement();
+                        statement = createQueryStatement(connection, sqlQuery);
                         result = executeQueryBeforeTimeout(statement, sqlQuery, getQueryReadTimeout(query));
 
                         if (this.getKeys().size() == 0) {
@@ -2551,6 +4111,13 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
      */
     public void invalidateReplicationCache() {
         replicationCache.invalidateAll();
+        invalidateQueryResults((UUID) null);
+
+        Cache<byte[], Map<String, Object>> decodedCache = replicationDecodedCache;
+
+        if (decodedCache != null) {
+            decodedCache.invalidateAll();
+        }
     }
 
     @Override
@@ -2561,20 +4128,57 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
     @Override
     protected void commitTransaction(Connection connection, boolean isImmediate) throws SQLException {
         connection.commit();
+
+        Set<UUID> pending = pendingInvalidationsLocal.get();
+
+        if (pending != null) {
+            pendingInvalidationsLocal.remove();
+
+            for (UUID typeId : pending) {
+                invalidateQueryResults(typeId);
+            }
+        }
+
+        SqlRecentWrites writes = recentWritesLocal.get();
+
+        if (writes != null) {
+            String position = null;
+
+            if (getReadYourWritesWaitTimeout() > 0.0) {
+                try {
+                    position = getVendor().getReplicationPosition(connection);
+
+                } catch (SQLException error) {
+                    LOGGER.debug("Can't read the replication position!", error);
+                }
+            }
+
+            writes.commit(position, getReadYourWritesWindow() * 1000L);
+        }
     }
 
     @Override
     protected void rollbackTransaction(Connection connection, boolean isImmediate) throws SQLException {
+        SqlRecentWrites writes = recentWritesLocal.get();
+
+        if (writes != null) {
+            writes.rollback();
+        }
+
         connection.rollback();
     }
 
     @Override
     protected void endTransaction(Connection connection, boolean isImmediate) throws SQLException {
+        pendingInvalidationsLocal.remove();
         connection.setAutoCommit(true);
     }
 
     @Override
     protected void doSaves(Connection connection, boolean isImmediate, List<State> states) throws SQLException {
+        invalidateQueryResults(states);
+        addRecentWrites(states);
+
         List<State> indexStates = null;
         for (State state1 : states) {
             if (Boolean.TRUE.equals(state1.getExtra(SKIP_INDEX_STATE_EXTRA))) {
@@ -2592,13 +4196,29 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             indexStates = states;
         }
 
-        SqlIndex.Static.deleteByStates(this, connection, indexStates);
-        Map<State, String> inRowIndexes = SqlIndex.Static.insertByStates(this, connection, indexStates);
+        Map<State, String> inRowIndexes;
+
+        if (isDiffIndexes()) {
+            Map<State, Map<String, ObjectIndex>> changedIndexes = findChangedIndexes(connection, indexStates);
+
+            SqlIndex.Static.deleteByStates(this, connection, indexStates, changedIndexes);
+            inRowIndexes = SqlIndex.Static.insertByStates(this, connection, indexStates, changedIndexes);
+
+        } else {
+            SqlIndex.Static.deleteByStates(this, connection, indexStates);
+            inRowIndexes = SqlIndex.Static.insertByStates(this, connection, indexStates);
+        }
+
         boolean hasInRowIndex = hasInRowIndex();
         SqlVendor vendor = getVendor();
         double now = System.currentTimeMillis() / 1000.0;
+        List<State> rowStates = states;
 
-        for (State state : states) {
+        if (isBatchWrites() && states.size() > 1) {
+            rowStates = saveInBatches(connection, states, inRowIndexes, hasInRowIndex, now);
+        }
+
+        for (State state : rowStates) {
             boolean isNew = state.isNew();
             boolean saveInRowIndex = hasInRowIndex && !Boolean.TRUE.equals(state.getExtra(SKIP_INDEX_STATE_EXTRA));
             UUID id = state.getId();
@@ -2615,36 +4235,9 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                         }
 
                         List<Object> parameters = new ArrayList<Object>();
-                        StringBuilder insertBuilder = new StringBuilder();
-
-                        insertBuilder.append("INSERT INTO ");
-                        vendor.appendIdentifier(insertBuilder, RECORD_TABLE);
-                        insertBuilder.append(" (");
-                        vendor.appendIdentifier(insertBuilder, ID_COLUMN);
-                        insertBuilder.append(',');
-                        vendor.appendIdentifier(insertBuilder, TYPE_ID_COLUMN);
-                        insertBuilder.append(',');
-                        vendor.appendIdentifier(insertBuilder, DATA_COLUMN);
-
-                        if (saveInRowIndex) {
-                            insertBuilder.append(',');
-                            vendor.appendIdentifier(insertBuilder, IN_ROW_INDEX_COLUMN);
-                        }
-
-                        insertBuilder.append(") VALUES (");
-                        vendor.appendBindValue(insertBuilder, id, parameters);
-                        insertBuilder.append(',');
-                        vendor.appendBindValue(insertBuilder, typeId, parameters);
-                        insertBuilder.append(',');
-                        vendor.appendBindValue(insertBuilder, dataBytes, parameters);
-
-                        if (saveInRowIndex) {
-                            insertBuilder.append(',');
-                            vendor.appendBindValue(insertBuilder, inRowIndexBytes, parameters);
-                        }
+                        String insertSql = buildRecordInsertStatement(id, typeId, dataBytes, saveInRowIndex ? inRowIndexBytes : null, parameters);
 
-                        insertBuilder.append(')');
-                        Static.executeUpdateWithList(vendor, connection, insertBuilder.toString(), parameters);
+                        Static.executeUpdateWithList(vendor, connection, insertSql, parameters);
 
                     } catch (SQLException ex) {
                         if (Static.isIntegrityConstraintViolation(ex)) {
@@ -2663,32 +4256,9 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                         }
 
                         List<Object> parameters = new ArrayList<Object>();
-                        StringBuilder updateBuilder = new StringBuilder();
-
-                        updateBuilder.append("UPDATE ");
-                        vendor.appendIdentifier(updateBuilder, RECORD_TABLE);
-                        updateBuilder.append(" SET ");
-                        vendor.appendIdentifier(updateBuilder, TYPE_ID_COLUMN);
-                        updateBuilder.append('=');
-                        vendor.appendBindValue(updateBuilder, typeId, parameters);
-                        updateBuilder.append(',');
-
-                        if (saveInRowIndex) {
-                            vendor.appendIdentifier(updateBuilder, IN_ROW_INDEX_COLUMN);
-                            updateBuilder.append('=');
-                            vendor.appendBindValue(updateBuilder, inRowIndexBytes, parameters);
-                            updateBuilder.append(',');
-                        }
+                        String updateSql = buildRecordUpdateStatement(id, typeId, dataBytes, saveInRowIndex ? inRowIndexBytes : null, parameters);
 
-                        vendor.appendIdentifier(updateBuilder, DATA_COLUMN);
-                        updateBuilder.append('=');
-                        vendor.appendBindValue(updateBuilder, dataBytes, parameters);
-                        updateBuilder.append(" WHERE ");
-                        vendor.appendIdentifier(updateBuilder, ID_COLUMN);
-                        updateBuilder.append('=');
-                        vendor.appendBindValue(updateBuilder, id, parameters);
-
-                        if (Static.executeUpdateWithList(vendor, connection, updateBuilder.toString(), parameters) < 1) {
+                        if (Static.executeUpdateWithList(vendor, connection, updateSql, parameters) < 1) {
                             isNew = true;
                             continue;
                         }
@@ -2771,26 +4341,10 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
             while (true) {
                 if (isNew) {
                     List<Object> parameters = new ArrayList<Object>();
-                    StringBuilder insertBuilder = new StringBuilder();
-
-                    insertBuilder.append("INSERT INTO ");
-                    vendor.appendIdentifier(insertBuilder, RECORD_UPDATE_TABLE);
-                    insertBuilder.append(" (");
-                    vendor.appendIdentifier(insertBuilder, ID_COLUMN);
-                    insertBuilder.append(',');
-                    vendor.appendIdentifier(insertBuilder, TYPE_ID_COLUMN);
-                    insertBuilder.append(',');
-                    vendor.appendIdentifier(insertBuilder, UPDATE_DATE_COLUMN);
-                    insertBuilder.append(") VALUES (");
-                    vendor.appendBindValue(insertBuilder, id, parameters);
-                    insertBuilder.append(',');
-                    vendor.appendBindValue(insertBuilder, typeId, parameters);
-                    insertBuilder.append(',');
-                    vendor.appendBindValue(insertBuilder, now, parameters);
-                    insertBuilder.append(')');
+                    String insertSql = buildRecordUpdateInsertStatement(id, typeId, now, parameters);
 
                     try {
-                        Static.executeUpdateWithList(vendor, connection, insertBuilder.toString(), parameters);
+                        Static.executeUpdateWithList(vendor, connection, insertSql, parameters);
 
                     } catch (SQLException ex) {
                         if (Static.isIntegrityConstraintViolation(ex)) {
@@ -2803,24 +4357,9 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
                 } else {
                     List<Object> parameters = new ArrayList<Object>();
-                    StringBuilder updateBuilder = new StringBuilder();
-
-                    updateBuilder.append("UPDATE ");
-                    vendor.appendIdentifier(updateBuilder, RECORD_UPDATE_TABLE);
-                    updateBuilder.append(" SET ");
-                    vendor.appendIdentifier(updateBuilder, TYPE_ID_COLUMN);
-                    updateBuilder.append('=');
-                    vendor.appendBindValue(updateBuilder, typeId, parameters);
-                    updateBuilder.append(',');
-                    vendor.appendIdentifier(updateBuilder, UPDATE_DATE_COLUMN);
-                    updateBuilder.append('=');
-                    vendor.appendBindValue(updateBuilder, now, parameters);
-                    updateBuilder.append(" WHERE ");
-                    vendor.appendIdentifier(updateBuilder, ID_COLUMN);
-                    updateBuilder.append('=');
-                    vendor.appendBindValue(updateBuilder, id, parameters);
-
-                    if (Static.executeUpdateWithList(vendor, connection, updateBuilder.toString(), parameters) < 1) {
+                    String updateSql = buildRecordUpdateUpdateStatement(id, typeId, now, parameters);
+
+                    if (Static.executeUpdateWithList(vendor, connection, updateSql, parameters) < 1) {
                         isNew = true;
                         continue;
                     }
@@ -2831,8 +4370,391 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         }
     }
 
+    /**
+     * Finds the indexes that changed in the given {@code states} by
+     * comparing them against the data currently saved in the
+     * {@link #RECORD_TABLE}. The rows are read and locked within the write
+     * transaction, so that the comparison can't race with other writers.
+     * The states that aren't saved yet, or whose types changed, aren't
+     * included in the returned map and should have all their index rows
+     * rewritten.
+     */
+    private Map<State, Map<String, ObjectIndex>> findChangedIndexes(Connection connection, List<State> states) throws SQLException {
+        Map<State, Map<String, ObjectIndex>> changedIndexes = new HashMap<State, Map<String, ObjectIndex>>();
+        Map<UUID, State> existingStates = new LinkedHashMap<UUID, State>();
+
+        for (State state : states) {
+            if (!state.isNew()) {
+                existingStates.put(state.getId(), state);
+            }
+        }
+
+        if (existingStates.isEmpty()) {
+            return changedIndexes;
+        }
+
+        List<UUID> ids = new ArrayList<UUID>(existingStates.keySet());
+
+        for (int start = 0, size = ids.size(); start < size; start += MAXIMUM_LOCK_IDS) {
+            findChangedIndexes(connection, ids.subList(start, Math.min(size, start + MAXIMUM_LOCK_IDS)), existingStates, changedIndexes);
+        }
+
+        return changedIndexes;
+    }
+
+    // Reads and locks the rows of the given chunk of ids, and puts the
+    // changed indexes of their states into the given map.
+    private void findChangedIndexes(
+            Connection connection,
+            List<UUID> ids,
+            Map<UUID, State> existingStates,
+            Map<State, Map<String, ObjectIndex>> changedIndexes)
+            throws SQLException {
+
+        SqlVendor vendor = getVendor();
+        StringBuilder selectBuilder = new StringBuilder();
+
+        selectBuilder.append("SELECT ");
+        vendor.appendIdentifier(selectBuilder, ID_COLUMN);
+        selectBuilder.append(", ");
+        vendor.appendIdentifier(selectBuilder, TYPE_ID_COLUMN);
+        selectBuilder.append(", ");
+        vendor.appendIdentifier(selectBuilder, DATA_COLUMN);
+        selectBuilder.append(" FROM ");
+        vendor.appendIdentifier(selectBuilder, RECORD_TABLE);
+        selectBuilder.append(" WHERE ");
+        vendor.appendIdentifier(selectBuilder, ID_COLUMN);
+        selectBuilder.append(" IN (");
+
+        for (UUID id : ids) {
+            vendor.appendUuid(selectBuilder, id);
+            selectBuilder.append(", ");
+        }
+
+        selectBuilder.setLength(selectBuilder.length() - 2);
+        selectBuilder.append(") FOR UPDATE");
+
+        String selectSql = selectBuilder.toString();
+        DatabaseEnvironment environment = getEnvironment();
+        Statement statement = null;
+        ResultSet result = null;
+
+        try {
+            statement = connection.createStatement();
+            result = statement.executeQuery(selectSql);
+
+            while (result.next()) {
+                UUID id = ObjectUtils.to(UUID.class, result.getObject(1));
+                State state = existingStates.get(id);
+
+                if (state == null
+                        || !ObjectUtils.equals(state.getVisibilityAwareTypeId(), ObjectUtils.to(UUID.class, result.getObject(2)))) {
+                    continue;
+                }
+
+                Object original = environment.createObject(state.getTypeId(), id);
+
+                if (original == null) {
+                    continue;
+                }
+
+                State originalState = State.getInstance(original);
+
+                originalState.setDatabase(state.getDatabase());
+                originalState.setResolveToReferenceOnly(true);
+                originalState.setValues(unserializeData(result.getBytes(3)));
+                changedIndexes.put(state, SqlIndex.Static.getChangedIndexes(state, originalState));
+            }
+
+        } catch (SQLException ex) {
+            throw createQueryException(ex, selectSql, null);
+
+        } finally {
+            closeResources(null, null, statement, result);
+        }
+    }
+
+    /**
+     * Saves the given {@code states} using JDBC batches grouped by the
+     * shape of their statements, and returns the states that still need
+     * to be saved one at a time. Those are the states with atomic
+     * operations, and the states in a batch that couldn't be completed
+     * because of an integrity constraint violation or a missing row.
+     */
+    private List<State> saveInBatches(
+            Connection connection,
+            List<State> states,
+            Map<State, String> inRowIndexes,
+            boolean hasInRowIndex,
+            double now)
+            throws SQLException {
+
+        List<State> rowStates = new ArrayList<State>();
+        Map<Boolean, List<State>> insertStatesByShape = new HashMap<Boolean, List<State>>();
+        Map<Boolean, List<State>> updateStatesByShape = new HashMap<Boolean, List<State>>();
+
+        for (State state : states) {
+            if (!state.getAtomicOperations().isEmpty()) {
+                rowStates.add(state);
+                continue;
+            }
+
+            boolean saveInRowIndex = hasInRowIndex && !Boolean.TRUE.equals(state.getExtra(SKIP_INDEX_STATE_EXTRA));
+
+            (state.isNew() ? insertStatesByShape : updateStatesByShape)
+                    .computeIfAbsent(saveInRowIndex, k -> new ArrayList<State>())
+                    .add(state);
+        }
+
+        for (Map.Entry<Boolean, List<State>> entry : insertStatesByShape.entrySet()) {
+            List<State> shapeStates = entry.getValue();
+            String insertSql = null;
+            List<List<Object>> insertParameters = new ArrayList<List<Object>>();
+            String updateInsertSql = null;
+            List<List<Object>> updateInsertParameters = new ArrayList<List<Object>>();
+
+            for (State state : shapeStates) {
+                List<Object> parameters = new ArrayList<Object>();
+                insertSql = buildRecordInsertStatement(
+                        state.getId(),
+                        state.getVisibilityAwareTypeId(),
+                        serializeState(state),
+                        entry.getKey() ? getInRowIndexBytes(inRowIndexes, state) : null,
+                        parameters);
+                insertParameters.add(parameters);
+
+                parameters = new ArrayList<Object>();
+                updateInsertSql = buildRecordUpdateInsertStatement(state.getId(), state.getVisibilityAwareTypeId(), now, parameters);
+                updateInsertParameters.add(parameters);
+            }
+
+            if (!executeSaveBatch(connection, insertSql, insertParameters)
+                    || !executeSaveBatch(connection, updateInsertSql, updateInsertParameters)) {
+                rowStates.addAll(shapeStates);
+            }
+        }
+
+        for (Map.Entry<Boolean, List<State>> entry : updateStatesByShape.entrySet()) {
+            List<State> shapeStates = entry.getValue();
+            String updateSql = null;
+            List<List<Object>> updateParameters = new ArrayList<List<Object>>();
+
+            for (State state : shapeStates) {
+                List<Object> parameters = new ArrayList<Object>();
+                updateSql = buildRecordUpdateStatement(
+                        state.getId(),
+                        state.getVisibilityAwareTypeId(),
+                        serializeState(state),
+                        entry.getKey() ? getInRowIndexBytes(inRowIndexes, state) : null,
+                        parameters);
+                updateParameters.add(parameters);
+            }
+
+            int[] affected = Static.executeBatchUpdate(connection, updateSql, updateParameters);
+            List<State> updatedStates = new ArrayList<State>();
+            String updateUpdateSql = null;
+            List<List<Object>> updateUpdateParameters = new ArrayList<List<Object>>();
+
+            // Rows that didn't exist or whose counts weren't reported by
+            // the driver are retried one at a time, which is always safe
+            // since the updates are idempotent.
+            for (int i = 0, size = shapeStates.size(); i < size; ++ i) {
+                State state = shapeStates.get(i);
+
+                if (i < affected.length && affected[i] > 0) {
+                    List<Object> parameters = new ArrayList<Object>();
+                    updateUpdateSql = buildRecordUpdateUpdateStatement(state.getId(), state.getVisibilityAwareTypeId(), now, parameters);
+                    updateUpdateParameters.add(parameters);
+                    updatedStates.add(state);
+
+                } else {
+                    rowStates.add(state);
+                }
+            }
+
+            if (!updatedStates.isEmpty()) {
+                affected = Static.executeBatchUpdate(connection, updateUpdateSql, updateUpdateParameters);
+
+                for (int i = 0, size = updatedStates.size(); i < size; ++ i) {
+                    if (i >= affected.length || affected[i] < 1) {
+                        rowStates.add(updatedStates.get(i));
+                    }
+                }
+            }
+        }
+
+        return rowStates;
+    }
+
+    // Executes the given batch of inserts within a savepoint if the vendor
+    // needs one, and returns false if any of the rows violated an
+    // integrity constraint.
+    private boolean executeSaveBatch(Connection connection, String sqlQuery, List<List<Object>> parameters) throws SQLException {
+        SqlVendor vendor = getVendor();
+        Savepoint savepoint = vendor.useSavepoint() && !connection.getAutoCommit() ? connection.setSavepoint() : null;
+
+        try {
+            Static.executeBatch(connection, sqlQuery, parameters, false);
+            return true;
+
+        } catch (SQLException error) {
+            if (savepoint != null) {
+                try {
+                    connection.rollback(savepoint);
+                    savepoint = null;
+
+                } catch (SQLException rollbackError) {
+                    // Safe to ignore?
+                }
+            }
+
+            SQLException next = error.getNextException();
+
+            if (Static.isIntegrityConstraintViolation(error)
+                    || (next != null && Static.isIntegrityConstraintViolation(next))) {
+                return false;
+
+            } else {
+                if (error instanceof BatchUpdateException) {
+                    Static.logBatchUpdateException((BatchUpdateException) error, sqlQuery, parameters);
+                }
+
+                throw error;
+            }
+
+        } finally {
+            if (savepoint != null) {
+                try {
+                    connection.releaseSavepoint(savepoint);
+
+                } catch (SQLException error) {
+                    // Safe to ignore?
+                }
+            }
+        }
+    }
+
+    private static byte[] getInRowIndexBytes(Map<State, String> inRowIndexes, State state) {
+        String inRowIndex = inRowIndexes.get(state);
+        return inRowIndex != null ? inRowIndex.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    // Builds the INSERT statement for a row in the Record table.
+    // inRowIndexBytes is null when the in-row index shouldn't be written.
+    private String buildRecordInsertStatement(UUID id, UUID typeId, byte[] dataBytes, byte[] inRowIndexBytes, List<Object> parameters) {
+        SqlVendor vendor = getVendor();
+        StringBuilder insertBuilder = new StringBuilder();
+
+        insertBuilder.append("INSERT INTO ");
+        vendor.appendIdentifier(insertBuilder, RECORD_TABLE);
+        insertBuilder.append(" (");
+        vendor.appendIdentifier(insertBuilder, ID_COLUMN);
+        insertBuilder.append(',');
+        vendor.appendIdentifier(insertBuilder, TYPE_ID_COLUMN);
+        insertBuilder.append(',');
+        vendor.appendIdentifier(insertBuilder, DATA_COLUMN);
+
+        if (inRowIndexBytes != null) {
+            insertBuilder.append(',');
+            vendor.appendIdentifier(insertBuilder, IN_ROW_INDEX_COLUMN);
+        }
+
+        insertBuilder.append(") VALUES (");
+        vendor.appendBindValue(insertBuilder, id, parameters);
+        insertBuilder.append(',');
+        vendor.appendBindValue(insertBuilder, typeId, parameters);
+        insertBuilder.append(',');
+        vendor.appendBindValue(insertBuilder, dataBytes, parameters);
+
+        if (inRowIndexBytes != null) {
+            insertBuilder.append(',');
+            vendor.appendBindValue(insertBuilder, inRowIndexBytes, parameters);
+        }
+
+        insertBuilder.append(')');
+        return insertBuilder.toString();
+    }
+
+    // Builds the UPDATE statement for a row in the Record table.
+    // inRowIndexBytes is null when the in-row index shouldn't be written.
+    private String buildRecordUpdateStatement(UUID id, UUID typeId, byte[] dataBytes, byte[] inRowIndexBytes, List<Object> parameters) {
+        SqlVendor vendor = getVendor();
+        StringBuilder updateBuilder = new StringBuilder();
+
+        updateBuilder.append("UPDATE ");
+        vendor.appendIdentifier(updateBuilder, RECORD_TABLE);
+        updateBuilder.append(" SET ");
+        vendor.appendIdentifier(updateBuilder, TYPE_ID_COLUMN);
+        updateBuilder.append('=');
+        vendor.appendBindValue(updateBuilder, typeId, parameters);
+        updateBuilder.append(',');
+
+        if (inRowIndexBytes != null) {
+            vendor.appendIdentifier(updateBuilder, IN_ROW_INDEX_COLUMN);
+            updateBuilder.append('=');
+            vendor.appendBindValue(updateBuilder, inRowIndexBytes, parameters);
+            updateBuilder.append(',');
+        }
+
+        vendor.appendIdentifier(updateBuilder, DATA_COLUMN);
+        updateBuilder.append('=');
+        vendor.appendBindValue(updateBuilder, dataBytes, parameters);
+        updateBuilder.append(" WHERE ");
+        vendor.appendIdentifier(updateBuilder, ID_COLUMN);
+        updateBuilder.append('=');
+        vendor.appendBindValue(updateBuilder, id, parameters);
+        return updateBuilder.toString();
+    }
+
+    // Builds the INSERT statement for a row in the RecordUpdate table.
+    private String buildRecordUpdateInsertStatement(UUID id, UUID typeId, double now, List<Object> parameters) {
+        SqlVendor vendor = getVendor();
+        StringBuilder insertBuilder = new StringBuilder();
+
+        insertBuilder.append("INSERT INTO ");
+        vendor.appendIdentifier(insertBuilder, RECORD_UPDATE_TABLE);
+        insertBuilder.append(" (");
+        vendor.appendIdentifier(insertBuilder, ID_COLUMN);
+        insertBuilder.append(',');
+        vendor.appendIdentifier(insertBuilder, TYPE_ID_COLUMN);
+        insertBuilder.append(',');
+        vendor.appendIdentifier(insertBuilder, UPDATE_DATE_COLUMN);
+        insertBuilder.append(") VALUES (");
+        vendor.appendBindValue(insertBuilder, id, parameters);
+        insertBuilder.append(',');
+        vendor.appendBindValue(insertBuilder, typeId, parameters);
+        insertBuilder.append(',');
+        vendor.appendBindValue(insertBuilder, now, parameters);
+        insertBuilder.append(')');
+        return insertBuilder.toString();
+    }
+
+    // Builds the UPDATE statement for a row in the RecordUpdate table.
+    private String buildRecordUpdateUpdateStatement(UUID id, UUID typeId, double now, List<Object> parameters) {
+        SqlVendor vendor = getVendor();
+        StringBuilder updateBuilder = new StringBuilder();
+
+        updateBuilder.append("UPDATE ");
+        vendor.appendIdentifier(updateBuilder, RECORD_UPDATE_TABLE);
+        updateBuilder.append(" SET ");
+        vendor.appendIdentifier(updateBuilder, TYPE_ID_COLUMN);
+        updateBuilder.append('=');
+        vendor.appendBindValue(updateBuilder, typeId, parameters);
+        updateBuilder.append(',');
+        vendor.appendIdentifier(updateBuilder, UPDATE_DATE_COLUMN);
+        updateBuilder.append('=');
+        vendor.appendBindValue(updateBuilder, now, parameters);
+        updateBuilder.append(" WHERE ");
+        vendor.appendIdentifier(updateBuilder, ID_COLUMN);
+        updateBuilder.append('=');
+        vendor.appendBindValue(updateBuilder, id, parameters);
+        return updateBuilder.toString();
+    }
+
     @Override
     protected void doIndexes(Connection connection, boolean isImmediate, List<State> states) throws SQLException {
+        invalidateQueryResults(states);
+        addRecentWrites(states);
         SqlIndex.Static.deleteByStates(this, connection, states);
         Map<State, String> inRowIndexes = SqlIndex.Static.insertByStates(this, connection, states);
 
@@ -2841,19 +4763,34 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
         }
 
         SqlVendor vendor = getVendor();
+        String updateSql = null;
+        List<List<Object>> updateParameters = new ArrayList<List<Object>>();
+
         for (Map.Entry<State, String> entry : inRowIndexes.entrySet()) {
+            List<Object> parameters = new ArrayList<Object>();
             StringBuilder updateBuilder = new StringBuilder();
             updateBuilder.append("UPDATE ");
             vendor.appendIdentifier(updateBuilder, RECORD_TABLE);
             updateBuilder.append(" SET ");
             vendor.appendIdentifier(updateBuilder, IN_ROW_INDEX_COLUMN);
             updateBuilder.append('=');
-            vendor.appendValue(updateBuilder, entry.getValue());
+            vendor.appendBindValue(updateBuilder, entry.getValue(), parameters);
             updateBuilder.append(" WHERE ");
             vendor.appendIdentifier(updateBuilder, ID_COLUMN);
             updateBuilder.append('=');
-            vendor.appendValue(updateBuilder, entry.getKey().getId());
-            Static.executeUpdateWithArray(vendor, connection, updateBuilder.toString());
+            vendor.appendBindValue(updateBuilder, entry.getKey().getId(), parameters);
+            updateSql = updateBuilder.toString();
+            updateParameters.add(parameters);
+        }
+
+        if (updateSql != null) {
+            try {
+                Static.executeBatchUpdate(connection, updateSql, updateParameters);
+
+            } catch (BatchUpdateException error) {
+                Static.logBatchUpdateException(error, updateSql, updateParameters);
+                throw error;
+            }
         }
     }
 
@@ -2885,6 +4822,9 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
     @Override
     protected void doDeletes(Connection connection, boolean isImmediate, List<State> states) throws SQLException {
+        invalidateQueryResults(states);
+        addRecentWrites(states);
+
         SqlVendor vendor = getVendor();
 
         StringBuilder whereBuilder = new StringBuilder();
@@ -3112,13 +5052,13 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
 
             try {
                 connection = db.openQueryConnection(query);
-                statement = connection.createStatement();
+                statement = db.createQueryStatement(connection, sqlQuery);
                 result = db.executeQueryBeforeTimeout(statement, sqlQuery, timeout);
                 while (result.next()) {
                     UUID id = ObjectUtils.to(UUID.class, result.getObject(1));
                     UUID typeId = ObjectUtils.to(UUID.class, result.getObject(2));
                     byte[] data = result.getBytes(3);
-                    Map<String, Object> dataJson = unserializeData(data);
+                    Map<String, Object> dataJson = SharedData.freeze(unserializeData(data));
                     Map<String, Object> extras = null;
                     if (Boolean.TRUE.equals(ObjectUtils.to(Boolean.class, query.getOptions().get(RETURN_ORIGINAL_DATA_QUERY_OPTION)))) {
                         extras = new CompactMap<String, Object>();
@@ -3260,6 +5200,17 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 String sqlQuery,
                 List<? extends List<?>> parameters) throws SQLException {
 
+            return executeBatch(connection, sqlQuery, parameters, true);
+        }
+
+        // Executes the given batch update, optionally without logging any
+        // errors so that the caller can decide whether they're expected.
+        static int[] executeBatch(
+                Connection connection,
+                String sqlQuery,
+                List<? extends List<?>> parameters,
+                boolean logErrors) throws SQLException {
+
             PreparedStatement prepared = connection.prepareStatement(sqlQuery);
             List<?> currentRow = null;
 
@@ -3297,7 +5248,9 @@ public class SqlDatabase extends AbstractDatabase<Connection> implements MetricA
                 }
 
             } catch (SQLException error) {
-                logUpdateException(sqlQuery, currentRow);
+                if (logErrors) {
+                    logUpdateException(sqlQuery, currentRow);
+                }
                 throw error;
 
             } finally {
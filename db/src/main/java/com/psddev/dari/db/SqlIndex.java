@@ -1,5 +1,7 @@
 package com.psddev.dari.db;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -11,6 +13,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -358,6 +362,15 @@ public enum SqlIndex {
                 Connection connection,
                 ObjectIndex index) throws SQLException {
 
+            return prepareInsertPrefix(database, index) + prepareInsertRow(database, index);
+        }
+
+        /**
+         * Returns the INSERT statement up to and including the
+         * {@code VALUES} keyword, which can be followed by one or more
+         * comma separated {@linkplain #prepareInsertRow rows}.
+         */
+        protected String prepareInsertPrefix(SqlDatabase database, ObjectIndex index) {
             SqlVendor vendor = database.getVendor();
             int fieldsSize = index.getFields().size();
             StringBuilder insertBuilder = new StringBuilder();
@@ -379,6 +392,19 @@ public enum SqlIndex {
             }
 
             insertBuilder.append(") VALUES");
+
+            return insertBuilder.toString();
+        }
+
+        /**
+         * Returns the placeholders for a single row of the INSERT
+         * statement, starting with a space.
+         */
+        protected String prepareInsertRow(SqlDatabase database, ObjectIndex index) {
+            SqlVendor vendor = database.getVendor();
+            int fieldsSize = index.getFields().size();
+            StringBuilder insertBuilder = new StringBuilder();
+
             insertBuilder.append(" (?, ?, ");
             if (getTypeIdField(database, index) != null) {
                 insertBuilder.append("?, ");
@@ -668,6 +694,12 @@ public enum SqlIndex {
     /** {@linkplain SqlIndex} utility methods. */
     public static final class Static {
 
+        /**
+         * Maximum number of bind parameters in a single multi-row INSERT
+         * statement, which keeps it well below the vendor limits.
+         */
+        private static final int MAXIMUM_INSERT_PARAMETERS = 10000;
+
         /**
          * Returns the instance that should be used to index values
          * of the given field {@code type}.
@@ -764,6 +796,10 @@ public enum SqlIndex {
                 }
             }
 
+            // Custom indexes can share tables, so collect the statements
+            // first to only delete from each table once.
+            Set<String> deleteQueries = new LinkedHashSet<String>();
+
             for (SqlIndex sqlIndex : SqlIndex.values()) {
                 if (sqlIndex != SqlIndex.CUSTOM) {
                     for (Table table : sqlIndex.getWriteTables(database, null)) {
@@ -779,7 +815,7 @@ public enum SqlIndex {
                             deleteBuilder.append(" = ");
                             deleteBuilder.append(database.getReadSymbolId(onlyIndex.getUniqueName()));
                         }
-                        SqlDatabase.Static.executeUpdateWithArray(vendor, connection, deleteBuilder.toString());
+                        deleteQueries.add(deleteBuilder.toString());
                     }
                 }
             }
@@ -801,9 +837,185 @@ public enum SqlIndex {
                         deleteBuilder.append(" = ");
                         deleteBuilder.append(database.getReadSymbolId(onlyIndex.getUniqueName()));
                     }
-                    SqlDatabase.Static.executeUpdateWithArray(vendor, connection, deleteBuilder.toString());
+                    deleteQueries.add(deleteBuilder.toString());
+                }
+            }
+
+            for (String deleteQuery : deleteQueries) {
+                SqlDatabase.Static.executeUpdateWithArray(vendor, connection, deleteQuery);
+            }
+        }
+
+        /**
+         * Deletes the index rows associated with the given {@code states},
+         * but only the rows of the changed indexes for the states in the
+         * given {@code changedIndexes}.
+         *
+         * @param changedIndexes Can't be {@code null}.
+         * @see #getChangedIndexes
+         */
+        public static void deleteByStates(
+                SqlDatabase database,
+                Connection connection,
+                List<State> states,
+                Map<State, Map<String, ObjectIndex>> changedIndexes)
+                throws SQLException {
+
+            if (states == null || states.isEmpty()) {
+                return;
+            }
+
+            SqlVendor vendor = database.getVendor();
+            List<State> allStates = new ArrayList<State>();
+            Map<String, List<List<Object>>> deleteParameters = new LinkedHashMap<String, List<List<Object>>>();
+
+            for (State state : states) {
+                Map<String, ObjectIndex> stateChangedIndexes = changedIndexes.get(state);
+
+                if (stateChangedIndexes == null) {
+                    allStates.add(state);
+                    continue;
+                }
+
+                for (Map.Entry<String, ObjectIndex> entry : stateChangedIndexes.entrySet()) {
+                    ObjectIndex index = entry.getValue();
+
+                    if (database.hasInRowIndex() && index.isShortConstant()) {
+                        continue;
+                    }
+
+                    for (Table table : getByIndex(index).getWriteTables(database, index)) {
+                        List<Object> parameters = new ArrayList<Object>();
+                        StringBuilder deleteBuilder = new StringBuilder();
+
+                        deleteBuilder.append("DELETE FROM ");
+                        vendor.appendIdentifier(deleteBuilder, table.getName(database, index));
+                        deleteBuilder.append(" WHERE ");
+                        vendor.appendIdentifier(deleteBuilder, table.getIdField(database, index));
+                        deleteBuilder.append(" = ");
+                        vendor.appendBindValue(deleteBuilder, state.getId(), parameters);
+                        deleteBuilder.append(" AND ");
+                        vendor.appendIdentifier(deleteBuilder, table.getKeyField(database, index));
+                        deleteBuilder.append(" = ");
+                        vendor.appendBindValue(deleteBuilder, table.convertKey(database, index, entry.getKey()), parameters);
+
+                        deleteParameters.computeIfAbsent(deleteBuilder.toString(), k -> new ArrayList<List<Object>>()).add(parameters);
+                    }
+                }
+            }
+
+            deleteByStates(database, connection, null, allStates);
+
+            for (Map.Entry<String, List<List<Object>>> entry : deleteParameters.entrySet()) {
+                String sqlQuery = entry.getKey();
+                List<List<Object>> parameters = entry.getValue();
+
+                try {
+                    SqlDatabase.Static.executeBatchUpdate(connection, sqlQuery, parameters);
+                } catch (BatchUpdateException bue) {
+                    SqlDatabase.Static.logBatchUpdateException(bue, sqlQuery, parameters);
+                    throw bue;
+                }
+            }
+        }
+
+        /**
+         * Returns the indexes, keyed by the unique names of their index
+         * values, whose values in the given {@code state} are different
+         * from the ones in the given {@code originalState}. Indexes on
+         * methods are always considered changed, since their values may
+         * depend on more than the saved data.
+         *
+         * @param state Can't be {@code null}.
+         * @param originalState Can't be {@code null}.
+         * @return Never {@code null}.
+         */
+        public static Map<String, ObjectIndex> getChangedIndexes(State state, State originalState) {
+            Map<String, ObjectIndex> indexes = new HashMap<String, ObjectIndex>();
+            Map<String, Set<List<Object>>> rows = getIndexRows(getIndexValues(state), indexes);
+            Map<String, Set<List<Object>>> originalRows = getIndexRows(getIndexValues(originalState), indexes);
+            Map<String, ObjectIndex> changedIndexes = new HashMap<String, ObjectIndex>();
+
+            for (Map.Entry<String, ObjectIndex> entry : indexes.entrySet()) {
+                String name = entry.getKey();
+                ObjectIndex index = entry.getValue();
+
+                if (hasMethodField(index) || !ObjectUtils.equals(rows.get(name), originalRows.get(name))) {
+                    changedIndexes.put(name, index);
+                }
+            }
+
+            return changedIndexes;
+        }
+
+        // Collects the rows of the given index values by their unique names
+        // and their indexes into the given map. Numbers are normalized,
+        // because their types may differ between the values in a state and
+        // the values read back from the saved data.
+        private static Map<String, Set<List<Object>>> getIndexRows(List<IndexValue> indexValues, Map<String, ObjectIndex> indexes) {
+            Map<String, Set<List<Object>>> rows = new HashMap<String, Set<List<Object>>>();
+
+            for (IndexValue indexValue : indexValues) {
+                String name = indexValue.getUniqueName();
+                Set<List<Object>> nameRows = rows.computeIfAbsent(name, k -> new HashSet<List<Object>>());
+
+                indexes.put(name, indexValue.getIndex());
+
+                for (Object[] values : indexValue.getValuesArray()) {
+                    List<Object> row = new ArrayList<Object>(values.length);
+
+                    for (Object value : values) {
+                        row.add(value instanceof Number ? normalizeNumber((Number) value) : value);
+                    }
+
+                    nameRows.add(row);
+                }
+            }
+
+            return rows;
+        }
+
+        // Converts the given number to an exact BigDecimal without trailing
+        // zeros, so that integers that can't be represented as doubles
+        // don't compare equal when they're different.
+        private static Object normalizeNumber(Number number) {
+            BigDecimal decimal;
+
+            if (number instanceof BigDecimal) {
+                decimal = (BigDecimal) number;
+
+            } else if (number instanceof BigInteger) {
+                decimal = new BigDecimal((BigInteger) number);
+
+            } else if (number instanceof Long
+                    || number instanceof Integer
+                    || number instanceof Short
+                    || number instanceof Byte) {
+                decimal = BigDecimal.valueOf(number.longValue());
+
+            } else {
+                double value = number.doubleValue();
+
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    return value;
                 }
+
+                decimal = new BigDecimal(value);
             }
+
+            return decimal.signum() == 0 ? BigDecimal.ZERO : decimal.stripTrailingZeros();
+        }
+
+        private static boolean hasMethodField(ObjectIndex index) {
+            ObjectStruct parent = index.getParent();
+
+            for (String fieldName : index.getFields()) {
+                if (parent.getField(fieldName) instanceof ObjectMethod) {
+                    return true;
+                }
+            }
+
+            return false;
         }
 
         public static void updateByStates(
@@ -902,7 +1114,7 @@ public enum SqlIndex {
             if (!needInserts.isEmpty()) {
                 List<State> insertStates = new ArrayList<State>(needInserts);
                 deleteByStates(database, connection, index, insertStates);
-                insertByStates(database, connection, index, insertStates);
+                insertByStates(database, connection, index, insertStates, null);
             }
         }
 
@@ -914,14 +1126,33 @@ public enum SqlIndex {
                 Connection connection,
                 List<State> states)
                 throws SQLException {
-            return insertByStates(database, connection, null, states);
+            return insertByStates(database, connection, null, states, null);
+        }
+
+        /**
+         * Inserts the index rows associated with the given {@code states},
+         * but only the rows of the changed indexes for the states in the
+         * given {@code changedIndexes}. The in-row indexes are always
+         * returned in full.
+         *
+         * @param changedIndexes Can't be {@code null}.
+         * @see #getChangedIndexes
+         */
+        public static Map<State, String> insertByStates(
+                SqlDatabase database,
+                Connection connection,
+                List<State> states,
+                Map<State, Map<String, ObjectIndex>> changedIndexes)
+                throws SQLException {
+            return insertByStates(database, connection, null, states, changedIndexes);
         }
 
         private static Map<State, String> insertByStates(
                 SqlDatabase database,
                 Connection connection,
                 ObjectIndex onlyIndex,
-                List<State> states)
+                List<State> states,
+                Map<State, Map<String, ObjectIndex>> changedIndexes)
                 throws SQLException {
 
             Map<State, String> inRowIndexes = new HashMap<State, String>();
@@ -930,12 +1161,15 @@ public enum SqlIndex {
             }
 
             Map<String, String> insertQueries = new HashMap<String, String>();
+            Map<String, Table> insertTables = new HashMap<String, Table>();
+            Map<String, ObjectIndex> insertIndexes = new HashMap<String, ObjectIndex>();
             Map<String, List<List<Object>>> insertParameters = new HashMap<String, List<List<Object>>>();
             Map<String, Set<String>> insertBindKeys = new HashMap<String, Set<String>>();
 
             for (State state : states) {
                 UUID id = state.getId();
                 UUID typeId = state.getVisibilityAwareTypeId();
+                Map<String, ObjectIndex> stateChangedIndexes = changedIndexes != null ? changedIndexes.get(state) : null;
 
                 for (IndexValue indexValue : getIndexValues(state)) {
                     ObjectIndex index = indexValue.getIndex();
@@ -971,6 +1205,10 @@ public enum SqlIndex {
                         continue;
                     }
 
+                    if (stateChangedIndexes != null && !stateChangedIndexes.containsKey(indexValue.getUniqueName())) {
+                        continue;
+                    }
+
                     for (SqlIndex.Table table : getByIndex(index).getWriteTables(database, index)) {
                         String name = table.getName(database, index);
                         String sqlQuery = insertQueries.get(name);
@@ -979,6 +1217,8 @@ public enum SqlIndex {
                         if (sqlQuery == null && parameters == null) {
                             sqlQuery = table.prepareInsertStatement(database, connection, index);
                             insertQueries.put(name, sqlQuery);
+                            insertTables.put(name, table);
+                            insertIndexes.put(name, index);
 
                             parameters = new ArrayList<List<Object>>();
                             insertParameters.put(name, parameters);
@@ -996,19 +1236,72 @@ public enum SqlIndex {
                 String name = entry.getKey();
                 String sqlQuery = entry.getValue();
                 List<List<Object>> parameters = insertParameters.get(name);
-                try {
-                    if (!parameters.isEmpty()) {
+                Table table = insertTables.get(name);
+
+                if (parameters.isEmpty()) {
+                    continue;
+
+                } else if (parameters.size() > 1
+                        && table instanceof AbstractTable
+                        && database.getVendor().supportsMultiRowInsert()) {
+                    executeMultiRowInsert(database, connection, (AbstractTable) table, insertIndexes.get(name), parameters);
+
+                } else {
+                    try {
                         SqlDatabase.Static.executeBatchUpdate(connection, sqlQuery, parameters);
+                    } catch (BatchUpdateException bue) {
+                        SqlDatabase.Static.logBatchUpdateException(bue, sqlQuery, parameters);
+                        throw bue;
                     }
-                } catch (BatchUpdateException bue) {
-                    SqlDatabase.Static.logBatchUpdateException(bue, sqlQuery, parameters);
-                    throw bue;
                 }
             }
 
             return inRowIndexes;
         }
 
+        /**
+         * Inserts all rows in the given {@code parameters} into the given
+         * {@code table} using as few multi-row INSERT statements as the
+         * {@link #MAXIMUM_INSERT_PARAMETERS} allows.
+         */
+        private static void executeMultiRowInsert(
+                SqlDatabase database,
+                Connection connection,
+                AbstractTable table,
+                ObjectIndex index,
+                List<List<Object>> parameters)
+                throws SQLException {
+
+            String insertPrefix = table.prepareInsertPrefix(database, index);
+            String rowValues = table.prepareInsertRow(database, index);
+            int rowsLimit = Math.max(1, MAXIMUM_INSERT_PARAMETERS / Math.max(1, parameters.get(0).size()));
+            SqlVendor vendor = database.getVendor();
+
+            for (int start = 0, size = parameters.size(); start < size; start += rowsLimit) {
+                List<List<Object>> rows = parameters.subList(start, Math.min(size, start + rowsLimit));
+                StringBuilder insertBuilder = new StringBuilder(insertPrefix);
+                List<Object> rowsParameters = new ArrayList<Object>();
+
+                for (List<Object> row : rows) {
+                    insertBuilder.append(rowValues);
+                    insertBuilder.append(',');
+                    rowsParameters.addAll(row);
+                }
+
+                insertBuilder.setLength(insertBuilder.length() - 1);
+
+                String insertSql = insertBuilder.toString();
+
+                try {
+                    SqlDatabase.Static.executeUpdateWithList(vendor, connection, insertSql, rowsParameters);
+
+                } catch (SQLException error) {
+                    SqlDatabase.Static.logUpdateException(insertSql, rowsParameters);
+                    throw error;
+                }
+            }
+        }
+
         /**
          * Returns a list of indexable values in this state. This is a helper
          * method for database implementations and isn't meant for general
@@ -2,6 +2,7 @@ package com.psddev.dari.db;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,6 +35,7 @@ class SqlQuery {
     private final String aliasPrefix;
 
     private final SqlVendor vendor;
+    private final boolean parameterized;
     private final String recordIdField;
     private final String recordTypeIdField;
     private final String recordInRowIndexField;
@@ -88,6 +90,7 @@ class SqlQuery {
         aliasPrefix = initialAliasPrefix;
 
         vendor = database.getVendor();
+        parameterized = database.isParameterizedQueries();
         recordIdField = aliasedField("r", SqlDatabase.ID_COLUMN);
         recordTypeIdField = aliasedField("r", SqlDatabase.TYPE_ID_COLUMN);
         recordInRowIndexField = aliasedField("r", SqlDatabase.IN_ROW_INDEX_COLUMN);
@@ -249,7 +252,7 @@ class SqlQuery {
                 whereBuilder.append(recordTypeIdField);
                 whereBuilder.append(" IN (");
                 for (UUID typeId : typeIds) {
-                    vendor.appendValue(whereBuilder, typeId);
+                    appendValue(whereBuilder, typeId);
                     whereBuilder.append(", ");
                 }
                 whereBuilder.setLength(whereBuilder.length() - 2);
@@ -286,6 +289,17 @@ class SqlQuery {
             orderByBuilder.insert(0, "\nORDER BY ");
         }
 
+        // Seeks past the sort values of the last object read by the
+        // KeysetIterator, using the same columns that are sorted on.
+        @SuppressWarnings("unchecked")
+        List<Object> seekValues = (List<Object>) query.getOptions().get(KeysetIterator.SEEK_QUERY_OPTION);
+
+        if (seekValues != null) {
+            whereBuilder.append("\nAND (");
+            whereBuilder.append(createSeekClause(seekValues));
+            whereBuilder.append(')');
+        }
+
         // Builds the FROM clause.
         StringBuilder fromBuilder = new StringBuilder();
         HashMap<String, String> joinTableAliases = new HashMap<String, String>();
@@ -914,6 +928,78 @@ class SqlQuery {
         throw new UnsupportedPredicateException(this, predicate);
     }
 
+    // Creates the clause that matches the rows sorted after the given
+    // values, e.g. a >= ? AND (a > ? OR (a = ? AND id > ?)), where NULLs
+    // are sorted according to the vendor.
+    private String createSeekClause(List<Object> values) {
+        List<Sorter> sorters = query.getSorters();
+        int size = sorters.size();
+
+        if (values.size() != size) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't seek past %s in [%s]!", values, query));
+        }
+
+        boolean nullSortedLow = vendor.isNullSortedLow();
+        String clause = null;
+        String bound = null;
+
+        for (int i = size - 1; i >= 0; -- i) {
+            String queryKey = (String) sorters.get(i).getOptions().get(0);
+            Join join = getSortFieldJoin(queryKey);
+            String field = join.getValueField(queryKey, null);
+            Object value = values.get(i);
+            boolean ascending = Sorter.ASCENDING_OPERATOR.equals(sorters.get(i).getOperator());
+            boolean nullsFirst = ascending == nullSortedLow;
+            String after;
+            String same;
+
+            if (value == null) {
+                after = nullsFirst ? field + " IS NOT NULL" : "0 = 1";
+                same = field + " IS NULL";
+                bound = null;
+
+            } else {
+                after = createSeekComparison(join, queryKey, field, ascending ? ">" : "<", value);
+                same = createSeekComparison(join, queryKey, field, "=", value);
+
+                if (nullsFirst) {
+                    bound = createSeekComparison(join, queryKey, field, ascending ? ">=" : "<=", value);
+
+                } else {
+                    after = "(" + after + " OR " + field + " IS NULL)";
+                    bound = null;
+                }
+            }
+
+            clause = clause != null
+                    ? after + " OR (" + same + " AND (" + clause + "))"
+                    : after;
+        }
+
+        // Repeat the bound on the first column on its own, so that it can
+        // be used to read the index as a range. The NULLs are all behind the
+        // seek by then, so the first index table can be inner joined.
+        if (bound != null) {
+            getSortFieldJoin((String) sorters.get(0).getOptions().get(0)).type = JoinType.INNER;
+            return bound + " AND (" + clause + ")";
+
+        } else {
+            return clause;
+        }
+    }
+
+    private String createSeekComparison(Join join, String queryKey, String field, String operator, Object value) {
+        StringBuilder comparisonBuilder = new StringBuilder();
+
+        comparisonBuilder.append(field);
+        comparisonBuilder.append(' ');
+        comparisonBuilder.append(operator);
+        comparisonBuilder.append(' ');
+        join.appendValue(comparisonBuilder, new ComparisonPredicate(PredicateParser.EQUALS_ANY_OPERATOR, false, queryKey, Collections.singleton(value)), value);
+        return comparisonBuilder.toString();
+    }
+
     private void addOrderByClause(StringBuilder orderByBuilder, Sorter sorter, boolean deferMetricPredicates, boolean useGroupBySelectAliases) {
 
         String operator = sorter.getOperator();
@@ -1819,6 +1905,14 @@ class SqlQuery {
         appendSimpleAliasedColumn(sql, vendor, rightTableAlias, rightColumnName);
     }
 
+    // Appends the given value as a parameter in the parameterized mode, or
+    // as a literal otherwise.
+    private void appendValue(StringBuilder builder, Object value) {
+        if (!parameterized || !SqlQueryParameters.appendMarker(builder, value)) {
+            vendor.appendValue(builder, value);
+        }
+    }
+
     private void appendSimpleWhereClause(StringBuilder sql, SqlVendor vendor, String leftTableAlias, String leftColumnName, String operator, Object value) {
         appendSimpleAliasedColumn(sql, vendor, leftTableAlias, leftColumnName);
         sql.append(' ');
@@ -2104,7 +2198,7 @@ class SqlQuery {
                 }
             }
 
-            vendor.appendValue(builder, value);
+            SqlQuery.this.appendValue(builder, value);
         }
 
         public String getValueField(String queryKey, ComparisonPredicate comparison) {
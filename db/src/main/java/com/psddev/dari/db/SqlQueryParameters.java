@@ -0,0 +1,140 @@
+package com.psddev.dari.db;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.StringUtils;
+
+/**
+ * Values in the SQL statements built in the
+ * {@linkplain SqlDatabase#isParameterizedQueries parameterized mode}.
+ *
+ * <p>The values are embedded in the statements as markers, so that the
+ * statements can still be passed around, cached, and modified (e.g. to add
+ * the limit clause) as strings. Right before a statement is executed, the
+ * markers are {@linkplain #bind replaced with the placeholders} so that the
+ * statement text only depends on the shape of the query, or
+ * {@linkplain #inline replaced with the literals} if it can't be
+ * prepared. The strings are URI encoded within the markers, so that they
+ * can't be mistaken for any other part of the statement.</p>
+ */
+final class SqlQueryParameters {
+
+    private static final char MARKER = '\u0000';
+    private static final char LONG_TYPE = 'l';
+    private static final char DOUBLE_TYPE = 'd';
+    private static final char STRING_TYPE = 's';
+    private static final char UUID_TYPE = 'u';
+
+    private SqlQueryParameters() {
+    }
+
+    /**
+     * Appends the marker for the given {@code value} to the given
+     * {@code builder}.
+     *
+     * @return {@code false} if the given {@code value} can't be bound,
+     *         in which case nothing is appended.
+     */
+    public static boolean appendMarker(StringBuilder builder, Object value) {
+        char type;
+
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            type = LONG_TYPE;
+
+        } else if (value instanceof Double) {
+            type = DOUBLE_TYPE;
+
+        } else if (value instanceof UUID) {
+            type = UUID_TYPE;
+
+        } else if (value instanceof String) {
+            type = STRING_TYPE;
+            value = StringUtils.encodeUri((String) value);
+
+        } else {
+            return false;
+        }
+
+        builder.append(MARKER);
+        builder.append(type);
+        builder.append(value);
+        builder.append(MARKER);
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if the given {@code sqlQuery} contains any
+     * markers.
+     */
+    public static boolean hasMarkers(String sqlQuery) {
+        return sqlQuery != null && sqlQuery.indexOf(MARKER) > -1;
+    }
+
+    /**
+     * Replaces all the markers in the given {@code sqlQuery} with the
+     * placeholders, and adds their values to the given {@code parameters}.
+     */
+    public static String bind(SqlVendor vendor, String sqlQuery, List<Object> parameters) {
+        return replace(vendor, sqlQuery, parameters);
+    }
+
+    /**
+     * Replaces all the markers in the given {@code sqlQuery} with the
+     * literal values.
+     */
+    public static String inline(SqlVendor vendor, String sqlQuery) {
+        return hasMarkers(sqlQuery) ? replace(vendor, sqlQuery, null) : sqlQuery;
+    }
+
+    private static String replace(SqlVendor vendor, String sqlQuery, List<Object> parameters) {
+        StringBuilder builder = new StringBuilder(sqlQuery.length());
+        int last = 0;
+
+        for (int start; (start = sqlQuery.indexOf(MARKER, last)) > -1;) {
+            int end = sqlQuery.indexOf(MARKER, start + 1);
+
+            if (end < 0) {
+                throw new IllegalArgumentException(String.format(
+                        "Unterminated parameter in [%s]!", sqlQuery));
+            }
+
+            builder.append(sqlQuery, last, start);
+
+            Object value = decode(sqlQuery.charAt(start + 1), sqlQuery.substring(start + 2, end));
+
+            if (parameters != null) {
+                vendor.appendBindValue(builder, value, parameters);
+
+            } else {
+                vendor.appendValue(builder, value);
+            }
+
+            last = end + 1;
+        }
+
+        builder.append(sqlQuery, last, sqlQuery.length());
+        return builder.toString();
+    }
+
+    private static Object decode(char type, String text) {
+        switch (type) {
+            case LONG_TYPE:
+                return Long.parseLong(text);
+
+            case DOUBLE_TYPE:
+                return Double.parseDouble(text);
+
+            case UUID_TYPE:
+                return ObjectUtils.to(UUID.class, text);
+
+            case STRING_TYPE:
+                return StringUtils.decodeUri(text);
+
+            default:
+                throw new IllegalArgumentException(String.format(
+                        "[%s] isn't a valid parameter type!", type));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.psddev.dari.db;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * JVM-wide cache of the query results in {@link SqlDatabase}.
+ *
+ * <p>Only the IDs of the objects (or the counts) are cached, and the
+ * objects themselves are read through the replication cache. Each entry
+ * is stamped with the versions of the types that its query can read, and
+ * {@linkplain #invalidateType saving an object} bumps the version of its
+ * type, so that all the entries that could be affected become stale
+ * without having to find them.</p>
+ */
+class SqlQueryResultCache {
+
+    private static final int ENTRY_WEIGHT = 128;
+    private static final int ID_WEIGHT = 32;
+    private static final int TYPE_WEIGHT = 24;
+
+    private final Cache<List<Object>, Entry> entries;
+    private final ConcurrentMap<UUID, AtomicLong> typeVersions = new ConcurrentHashMap<>();
+    private final AtomicLong anyTypeVersion = new AtomicLong();
+    private final AtomicLong allVersion = new AtomicLong();
+
+    /**
+     * Creates an instance that holds up to roughly the given
+     * {@code maximumWeight} bytes of entries, each for up to the given
+     * {@code ttl} seconds.
+     */
+    public SqlQueryResultCache(long maximumWeight, long ttl) {
+        this.entries = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .<List<Object>, Entry>weigher((key, entry) -> entry.weigh())
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the current versions of the types with the given
+     * {@code typeIds}. This must be called before the query is executed,
+     * so that any save that happens concurrently makes the result stale.
+     *
+     * @param typeIds If {@code null}, the versions of all types.
+     */
+    public Versions getVersions(Set<UUID> typeIds) {
+        return new Versions(typeIds);
+    }
+
+    /**
+     * Returns the result associated with the given {@code key}, or
+     * {@code null} if it's missing or stale.
+     */
+    public Object get(List<Object> key) {
+        Entry entry = entries.getIfPresent(key);
+
+        if (entry == null) {
+            return null;
+
+        } else if (!entry.versions.isCurrent()) {
+            entries.invalidate(key);
+            return null;
+
+        } else {
+            return entry.value;
+        }
+    }
+
+    /**
+     * Associates the given {@code value} with the given {@code key} if
+     * the given {@code versions} are still current.
+     */
+    public void put(List<Object> key, Versions versions, Object value) {
+        if (versions.isCurrent()) {
+            entries.put(key, new Entry(versions, value));
+        }
+    }
+
+    /**
+     * Makes all the results that could include the objects of the type
+     * with the given {@code typeId} stale.
+     *
+     * @param typeId If {@code null}, makes all the results stale.
+     */
+    public void invalidateType(UUID typeId) {
+        if (typeId == null) {
+            allVersion.incrementAndGet();
+
+        } else {
+            typeVersions.computeIfAbsent(typeId, k -> new AtomicLong()).incrementAndGet();
+            anyTypeVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all the results.
+     */
+    public void invalidateAll() {
+        allVersion.incrementAndGet();
+        entries.invalidateAll();
+    }
+
+    private long getTypeVersion(UUID typeId) {
+        AtomicLong version = typeVersions.get(typeId);
+
+        return version != null ? version.get() : 0L;
+    }
+
+    /**
+     * Versions of the types that a query can read at a point in time.
+     */
+    public final class Versions {
+
+        private final long all;
+        private final long anyType;
+        private final UUID[] typeIds;
+        private final long[] typeVersions;
+
+        private Versions(Set<UUID> typeIds) {
+            this.all = allVersion.get();
+
+            if (typeIds == null) {
+                this.anyType = anyTypeVersion.get();
+                this.typeIds = null;
+                this.typeVersions = null;
+
+            } else {
+                this.anyType = 0L;
+                this.typeIds = typeIds.toArray(new UUID[typeIds.size()]);
+                this.typeVersions = new long[this.typeIds.length];
+
+                for (int i = 0, length = this.typeIds.length; i < length; ++ i) {
+                    this.typeVersions[i] = getTypeVersion(this.typeIds[i]);
+                }
+            }
+        }
+
+        /**
+         * Returns {@code true} if none of the types have changed since
+         * these versions were taken.
+         */
+        public boolean isCurrent() {
+            if (all != allVersion.get()) {
+                return false;
+
+            } else if (typeIds == null) {
+                return anyType == anyTypeVersion.get();
+            }
+
+            for (int i = 0, length = typeIds.length; i < length; ++ i) {
+                if (typeVersions[i] != getTypeVersion(typeIds[i])) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    private static class Entry {
+
+        public final Versions versions;
+        public final Object value;
+
+        public Entry(Versions versions, Object value) {
+            this.versions = versions;
+            this.value = value;
+        }
+
+        public int weigh() {
+            int weight = ENTRY_WEIGHT;
+
+            if (value instanceof List) {
+                weight += ((List<?>) value).size() * ID_WEIGHT;
+            }
+
+            if (versions.typeIds != null) {
+                weight += versions.typeIds.length * TYPE_WEIGHT;
+            }
+
+            return weight;
+        }
+    }
+}
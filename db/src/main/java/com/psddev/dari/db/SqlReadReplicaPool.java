@@ -0,0 +1,333 @@
+package com.psddev.dari.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Read replicas in {@link SqlDatabase} that the reads are spread across.
+ *
+ * <p>Each replica is checked periodically in the background to measure
+ * its latency and replication lag. The latency only reflects how long it
+ * takes to get a connection and validate it during these checks, not the
+ * actual reads. The replicas are picked at random, weighted by their
+ * configured weight and inversely by their latency and error rate. A
+ * replica is ejected after {@value #EJECT_FAILURES} failures in a row,
+ * and re-admitted once a check succeeds again.</p>
+ */
+class SqlReadReplicaPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SqlReadReplicaPool.class);
+
+    private static final int EJECT_FAILURES = 3;
+    private static final double SMOOTHING = 0.3;
+    private static final double MINIMUM_SUCCESS_RATE = 0.05;
+    private static final int VALID_TIMEOUT = 5;
+
+    private final SqlDatabase database;
+    private final List<Replica> replicas;
+    private final String lagQuery;
+    private final ScheduledExecutorService checker;
+    private final Set<Replica> lagErrorsLogged = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates an instance that checks the given {@code replicas} every
+     * given {@code checkInterval} seconds.
+     *
+     * @param checkInterval If not positive, the replicas aren't checked in
+     *        the background.
+     * @param lagQuery If non-{@code null}, used instead of the vendor
+     *        specific way to find the replication lag in seconds, e.g. by
+     *        reading a heartbeat table.
+     */
+    public SqlReadReplicaPool(SqlDatabase database, List<Replica> replicas, long checkInterval, String lagQuery) {
+        this.database = database;
+        this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+        this.lagQuery = lagQuery;
+
+        if (checkInterval > 0L) {
+            this.checker = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                    .setNameFormat(database.getName() + " Read Replica Checker")
+                    .setDaemon(true)
+                    .build());
+
+            checker.scheduleWithFixedDelay(this::checkAll, 0L, checkInterval, TimeUnit.SECONDS);
+
+        } else {
+            this.checker = null;
+        }
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Picks one of the available replicas.
+     *
+     * @param maximumLag If non-negative, only the replicas known to be
+     *        behind by at most this many seconds are considered.
+     * @param writeTime If positive, only the replicas known to have
+     *        caught up to this time in milliseconds are considered.
+     * @param excluded Replicas that shouldn't be picked. May be
+     *        {@code null}.
+     * @return {@code null} if none are available.
+     */
+    public Replica pick(long maximumLag, long writeTime, List<Replica> excluded) {
+        List<Replica> candidates = new ArrayList<>(replicas.size());
+        double[] scores = new double[replicas.size()];
+        double total = 0.0;
+
+        for (Replica replica : replicas) {
+            if (replica.isEjected()
+                    || (excluded != null && excluded.contains(replica))
+                    || (maximumLag >= 0 && !replica.isWithinLag(maximumLag))
+                    || (writeTime > 0 && !replica.isCaughtUpTo(writeTime))) {
+                continue;
+            }
+
+            double score = replica.getScore();
+
+            scores[candidates.size()] = score;
+            candidates.add(replica);
+            total += score;
+        }
+
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        double target = ThreadLocalRandom.current().nextDouble(total);
+
+        for (int i = 0, size = candidates.size(); i < size; ++ i) {
+            target -= scores[i];
+
+            if (target < 0.0) {
+                return candidates.get(i);
+            }
+        }
+
+        return candidates.get(candidates.size() - 1);
+    }
+
+    /**
+     * Stops checking the replicas.
+     */
+    public void close() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+    }
+
+    private void checkAll() {
+        for (Replica replica : replicas) {
+            try {
+                check(replica);
+
+            } catch (RuntimeException error) {
+                LOGGER.warn(String.format("Can't check [%s] read replica!", replica.getName()), error);
+            }
+        }
+    }
+
+    // Checks the given replica once, recording the result.
+    void check(Replica replica) {
+        long start = System.nanoTime();
+        Connection connection = null;
+
+        try {
+            connection = replica.getDataSource().getConnection();
+
+            if (!connection.isValid(VALID_TIMEOUT)) {
+                throw new SQLException("Connection isn't valid!");
+            }
+
+            double latency = (System.nanoTime() - start) / 1e6;
+            Long lag;
+
+            // The replica itself is still usable without the lag, e.g. when
+            // the user can't run SHOW SLAVE STATUS without the REPLICATION
+            // CLIENT privilege.
+            try {
+                lag = lagQuery != null
+                        ? selectLag(connection)
+                        : database.getVendor().getReplicationLag(connection);
+
+            } catch (SQLException error) {
+                if (lagErrorsLogged.add(replica)) {
+                    LOGGER.warn(String.format("Can't find the lag of [%s] read replica!", replica.getName()), error);
+
+                } else {
+                    LOGGER.debug(String.format("Can't find the lag of [%s] read replica!", replica.getName()), error);
+                }
+
+                lag = null;
+            }
+
+            replica.recordSuccess(latency, lag);
+
+        } catch (SQLException error) {
+            LOGGER.debug(String.format("[%s] read replica check failed!", replica.getName()), error);
+            replica.recordFailure();
+
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+
+                } catch (SQLException error) {
+                    // Not likely and probably harmless.
+                }
+            }
+        }
+    }
+
+    private Long selectLag(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+
+        try {
+            ResultSet result = statement.executeQuery(lagQuery);
+
+            try {
+                if (result.next()) {
+                    long lag = result.getLong(1);
+
+                    return result.wasNull() ? null : lag;
+                }
+
+                return null;
+
+            } finally {
+                result.close();
+            }
+
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Read replica and its measured health.
+     */
+    public static final class Replica {
+
+        private final String name;
+        private final DataSource dataSource;
+        private final double weight;
+
+        private double latency;
+        private double errorRate;
+        private int failures;
+        private boolean ejected;
+        private Long lag;
+        private long caughtUpTo;
+
+        public Replica(String name, DataSource dataSource, double weight) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.weight = weight > 0.0 ? weight : 1.0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public DataSource getDataSource() {
+            return dataSource;
+        }
+
+        public synchronized boolean isEjected() {
+            return ejected;
+        }
+
+        /**
+         * Returns the replication lag in seconds, or {@code null} if it's
+         * not known.
+         */
+        public synchronized Long getLag() {
+            return lag;
+        }
+
+        public synchronized boolean isWithinLag(long maximumLag) {
+            return lag != null && lag <= maximumLag;
+        }
+
+        /**
+         * Returns {@code true} if this replica is known to include all the
+         * transactions committed on the primary up to the given
+         * {@code time} in milliseconds.
+         */
+        public synchronized boolean isCaughtUpTo(long time) {
+            return caughtUpTo >= time;
+        }
+
+        /**
+         * Returns the average latency in milliseconds of getting a
+         * connection and validating it during the background checks.
+         */
+        public synchronized double getLatency() {
+            return latency;
+        }
+
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        // Higher is better. Latency under a millisecond isn't meaningful.
+        private synchronized double getScore() {
+            return weight
+                    / Math.max(latency, 1.0)
+                    * Math.max(1.0 - errorRate, MINIMUM_SUCCESS_RATE);
+        }
+
+        public synchronized void recordSuccess(double newLatency, Long newLag) {
+            latency = latency > 0.0 ? latency + SMOOTHING * (newLatency - latency) : newLatency;
+            errorRate -= SMOOTHING * errorRate;
+            failures = 0;
+            lag = newLag;
+
+            // Lag is only reported in whole seconds.
+            if (newLag != null) {
+                caughtUpTo = Math.max(caughtUpTo, System.currentTimeMillis() - (long) newLatency - (newLag + 1) * 1000L);
+            }
+
+            if (ejected) {
+                LOGGER.info("Re-admitting [{}] read replica", name);
+                ejected = false;
+            }
+        }
+
+        public synchronized void recordFailure() {
+            errorRate += SMOOTHING * (1.0 - errorRate);
+            ++ failures;
+            lag = null;
+
+            if (!ejected && failures >= EJECT_FAILURES) {
+                LOGGER.warn("Ejecting [{}] read replica after {} failures", name, failures);
+                ejected = true;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
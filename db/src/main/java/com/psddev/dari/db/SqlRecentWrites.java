@@ -0,0 +1,164 @@
+package com.psddev.dari.db;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import com.psddev.dari.util.ObjectUtils;
+
+/**
+ * Objects written by a thread in {@link SqlDatabase}, so that the reads
+ * that could observe them can be kept off of the read replicas that
+ * haven't caught up yet.
+ *
+ * <p>The writes are recorded as {@linkplain #addPending pending} while the
+ * transaction is open, and {@linkplain #commit committed} along with the
+ * time and the replication position (e.g. MySQL GTID set) once it's
+ * committed.</p>
+ */
+final class SqlRecentWrites {
+
+    private final Set<UUID> pendingIds = new HashSet<>();
+    private final Set<UUID> pendingTypeIds = new HashSet<>();
+    private final Set<UUID> ids = new HashSet<>();
+    private final Set<UUID> typeIds = new HashSet<>();
+    private long time;
+    private String position;
+
+    /**
+     * Records the given {@code states} as written in the current
+     * transaction.
+     */
+    public void addPending(List<State> states) {
+        for (State state : states) {
+            pendingIds.add(state.getId());
+            pendingTypeIds.add(state.getTypeId());
+        }
+    }
+
+    /**
+     * Records the pending writes as committed, forgetting the ones
+     * committed before the given {@code window} in milliseconds.
+     *
+     * @param position May be {@code null}.
+     */
+    public void commit(String position, long window) {
+        if (pendingIds.isEmpty()) {
+            return;
+        }
+
+        if (isExpired(window)) {
+            ids.clear();
+            typeIds.clear();
+        }
+
+        ids.addAll(pendingIds);
+        typeIds.addAll(pendingTypeIds);
+        pendingIds.clear();
+        pendingTypeIds.clear();
+
+        this.time = System.currentTimeMillis();
+        this.position = position;
+    }
+
+    /**
+     * Forgets the pending writes.
+     */
+    public void rollback() {
+        pendingIds.clear();
+        pendingTypeIds.clear();
+    }
+
+    /**
+     * Returns {@code true} if there are any writes in the current
+     * transaction that haven't been committed yet.
+     */
+    public boolean hasPending() {
+        return !pendingIds.isEmpty();
+    }
+
+    /**
+     * Returns a copy of the committed writes, so that they can be checked
+     * in another thread.
+     */
+    public SqlRecentWrites copy() {
+        SqlRecentWrites copy = new SqlRecentWrites();
+
+        copy.ids.addAll(ids);
+        copy.typeIds.addAll(typeIds);
+        copy.time = time;
+        copy.position = position;
+        return copy;
+    }
+
+    /**
+     * Returns {@code true} if nothing was committed within the last given
+     * {@code window} milliseconds.
+     */
+    public boolean isExpired(long window) {
+        return time == 0L || System.currentTimeMillis() - time > window;
+    }
+
+    /**
+     * Returns the time of the last commit in milliseconds.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the replication position right after the last commit.
+     *
+     * @return May be {@code null}.
+     */
+    public String getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns {@code true} if the given {@code query} could read any of the
+     * committed objects.
+     *
+     * @param query If {@code null}, assumes that it could.
+     */
+    public boolean isObservableBy(Query<?> query, DatabaseEnvironment environment) {
+        if (query == null) {
+            return true;
+        }
+
+        List<Object> idValues = query.findIdOnlyQueryValues();
+
+        if (idValues != null) {
+            for (Object value : idValues) {
+                UUID id = value instanceof Recordable
+                        ? ((Recordable) value).getState().getId()
+                        : ObjectUtils.to(UUID.class, value);
+
+                if (id == null || ids.contains(id)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        if (query.isFromAll()) {
+            return true;
+        }
+
+        Set<ObjectType> types = query.getConcreteTypes(environment);
+
+        if (types.isEmpty()) {
+            return true;
+        }
+
+        for (ObjectType type : types) {
+            if (typeIds.contains(type.getId())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
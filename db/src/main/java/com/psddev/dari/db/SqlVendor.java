@@ -7,6 +7,7 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
@@ -19,11 +20,14 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.psddev.dari.util.IoUtils;
+import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.StringUtils;
 import com.psddev.dari.util.UuidUtils;
 
@@ -247,6 +251,22 @@ public class SqlVendor {
         return true;
     }
 
+    /**
+     * Returns {@code true} if this vendor can insert multiple rows using
+     * a single {@code INSERT ... VALUES (...), (...)} statement.
+     */
+    public boolean supportsMultiRowInsert() {
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if this vendor sorts {@code NULL}s before all the
+     * other values in ascending order, and after them in descending order.
+     */
+    public boolean isNullSortedLow() {
+        return true;
+    }
+
     public void appendIdentifier(StringBuilder builder, String identifier) {
         builder.append('"');
         builder.append(identifier.replace("\"", "\"\""));
@@ -726,6 +746,61 @@ public class SqlVendor {
         return null;
     }
 
+    /**
+     * Returns the number of rows that the given {@code sqlQuery} is
+     * estimated to return, based on the query planner statistics.
+     *
+     * @return {@code null} if the estimate isn't available.
+     */
+    public Long estimateCount(Connection connection, String sqlQuery) throws SQLException {
+        return null;
+    }
+
+    /**
+     * Returns how many seconds the database that the given
+     * {@code connection} is to is behind its primary.
+     *
+     * @return {@code null} if it's not known, e.g. because the database
+     *         isn't a replica.
+     */
+    public Long getReplicationLag(Connection connection) throws SQLException {
+        return null;
+    }
+
+    /**
+     * Returns the replication position of the database that the given
+     * {@code connection} is to, which includes all the transactions
+     * committed so far on it.
+     *
+     * @return {@code null} if it's not known.
+     */
+    public String getReplicationPosition(Connection connection) throws SQLException {
+        return null;
+    }
+
+    /**
+     * Waits until the database that the given {@code connection} is to has
+     * replicated up to the given {@code position}.
+     *
+     * @param timeout In seconds.
+     * @return {@code false} if the wait timed out, or if it's not possible.
+     */
+    public boolean waitForReplicationPosition(Connection connection, String position, double timeout) throws SQLException {
+        return false;
+    }
+
+    // Returns the index of the column with the given label, or -1 if it's
+    // missing.
+    protected static int findColumn(ResultSetMetaData meta, String label) throws SQLException {
+        for (int i = 1, count = meta.getColumnCount(); i <= count; ++ i) {
+            if (label.equalsIgnoreCase(meta.getColumnLabel(i))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
     /* ******************* METRICS ******************* */
     // These are all very vendor-specific.
     public void appendMetricUpdateDataSql(StringBuilder sql, String columnIdentifier, List<Object> parameters, double amount, long eventDate, boolean increment, boolean updateFuture) {
@@ -819,6 +894,11 @@ public class SqlVendor {
             return "UTF8TOSTRING(" + field + ")";
         }
 
+        @Override
+        public boolean supportsMultiRowInsert() {
+            return true;
+        }
+
     }
 
     public static class MySQL extends SqlVendor {
@@ -881,6 +961,11 @@ public class SqlVendor {
             return false;
         }
 
+        @Override
+        public boolean supportsMultiRowInsert() {
+            return true;
+        }
+
         @Override
         public void appendIdentifier(StringBuilder builder, String identifier) {
             builder.append('`');
@@ -984,6 +1069,134 @@ public class SqlVendor {
             return "SELECT UNIX_TIMESTAMP()*1000";
         }
 
+        // Multiplies the estimated rows, after the conditions, of all the
+        // tables that are joined in the outermost query.
+        @Override
+        public Long estimateCount(Connection connection, String sqlQuery) throws SQLException {
+            Statement statement = connection.createStatement();
+            ResultSet result = null;
+
+            try {
+                result = statement.executeQuery("EXPLAIN " + sqlQuery);
+                ResultSetMetaData meta = result.getMetaData();
+                int selectTypeColumn = findColumn(meta, "select_type");
+                int rowsColumn = findColumn(meta, "rows");
+                int filteredColumn = findColumn(meta, "filtered");
+
+                if (rowsColumn < 0) {
+                    return null;
+                }
+
+                double estimate = 1.0;
+                boolean found = false;
+
+                while (result.next()) {
+                    String selectType = selectTypeColumn > 0 ? result.getString(selectTypeColumn) : null;
+
+                    if (selectType != null
+                            && !"SIMPLE".equalsIgnoreCase(selectType)
+                            && !"PRIMARY".equalsIgnoreCase(selectType)) {
+                        continue;
+                    }
+
+                    double rows = result.getDouble(rowsColumn);
+
+                    if (result.wasNull()) {
+                        continue;
+                    }
+
+                    if (filteredColumn > 0) {
+                        double filtered = result.getDouble(filteredColumn);
+
+                        if (!result.wasNull()) {
+                            rows = rows * filtered / 100.0;
+                        }
+                    }
+
+                    estimate *= Math.max(rows, 1.0);
+                    found = true;
+                }
+
+                return found ? (long) Math.ceil(estimate) : null;
+
+            } finally {
+                if (result != null) {
+                    result.close();
+                }
+                statement.close();
+            }
+        }
+
+        @Override
+        public Long getReplicationLag(Connection connection) throws SQLException {
+            Statement statement = connection.createStatement();
+            ResultSet result = null;
+
+            try {
+                result = statement.executeQuery("SHOW SLAVE STATUS");
+
+                if (result.next()) {
+                    long lag = result.getLong("Seconds_Behind_Master");
+
+                    return result.wasNull() ? null : lag;
+                }
+
+                return null;
+
+            } finally {
+                if (result != null) {
+                    result.close();
+                }
+                statement.close();
+            }
+        }
+
+        // Only works when GTID is on.
+        @Override
+        public String getReplicationPosition(Connection connection) throws SQLException {
+            Statement statement = connection.createStatement();
+            ResultSet result = null;
+
+            try {
+                result = statement.executeQuery("SELECT @@GLOBAL.gtid_executed");
+
+                if (result.next()) {
+                    String position = result.getString(1);
+
+                    return ObjectUtils.isBlank(position) ? null : position;
+                }
+
+                return null;
+
+            } finally {
+                if (result != null) {
+                    result.close();
+                }
+                statement.close();
+            }
+        }
+
+        @Override
+        public boolean waitForReplicationPosition(Connection connection, String position, double timeout) throws SQLException {
+            PreparedStatement statement = connection.prepareStatement("SELECT WAIT_FOR_EXECUTED_GTID_SET(?, ?)");
+            ResultSet result = null;
+
+            try {
+                statement.setString(1, position);
+                statement.setDouble(2, timeout);
+
+                result = statement.executeQuery();
+
+                return result.next() && result.getInt(1) == 0 && !result.wasNull();
+
+            } finally {
+                if (result != null) {
+                    result.close();
+                }
+                statement.close();
+            }
+        }
+
         /* Spatial Support */
 
         public String getGeometryContainsMethod() {
@@ -1339,11 +1552,66 @@ public class SqlVendor {
 
     public static class PostgreSQL extends SqlVendor {
 
+        private static final Pattern EXPLAIN_ROWS_PATTERN = Pattern.compile("\\srows=(\\d+)");
+
         @Override
         protected String getSetUpResourcePath() {
             return "postgres/schema-12.sql";
         }
 
+        // Uses the estimated rows of the top plan node.
+        @Override
+        public Long estimateCount(Connection connection, String sqlQuery) throws SQLException {
+            Statement statement = connection.createStatement();
+            ResultSet result = null;
+
+            try {
+                result = statement.executeQuery("EXPLAIN " + sqlQuery);
+
+                if (result.next()) {
+                    Matcher rowsMatcher = EXPLAIN_ROWS_PATTERN.matcher(result.getString(1));
+
+                    if (rowsMatcher.find()) {
+                        return Long.parseLong(rowsMatcher.group(1));
+                    }
+                }
+
+                return null;
+
+            } finally {
+                if (result != null) {
+                    result.close();
+                }
+                statement.close();
+            }
+        }
+
+        // Only meaningful while the primary is being written to, since
+        // the last replayed transaction gets older when it's idle.
+        @Override
+        public Long getReplicationLag(Connection connection) throws SQLException {
+            Statement statement = connection.createStatement();
+            ResultSet result = null;
+
+            try {
+                result = statement.executeQuery("SELECT CAST(EXTRACT(EPOCH FROM NOW() - pg_last_xact_replay_timestamp()) AS BIGINT)");
+
+                if (result.next()) {
+                    long lag = result.getLong(1);
+
+                    return result.wasNull() ? null : lag;
+                }
+
+                return null;
+
+            } finally {
+                if (result != null) {
+                    result.close();
+                }
+                statement.close();
+            }
+        }
+
         @Override
         protected boolean hasTable(Connection connection, String tableName) throws SQLException {
             return getTables(connection).contains(tableName.toLowerCase(Locale.ENGLISH));
@@ -1356,6 +1624,21 @@ public class SqlVendor {
             }
         }
 
+        @Override
+        public boolean supportsMultiRowInsert() {
+            return true;
+        }
+
+        @Override
+        public boolean isDuplicateKeyException(SQLException ex) {
+            return "23505".equals(ex.getSQLState()) || super.isDuplicateKeyException(ex);
+        }
+
+        @Override
+        public boolean isNullSortedLow() {
+            return false;
+        }
+
         @Override
         public void appendIdentifier(StringBuilder builder, String identifier) {
             builder.append(identifier.toLowerCase());
@@ -1787,6 +2070,11 @@ public class SqlVendor {
             return false;
         }
 
+        @Override
+        public boolean isNullSortedLow() {
+            return false;
+        }
+
         // This is untested.
         // @Override
         // public String getSelectTimestampMillisSql() {
@@ -82,6 +82,7 @@ public class State implements Map<String, Object> {
     private Database database;
     private UUID id;
     private UUID typeId;
+    private UUID savedTypeId;
     private final Map<String, Object> rawValues = new CompactMap<>();
     private Map<String, Object> extras;
     private Map<ObjectField, List<String>> errors;
@@ -295,6 +296,20 @@ public class State implements Map<String, Object> {
         this.typeId = typeId;
     }
 
+    /**
+     * Returns the type ID that was in the database when this state was last
+     * loaded or saved, which differs from {@link #getTypeId} if the type
+     * changed since.
+     */
+    UUID getSavedTypeId() {
+        return savedTypeId;
+    }
+
+    /** Remembers the current type ID as the one that's in the database. */
+    void markTypeIdSaved() {
+        savedTypeId = typeId;
+    }
+
     /** Returns the type. */
     public ObjectType getType() {
         ObjectType type = getDatabase().getEnvironment().getTypeById(getTypeId());
@@ -1686,20 +1701,30 @@ public class State implements Map<String, Object> {
     }
 
     /**
-     * Instantiate all Metric objects.
+     * Instantiate all Metric objects, and remember this state so that its
+     * metric values can be prefetched along with the other objects loaded
+     * in the same request.
      */
     private void resolveMetricReferences(Map<String, Object> map) {
+        boolean hasMetrics = false;
+
         for (Object obj : linkedObjects.values()) {
             ObjectType type = getDatabase().getEnvironment().getTypeByClass(obj.getClass());
             if (type != null) {
                 for (ObjectField metricField : type.getMetricFields()) {
                     map.put(metricField.getInternalName(), new Metric(this, metricField));
+                    hasMetrics = true;
                 }
             }
         }
 
         for (ObjectField metricField : getDatabase().getEnvironment().getMetricFields()) {
             map.put(metricField.getInternalName(), new Metric(this, metricField));
+            hasMetrics = true;
+        }
+
+        if (hasMetrics) {
+            Metric.Static.addPreFetchPeer(this);
         }
     }
 
@@ -417,7 +417,9 @@ abstract class StateValueUtils {
                     return value;
 
                 } else {
-                    Metric metric = new Metric(State.getInstance(object), field);
+                    State state = State.getInstance(object);
+                    Metric metric = new Metric(state, field);
+                    Metric.Static.addPreFetchPeer(state);
                     return metric;
                 }
             }
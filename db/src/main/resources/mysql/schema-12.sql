@@ -100,6 +100,19 @@ CREATE TABLE IF NOT EXISTS MetricDimension (
     UNIQUE KEY k_metricDimensionValue (value)
 ) ENGINE=InnoDB DEFAULT CHARSET=latin1 COLLATE=latin1_bin ROW_FORMAT=COMPRESSED;
 
+CREATE TABLE IF NOT EXISTS MetricEvent (
+    eventId BIGINT NOT NULL AUTO_INCREMENT,
+    id BINARY(16) NOT NULL,
+    typeId BINARY(16) NOT NULL,
+    symbolId INT NOT NULL,
+    dimensionId BINARY(16) NOT NULL,
+    eventDate BIGINT NOT NULL,
+    amount BIGINT NOT NULL,
+    PRIMARY KEY (eventId),
+    KEY k_metricEvent (symbolId, id, dimensionId, eventDate),
+    KEY k_metricEventId (id)
+) ENGINE=InnoDB DEFAULT CHARSET=binary;
+
 CREATE OR REPLACE VIEW Metric_n AS
 SELECT c.id
 , c.typeId
@@ -108,6 +108,19 @@ CREATE TABLE IF NOT EXISTS MetricDimension (
 
 CREATE UNIQUE INDEX k_metricDimensionValue ON MetricDimension(value);
 
+CREATE TABLE IF NOT EXISTS MetricEvent (
+    eventId BIGSERIAL NOT NULL PRIMARY KEY,
+    id UUID NOT NULL,
+    typeId UUID NOT NULL,
+    symbolId INT NOT NULL,
+    dimensionId UUID NOT NULL,
+    eventDate BIGINT NOT NULL,
+    amount BIGINT NOT NULL
+);
+
+CREATE INDEX k_metricEvent ON MetricEvent (symbolId, id, dimensionId, eventDate);
+CREATE INDEX k_metricEventId ON MetricEvent (id);
+
 CREATE OR REPLACE VIEW Metric_n AS
 SELECT c.id
 , c.typeId
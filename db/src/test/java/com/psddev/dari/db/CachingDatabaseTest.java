@@ -0,0 +1,79 @@
+package com.psddev.dari.db;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.psddev.dari.util.UuidUtils;
+
+public class CachingDatabaseTest {
+
+    private SqlDatabase delegate;
+    private CachingDatabase database;
+
+    @Before
+    public void before() {
+        String name = UuidUtils.createSequentialUuid().toString().replaceAll("-", "");
+        Map<String, Object> settings = new HashMap<String, Object>();
+
+        settings.put(SqlDatabase.JDBC_URL_SETTING, "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        delegate = new SqlDatabase();
+        delegate.setName("JUnit Test Caching DB " + name);
+        delegate.doInitialize(null, settings);
+
+        database = new CachingDatabase();
+        database.setDelegate(delegate);
+
+        // The query options are read through the default database.
+        Database.Static.overrideDefault(database);
+    }
+
+    @After
+    public void after() {
+        Database.Static.restoreDefault();
+        delegate.close();
+    }
+
+    private CachedRecord saveRecord() {
+        CachedRecord record = new CachedRecord();
+
+        record.getState().setDatabase(database);
+        record.save();
+        return record;
+    }
+
+    @Test
+    public void saveInvalidatesCount() {
+        saveRecord();
+        assertEquals(1L, Query.from(CachedRecord.class).using(database).count());
+
+        saveRecord();
+        assertEquals(2L, Query.from(CachedRecord.class).using(database).count());
+    }
+
+    @Test
+    public void typeChangeInvalidatesPreviousTypeCount() {
+        CachedRecord record = saveRecord();
+        CachedRecord loaded = Query.from(CachedRecord.class).where("_id = ?", record.getId()).using(database).first();
+
+        assertEquals(1L, Query.from(CachedRecord.class).using(database).count());
+        assertEquals(0L, Query.from(OtherCachedRecord.class).using(database).count());
+
+        loaded.getState().setTypeId(database.getEnvironment().getTypeByClass(OtherCachedRecord.class).getId());
+        loaded.save();
+
+        assertEquals(0L, Query.from(CachedRecord.class).using(database).count());
+        assertEquals(1L, Query.from(OtherCachedRecord.class).using(database).count());
+    }
+
+    static class CachedRecord extends Record {
+    }
+
+    static class OtherCachedRecord extends Record {
+    }
+}
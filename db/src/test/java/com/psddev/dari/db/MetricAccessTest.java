@@ -0,0 +1,293 @@
+package com.psddev.dari.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import com.psddev.dari.util.StringUtils;
+import com.psddev.dari.util.UuidUtils;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricAccessTest {
+
+    private MetricAccessDatabase database;
+    private Connection connection;
+    private PreparedStatement prepared;
+    private Statement statement;
+
+    @Before
+    public void before() throws SQLException {
+        database = mock(MetricAccessDatabase.class);
+        connection = mock(Connection.class);
+        prepared = mock(PreparedStatement.class);
+        statement = mock(Statement.class);
+
+        when(database.getMetricVendor()).thenReturn(new SqlVendor.PostgreSQL());
+        when(database.openConnection()).thenReturn(connection);
+        when(connection.prepareStatement(anyString())).thenReturn(prepared);
+        when(connection.createStatement()).thenReturn(statement);
+    }
+
+    private Map<List<UUID>, Double> createAmounts() {
+        Map<List<UUID>, Double> amounts = new LinkedHashMap<List<UUID>, Double>();
+        amounts.put(Arrays.asList(UUID.randomUUID(), UuidUtils.ZERO_UUID), 1.0);
+        amounts.put(Arrays.asList(UUID.randomUUID(), UuidUtils.ZERO_UUID), 2.0);
+        return amounts;
+    }
+
+    @Test
+    public void incrementBatchCommits() throws SQLException {
+        when(prepared.executeBatch()).thenReturn(new int[] { 1, 1 });
+        when(statement.executeBatch()).thenReturn(new int[] { 1, 1 });
+
+        MetricAccess.Static.doIncrementBatch(database, UUID.randomUUID(), 1, new LinkedHashMap<List<Object>, Double>(), createAmounts(), 0L);
+
+        InOrder order = inOrder(connection, database);
+        order.verify(connection).setAutoCommit(false);
+        order.verify(connection).commit();
+        order.verify(connection).setAutoCommit(true);
+        order.verify(database).closeConnection(connection);
+        verify(connection, never()).rollback();
+    }
+
+    @Test
+    public void incrementBatchRollsBackPartialFailure() throws SQLException {
+
+        // The batch update goes through, but the row for one of the keys is
+        // missing, and inserting it fails.
+        when(prepared.executeBatch()).thenReturn(new int[] { 0, 0 });
+        when(prepared.executeUpdate()).thenThrow(new SQLException("Forced failure"));
+        when(statement.executeUpdate(anyString())).thenThrow(new SQLException("Forced failure"));
+
+        try {
+            MetricAccess.Static.doIncrementBatch(database, UUID.randomUUID(), 1, new LinkedHashMap<List<Object>, Double>(), createAmounts(), 0L);
+            fail();
+
+        } catch (SQLException error) {
+            assertEquals("Forced failure", error.getMessage());
+        }
+
+        InOrder order = inOrder(connection, prepared, database);
+        order.verify(connection).setAutoCommit(false);
+        order.verify(prepared).executeBatch();
+        order.verify(connection).rollback();
+        order.verify(connection).setAutoCommit(true);
+        order.verify(database).closeConnection(connection);
+        verify(connection, never()).commit();
+    }
+
+    // Returns the given IDs in the order that they were bound to the
+    // prepared statements.
+    private List<UUID> getBoundIds(UUID... ids) throws SQLException {
+        ArgumentCaptor<Object> values = ArgumentCaptor.forClass(Object.class);
+        List<UUID> idsList = Arrays.asList(ids);
+        List<UUID> bound = new ArrayList<UUID>();
+
+        verify(prepared, atLeastOnce()).setObject(anyInt(), values.capture());
+
+        for (Object value : values.getAllValues()) {
+            UUID id = value instanceof byte[] ? UuidUtils.fromBytes((byte[]) value) : value instanceof UUID ? (UUID) value : null;
+
+            if (idsList.contains(id)) {
+                bound.add(id);
+            }
+        }
+
+        return bound;
+    }
+
+    @Test
+    public void incrementBatchSortsKeys() throws SQLException {
+        UUID first = new UUID(0L, 1L);
+        UUID second = new UUID(0L, 2L);
+        Map<List<UUID>, Double> amounts = new LinkedHashMap<List<UUID>, Double>();
+
+        amounts.put(Arrays.asList(second, UuidUtils.ZERO_UUID), 1.0);
+        amounts.put(Arrays.asList(first, UuidUtils.ZERO_UUID), 2.0);
+        when(prepared.executeBatch()).thenReturn(new int[] { 1, 1 });
+
+        MetricAccess.Static.doIncrementBatch(database, UUID.randomUUID(), 1, new LinkedHashMap<List<Object>, Double>(), amounts, 0L);
+
+        assertEquals(Arrays.asList(first, second), getBoundIds(first, second));
+    }
+
+    @Test
+    public void incrementBatchChecksUnreportedRows() throws SQLException {
+        UUID existing = new UUID(0L, 1L);
+        UUID missing = new UUID(0L, 2L);
+        Map<List<UUID>, Double> amounts = new LinkedHashMap<List<UUID>, Double>();
+        ResultSet existingData = mock(ResultSet.class);
+        ResultSet missingData = mock(ResultSet.class);
+        ArgumentCaptor<String> sqls = ArgumentCaptor.forClass(String.class);
+
+        // The driver doesn't report the counts, and only the first row
+        // exists at the event date.
+        amounts.put(Arrays.asList(existing, UuidUtils.ZERO_UUID), 1.0);
+        amounts.put(Arrays.asList(missing, UuidUtils.ZERO_UUID), 2.0);
+        when(prepared.executeBatch()).thenReturn(new int[] { Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO });
+        when(existingData.next()).thenReturn(true, false);
+        when(existingData.getBytes(1)).thenReturn(MetricAccess.Static.toBytes(0L, 1.0, 1.0));
+        when(database.executeQueryBeforeTimeout(any(Statement.class), anyString(), anyInt())).thenReturn(existingData, missingData);
+
+        MetricAccess.Static.doIncrementBatch(database, UUID.randomUUID(), 1, new LinkedHashMap<List<Object>, Double>(), amounts, 0L);
+
+        int inserts = 0;
+
+        verify(connection, atLeastOnce()).prepareStatement(sqls.capture());
+
+        for (String sql : sqls.getAllValues()) {
+            if (sql.startsWith("INSERT")) {
+                ++ inserts;
+            }
+        }
+
+        assertEquals(1, inserts);
+        verify(connection).commit();
+    }
+
+    @Test
+    public void foldEventsCombinesAmountsPerRow() throws SQLException {
+        ResultSet events = mock(ResultSet.class);
+        ResultSet empty = mock(ResultSet.class);
+        UUID id = UUID.randomUUID();
+        UUID dimensionId = UUID.randomUUID();
+        long eventDate = millis(2026, 1, 1, 10, 0);
+        long shift = MetricAccess.AMOUNT_DECIMAL_SHIFT;
+
+        // An increment of 1 without a dimension, and one of 2 with, which
+        // is also logged for the null dimension.
+        when(events.next()).thenReturn(true, true, true, false);
+        when(events.getLong(1)).thenReturn(1L, 2L, 3L);
+        when(events.getBytes(2)).thenReturn(UuidUtils.toBytes(id));
+        when(events.getBytes(3)).thenReturn(UuidUtils.toBytes(UUID.randomUUID()));
+        when(events.getInt(4)).thenReturn(1);
+        when(events.getBytes(5)).thenReturn(UuidUtils.toBytes(UuidUtils.ZERO_UUID), UuidUtils.toBytes(dimensionId), UuidUtils.toBytes(UuidUtils.ZERO_UUID));
+        when(events.getLong(6)).thenReturn(eventDate);
+        when(events.getLong(7)).thenReturn(shift, 2 * shift, 2 * shift);
+        when(database.executeQueryBeforeTimeout(any(Statement.class), anyString(), anyInt())).thenReturn(events, empty);
+
+        assertEquals(3, MetricAccess.Static.doFoldEvents(database, null, 1000));
+
+        // There aren't any rows yet, so each one is inserted once with the
+        // sum of its events, and all the events are removed.
+        ArgumentCaptor<String> inserts = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<String> deletes = ArgumentCaptor.forClass(String.class);
+
+        verify(connection, times(2)).prepareStatement(inserts.capture());
+        verify(statement).executeUpdate(deletes.capture());
+        assertTrue(inserts.getAllValues().get(0).contains(StringUtils.hex(MetricAccess.Static.toBytes(eventDate, 3.0, 3.0))));
+        assertTrue(inserts.getAllValues().get(1).contains(StringUtils.hex(MetricAccess.Static.toBytes(eventDate, 2.0, 2.0))));
+        assertTrue(deletes.getValue().endsWith(" IN (1, 2, 3)"));
+
+        InOrder order = inOrder(connection);
+        order.verify(connection).setAutoCommit(false);
+        order.verify(connection).commit();
+        order.verify(connection).setAutoCommit(true);
+        verify(connection, never()).rollback();
+    }
+
+    private MetricAccess createMetricAccess(MetricInterval eventDateProcessor) {
+        return new MetricAccess(database, UUID.randomUUID(), mock(ObjectField.class), eventDateProcessor);
+    }
+
+    private static long millis(int year, int month, int day, int hour, int minute) {
+        return new DateTime(year, month, day, hour, minute).getMillis();
+    }
+
+    @Test
+    public void bucketCeiling() {
+        MetricInterval hourly = new MetricInterval.Hourly();
+        MetricInterval daily = new MetricInterval.Daily();
+        MetricInterval monthly = new MetricInterval.Monthly();
+
+        assertEquals(millis(2026, 1, 1, 10, 0), MetricAccess.getBucketCeiling(hourly, millis(2026, 1, 1, 10, 0)));
+        assertEquals(millis(2026, 1, 1, 11, 0), MetricAccess.getBucketCeiling(hourly, millis(2026, 1, 1, 10, 0) + 1L));
+        assertEquals(millis(2026, 1, 1, 11, 0), MetricAccess.getBucketCeiling(hourly, millis(2026, 1, 1, 10, 59)));
+        assertEquals(millis(2026, 1, 2, 0, 0), MetricAccess.getBucketCeiling(daily, millis(2026, 1, 1, 10, 7)));
+        assertEquals(millis(2026, 3, 1, 0, 0), MetricAccess.getBucketCeiling(monthly, millis(2026, 2, 14, 10, 7)));
+        assertEquals(millis(2026, 3, 1, 0, 0), MetricAccess.getBucketCeiling(monthly, millis(2026, 3, 1, 0, 0)));
+    }
+
+    @Test
+    public void bucketCeilingWithoutBuckets() {
+        assertEquals(Long.MAX_VALUE, MetricAccess.getBucketCeiling(new MetricInterval.None(), millis(2026, 1, 1, 10, 7)));
+    }
+
+    @Test
+    public void closedBoundary() {
+        long gracePeriod = MetricAccess.ROLLUP_CACHE.getGracePeriod() * 1000L;
+        MetricAccess hourlyEvents = createMetricAccess(new MetricInterval.Hourly());
+
+        // Increments can still be made to the current bucket, and to the
+        // previous one during the grace period.
+        when(database.now()).thenReturn(millis(2026, 1, 1, 10, 30) + gracePeriod);
+        assertEquals(millis(2026, 1, 1, 10, 0), hourlyEvents.getClosedBoundary(new MetricInterval.Hourly()));
+        assertEquals(millis(2026, 1, 1, 0, 0), hourlyEvents.getClosedBoundary(new MetricInterval.Daily()));
+
+        when(database.now()).thenReturn(millis(2026, 1, 1, 10, 0) + gracePeriod - 1L);
+        assertEquals(millis(2026, 1, 1, 9, 0), hourlyEvents.getClosedBoundary(new MetricInterval.Hourly()));
+    }
+
+    @Test
+    public void closedBoundaryWithCoarserEvents() {
+        long gracePeriod = MetricAccess.ROLLUP_CACHE.getGracePeriod() * 1000L;
+        MetricAccess dailyEvents = createMetricAccess(new MetricInterval.Daily());
+
+        // Increments are stored at the start of the day, so none of the
+        // hours in it are closed yet.
+        when(database.now()).thenReturn(millis(2026, 1, 1, 10, 30) + gracePeriod);
+        assertEquals(millis(2026, 1, 1, 0, 0), dailyEvents.getClosedBoundary(new MetricInterval.Hourly()));
+    }
+
+    private void readTimelineTwice(boolean eventLog) throws SQLException {
+        ResultSet result = mock(ResultSet.class);
+        MetricAccess metricAccess = createMetricAccess(new MetricInterval.Hourly());
+        UUID id = UUID.randomUUID();
+        long start = millis(2026, 1, 1, 0, 0);
+        long end = millis(2026, 1, 1, 12, 0);
+
+        when(database.isMetricEventLog()).thenReturn(eventLog);
+        when(database.now()).thenReturn(millis(2026, 1, 2, 12, 0));
+        when(database.openReadConnection()).thenReturn(connection);
+        when(database.executeQueryBeforeTimeout(any(Statement.class), anyString(), anyInt())).thenReturn(result);
+
+        // Only the closed buckets are read, so the second read can come
+        // entirely from the rollups.
+        metricAccess.getMetricTimeline(id, null, start, end, new MetricInterval.Hourly());
+        metricAccess.getMetricTimeline(id, null, start, end, new MetricInterval.Hourly());
+
+        boolean cached = !MetricAccess.ROLLUP_CACHE.getRollups(id).isEmpty();
+
+        MetricAccess.ROLLUP_CACHE.invalidate(id);
+        assertEquals(!eventLog, cached);
+    }
+
+    @Test
+    public void timelineUsesRollups() throws SQLException {
+        assertTrue(MetricAccess.ROLLUP_CACHE.isEnabled());
+        readTimelineTwice(false);
+        verify(database, times(1)).executeQueryBeforeTimeout(any(Statement.class), anyString(), anyInt());
+    }
+
+    @Test
+    public void timelineWithEventLogSkipsRollups() throws SQLException {
+        readTimelineTwice(true);
+        verify(database, times(2)).executeQueryBeforeTimeout(any(Statement.class), anyString(), anyInt());
+    }
+}
@@ -0,0 +1,180 @@
+package com.psddev.dari.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.psddev.dari.util.UuidUtils;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricIncrementQueueTest {
+
+    private static final int THREADS = 4;
+    private static final int ADDS_PER_THREAD = 100000;
+    private static final int IDS = 8;
+
+    private final List<UUID> ids = new ArrayList<UUID>();
+    private final List<MetricAccess> metricAccesses = new ArrayList<MetricAccess>();
+    private final Map<UUID, DoubleAdder> added = new ConcurrentHashMap<UUID, DoubleAdder>();
+
+    @Before
+    public void before() {
+        for (int i = 0; i < IDS; ++ i) {
+            UUID id = UUID.randomUUID();
+
+            ids.add(id);
+            added.put(id, new DoubleAdder());
+        }
+
+        metricAccesses.add(mock(MetricAccess.class));
+        metricAccesses.add(mock(MetricAccess.class));
+    }
+
+    // Adds from all the threads at the same time, and returns once they're
+    // all done.
+    private void hammer(MetricIncrementAccumulator accumulator) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> adders = new ArrayList<Thread>();
+
+        for (int t = 0; t < THREADS; ++ t) {
+            int seed = t;
+            Thread adder = new Thread(() -> {
+                try {
+                    start.await();
+
+                } catch (InterruptedException error) {
+                    return;
+                }
+
+                for (int i = 0; i < ADDS_PER_THREAD; ++ i) {
+                    UUID id = ids.get((seed + i) % IDS);
+
+                    accumulator.add(id, UuidUtils.ZERO_UUID, null, metricAccesses.get(i % 2), 1.0);
+                    added.get(id).add(1.0);
+                }
+            });
+
+            adders.add(adder);
+            adder.start();
+        }
+
+        start.countDown();
+
+        for (Thread adder : adders) {
+            adder.join();
+        }
+    }
+
+    private void assertTotals(Map<UUID, DoubleAdder> drained) {
+        double total = 0.0;
+
+        for (UUID id : ids) {
+            DoubleAdder amount = drained.get(id);
+
+            assertNotNull(amount);
+            assertEquals(added.get(id).sum(), amount.sum(), 0.0);
+            total += amount.sum();
+        }
+
+        assertEquals((double) THREADS * ADDS_PER_THREAD, total, 0.0);
+    }
+
+    private static void addAll(Map<UUID, DoubleAdder> drained, Collection<QueuedMetricIncrement> increments) {
+        for (QueuedMetricIncrement increment : increments) {
+            drained.computeIfAbsent(increment.id, k -> new DoubleAdder()).add(increment.amount);
+        }
+    }
+
+    @Test
+    public void drainWhileAdding() throws InterruptedException {
+        MetricIncrementAccumulator accumulator = new MetricIncrementAccumulator();
+        Map<UUID, DoubleAdder> drained = new ConcurrentHashMap<UUID, DoubleAdder>();
+        AtomicBoolean adding = new AtomicBoolean(true);
+        AtomicInteger drains = new AtomicInteger();
+        Thread drainer = new Thread(() -> {
+            do {
+                addAll(drained, accumulator.drain());
+                drains.incrementAndGet();
+            } while (adding.get());
+        });
+
+        drainer.start();
+        hammer(accumulator);
+        adding.set(false);
+        drainer.join();
+
+        // Keys are only removed by the drain after the one that empties them.
+        for (int i = 0; i < 3; ++ i) {
+            addAll(drained, accumulator.drain());
+        }
+
+        assertTrue(accumulator.isEmpty());
+        assertTrue(drains.get() > 0);
+        assertTotals(drained);
+    }
+
+    @Test
+    public void requeueFailedFlushesWhileAdding() throws InterruptedException, SQLException {
+        MetricIncrementAccumulator accumulator = new MetricIncrementAccumulator();
+        MetricIncrementQueueTask task = MetricIncrementQueueTask.getInstance(1000.0 + Math.random(), 0.01, accumulator);
+        Map<UUID, DoubleAdder> applied = new ConcurrentHashMap<UUID, DoubleAdder>();
+        AtomicInteger flushes = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+
+        // Every third batch, starting with the first, fails and is queued
+        // again to be retried.
+        for (MetricAccess metricAccess : metricAccesses) {
+            doAnswer(invocation -> {
+                if (flushes.incrementAndGet() % 3 == 1) {
+                    failures.incrementAndGet();
+                    throw new SQLException("Forced failure");
+                }
+
+                @SuppressWarnings("unchecked")
+                Collection<QueuedMetricIncrement> increments = (Collection<QueuedMetricIncrement>) invocation.getArguments()[0];
+
+                addAll(applied, increments);
+                return null;
+
+            }).when(metricAccess).incrementMetricsByDimensionId(any());
+        }
+
+        AtomicBoolean adding = new AtomicBoolean(true);
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread flusher = new Thread(() -> {
+            try {
+                while (adding.get() || !accumulator.isEmpty()) {
+                    task.doTask();
+                }
+
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+
+        flusher.start();
+        hammer(accumulator);
+        adding.set(false);
+        flusher.join(60000L);
+
+        assertNull(error.get());
+        assertFalse(flusher.isAlive());
+        assertTrue(accumulator.isEmpty());
+        assertTrue(failures.get() > 0);
+        assertTotals(applied);
+    }
+}
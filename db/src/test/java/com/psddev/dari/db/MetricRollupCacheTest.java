@@ -0,0 +1,133 @@
+package com.psddev.dari.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricRollupCacheTest {
+
+    private static Map<Long, Double> createAmounts(long... buckets) {
+        Map<Long, Double> amounts = new TreeMap<Long, Double>();
+
+        for (long bucket : buckets) {
+            amounts.put(bucket, (double) bucket / 100);
+        }
+
+        return amounts;
+    }
+
+    @Test
+    public void disabled() {
+        MetricRollupCache cache = new MetricRollupCache(0L, 60L, 300L);
+
+        assertFalse(cache.isEnabled());
+        assertEquals(300L, cache.getGracePeriod());
+        cache.invalidate(UUID.randomUUID());
+    }
+
+    @Test
+    public void rollupsById() {
+        MetricRollupCache cache = new MetricRollupCache(10L, 60L, 300L);
+        UUID id = UUID.randomUUID();
+        List<Object> key = Arrays.<Object>asList("db", 1, UUID.randomUUID(), "interval");
+        Map<List<Object>, MetricRollupCache.Rollup> rollups = cache.getRollups(id);
+        MetricRollupCache.Rollup rollup = new MetricRollupCache.Rollup(null, 300L, createAmounts(100L, 200L));
+
+        assertTrue(cache.isEnabled());
+        assertTrue(rollups.isEmpty());
+
+        rollups.put(key, rollup);
+
+        assertSame(rollups, cache.getRollups(id));
+        assertSame(rollup, cache.getRollups(id).get(key));
+        assertTrue(cache.getRollups(UUID.randomUUID()).isEmpty());
+    }
+
+    @Test
+    public void invalidate() {
+        MetricRollupCache cache = new MetricRollupCache(10L, 60L, 300L);
+        UUID id = UUID.randomUUID();
+        UUID otherId = UUID.randomUUID();
+        List<Object> key = Arrays.<Object>asList("db", 1, UUID.randomUUID(), "interval");
+        Map<List<Object>, MetricRollupCache.Rollup> rollups = cache.getRollups(id);
+
+        cache.getRollups(otherId).put(key, new MetricRollupCache.Rollup(null, 300L, createAmounts(100L)));
+        cache.invalidate(id);
+
+        // Amounts read before the invalidation are put into the discarded
+        // map, so they're never seen.
+        rollups.put(key, new MetricRollupCache.Rollup(null, 300L, createAmounts(100L)));
+
+        assertTrue(cache.getRollups(id).isEmpty());
+        assertNotNull(cache.getRollups(otherId).get(key));
+    }
+
+    @Test
+    public void reachesFromFirst() {
+        MetricRollupCache.Rollup rollup = new MetricRollupCache.Rollup(null, 300L, createAmounts(100L, 200L));
+
+        assertTrue(rollup.reaches(null));
+        assertTrue(rollup.reaches(0L));
+        assertTrue(rollup.reaches(300L));
+        assertFalse(rollup.reaches(400L));
+    }
+
+    @Test
+    public void reachesFromStart() {
+        MetricRollupCache.Rollup rollup = new MetricRollupCache.Rollup(100L, 300L, createAmounts(100L, 200L));
+
+        assertFalse(rollup.reaches(null));
+        assertFalse(rollup.reaches(0L));
+        assertTrue(rollup.reaches(100L));
+        assertTrue(rollup.reaches(200L));
+        assertTrue(rollup.reaches(300L));
+        assertFalse(rollup.reaches(400L));
+    }
+
+    @Test
+    public void getAmounts() {
+        MetricRollupCache.Rollup rollup = new MetricRollupCache.Rollup(null, 400L, createAmounts(100L, 200L, 300L));
+
+        assertEquals(createAmounts(100L, 200L, 300L), rollup.getAmounts(null, 400L));
+        assertEquals(createAmounts(100L), rollup.getAmounts(null, 200L));
+        assertEquals(createAmounts(200L), rollup.getAmounts(200L, 300L));
+        assertEquals(createAmounts(200L, 300L), rollup.getAmounts(150L, 400L));
+        assertEquals(Collections.emptyMap(), rollup.getAmounts(400L, 400L));
+    }
+
+    @Test
+    public void amountsAreCopied() {
+        Map<Long, Double> amounts = createAmounts(100L);
+        MetricRollupCache.Rollup rollup = new MetricRollupCache.Rollup(null, 300L, amounts);
+
+        amounts.put(200L, 2.0);
+
+        assertEquals(createAmounts(100L), rollup.getAmounts(null, 300L));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void amountsAreUnmodifiable() {
+        new MetricRollupCache.Rollup(null, 300L, createAmounts(100L)).getAmounts(null, 300L).put(200L, 2.0);
+    }
+
+    @Test
+    public void extend() {
+        MetricRollupCache.Rollup rollup = new MetricRollupCache.Rollup(100L, 300L, createAmounts(100L, 200L));
+        MetricRollupCache.Rollup extended = rollup.extend(500L, createAmounts(300L, 400L));
+
+        assertEquals(300L, rollup.getTo());
+        assertEquals(createAmounts(100L, 200L), rollup.getAmounts(100L, 500L));
+
+        assertEquals(500L, extended.getTo());
+        assertFalse(extended.reaches(null));
+        assertTrue(extended.reaches(500L));
+        assertEquals(createAmounts(100L, 200L, 300L, 400L), extended.getAmounts(100L, 500L));
+    }
+}
@@ -0,0 +1,249 @@
+package com.psddev.dari.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.psddev.dari.util.IoUtils;
+import com.psddev.dari.util.StringUtils;
+import com.psddev.dari.util.UuidUtils;
+
+public class MetricTest {
+
+    private MetricDatabase database;
+
+    @Before
+    public void before() throws IOException, SQLException {
+        String name = UuidUtils.createSequentialUuid().toString().replaceAll("-", "");
+        Map<String, Object> settings = new HashMap<String, Object>();
+
+        settings.put(SqlDatabase.JDBC_URL_SETTING, "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1;MODE=MySQL");
+        database = new MetricDatabase();
+        database.setName("JUnit Test Metric DB " + name);
+        database.doInitialize(null, settings);
+        createMetricTables();
+
+        // The metric prefetching looks for the CachingDatabase in the default.
+        Database.Static.overrideDefault(database);
+    }
+
+    @After
+    public void after() {
+        Database.Static.restoreDefault();
+        database.close();
+    }
+
+    // Creates the tables from the MySQL schema that H2 can use without the
+    // table options.
+    private void createMetricTables() throws IOException, SQLException {
+        String schema = IoUtils.toString(getClass().getResourceAsStream("/mysql/schema-12.sql"), StandardCharsets.UTF_8);
+        Connection connection = database.openConnection();
+
+        try {
+            Statement statement = connection.createStatement();
+
+            try {
+                for (String ddl : schema.split(";")) {
+                    if (ddl.contains("CREATE TABLE IF NOT EXISTS MetricDimension ")
+                            || ddl.contains("CREATE TABLE IF NOT EXISTS MetricEvent ")) {
+                        statement.execute(ddl.substring(0, ddl.lastIndexOf(')') + 1));
+                    }
+                }
+
+            } finally {
+                statement.close();
+            }
+
+        } finally {
+            database.closeConnection(connection);
+        }
+    }
+
+    private MetricRecord saveRecord() {
+        MetricRecord record = new MetricRecord();
+
+        record.getState().setDatabase(database);
+        record.save();
+        return record;
+    }
+
+    private MetricRecord readRecord(UUID id) {
+        return Query.from(MetricRecord.class).where("_id = ?", id).using(database).noCache().first();
+    }
+
+    private int getSymbolId() {
+        return database.getSymbolId(database.getEnvironment().getTypeByClass(MetricRecord.class).getField("views").getUniqueName());
+    }
+
+    private static byte[] data(long eventDate, double cumulativeAmount, double amount) {
+        return MetricAccess.Static.toBytes(eventDate, cumulativeAmount, amount);
+    }
+
+    private static String binary(byte[] bytes) {
+        return "X'" + StringUtils.hex(bytes) + "'";
+    }
+
+    private static String binary(UUID id) {
+        return binary(UuidUtils.toBytes(id));
+    }
+
+    private static String select(Object... columns) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+
+        for (Object column : columns) {
+            sql.append(column);
+            sql.append(", ");
+        }
+
+        sql.setLength(sql.length() - 2);
+        return sql.toString();
+    }
+
+    // Returns the H2 SQL for a row in the bulk metric read, which has the
+    // maxData, symbolId, and id columns.
+    private String selectMaxData(MetricRecord record, double cumulativeAmount) {
+        return select(binary(data(0L, cumulativeAmount, cumulativeAmount)), getSymbolId(), binary(record.getId()));
+    }
+
+    @Test
+    public void preFetchPeersInOneQuery() {
+        List<MetricRecord> saved = Arrays.asList(saveRecord(), saveRecord(), saveRecord());
+        Map<UUID, Double> sums = new HashMap<UUID, Double>();
+
+        database.metricRows = selectMaxData(saved.get(0), 10.0) + " UNION ALL " + selectMaxData(saved.get(1), 20.0);
+
+        CachingDatabase caching = new CachingDatabase();
+
+        caching.setDelegate(database);
+        Database.Static.overrideDefault(caching);
+
+        try {
+            for (MetricRecord record : Query.from(MetricRecord.class).using(caching).selectAll()) {
+                sums.put(record.getId(), record.views.getSum());
+            }
+
+        } finally {
+            Database.Static.restoreDefault();
+        }
+
+        assertEquals(1, database.metricQueries.size());
+        assertEquals(10.0, sums.get(saved.get(0).getId()), 0.0);
+        assertEquals(20.0, sums.get(saved.get(1).getId()), 0.0);
+        assertEquals(0.0, sums.get(saved.get(2).getId()), 0.0);
+    }
+
+    @Test
+    public void eventLogSumsRange() {
+        MetricRecord record = readRecord(saveRecord().getId());
+        DateTime start = new DateTime(2020, 1, 1, 0, 0);
+        DateTime end = new DateTime(2020, 1, 2, 0, 0);
+
+        // 5 was folded into the rows in the range, and 2.5 is still in the
+        // event log, along with 4 before the range.
+        database.setMetricEventLog(true);
+        database.metricRows = select(binary(data(start.plusHours(2).getMillis(), 15.0, 3.0)), binary(data(start.plusHours(1).getMillis(), 12.0, 2.0)), getSymbolId(), binary(record.getId()), "NULL");
+
+        record.views.incrementDimensionAt(2.5, null, start.plusHours(3));
+        record.views.incrementDimensionAt(4.0, null, start.minusHours(1));
+
+        assertEquals(7.5, record.views.getSumBetween(start, end), 0.0);
+        assertEquals(1, database.metricQueries.size());
+
+        String sql = database.metricQueries.get(0);
+
+        assertTrue(sql, sql.contains(" UNION ALL "));
+        assertTrue(sql, sql.contains("FROM `MetricEvent`"));
+    }
+
+    @Test
+    public void eventLogSumsDimension() {
+        MetricRecord record = readRecord(saveRecord().getId());
+        String mobile = UUID.randomUUID().toString();
+        String desktop = UUID.randomUUID().toString();
+        DateTime time = new DateTime(2020, 1, 1, 0, 0);
+
+        // The increments in a dimension are also logged for the sum.
+        database.setMetricEventLog(true);
+        database.metricRows = select(binary(data(time.getMillis(), 4.0, 4.0)), getSymbolId(), binary(record.getId()), "NULL");
+
+        record.views.incrementDimensionAt(1.5, mobile, time);
+        record.views.incrementDimensionAt(2.0, desktop, time);
+        record.views.incrementDimensionAt(1.0, null, time);
+
+        assertEquals(5.5, record.views.getByDimension(mobile), 0.0);
+        assertEquals(8.5, record.views.getSum(), 0.0);
+        assertEquals(2, database.metricQueries.size());
+    }
+
+    @Test
+    public void eventLogSkipsRollupCache() {
+        MetricRecord record = readRecord(saveRecord().getId());
+        DateTime start = new DateTime(2020, 1, 1, 0, 0);
+        DateTime end = new DateTime(2020, 1, 2, 0, 0);
+
+        // The range is closed, so it'd be read from the rollups without the
+        // event log.
+        assertTrue(MetricAccess.ROLLUP_CACHE.isEnabled());
+        database.setMetricEventLog(true);
+        database.metricRows = select(binary(data(end.getMillis(), 3.0, 3.0)), binary(data(start.getMillis(), 1.0, 1.0)), getSymbolId(), binary(record.getId()), "NULL");
+
+        assertEquals(3.0, record.views.getSumBetween(start, end), 0.0);
+        assertEquals(3.0, record.views.getSumBetween(start, end), 0.0);
+
+        assertEquals(2, database.metricQueries.size());
+        assertTrue(MetricAccess.ROLLUP_CACHE.getRollups(record.getId()).isEmpty());
+
+        for (String sql : database.metricQueries) {
+            assertTrue(sql, sql.contains(" UNION ALL "));
+        }
+    }
+
+    // H2 doesn't support the SQL for the Metric table, so the reads from it
+    // are answered with the given rows instead. The events are still read
+    // from the MetricEvent table in the same statement.
+    static class MetricDatabase extends SqlDatabase {
+
+        public final List<String> metricQueries = new CopyOnWriteArrayList<String>();
+        public volatile String metricRows;
+
+        @Override
+        public SqlVendor getMetricVendor() {
+            return new SqlVendor.MySQL();
+        }
+
+        @Override
+        public ResultSet executeQueryBeforeTimeout(Statement statement, String sqlQuery, int timeout) throws SQLException {
+            if (sqlQuery.contains("`Metric`")) {
+                int unionAt = sqlQuery.indexOf(" UNION ALL ");
+
+                metricQueries.add(sqlQuery);
+                return super.executeQueryBeforeTimeout(statement, unionAt > -1 ? metricRows + sqlQuery.substring(unionAt) : metricRows, timeout);
+            }
+
+            return super.executeQueryBeforeTimeout(statement, sqlQuery, timeout);
+        }
+    }
+
+    @LazyLoad
+    public static class MetricRecord extends Record {
+
+        public Metric views;
+    }
+}
@@ -0,0 +1,114 @@
+package com.psddev.dari.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.shyiko.mysql.binlog.BinaryLogClient;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MySQLBinaryLogReaderTest {
+
+    private BinaryLogClient client;
+    private Cache<UUID, Object[]> cache;
+    private MySQLBinaryLogReader reader;
+    private final List<BinaryLogClient.LifecycleListener> listeners = new ArrayList<BinaryLogClient.LifecycleListener>();
+
+    @Before
+    public void before() {
+        client = mock(BinaryLogClient.class);
+        cache = CacheBuilder.newBuilder().build();
+
+        doAnswer(invocation -> listeners.add((BinaryLogClient.LifecycleListener) invocation.getArguments()[0]))
+                .when(client).registerLifecycleListener(any(BinaryLogClient.LifecycleListener.class));
+
+        reader = new MySQLBinaryLogReader(mock(SqlDatabase.class), cache, client, "test");
+        reader.setStartPosition(
+                new MySQLBinaryLogPosition("mysql-bin.000001", 100L),
+                new MySQLBinaryLogPosition("mysql-bin.000009", 200L));
+    }
+
+    // Waits for the connect thread to finish connecting.
+    private void assertConnected() throws InterruptedException {
+        for (long end = System.currentTimeMillis() + 5000L; !reader.isConnected() && System.currentTimeMillis() < end;) {
+            Thread.sleep(10L);
+        }
+
+        assertTrue(reader.isConnected());
+    }
+
+    @Test
+    public void restartWhenResumePositionIsPurged() throws IOException, InterruptedException {
+
+        // Like the real client, the first connect succeeds, but the server
+        // then rejects the resume position, which is only reported to the
+        // lifecycle listeners before connect returns normally.
+        doAnswer(invocation -> {
+            for (BinaryLogClient.LifecycleListener listener : listeners) {
+                listener.onConnect(client);
+            }
+            for (BinaryLogClient.LifecycleListener listener : listeners) {
+                listener.onCommunicationFailure(client, new IOException("Could not find first log file name in binary log index file"));
+            }
+            for (BinaryLogClient.LifecycleListener listener : listeners) {
+                listener.onDisconnect(client);
+            }
+            return null;
+
+        }).doAnswer(invocation -> {
+            for (BinaryLogClient.LifecycleListener listener : listeners) {
+                listener.onConnect(client);
+            }
+            return null;
+
+        }).when(client).connect();
+
+        reader.start();
+
+        verify(client, timeout(5000).times(2)).connect();
+        verify(client).setBinlogFilename(null);
+        verify(client).setBinlogPosition(4);
+        assertConnected();
+        assertNull(reader.getCommittedPosition());
+    }
+
+    @Test
+    public void restartWhenConnectFails() throws IOException, InterruptedException {
+        doThrow(new IOException("Forced failure"))
+                .doAnswer(invocation -> {
+                    for (BinaryLogClient.LifecycleListener listener : listeners) {
+                        listener.onConnect(client);
+                    }
+                    return null;
+                })
+                .when(client).connect();
+
+        reader.start();
+
+        verify(client, timeout(5000).times(2)).connect();
+        verify(client).setBinlogFilename(null);
+        verify(client).setBinlogPosition(4);
+        assertConnected();
+    }
+
+    @Test
+    public void noRestartWhenCaughtUp() throws IOException {
+        doThrow(new IOException("Forced failure")).when(client).connect();
+
+        reader = new MySQLBinaryLogReader(mock(SqlDatabase.class), cache, client, "test");
+        reader.start();
+
+        verify(client, timeout(5000)).connect();
+        verify(client, after(500).times(1)).connect();
+        verify(client, never()).setBinlogPosition(4);
+        assertFalse(reader.isConnected());
+    }
+}
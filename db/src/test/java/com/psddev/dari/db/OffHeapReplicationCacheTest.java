@@ -0,0 +1,246 @@
+package com.psddev.dari.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OffHeapReplicationCacheTest {
+
+    // 4 slabs of 64KB each, and 1024 buckets.
+    private static final long MAXIMUM_WEIGHT = 256L * 1024L;
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int ENTRY_HEADER_SIZE = 36;
+
+    private OffHeapReplicationCache cache;
+
+    @Before
+    public void before() {
+        cache = new OffHeapReplicationCache(MAXIMUM_WEIGHT);
+    }
+
+    private static byte[] createTypeId(int seed) {
+        byte[] typeId = new byte[16];
+        Arrays.fill(typeId, (byte) seed);
+        return typeId;
+    }
+
+    private static byte[] createData(int length, int seed) {
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; ++ i) {
+            data[i] = (byte) (seed + i);
+        }
+
+        return data;
+    }
+
+    private void put(UUID id, int length, int seed) {
+        cache.put(id, new Object[] { createTypeId(seed), createData(length, seed), null });
+    }
+
+    private void assertCached(UUID id, int length, int seed) {
+        Object[] value = cache.getIfPresent(id);
+
+        assertNotNull(id.toString(), value);
+        assertArrayEquals(createTypeId(seed), (byte[]) value[0]);
+        assertArrayEquals(createData(length, seed), (byte[]) value[1]);
+        assertNull(value[2]);
+    }
+
+    // The hash only depends on the most significant bits XOR the least
+    // significant bits, so these all start probing from the same bucket.
+    private static UUID createCollidingId(long i) {
+        return new UUID(i, i);
+    }
+
+    @Test
+    public void putAndGet() {
+        UUID id = UUID.randomUUID();
+
+        put(id, 100, 1);
+
+        assertCached(id, 100, 1);
+        assertNull(cache.getIfPresent(UUID.randomUUID()));
+        assertNull(cache.getIfPresent("foo"));
+        assertEquals(1L, cache.size());
+    }
+
+    @Test
+    public void overwrite() {
+        UUID id = UUID.randomUUID();
+
+        put(id, 100, 1);
+        put(id, 200, 2);
+
+        assertCached(id, 200, 2);
+        assertEquals(1L, cache.size());
+    }
+
+    @Test
+    public void invalidate() {
+        UUID id = UUID.randomUUID();
+
+        put(id, 100, 1);
+        cache.invalidate(id);
+
+        assertNull(cache.getIfPresent(id));
+        assertEquals(0L, cache.size());
+    }
+
+    @Test
+    public void removeAndReinsertColliding() {
+        List<UUID> ids = new ArrayList<UUID>();
+
+        for (int i = 1; i <= 20; ++ i) {
+            UUID id = createCollidingId(i);
+
+            ids.add(id);
+            put(id, 10, i);
+        }
+
+        // Removing from the middle of the probe sequence must keep the
+        // following entries reachable.
+        for (int i = 0; i < 20; i += 3) {
+            cache.invalidate(ids.get(i));
+        }
+
+        for (int i = 0; i < 20; ++ i) {
+            if (i % 3 == 0) {
+                assertNull(cache.getIfPresent(ids.get(i)));
+
+            } else {
+                assertCached(ids.get(i), 10, i + 1);
+            }
+        }
+
+        assertEquals(13L, cache.size());
+
+        for (int i = 0; i < 20; i += 3) {
+            put(ids.get(i), 20, i + 100);
+        }
+
+        for (int i = 0; i < 20; ++ i) {
+            if (i % 3 == 0) {
+                assertCached(ids.get(i), 20, i + 100);
+
+            } else {
+                assertCached(ids.get(i), 10, i + 1);
+            }
+        }
+
+        assertEquals(20L, cache.size());
+    }
+
+    @Test
+    public void evictOldestSlabWhenFull() {
+
+        // 6 entries fit in each slab, so the 25th entry wraps around to the
+        // first slab and evicts the first 6 entries.
+        int length = 10000;
+        List<UUID> ids = new ArrayList<UUID>();
+
+        for (int i = 0; i < 30; ++ i) {
+            UUID id = UUID.randomUUID();
+
+            ids.add(id);
+            put(id, length, i);
+        }
+
+        for (int i = 0; i < 6; ++ i) {
+            assertNull(cache.getIfPresent(ids.get(i)));
+        }
+
+        for (int i = 6; i < 30; ++ i) {
+            assertCached(ids.get(i), length, i);
+        }
+
+        assertEquals(24L, cache.size());
+    }
+
+    @Test
+    public void evictedOverwriteIsGone() {
+        int length = 10000;
+        UUID id = UUID.randomUUID();
+
+        put(id, length, 1);
+
+        // Overwriting in a later slab must not be undone by evicting the
+        // slab with the old entry.
+        for (int i = 0; i < 6; ++ i) {
+            put(UUID.randomUUID(), length, i + 10);
+        }
+
+        put(id, length, 2);
+
+        for (int i = 0; i < 17; ++ i) {
+            put(UUID.randomUUID(), length, i + 20);
+        }
+
+        assertCached(id, length, 2);
+    }
+
+    @Test
+    public void entryLargerThanSlab() {
+        UUID id = UUID.randomUUID();
+
+        put(id, 100, 1);
+        put(id, SLAB_SIZE - ENTRY_HEADER_SIZE + 1, 2);
+
+        assertNull(cache.getIfPresent(id));
+        assertEquals(0L, cache.size());
+
+        put(id, SLAB_SIZE - ENTRY_HEADER_SIZE, 3);
+        assertCached(id, SLAB_SIZE - ENTRY_HEADER_SIZE, 3);
+    }
+
+    @Test
+    public void invalidTypeId() {
+        UUID id = UUID.randomUUID();
+
+        put(id, 100, 1);
+        cache.put(id, new Object[] { new byte[8], createData(100, 2), null });
+
+        assertNull(cache.getIfPresent(id));
+    }
+
+    @Test
+    public void invalidateAll() {
+        UUID id = UUID.randomUUID();
+
+        put(id, 100, 1);
+        cache.invalidateAll();
+
+        assertNull(cache.getIfPresent(id));
+        assertEquals(0L, cache.size());
+
+        put(id, 100, 2);
+        assertCached(id, 100, 2);
+    }
+
+    @Test
+    public void forEachOldestFirst() {
+        List<UUID> ids = new ArrayList<UUID>();
+
+        for (int i = 0; i < 10; ++ i) {
+            UUID id = UUID.randomUUID();
+
+            ids.add(id);
+            put(id, 100, i);
+        }
+
+        // The replaced entry is only visited at its new position.
+        put(ids.get(0), 100, 0);
+        ids.add(ids.remove(0));
+
+        List<UUID> visited = new ArrayList<UUID>();
+
+        cache.forEach((id, value) -> visited.add(id));
+        assertEquals(ids, visited);
+    }
+}
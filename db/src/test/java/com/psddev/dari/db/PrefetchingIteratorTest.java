@@ -0,0 +1,160 @@
+package com.psddev.dari.db;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PrefetchingIteratorTest {
+
+    // Counts up from 0 forever, or until the given limit, and fails with
+    // the given error at the given index.
+    private static class CountingIterator implements Iterator<Integer>, Closeable {
+
+        private final int limit;
+        private final int errorAt;
+        private final RuntimeException error;
+        private final AtomicInteger next = new AtomicInteger();
+        private volatile boolean closed;
+
+        public CountingIterator(int limit, int errorAt, RuntimeException error) {
+            this.limit = limit;
+            this.errorAt = errorAt;
+            this.error = error;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return limit < 0 || next.get() < limit;
+        }
+
+        @Override
+        public Integer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            int value = next.getAndIncrement();
+
+            if (value == errorAt) {
+                throw error;
+            }
+
+            return value;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static PrefetchingIterator<Integer> iterator(CountingIterator delegate, int pageSize, int maximumPages) {
+        return PrefetchingIterator.iterable(() -> delegate, pageSize, maximumPages).iterator();
+    }
+
+    private static void waitUntilClosed(CountingIterator delegate) throws InterruptedException {
+        for (long end = System.currentTimeMillis() + 5000L; !delegate.closed && System.currentTimeMillis() < end;) {
+            Thread.sleep(10L);
+        }
+
+        assertTrue(delegate.closed);
+    }
+
+    @Test
+    public void order() throws InterruptedException {
+        CountingIterator delegate = new CountingIterator(1000, -1, null);
+        List<Integer> expected = new ArrayList<>();
+        List<Integer> actual = new ArrayList<>();
+
+        for (int i = 0; i < 1000; ++ i) {
+            expected.add(i);
+        }
+
+        for (Iterator<Integer> i = iterator(delegate, 7, 2); i.hasNext();) {
+            actual.add(i.next());
+        }
+
+        assertEquals(expected, actual);
+        waitUntilClosed(delegate);
+    }
+
+    @Test
+    public void empty() {
+        PrefetchingIterator<Integer> iterator = iterator(new CountingIterator(0, -1, null), 7, 2);
+
+        assertFalse(iterator.hasNext());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextAfterEnd() {
+        PrefetchingIterator<Integer> iterator = iterator(new CountingIterator(1, -1, null), 7, 2);
+
+        iterator.next();
+        iterator.next();
+    }
+
+    @Test
+    public void errorAfterFullPages() throws InterruptedException {
+        RuntimeException error = new IllegalStateException("Forced failure");
+        CountingIterator delegate = new CountingIterator(100, 10, error);
+        PrefetchingIterator<Integer> iterator = iterator(delegate, 5, 2);
+        List<Integer> actual = new ArrayList<>();
+
+        try {
+            while (iterator.hasNext()) {
+                actual.add(iterator.next());
+            }
+
+            fail();
+
+        } catch (IllegalStateException thrown) {
+            assertSame(error, thrown);
+        }
+
+        // The partial page that was being read when the error happened is
+        // dropped.
+        assertEquals(10, actual.size());
+        assertFalse(iterator.hasNext());
+        waitUntilClosed(delegate);
+    }
+
+    @Test
+    public void errorInFirstPage() {
+        RuntimeException error = new IllegalArgumentException("Forced failure");
+        PrefetchingIterator<Integer> iterator = iterator(new CountingIterator(100, 0, error), 5, 2);
+
+        try {
+            iterator.hasNext();
+            fail();
+
+        } catch (IllegalArgumentException thrown) {
+            assertSame(error, thrown);
+        }
+    }
+
+    @Test
+    public void closeEarly() throws InterruptedException {
+        CountingIterator delegate = new CountingIterator(-1, -1, null);
+        PrefetchingIterator<Integer> iterator = iterator(delegate, 10, 1);
+
+        assertEquals(Integer.valueOf(0), iterator.next());
+        iterator.close();
+        assertFalse(iterator.hasNext());
+
+        // The producer stops reading from the endless delegate.
+        waitUntilClosed(delegate);
+
+        int read = delegate.next.get();
+
+        Thread.sleep(100L);
+        assertEquals(read, delegate.next.get());
+    }
+}
@@ -0,0 +1,31 @@
+package com.psddev.dari.db;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class QueryTest {
+
+    @Test
+    public void hasJoinPlain() {
+        assertFalse(Query.fromAll().hasJoin());
+        assertFalse(Query.fromAll().where("name = ?", "foo").and("count > ?", 1).sortAscending("name").hasJoin());
+    }
+
+    @Test
+    public void hasJoinPath() {
+        assertTrue(Query.fromAll().where("author/name = ?", "foo").hasJoin());
+        assertTrue(Query.fromAll().where("name = ?", "foo").or("author/name = ?", "bar").hasJoin());
+    }
+
+    @Test
+    public void hasJoinPathSorter() {
+        assertTrue(Query.fromAll().where("name = ?", "foo").sortAscending("author/name").hasJoin());
+    }
+
+    @Test
+    public void hasJoinSubQuery() {
+        assertTrue(Query.fromAll().where("author = ?", Query.fromAll().where("name = ?", "foo")).hasJoin());
+    }
+}
@@ -0,0 +1,105 @@
+package com.psddev.dari.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.cache.Cache;
+
+public class ReplicationCacheSnapshotTest {
+
+    private Path path;
+
+    @Before
+    public void before() throws Exception {
+        path = Files.createTempFile("replication-cache", ".snapshot");
+    }
+
+    @After
+    public void after() throws Exception {
+        Files.deleteIfExists(path);
+    }
+
+    private SqlDatabase createCompactDatabase() {
+        SqlDatabase database = new SqlDatabase();
+
+        database.setReplicationCacheCompact(true);
+        database.setReplicationCacheMaximumWeight(1024L * 1024L);
+        database.setReplicationCacheDecodedMaximumSize(100L);
+        return database;
+    }
+
+    private Map<String, Object> createValues(String name) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("name", name);
+        values.put("count", 42L);
+        return values;
+    }
+
+    @Test
+    public void compactRoundTrip() throws Exception {
+        SqlDatabase saving = createCompactDatabase();
+        Cache<UUID, Object[]> savingCache = saving.createReplicationCache();
+        byte[] typeId = new byte[] { 1, 2, 3, 4 };
+        UUID id1 = UUID.randomUUID();
+        UUID id2 = UUID.randomUUID();
+        byte[] data1 = SqlDataFormat.JSON.encode(createValues("foo"));
+        byte[] data2 = SqlDataFormat.BINARY.encode(createValues("bar"));
+
+        savingCache.put(id1, saving.createReplicationCacheValue(typeId, data1, SharedData.freeze(createValues("foo"))));
+        savingCache.put(id2, saving.createReplicationCacheValue(typeId, data2, null));
+        ReplicationCacheSnapshot.write(path, savingCache, new MySQLBinaryLogPosition("mysql-bin.000001", 1234L));
+
+        SqlDatabase loading = createCompactDatabase();
+        Cache<UUID, Object[]> loadingCache = loading.createReplicationCache();
+        MySQLBinaryLogPosition position = ReplicationCacheSnapshot.load(path, loadingCache, loading);
+
+        assertNotNull(position);
+        assertEquals("mysql-bin.000001", position.getFilename());
+        assertEquals(1234L, position.getPosition());
+        assertEquals(2L, loadingCache.size());
+
+        Object[] value1 = loadingCache.getIfPresent(id1);
+        Object[] value2 = loadingCache.getIfPresent(id2);
+
+        assertNotNull(value1);
+        assertNotNull(value2);
+        assertArrayEquals(typeId, (byte[]) value1[0]);
+        assertArrayEquals(data1, (byte[]) value1[1]);
+        assertNull(value1[2]);
+        assertEquals("foo", loading.getReplicationCacheData(value1).get("name"));
+        assertEquals("bar", loading.getReplicationCacheData(value2).get("name"));
+    }
+
+    @Test
+    public void incompleteSnapshotIsIgnored() throws Exception {
+        SqlDatabase saving = createCompactDatabase();
+        Cache<UUID, Object[]> savingCache = saving.createReplicationCache();
+
+        savingCache.put(UUID.randomUUID(), saving.createReplicationCacheValue(new byte[] { 1 }, SqlDataFormat.JSON.encode(createValues("foo")), null));
+        ReplicationCacheSnapshot.write(path, savingCache, new MySQLBinaryLogPosition("mysql-bin.000001", 1234L));
+
+        byte[] bytes = Files.readAllBytes(path);
+        byte[] truncated = new byte[bytes.length - 8];
+
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        Files.write(path, truncated);
+
+        SqlDatabase loading = createCompactDatabase();
+        Cache<UUID, Object[]> loadingCache = loading.createReplicationCache();
+
+        assertNull(ReplicationCacheSnapshot.load(path, loadingCache, loading));
+        assertEquals(0L, loadingCache.size());
+    }
+}
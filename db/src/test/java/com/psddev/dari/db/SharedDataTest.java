@@ -0,0 +1,58 @@
+package com.psddev.dari.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SharedDataTest {
+
+    private Map<String, Object> createData() {
+        Map<String, Object> reference = new LinkedHashMap<String, Object>();
+        reference.put("_ref", "0000015a-1b2c-d3e4-a5f6-7a8b9c0d1e2f");
+
+        List<Object> list = new ArrayList<Object>();
+        list.add(reference);
+        list.add("item");
+
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("list", list);
+        data.put("number", 1L);
+        return data;
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void freezeNested() {
+        Map<String, Object> frozen = SharedData.freeze(createData());
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> reference = (Map<String, Object>) ((List<Object>) frozen.get("list")).get(0);
+
+        reference.put("_ref", null);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shareCopiesOnWrite() {
+        Map<String, Object> frozen = SharedData.freeze(createData());
+        Map<String, Object> expected = createData();
+        Map<String, Object> shared = SharedData.share(frozen);
+
+        assertEquals(expected, shared);
+
+        List<Object> list = (List<Object>) shared.get("list");
+
+        ((Map<String, Object>) list.get(0)).put("_ref", "changed");
+        list.add("added");
+        shared.put("number", 2L);
+
+        assertNotEquals(expected, shared);
+        assertEquals(expected, frozen);
+        assertEquals(expected, SharedData.share(frozen));
+    }
+}
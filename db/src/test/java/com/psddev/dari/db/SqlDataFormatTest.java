@@ -0,0 +1,149 @@
+package com.psddev.dari.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SqlDataFormatTest {
+
+    private Map<String, Object> createValues() {
+        Map<String, Object> reference = new LinkedHashMap<String, Object>();
+        reference.put("_ref", "0000015a-1b2c-d3e4-a5f6-7a8b9c0d1e2f");
+        reference.put("_type", "0000015a-1b2c-d3e4-a5f6-000000000001");
+
+        List<Object> list = new ArrayList<Object>();
+        list.add(reference);
+        list.add(new LinkedHashMap<String, Object>(reference));
+        list.add(null);
+
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("_id", "0000015a-1b2c-d3e4-a5f6-7a8b9c0d1e2f");
+        values.put("_type", "0000015a-1b2c-d3e4-a5f6-000000000001");
+        values.put("name", "Caf\u00e9 \u2603");
+        values.put("long", 1234567890123L);
+        values.put("negative", -42);
+        values.put("double", 3.25);
+        values.put("float", 1.5f);
+        values.put("big", new BigDecimal("12345678901234567890.5"));
+        values.put("bigInteger", new BigInteger("123456789012345678901234567890"));
+        values.put("true", Boolean.TRUE);
+        values.put("false", Boolean.FALSE);
+        values.put("null", null);
+        values.put("list", list);
+        values.put("array", new String[] { "a", "b" });
+        values.put("empty", new LinkedHashMap<String, Object>());
+
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 100; ++ i) {
+            longString.append("long string ");
+        }
+        values.put("longString", longString.toString());
+        values.put("longString2", longString.toString());
+
+        return values;
+    }
+
+    @Test
+    public void binaryMatchesJson() {
+        Map<String, Object> values = createValues();
+        Map<String, Object> fromJson = SqlDataFormat.JSON.decode(SqlDataFormat.JSON.encode(values));
+        Map<String, Object> fromBinary = SqlDataFormat.BINARY.decode(SqlDataFormat.BINARY.encode(values));
+
+        assertEquals(new BigDecimal("12345678901234567890.5"), fromBinary.remove("big"));
+        assertEquals(new BigInteger("123456789012345678901234567890"), fromBinary.remove("bigInteger"));
+        assertEquals("12345678901234567890.5", fromJson.remove("big"));
+        assertEquals("123456789012345678901234567890", fromJson.remove("bigInteger"));
+        assertEquals(fromJson, fromBinary);
+        assertEquals(Long.class, fromBinary.get("negative").getClass());
+        assertEquals(Double.class, fromBinary.get("float").getClass());
+        assertEquals(Arrays.asList("a", "b"), fromBinary.get("array"));
+    }
+
+    @Test
+    public void binaryBigNumbersInList() {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("numbers", Arrays.asList(new BigDecimal("-0.000000000000000000001"), BigInteger.TEN.pow(30)));
+
+        assertEquals(values, SqlDataFormat.BINARY.decode(SqlDataFormat.BINARY.encode(values)));
+    }
+
+    @Test
+    public void decodeAnyFormat() {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("name", "foo");
+
+        assertEquals(values, SqlDataFormat.Static.decode(SqlDataFormat.JSON.encode(values)));
+        assertEquals(values, SqlDataFormat.Static.decode(SqlDataFormat.BINARY.encode(values)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void decodeUnknownFormat() {
+        SqlDataFormat.Static.decode(new byte[] { 'x' });
+    }
+
+    @Test
+    public void binaryIsSmaller() {
+        Map<String, Object> values = createValues();
+
+        assertTrue(SqlDataFormat.BINARY.encode(values).length < SqlDataFormat.JSON.encode(values).length);
+    }
+
+    @Test
+    public void binaryCycle() {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("self", values);
+
+        assertNull(SqlDataFormat.BINARY.decode(SqlDataFormat.BINARY.encode(values)).get("self"));
+    }
+
+    @Test
+    public void registry() {
+        assertSame(SqlDataFormat.JSON, SqlDataFormat.Static.getByPrefix((byte) '{'));
+        assertSame(SqlDataFormat.BINARY, SqlDataFormat.Static.getByPrefix((byte) 'b'));
+        assertSame(SqlDataFormat.BINARY, SqlDataFormat.Static.getByName("Binary"));
+        assertNull(SqlDataFormat.Static.getByPrefix(SqlDataFormat.SNAPPY_PREFIX));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registerConflictingPrefix() {
+        SqlDataFormat.Static.register(new SqlDataFormat.Json() {
+
+            @Override
+            public String getName() {
+                return "conflicting";
+            }
+
+            @Override
+            public byte getPrefix() {
+                return 'b';
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registerSnappyPrefix() {
+        SqlDataFormat.Static.register(new SqlDataFormat.Json() {
+
+            @Override
+            public String getName() {
+                return "snappy";
+            }
+
+            @Override
+            public byte getPrefix() {
+                return SqlDataFormat.SNAPPY_PREFIX;
+            }
+        });
+    }
+}
@@ -0,0 +1,581 @@
+package com.psddev.dari.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.psddev.dari.util.UuidUtils;
+
+public class SqlDatabaseTest {
+
+    private SqlDatabase database;
+
+    @Before
+    public void before() {
+        database = createDatabase(Collections.<String, Object>emptyMap());
+    }
+
+    private static SqlDatabase createDatabase(Map<String, Object> extraSettings) {
+        return initializeDatabase(new SqlDatabase(), extraSettings);
+    }
+
+    private static <D extends SqlDatabase> D initializeDatabase(D database, Map<String, Object> extraSettings) {
+        String name = UuidUtils.createSequentialUuid().toString().replaceAll("-", "");
+        Map<String, Object> settings = new HashMap<String, Object>();
+
+        settings.put(SqlDatabase.JDBC_URL_SETTING, "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        settings.put(SqlDatabase.PARAMETERIZED_QUERIES_SUB_SETTING, Boolean.TRUE);
+        settings.put(SqlDatabase.BATCH_WRITES_SUB_SETTING, Boolean.TRUE);
+        settings.put(SqlDatabase.DIFF_INDEXES_SUB_SETTING, Boolean.TRUE);
+        settings.putAll(extraSettings);
+
+        database.setName("JUnit Test SQL DB " + name);
+        database.doInitialize(null, settings);
+        return database;
+    }
+
+    @After
+    public void after() {
+        database.close();
+    }
+
+    private void assertInlined(String sqlQuery, UUID id) {
+        assertEquals(sqlQuery, -1, sqlQuery.indexOf('\u0000'));
+        assertTrue(sqlQuery, sqlQuery.contains(id.toString()));
+    }
+
+    @Test
+    public void parameterizedStatementsAreInlined() {
+        UUID id = UUID.randomUUID();
+        Query<Object> query = Query.fromAll().where("_id = ?", id);
+
+        assertTrue(database.isParameterizedQueries());
+        assertInlined(database.buildSelectStatement(query), id);
+        assertInlined(database.buildCountStatement(query), id);
+        assertInlined(database.buildDeleteStatement(query), id);
+        assertInlined(database.buildLastUpdateStatement(query), id);
+        assertInlined(database.buildGroupStatement(query, "_type"), id);
+    }
+
+    @Test
+    public void parameterizedQueriesExecute() {
+        Query<Object> query = Query.fromAll().where("_type = ?", UUID.randomUUID()).using(database);
+
+        assertEquals(0L, query.count());
+        assertTrue(query.selectAll().isEmpty());
+        assertTrue(query.select(0, 10).getItems().isEmpty());
+    }
+
+    private WriteRecord createRecord(String name, String tag) {
+        WriteRecord record = new WriteRecord();
+
+        record.getState().setDatabase(database);
+        record.name = name;
+        record.tag = tag;
+        return record;
+    }
+
+    private WriteRecord readRecord(UUID id) {
+        return Query.from(WriteRecord.class).where("_id = ?", id).using(database).noCache().first();
+    }
+
+    // Saves all given records at once, so that they go through the batch
+    // path in doSaves.
+    private void saveAll(List<WriteRecord> records) {
+        database.beginWrites();
+
+        try {
+            for (WriteRecord record : records) {
+                record.save();
+            }
+
+            database.commitWrites();
+
+        } finally {
+            database.endWrites();
+        }
+    }
+
+    @Test
+    public void batchWithAtomicOperation() {
+        WriteRecord existing = createRecord("existing", "foo");
+
+        existing.save();
+
+        WriteRecord incremented = readRecord(existing.getId());
+        WriteRecord created = createRecord("created", "bar");
+
+        incremented.getState().incrementAtomically("number", 2);
+        saveAll(Arrays.asList(incremented, created));
+
+        assertEquals(2, readRecord(existing.getId()).number);
+        assertEquals("created", readRecord(created.getId()).name);
+        assertEquals(2L, Query.from(WriteRecord.class).using(database).noCache().count());
+    }
+
+    @Test
+    public void batchWithDuplicateKeyFallsBack() {
+        WriteRecord existing = createRecord("before", "foo");
+
+        existing.save();
+
+        // A new state with the ID of a saved row fails the batch insert, so
+        // the whole batch is saved one at a time instead.
+        WriteRecord duplicate = createRecord("after", "bar");
+        WriteRecord created = createRecord("created", "baz");
+
+        duplicate.getState().setId(existing.getId());
+        saveAll(Arrays.asList(duplicate, created));
+
+        assertEquals("after", readRecord(existing.getId()).name);
+        assertEquals("created", readRecord(created.getId()).name);
+        assertEquals(2L, Query.from(WriteRecord.class).using(database).noCache().count());
+        assertNull(Query.from(WriteRecord.class).where("name = ?", "before").using(database).noCache().first());
+        assertEquals(existing.getId(), Query.from(WriteRecord.class).where("tag = ?", "bar").using(database).noCache().first().getId());
+    }
+
+    @Test
+    public void updateOneIndexedField() {
+        WriteRecord record = createRecord("before", "foo");
+
+        record.save();
+
+        WriteRecord updated = readRecord(record.getId());
+
+        updated.name = "after";
+        updated.save();
+
+        assertNull(Query.from(WriteRecord.class).where("name = ?", "before").using(database).noCache().first());
+        assertEquals(record.getId(), Query.from(WriteRecord.class).where("name = ?", "after").using(database).noCache().first().getId());
+        assertEquals(record.getId(), Query.from(WriteRecord.class).where("tag = ?", "foo").using(database).noCache().first().getId());
+    }
+
+    // Recreates the database so that the results of at least 2 rows are
+    // decoded in parallel.
+    private Map<UUID, WriteRecord> saveForParallelDecode() {
+        Map<String, Object> settings = new HashMap<String, Object>();
+
+        settings.put(SqlDatabase.PARALLEL_DECODE_THRESHOLD_SUB_SETTING, 2);
+        settings.put(SqlDatabase.PARALLEL_DECODE_THREADS_SUB_SETTING, 4);
+        database.close();
+        database = createDatabase(settings);
+
+        List<WriteRecord> records = new ArrayList<WriteRecord>();
+
+        for (int i = 0; i < 50; ++ i) {
+            WriteRecord record = createRecord(String.format("name%02d", i), "tag" + (i % 3));
+
+            record.number = i;
+            records.add(record);
+        }
+
+        // The first one is saved on its own, so that the type is saved
+        // before the batch.
+        records.get(0).save();
+        saveAll(records.subList(1, records.size()));
+
+        Map<UUID, WriteRecord> recordsById = new HashMap<UUID, WriteRecord>();
+
+        for (WriteRecord record : records) {
+            recordsById.put(record.getId(), record);
+        }
+
+        return recordsById;
+    }
+
+    // Compares against a reference only read of the same rows, which is
+    // never decoded in parallel, and against a read of each row on its own.
+    // The query isn't sorted, since a sort adds a column, which also keeps
+    // the rows from being decoded in parallel.
+    private void assertParallelDecode(Map<UUID, WriteRecord> records) {
+        List<WriteRecord> read = Query.from(WriteRecord.class)
+                .using(database)
+                .noCache()
+                .option(SqlDatabase.RETURN_ORIGINAL_DATA_QUERY_OPTION, Boolean.TRUE)
+                .selectAll();
+
+        List<WriteRecord> references = Query.from(WriteRecord.class)
+                .using(database)
+                .noCache()
+                .referenceOnly()
+                .selectAll();
+
+        assertEquals(records.size(), read.size());
+        assertEquals(records.size(), references.size());
+
+        for (int i = 0, size = read.size(); i < size; ++ i) {
+            WriteRecord actual = read.get(i);
+            WriteRecord expected = records.get(actual.getId());
+            byte[] originalData = (byte[]) actual.getState().getExtra(SqlDatabase.ORIGINAL_DATA_EXTRA);
+
+            assertEquals(references.get(i).getId(), actual.getId());
+            assertNotNull(expected);
+            assertEquals(expected.name, actual.name);
+            assertEquals(expected.tag, actual.tag);
+            assertEquals(expected.number, actual.number);
+            assertNotNull(originalData);
+            assertArrayEquals(originalData, (byte[]) readRecordWithOriginalData(expected).getState().getExtra(SqlDatabase.ORIGINAL_DATA_EXTRA));
+        }
+    }
+
+    private WriteRecord readRecordWithOriginalData(WriteRecord record) {
+        return Query.from(WriteRecord.class)
+                .where("_id = ?", record.getId())
+                .using(database)
+                .noCache()
+                .option(SqlDatabase.RETURN_ORIGINAL_DATA_QUERY_OPTION, Boolean.TRUE)
+                .first();
+    }
+
+    @Test
+    public void parallelDecodeKeepsOrderAndOriginalData() {
+        assertParallelDecode(saveForParallelDecode());
+    }
+
+    @Test
+    public void parallelDecodeAfterThreadsChange() {
+        Map<UUID, WriteRecord> records = saveForParallelDecode();
+
+        // The executor keeps the thread count that it was created with.
+        database.setParallelDecodeThreads(0);
+        assertParallelDecode(records);
+
+        database.setParallelDecodeThreads(100);
+        assertParallelDecode(records);
+    }
+
+    private long countApproximately() {
+        return Query.from(WriteRecord.class)
+                .using(database)
+                .noCache()
+                .option(SqlDatabase.APPROXIMATE_COUNT_QUERY_OPTION, Boolean.TRUE)
+                .count();
+    }
+
+    private EstimatingVendor useEstimatingVendor(Long estimate) {
+        EstimatingVendor vendor = new EstimatingVendor();
+
+        vendor.setDatabase(database);
+        vendor.estimate = estimate;
+        database.setVendor(vendor);
+        return vendor;
+    }
+
+    @Test
+    public void approximateCountWithoutEstimateIsExact() {
+        createRecord("first", "tag").save();
+        assertEquals(1L, countApproximately());
+
+        createRecord("second", "tag").save();
+        assertEquals(2L, countApproximately());
+    }
+
+    @Test
+    public void approximateCountBelowThresholdIsExact() {
+        useEstimatingVendor(SqlDatabase.DEFAULT_APPROXIMATE_COUNT_THRESHOLD - 1);
+
+        createRecord("first", "tag").save();
+        assertEquals(1L, countApproximately());
+
+        createRecord("second", "tag").save();
+        assertEquals(2L, countApproximately());
+    }
+
+    @Test
+    public void approximateCountCachesEstimate() {
+        EstimatingVendor vendor = useEstimatingVendor(SqlDatabase.DEFAULT_APPROXIMATE_COUNT_THRESHOLD);
+
+        createRecord("first", "tag").save();
+        assertEquals(SqlDatabase.DEFAULT_APPROXIMATE_COUNT_THRESHOLD, countApproximately());
+
+        vendor.estimate = SqlDatabase.DEFAULT_APPROXIMATE_COUNT_THRESHOLD * 2;
+        assertEquals(SqlDatabase.DEFAULT_APPROXIMATE_COUNT_THRESHOLD, countApproximately());
+    }
+
+    // H2 doesn't estimate the counts at all.
+    static class EstimatingVendor extends SqlVendor.H2 {
+
+        public volatile Long estimate;
+
+        @Override
+        public Long estimateCount(Connection connection, String sqlQuery) {
+            return estimate;
+        }
+    }
+
+    private Map<String, WriteRecord> saveForConcurrentOr(SqlDatabase concurrentDatabase) {
+        database.close();
+        database = concurrentDatabase;
+
+        Map<String, WriteRecord> records = new HashMap<String, WriteRecord>();
+
+        for (String name : Arrays.asList("first", "second")) {
+            WriteRecord record = createRecord(name, "tag");
+
+            record.save();
+            records.put(name, record);
+        }
+
+        return records;
+    }
+
+    private WriteRecord readFirstConcurrently(Object... names) {
+        return Query.from(WriteRecord.class)
+                .where("name = ? or name = ?", names)
+                .using(database)
+                .noCache()
+                .option(SqlDatabase.CONCURRENT_OR_QUERY_OPTION, Boolean.TRUE)
+                .first();
+    }
+
+    private static Map<String, Object> concurrentQueryThreads(int threads) {
+        return Collections.<String, Object>singletonMap(SqlDatabase.CONCURRENT_QUERY_THREADS_SUB_SETTING, threads);
+    }
+
+    @Test
+    public void concurrentOrKeepsBranchOrder() {
+        Map<String, WriteRecord> records = saveForConcurrentOr(createDatabase(concurrentQueryThreads(4)));
+
+        assertEquals(records.get("first").getId(), readFirstConcurrently("first", "second").getId());
+        assertEquals(records.get("second").getId(), readFirstConcurrently("second", "first").getId());
+        assertEquals(records.get("second").getId(), readFirstConcurrently("none", "second").getId());
+        assertNull(readFirstConcurrently("none", "other"));
+    }
+
+    @Test
+    public void concurrentOrUsesCallerDatabase() {
+        Map<String, WriteRecord> records = saveForConcurrentOr(createDatabase(concurrentQueryThreads(4)));
+
+        // The branches are read in other threads, which don't see the
+        // default database override. Reading from the database directly
+        // leaves the database unresolved in the query.
+        Database.Static.overrideDefault(database);
+
+        try {
+            WriteRecord first = database.readFirst(Query.from(WriteRecord.class)
+                    .where("name = ? or name = ?", "none", "second")
+                    .noCache()
+                    .option(SqlDatabase.CONCURRENT_OR_QUERY_OPTION, Boolean.TRUE));
+
+            assertEquals(records.get("second").getId(), first.getId());
+            assertSame(database, first.getState().getDatabase());
+
+        } finally {
+            Database.Static.restoreDefault();
+        }
+    }
+
+    @Test
+    public void concurrentOrCancelsSlowerBranches() throws Exception {
+        BranchDatabase branchDatabase = initializeDatabase(new BranchDatabase(), concurrentQueryThreads(4));
+        Map<String, WriteRecord> records = saveForConcurrentOr(branchDatabase);
+
+        branchDatabase.createSlowBranchAlias();
+        branchDatabase.threads.clear();
+
+        assertEquals(records.get("first").getId(), readFirstConcurrently("first", BranchDatabase.SLOW_NAME).getId());
+        assertTrue(branchDatabase.slowCancelled.await(10, TimeUnit.SECONDS));
+        assertFalse(branchDatabase.threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void concurrentOrWithoutThreadsIsSequential() {
+        BranchDatabase branchDatabase = initializeDatabase(new BranchDatabase(), concurrentQueryThreads(1));
+        Map<String, WriteRecord> records = saveForConcurrentOr(branchDatabase);
+
+        branchDatabase.threads.clear();
+
+        assertEquals(records.get("second").getId(), readFirstConcurrently("none", "second").getId());
+        assertEquals(Collections.singleton(Thread.currentThread()), branchDatabase.threads);
+    }
+
+    @Test
+    public void concurrentOrWithConnectionIsSequential() {
+        BranchDatabase branchDatabase = initializeDatabase(new BranchDatabase(), concurrentQueryThreads(4));
+        Map<String, WriteRecord> records = saveForConcurrentOr(branchDatabase);
+        Connection connection = database.openConnection();
+
+        try {
+            branchDatabase.threads.clear();
+
+            WriteRecord first = Query.from(WriteRecord.class)
+                    .where("name = ? or name = ?", "none", "second")
+                    .using(database)
+                    .noCache()
+                    .option(SqlDatabase.CONCURRENT_OR_QUERY_OPTION, Boolean.TRUE)
+                    .option(SqlDatabase.CONNECTION_QUERY_OPTION, connection)
+                    .first();
+
+            assertEquals(records.get("second").getId(), first.getId());
+            assertEquals(Collections.singleton(Thread.currentThread()), branchDatabase.threads);
+
+        } finally {
+            database.closeConnection(connection);
+        }
+    }
+
+    private static Map<String, Object> queryResultCacheSettings() {
+        Map<String, Object> settings = new HashMap<String, Object>();
+
+        settings.put(SqlDatabase.ENABLE_REPLICATION_CACHE_SUB_SETTING, Boolean.TRUE);
+        settings.put(SqlDatabase.ENABLE_QUERY_RESULT_CACHE_SUB_SETTING, Boolean.TRUE);
+        return settings;
+    }
+
+    private static SqlQueryResultCache.Versions getQueryResultVersions(SqlDatabase database, Class<?> objectClass) {
+        return database.getQueryResultCache().getVersions(Collections.singleton(database.getEnvironment().getTypeByClass(objectClass).getId()));
+    }
+
+    @Test
+    public void typeChangeInvalidatesPreviousTypeQueryResults() {
+        SqlDatabase cacheDatabase = createDatabase(queryResultCacheSettings());
+        WriteRecord record = new WriteRecord();
+
+        record.getState().setDatabase(cacheDatabase);
+        record.save();
+
+        WriteRecord loaded = Query.from(WriteRecord.class).where("_id = ?", record.getId()).using(cacheDatabase).noCache().first();
+        SqlQueryResultCache.Versions versions = getQueryResultVersions(cacheDatabase, WriteRecord.class);
+
+        loaded.getState().setTypeId(cacheDatabase.getEnvironment().getTypeByClass(OtherWriteRecord.class).getId());
+        loaded.save();
+
+        assertFalse(versions.isCurrent());
+    }
+
+    @Test
+    public void commitInvalidatesQueryResults() {
+        InvalidatingDatabase cacheDatabase = initializeDatabase(new InvalidatingDatabase(), queryResultCacheSettings());
+        WriteRecord record = new WriteRecord();
+
+        record.getState().setDatabase(cacheDatabase);
+        cacheDatabase.capturedId = record.getId();
+        record.save();
+
+        assertNotNull(cacheDatabase.uncommittedVersions);
+        assertFalse(cacheDatabase.uncommittedVersions.isCurrent());
+    }
+
+    private static final AtomicReference<CountDownLatch> SLOW_STARTED = new AtomicReference<CountDownLatch>();
+
+    /**
+     * Called from H2 while the slow branch is running, so that the other
+     * branches can wait until it can be cancelled.
+     */
+    public static int slowBranchStarted() {
+        SLOW_STARTED.get().countDown();
+        return 1;
+    }
+
+    // Records the threads that the queries are executed in, and replaces
+    // the branch that looks for the slow name with a query that only stops
+    // when it's cancelled.
+    static class BranchDatabase extends SqlDatabase {
+
+        public static final String SLOW_NAME = "slow";
+
+        public final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        public final CountDownLatch slowCancelled = new CountDownLatch(1);
+        private final CountDownLatch slowStarted = new CountDownLatch(1);
+
+        public void createSlowBranchAlias() throws SQLException {
+            Connection connection = openConnection();
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE ALIAS SLOW_BRANCH_STARTED FOR \"" + SqlDatabaseTest.class.getName() + ".slowBranchStarted\"");
+
+            } finally {
+                closeConnection(connection);
+            }
+
+            SLOW_STARTED.set(slowStarted);
+        }
+
+        @Override
+        protected Statement createQueryStatement(Connection connection, String sqlQuery) throws SQLException {
+            return sqlQuery.contains(SLOW_NAME)
+                    ? connection.prepareStatement("SELECT COUNT(*) FROM SYSTEM_RANGE(1, 1000000000000) WHERE SLOW_BRANCH_STARTED() = 1")
+                    : super.createQueryStatement(connection, sqlQuery);
+        }
+
+        @Override
+        public ResultSet executeQueryBeforeTimeout(Statement statement, String sqlQuery, int timeout) throws SQLException {
+            threads.add(Thread.currentThread());
+
+            if (!sqlQuery.contains(SLOW_NAME)) {
+                if (sqlQuery.contains("first")) {
+                    try {
+                        slowStarted.await(10, TimeUnit.SECONDS);
+
+                    } catch (InterruptedException error) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                return super.executeQueryBeforeTimeout(statement, sqlQuery, timeout);
+            }
+
+            try {
+                return super.executeQueryBeforeTimeout(statement, sqlQuery, timeout);
+
+            } catch (SQLException error) {
+                slowCancelled.countDown();
+                throw error;
+            }
+        }
+    }
+
+    // Takes the query result versions after the rows are written but before
+    // they're committed, like a concurrent read would.
+    static class InvalidatingDatabase extends SqlDatabase {
+
+        public volatile UUID capturedId;
+        public volatile SqlQueryResultCache.Versions uncommittedVersions;
+
+        @Override
+        protected void doSaves(Connection connection, boolean isImmediate, List<State> states) throws SQLException {
+            super.doSaves(connection, isImmediate, states);
+
+            if (states.get(0).getId().equals(capturedId)) {
+                uncommittedVersions = getQueryResultVersions(this, WriteRecord.class);
+            }
+        }
+    }
+
+    static class OtherWriteRecord extends Record {
+
+        @Indexed String name;
+    }
+
+    static class WriteRecord extends Record {
+
+        @Indexed String name;
+        @Indexed String tag;
+        int number;
+    }
+}
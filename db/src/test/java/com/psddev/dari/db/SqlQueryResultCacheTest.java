@@ -0,0 +1,101 @@
+package com.psddev.dari.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SqlQueryResultCacheTest {
+
+    private static final List<Object> KEY = Arrays.<Object>asList("select", "key");
+    private static final List<UUID> IDS = Collections.singletonList(UUID.randomUUID());
+
+    private SqlQueryResultCache cache;
+    private UUID typeId;
+    private UUID otherTypeId;
+
+    @Before
+    public void before() {
+        cache = new SqlQueryResultCache(1024L * 1024L, 60L);
+        typeId = UUID.randomUUID();
+        otherTypeId = UUID.randomUUID();
+    }
+
+    private SqlQueryResultCache.Versions getTypeVersions() {
+        return cache.getVersions(Collections.singleton(typeId));
+    }
+
+    @Test
+    public void putAndGet() {
+        cache.put(KEY, getTypeVersions(), IDS);
+
+        assertEquals(IDS, cache.get(KEY));
+        assertNull(cache.get(Arrays.<Object>asList("select", "other")));
+    }
+
+    @Test
+    public void invalidateTypeMakesResultStale() {
+        cache.put(KEY, getTypeVersions(), IDS);
+        cache.invalidateType(typeId);
+
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void invalidateOtherTypeKeepsResult() {
+        cache.put(KEY, getTypeVersions(), IDS);
+        cache.invalidateType(otherTypeId);
+
+        assertEquals(IDS, cache.get(KEY));
+    }
+
+    @Test
+    public void invalidateTypeBeforePutRejectsResult() {
+        SqlQueryResultCache.Versions versions = getTypeVersions();
+
+        // A save while the query is running.
+        cache.invalidateType(typeId);
+        cache.put(KEY, versions, IDS);
+
+        assertFalse(versions.isCurrent());
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void invalidateAnyTypeMakesAllTypesResultStale() {
+        SqlQueryResultCache.Versions versions = cache.getVersions(null);
+
+        cache.put(KEY, versions, IDS);
+        cache.invalidateType(otherTypeId);
+
+        assertFalse(versions.isCurrent());
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void invalidateNullTypeMakesAllResultsStale() {
+        SqlQueryResultCache.Versions versions = getTypeVersions();
+
+        cache.put(KEY, versions, IDS);
+        cache.invalidateType(null);
+
+        assertFalse(versions.isCurrent());
+        assertNull(cache.get(KEY));
+    }
+
+    @Test
+    public void invalidateAllRemovesResults() {
+        SqlQueryResultCache.Versions versions = getTypeVersions();
+
+        cache.put(KEY, versions, IDS);
+        cache.invalidateAll();
+
+        assertFalse(versions.isCurrent());
+        assertNull(cache.get(KEY));
+    }
+}
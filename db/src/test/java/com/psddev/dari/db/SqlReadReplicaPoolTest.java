@@ -0,0 +1,273 @@
+package com.psddev.dari.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SqlReadReplicaPoolTest {
+
+    private SqlReadReplicaPool.Replica first;
+    private SqlReadReplicaPool.Replica second;
+    private SqlReadReplicaPool pool;
+
+    @Before
+    public void before() {
+        first = new SqlReadReplicaPool.Replica("first", mock(DataSource.class), 1.0);
+        second = new SqlReadReplicaPool.Replica("second", mock(DataSource.class), 1.0);
+        pool = new SqlReadReplicaPool(mock(SqlDatabase.class), Arrays.asList(first, second), 0L, null);
+    }
+
+    @After
+    public void after() {
+        pool.close();
+    }
+
+    // Picks many times to make sure that the random choice can only ever
+    // land on the expected replicas.
+    private Set<SqlReadReplicaPool.Replica> pickAll(long maximumLag, long writeTime, SqlReadReplicaPool.Replica... excluded) {
+        Set<SqlReadReplicaPool.Replica> picked = new HashSet<>();
+
+        for (int i = 0; i < 100; ++ i) {
+            picked.add(pool.pick(maximumLag, writeTime, excluded.length > 0 ? Arrays.asList(excluded) : null));
+        }
+
+        return picked;
+    }
+
+    @Test
+    public void pickAny() {
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), pickAll(-1L, 0L));
+    }
+
+    @Test
+    public void pickExcluded() {
+        assertEquals(Collections.singleton(second), pickAll(-1L, 0L, first));
+        assertEquals(Collections.singleton(null), pickAll(-1L, 0L, first, second));
+    }
+
+    @Test
+    public void pickEjected() {
+        for (int i = 0; i < 3; ++ i) {
+            first.recordFailure();
+        }
+
+        assertTrue(first.isEjected());
+        assertEquals(Collections.singleton(second), pickAll(-1L, 0L));
+
+        first.recordSuccess(1.0, 0L);
+
+        assertFalse(first.isEjected());
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), pickAll(-1L, 0L));
+    }
+
+    @Test
+    public void pickWithinLag() {
+        first.recordSuccess(1.0, 1L);
+        second.recordSuccess(1.0, 10L);
+
+        assertEquals(Collections.singleton(first), pickAll(5L, 0L));
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), pickAll(10L, 0L));
+        assertEquals(Collections.singleton(null), pickAll(0L, 0L));
+    }
+
+    @Test
+    public void pickUnknownLag() {
+        second.recordSuccess(1.0, 0L);
+
+        assertNull(first.getLag());
+        assertEquals(Collections.singleton(second), pickAll(5L, 0L));
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), pickAll(-1L, 0L));
+    }
+
+    @Test
+    public void pickCaughtUpToWrite() {
+
+        // Lag is only known in whole seconds, so a write is only visible
+        // on a replica with no lag once a second or so has passed.
+        long writeTime = System.currentTimeMillis() - 5000L;
+
+        first.recordSuccess(1.0, 0L);
+        second.recordSuccess(1.0, 10L);
+
+        assertEquals(Collections.singleton(first), pickAll(-1L, writeTime));
+        assertEquals(Collections.singleton(null), pickAll(-1L, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void pickNeverCheckedForWrite() {
+        assertEquals(Collections.singleton(null), pickAll(-1L, 1L));
+    }
+
+    @Test
+    public void caughtUpToIsKeptWhenLagIsUnknown() {
+        long writeTime = System.currentTimeMillis() - 5000L;
+
+        first.recordSuccess(1.0, 0L);
+        first.recordSuccess(1.0, null);
+
+        assertNull(first.getLag());
+        assertTrue(first.isCaughtUpTo(writeTime));
+        assertEquals(Collections.singleton(first), pickAll(-1L, writeTime));
+    }
+
+    @Test
+    public void pickPrefersFasterReplica() {
+        first.recordSuccess(1.0, 0L);
+        second.recordSuccess(1000.0, 0L);
+
+        int firstCount = 0;
+
+        for (int i = 0; i < 1000; ++ i) {
+            if (pool.pick(-1L, 0L, null) == first) {
+                ++ firstCount;
+            }
+        }
+
+        assertTrue(String.valueOf(firstCount), firstCount > 900);
+    }
+
+    private static Connection createConnection(DataSource dataSource, boolean valid) throws SQLException {
+        Connection connection = mock(Connection.class);
+
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.isValid(anyInt())).thenReturn(valid);
+        return connection;
+    }
+
+    private static SqlReadReplicaPool createPool(SqlReadReplicaPool.Replica replica, SqlVendor vendor, String lagQuery) {
+        SqlDatabase database = mock(SqlDatabase.class);
+
+        when(database.getVendor()).thenReturn(vendor);
+        return new SqlReadReplicaPool(database, Collections.singletonList(replica), 0L, lagQuery);
+    }
+
+    @Test
+    public void checkLagQuery() throws SQLException {
+        Connection connection = createConnection(first.getDataSource(), true);
+        Statement statement = mock(Statement.class);
+        ResultSet result = mock(ResultSet.class);
+
+        when(connection.createStatement()).thenReturn(statement);
+        when(statement.executeQuery("SELECT lag")).thenReturn(result);
+        when(result.next()).thenReturn(true);
+        when(result.getLong(1)).thenReturn(3L);
+
+        SqlReadReplicaPool lagPool = createPool(first, null, "SELECT lag");
+
+        lagPool.check(first);
+        lagPool.close();
+
+        assertEquals(Long.valueOf(3L), first.getLag());
+        assertTrue(first.getLatency() >= 0.0);
+        assertEquals(0.0, first.getErrorRate(), 0.0);
+        verify(connection).close();
+    }
+
+    @Test
+    public void checkVendorLag() throws SQLException {
+        Connection connection = createConnection(first.getDataSource(), true);
+        SqlVendor vendor = mock(SqlVendor.class);
+
+        when(vendor.getReplicationLag(connection)).thenReturn(2L);
+
+        SqlReadReplicaPool vendorPool = createPool(first, vendor, null);
+
+        vendorPool.check(first);
+        vendorPool.close();
+
+        assertEquals(Long.valueOf(2L), first.getLag());
+        verify(connection).close();
+    }
+
+    @Test
+    public void checkWithoutLagPrivilege() throws SQLException {
+        Connection connection = createConnection(first.getDataSource(), true);
+        SqlVendor vendor = mock(SqlVendor.class);
+
+        when(vendor.getReplicationLag(connection)).thenThrow(new SQLException("Access denied; you need the REPLICATION CLIENT privilege", "42000", 1227));
+
+        SqlReadReplicaPool vendorPool = createPool(first, vendor, null);
+
+        first.recordFailure();
+        first.recordFailure();
+
+        // The lag error doesn't count as a failure of the replica.
+        for (int i = 0; i < 5; ++ i) {
+            vendorPool.check(first);
+        }
+
+        vendorPool.close();
+
+        assertFalse(first.isEjected());
+        assertNull(first.getLag());
+        assertTrue(first.getErrorRate() < 0.5);
+        verify(connection, times(5)).close();
+    }
+
+    @Test
+    public void checkLagQueryError() throws SQLException {
+        Connection connection = createConnection(first.getDataSource(), true);
+        Statement statement = mock(Statement.class);
+
+        when(connection.createStatement()).thenReturn(statement);
+        when(statement.executeQuery("SELECT lag")).thenThrow(new SQLException("No such table"));
+
+        SqlReadReplicaPool lagPool = createPool(first, null, "SELECT lag");
+
+        for (int i = 0; i < 5; ++ i) {
+            lagPool.check(first);
+        }
+
+        lagPool.close();
+
+        assertFalse(first.isEjected());
+        assertNull(first.getLag());
+        assertEquals(0.0, first.getErrorRate(), 0.0);
+        verify(statement, times(5)).close();
+    }
+
+    @Test
+    public void checkInvalidConnection() throws SQLException {
+        Connection connection = createConnection(first.getDataSource(), false);
+        SqlReadReplicaPool vendorPool = createPool(first, mock(SqlVendor.class), null);
+
+        for (int i = 0; i < 3; ++ i) {
+            vendorPool.check(first);
+        }
+
+        vendorPool.close();
+
+        assertTrue(first.isEjected());
+        assertTrue(first.getErrorRate() > 0.5);
+        verify(connection, times(3)).close();
+    }
+
+    @Test
+    public void checkConnectionFailure() throws SQLException {
+        when(first.getDataSource().getConnection()).thenThrow(new SQLException("Connection refused"));
+
+        SqlReadReplicaPool vendorPool = createPool(first, mock(SqlVendor.class), null);
+
+        first.recordSuccess(1.0, 0L);
+        vendorPool.check(first);
+        vendorPool.close();
+
+        assertFalse(first.isEjected());
+        assertNull(first.getLag());
+        assertTrue(first.getErrorRate() > 0.0);
+    }
+}
@@ -0,0 +1,177 @@
+package com.psddev.dari.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class SqlRecentWritesTest {
+
+    private static final String GROUP = "test";
+    private static final long WINDOW = 30000L;
+
+    private DatabaseEnvironment environment;
+    private ObjectType writtenType;
+    private ObjectType otherType;
+    private SqlRecentWrites writes;
+
+    @Before
+    public void before() {
+        environment = mock(DatabaseEnvironment.class);
+        writtenType = createType();
+        otherType = createType();
+
+        when(environment.getTypesByGroup(GROUP)).thenAnswer(invocation -> new HashSet<>(Arrays.asList(writtenType, otherType)));
+        when(environment.getTypesByGroup("written")).thenAnswer(invocation -> new HashSet<>(Collections.singletonList(writtenType)));
+        when(environment.getTypesByGroup("other")).thenAnswer(invocation -> new HashSet<>(Collections.singletonList(otherType)));
+        when(environment.getTypesByGroup("none")).thenAnswer(invocation -> new HashSet<>());
+
+        writes = new SqlRecentWrites();
+    }
+
+    private static ObjectType createType() {
+        ObjectType type = mock(ObjectType.class);
+        UUID id = UUID.randomUUID();
+
+        when(type.getId()).thenReturn(id);
+        when(type.isConcrete()).thenReturn(true);
+        return type;
+    }
+
+    private static State createState(UUID id, ObjectType type) {
+        State state = mock(State.class);
+        UUID typeId = type.getId();
+
+        when(state.getId()).thenReturn(id);
+        when(state.getTypeId()).thenReturn(typeId);
+        return state;
+    }
+
+    private UUID write() {
+        UUID id = UUID.randomUUID();
+
+        writes.addPending(Collections.singletonList(createState(id, writtenType)));
+        return id;
+    }
+
+    @Test
+    public void pendingIsNotObservable() {
+        UUID id = write();
+
+        assertTrue(writes.hasPending());
+        assertTrue(writes.isExpired(WINDOW));
+        assertFalse(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", id), environment));
+        assertFalse(writes.isObservableBy(Query.fromGroup("written"), environment));
+    }
+
+    @Test
+    public void commit() {
+        UUID id = write();
+
+        writes.commit("position", WINDOW);
+
+        assertFalse(writes.hasPending());
+        assertFalse(writes.isExpired(WINDOW));
+        assertTrue(writes.getTime() > 0L);
+        assertEquals("position", writes.getPosition());
+        assertTrue(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", id), environment));
+    }
+
+    @Test
+    public void commitWithoutPending() {
+        writes.commit("position", WINDOW);
+
+        assertTrue(writes.isExpired(WINDOW));
+        assertEquals(0L, writes.getTime());
+        assertNull(writes.getPosition());
+    }
+
+    @Test
+    public void commitForgetsExpired() throws InterruptedException {
+        UUID oldId = write();
+
+        writes.commit(null, 1L);
+        Thread.sleep(10L);
+
+        UUID newId = write();
+
+        writes.commit(null, 1L);
+
+        assertFalse(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", oldId), environment));
+        assertTrue(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", newId), environment));
+    }
+
+    @Test
+    public void rollback() {
+        UUID committedId = write();
+
+        writes.commit("position", WINDOW);
+
+        long time = writes.getTime();
+        UUID rolledBackId = write();
+
+        writes.rollback();
+
+        assertFalse(writes.hasPending());
+        assertEquals(time, writes.getTime());
+        assertEquals("position", writes.getPosition());
+        assertTrue(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", committedId), environment));
+        assertFalse(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", rolledBackId), environment));
+
+        writes.commit("other", WINDOW);
+        assertEquals("position", writes.getPosition());
+    }
+
+    @Test
+    public void observableByIds() {
+        UUID id = write();
+
+        writes.commit(null, WINDOW);
+
+        assertTrue(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", Arrays.asList(UUID.randomUUID(), id)), environment));
+        assertFalse(writes.isObservableBy(Query.fromGroup("written").where("_id = ?", UUID.randomUUID()), environment));
+        assertTrue(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", "invalid"), environment));
+    }
+
+    @Test
+    public void observableByTypes() {
+        write();
+        writes.commit(null, WINDOW);
+
+        assertTrue(writes.isObservableBy(null, environment));
+        assertTrue(writes.isObservableBy(Query.fromAll(), environment));
+        assertTrue(writes.isObservableBy(Query.fromGroup(GROUP), environment));
+        assertTrue(writes.isObservableBy(Query.fromGroup("written").where("_id != ?", UUID.randomUUID()), environment));
+        assertFalse(writes.isObservableBy(Query.fromGroup("other"), environment));
+
+        // Unknown types could be anything.
+        assertTrue(writes.isObservableBy(Query.fromGroup("none"), environment));
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        UUID id = write();
+
+        writes.commit("position", WINDOW);
+
+        SqlRecentWrites copy = writes.copy();
+        UUID pendingId = write();
+
+        assertFalse(copy.hasPending());
+        assertEquals(writes.getTime(), copy.getTime());
+        assertEquals("position", copy.getPosition());
+        assertTrue(copy.isObservableBy(Query.fromGroup("none").where("_id = ?", id), environment));
+
+        writes.commit("next", WINDOW);
+
+        assertTrue(writes.isObservableBy(Query.fromGroup("none").where("_id = ?", pendingId), environment));
+        assertFalse(copy.isObservableBy(Query.fromGroup("none").where("_id = ?", pendingId), environment));
+        assertEquals("position", copy.getPosition());
+    }
+}
@@ -0,0 +1,12 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Record;
+
+public class CachingModel extends Record {
+
+    @Indexed
+    public int position;
+
+    @Indexed
+    public CachingReferenceModel reference;
+}
@@ -0,0 +1,9 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Record;
+
+public class CachingReferenceModel extends Record {
+
+    @Indexed
+    public String name;
+}
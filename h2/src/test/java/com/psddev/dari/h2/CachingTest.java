@@ -0,0 +1,169 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.CachingDatabase;
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.ForwardingDatabase;
+import com.psddev.dari.db.Query;
+import com.psddev.dari.util.PaginatedResult;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class CachingTest extends AbstractTest {
+
+    private static final int SIZE = 10;
+
+    private CountingDatabase counting;
+    private CachingDatabase caching;
+
+    @BeforeClass
+    public static void createModels() {
+        for (int i = 0; i < SIZE; ++ i) {
+            CachingModel model = new CachingModel();
+            model.position = i;
+            model.save();
+        }
+    }
+
+    @Before
+    public void createCaching() {
+        counting = new CountingDatabase();
+        counting.setDelegate(Database.Static.getDefault());
+        caching = new CachingDatabase();
+        caching.setDelegate(Database.Static.getDefault());
+    }
+
+    private PaginatedResult<CachingModel> readPartial(long offset, int limit) {
+        return Query.from(CachingModel.class).using(caching).sortAscending("position").select(offset, limit);
+    }
+
+    private List<Integer> positions(PaginatedResult<CachingModel> result) {
+        return result.getItems().stream().map(m -> m.position).collect(Collectors.toList());
+    }
+
+    @Test
+    public void sliceInsideCompleteRange() {
+        readPartial(0, SIZE * 2);
+
+        PaginatedResult<CachingModel> slice = readPartial(2, 3);
+
+        assertThat(positions(slice), contains(2, 3, 4));
+        assertThat(slice.getCount(), is((long) SIZE));
+        assertThat(slice.hasNext(), is(true));
+    }
+
+    @Test
+    public void sliceAtEdgeOfCompleteRange() {
+        readPartial(0, SIZE * 2);
+
+        PaginatedResult<CachingModel> slice = readPartial(SIZE - 2, 5);
+
+        assertThat(positions(slice), contains(SIZE - 2, SIZE - 1));
+        assertThat(slice.getCount(), is((long) SIZE));
+        assertThat(slice.hasNext(), is(false));
+    }
+
+    @Test
+    public void slicePastEndOfCompleteRange() {
+        readPartial(0, SIZE * 2);
+
+        PaginatedResult<CachingModel> slice = readPartial(SIZE + 5, 5);
+
+        assertThat(slice.getItems(), empty());
+        assertThat(slice.getCount(), is((long) SIZE));
+        assertThat(slice.hasNext(), is(false));
+    }
+
+    @Test
+    public void sliceOfMergedRanges() {
+        readPartial(0, SIZE / 2);
+        readPartial(SIZE / 2, SIZE);
+
+        PaginatedResult<CachingModel> slice = readPartial(SIZE / 2 + 1, SIZE);
+
+        assertThat(positions(slice), contains(6, 7, 8, 9));
+        assertThat(slice.getCount(), is((long) SIZE));
+        assertThat(slice.hasNext(), is(false));
+    }
+
+    private long countCachedPath() {
+        return Query.from(CachingModel.class).using(caching).where("reference/name = ?", "foo").count();
+    }
+
+    private long countCachedSubQuery() {
+        return Query.from(CachingModel.class)
+                .using(caching)
+                .where("reference = ?", Query.from(CachingReferenceModel.class).where("name = ?", "foo"))
+                .count();
+    }
+
+    private long countCachedPosition() {
+        return Query.from(CachingModel.class).using(caching).where("position = ?", 1).count();
+    }
+
+    @Test
+    public void pathQueryInvalidatedByReferencedType() {
+        caching.setDelegate(counting);
+        countCachedPath();
+        countCachedPath();
+        assertThat(counting.counts, is(1));
+
+        CachingReferenceModel reference = new CachingReferenceModel();
+        reference.name = "foo";
+        caching.save(reference.getState());
+        countCachedPath();
+        assertThat(counting.counts, is(2));
+    }
+
+    @Test
+    public void subQueryInvalidatedByReferencedType() {
+        caching.setDelegate(counting);
+        countCachedSubQuery();
+        countCachedSubQuery();
+        assertThat(counting.counts, is(1));
+
+        CachingReferenceModel reference = new CachingReferenceModel();
+        reference.name = "foo";
+        caching.save(reference.getState());
+        countCachedSubQuery();
+        assertThat(counting.counts, is(2));
+    }
+
+    @Test
+    public void plainQueryNotInvalidatedByOtherType() {
+        caching.setDelegate(counting);
+        countCachedPosition();
+
+        CachingReferenceModel reference = new CachingReferenceModel();
+        reference.name = "bar";
+        caching.save(reference.getState());
+        countCachedPosition();
+        assertThat(counting.counts, is(1));
+
+        CachingModel model = new CachingModel();
+        model.position = SIZE;
+        caching.save(model.getState());
+        countCachedPosition();
+        assertThat(counting.counts, is(2));
+        model.delete();
+    }
+
+    // Counts the count queries without running them, so that the queries
+    // with paths don't depend on the join support in the database.
+    private static class CountingDatabase extends ForwardingDatabase {
+
+        public int counts;
+
+        @Override
+        public long readCount(Query<?> query) {
+            ++ counts;
+            return 0L;
+        }
+    }
+}
@@ -15,6 +15,9 @@ public class ReadModel extends Record {
     @Indexed
     public String firstLetter;
 
+    @Indexed
+    public String secondLetter;
+
     @Indexed
     public Set<String> letters;
 
@@ -25,6 +28,7 @@ public class ReadModel extends Record {
 
             if (textLength > 0) {
                 firstLetter = text.substring(0, 1);
+                secondLetter = textLength > 1 ? text.substring(1, 2) : null;
                 letters = IntStream.range(0, textLength)
                         .mapToObj(i -> text.substring(i, i + 1))
                         .collect(Collectors.toSet());
@@ -8,11 +8,13 @@ import com.psddev.dari.util.PaginatedResult;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -137,6 +139,79 @@ public class ReadTest extends AbstractTest {
         iterable(true, 1);
     }
 
+    // Sorting on the same fields with _id breaking the ties matches the
+    // order that the keyset iterator reads in.
+    private void sortedIterable(Query<ReadModel> query, int fetchSize, Set<ReadModel> models) {
+        List<ReadModel> expected = query.clone().sortAscending("_id").selectAll();
+        List<ReadModel> result = new ArrayList<>();
+
+        query.iterable(fetchSize).forEach(result::add);
+
+        assertThat(result, is(expected));
+        assertThat(new HashSet<>(result), is(models));
+    }
+
+    private void sortedIterable(Query<ReadModel> query, int fetchSize) {
+        sortedIterable(query, fetchSize, MODELS);
+    }
+
+    // H2 looks up the index rows of every record for each page when they
+    // have to be left outer joined, so the cases that read a few at a time
+    // that way only read the records in the last couple of letters.
+    private void sortedIterableLastLetters(Query<ReadModel> query, int fetchSize) {
+        sortedIterable(
+                query.where("firstLetter >= ?", "y"),
+                fetchSize,
+                MODELS.stream()
+                        .filter(m -> m.firstLetter.compareTo("y") >= 0)
+                        .collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void iterableSortedDuplicates0() {
+        sortedIterable(Query.from(ReadModel.class).sortAscending("firstLetter"), 0);
+    }
+
+    @Test
+    public void iterableSortedDuplicates1() {
+        sortedIterable(Query.from(ReadModel.class).sortAscending("firstLetter"), 1);
+    }
+
+    @Test
+    public void iterableSortedDuplicates7() {
+        sortedIterable(Query.from(ReadModel.class).sortAscending("firstLetter"), 7);
+    }
+
+    @Test
+    public void iterableSortedDescending1() {
+        sortedIterableLastLetters(Query.from(ReadModel.class).sortDescending("firstLetter"), 1);
+    }
+
+    @Test
+    public void iterableSortedMultiple1() {
+        sortedIterableLastLetters(Query.from(ReadModel.class).sortAscending("firstLetter").sortDescending("text"), 1);
+    }
+
+    @Test
+    public void iterableSortedNulls1() {
+        sortedIterableLastLetters(Query.from(ReadModel.class).sortAscending("secondLetter"), 1);
+    }
+
+    @Test
+    public void iterableSortedNulls7() {
+        sortedIterable(Query.from(ReadModel.class).sortAscending("secondLetter"), 7);
+    }
+
+    @Test
+    public void iterableSortedNullsDescending1() {
+        sortedIterableLastLetters(Query.from(ReadModel.class).sortDescending("secondLetter"), 1);
+    }
+
+    @Test
+    public void iterableSortedNullsDescending7() {
+        sortedIterableLastLetters(Query.from(ReadModel.class).sortDescending("secondLetter"), 7);
+    }
+
     private void iterableNext(boolean disableByIdIterator) {
         Iterator<ReadModel> i = Query
                 .from(ReadModel.class)
@@ -0,0 +1,84 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.Query;
+import com.psddev.dari.db.SqlDataFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class SearchUpdateTriggerTest extends AbstractTest {
+
+    private H2Database database;
+    private Connection connection;
+    private UUID id;
+
+    @Before
+    public void before() {
+        database = Database.Static.getFirst(H2Database.class);
+        connection = database.openConnection();
+        id = UUID.randomUUID();
+    }
+
+    @After
+    public void after() throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM \"Record\" WHERE \"id\" = ?")) {
+            statement.setObject(1, id);
+            statement.executeUpdate();
+
+        } finally {
+            database.closeConnection(connection);
+        }
+    }
+
+    private void insert(SqlDataFormat format) throws SQLException {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("name", "foo");
+        values.put("count", 42L);
+
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO \"Record\" (\"id\", \"typeId\", \"data\") VALUES (?, ?, ?)")) {
+            statement.setObject(1, id);
+            statement.setObject(2, UUID.randomUUID());
+            statement.setBytes(3, format.encode(values));
+            statement.executeUpdate();
+        }
+    }
+
+    private String selectSearch(String fieldName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT \"value\" FROM \"RecordSearch\" WHERE \"id\" = ? AND \"fieldName\" = ?")) {
+            statement.setObject(1, id);
+            statement.setString(2, fieldName);
+
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getString(1) : null;
+            }
+        }
+    }
+
+    @Test
+    public void json() throws SQLException {
+        insert(SqlDataFormat.JSON);
+
+        assertThat(selectSearch("name"), equalTo("foo "));
+        assertThat(selectSearch(Query.ANY_KEY), equalTo("foo 42 "));
+    }
+
+    @Test
+    public void binary() throws SQLException {
+        insert(SqlDataFormat.BINARY);
+
+        assertThat(selectSearch("name"), equalTo("foo "));
+        assertThat(selectSearch(Query.ANY_KEY), equalTo("foo 42 "));
+    }
+}
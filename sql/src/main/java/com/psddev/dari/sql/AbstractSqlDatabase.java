@@ -8,9 +8,12 @@ import com.google.common.collect.ImmutableList;
 import com.psddev.dari.db.AbstractDatabase;
 import com.psddev.dari.db.AtomicOperation;
 import com.psddev.dari.db.ComparisonPredicate;
+import com.psddev.dari.db.Database;
 import com.psddev.dari.db.Grouping;
+import com.psddev.dari.db.KeysetIterator;
 import com.psddev.dari.db.ObjectField;
 import com.psddev.dari.db.ObjectIndex;
+import com.psddev.dari.db.PrefetchingIterator;
 import com.psddev.dari.db.Query;
 import com.psddev.dari.db.Sorter;
 import com.psddev.dari.db.State;
@@ -145,6 +148,8 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     public static final String CONNECTION_QUERY_OPTION = "sql.connection";
     public static final String RETURN_ORIGINAL_DATA_QUERY_OPTION = "sql.returnOriginalData";
     public static final String DISABLE_BY_ID_ITERATOR_OPTION = "sql.disableByIdIterator";
+    public static final String DISABLE_KEYSET_ITERATOR_OPTION = "sql.disableKeysetIterator";
+    public static final String PREFETCH_PAGES_OPTION = "sql.prefetchPages";
 
     public static final String SKIP_INDEX_STATE_EXTRA = "sql.skipIndex";
     public static final String ORIGINAL_DATA_EXTRA = "sql.originalData";
@@ -1240,14 +1245,43 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     }
 
     @Override
+    @SuppressWarnings("deprecation")
     public <T> Iterable<T> readIterable(Query<T> query, int fetchSize) {
+        int prefetchPages = ObjectUtils.to(int.class, query.getOptions().get(PREFETCH_PAGES_OPTION));
+
+        // The pages are fetched in another thread, which may not have the
+        // same default database, or ignore the read connection.
+        if (prefetchPages > 0) {
+            query = query.clone();
+            query.setDatabase(query.getDatabase());
+
+            if (Database.Static.isIgnoreReadConnection()) {
+                query.setMaster(true);
+            }
+        }
+
+        Iterable<T> iterable = null;
+
         if (query.getSorters().isEmpty()) {
             if (!ObjectUtils.to(boolean.class, query.getOptions().get(DISABLE_BY_ID_ITERATOR_OPTION))) {
-                return ByIdIterator.iterable(query, fetchSize);
+                iterable = ByIdIterator.iterable(query, fetchSize);
             }
+
+        } else if (!ObjectUtils.to(boolean.class, query.getOptions().get(DISABLE_KEYSET_ITERATOR_OPTION))
+                && KeysetIterator.isSupported(query)) {
+
+            iterable = KeysetIterator.iterable(query, fetchSize);
         }
 
-        return selectIterable(buildSelectStatement(query), fetchSize, query);
+        if (iterable == null) {
+            return selectIterable(buildSelectStatement(query), fetchSize, query);
+
+        } else if (prefetchPages > 0) {
+            return PrefetchingIterator.iterable(iterable, fetchSize, prefetchPages);
+
+        } else {
+            return iterable;
+        }
     }
 
     /**
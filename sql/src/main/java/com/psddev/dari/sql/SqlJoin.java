@@ -151,6 +151,10 @@ final class SqlJoin {
         leftOuter = true;
     }
 
+    public void useInner() {
+        leftOuter = false;
+    }
+
     public void addSymbolId(String queryKey) {
         String indexKey = sqlQuery.mappedKeys.get(queryKey).getIndexKey(sqlQuery.selectedIndexes.get(queryKey));
 
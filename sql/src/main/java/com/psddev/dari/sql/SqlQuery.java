@@ -9,6 +9,7 @@ import java.util.UUID;
 import com.google.common.base.Preconditions;
 import com.psddev.dari.db.ComparisonPredicate;
 import com.psddev.dari.db.CompoundPredicate;
+import com.psddev.dari.db.KeysetIterator;
 import com.psddev.dari.db.Location;
 import com.psddev.dari.db.ObjectField;
 import com.psddev.dari.db.ObjectIndex;
@@ -148,19 +149,27 @@ class SqlQuery {
         }
 
         // Creates jOOQ SortField from Dari Sorter.
+        List<SqlJoin> sortJoins = new ArrayList<>();
+
         for (Sorter sorter : query.getSorters()) {
             SortField<?> sortField = database.sort(sorter, new SqlSortOptions(recordTableAlias));
 
             if (sortField != null) {
                 orderByFields.add(sortField);
+                sortJoins.add(null);
                 continue;
             }
 
             SqlSorter sqlSorter = SqlSorter.find(sorter.getOperator());
             String queryKey = (String) sorter.getOptions().get(0);
+            int joinsSize = joins.size();
             SqlJoin join = SqlJoin.findOrCreate(this, queryKey);
 
-            join.useLeftOuter();
+            // An index table that's already inner joined for the WHERE
+            // clause doesn't have any missing values to sort.
+            if (joins.size() > joinsSize) {
+                join.useLeftOuter();
+            }
 
             Query<?> subQuery = mappedKeys.get(queryKey).getSubQueryWithSorter(sorter, 0);
 
@@ -170,17 +179,28 @@ class SqlQuery {
                                 .sqlQuery
                                 .orders);
 
+                sortJoins.add(null);
+
             } else {
                 orders.add(
                         sqlSorter.createOrder(
                                 database,
                                 join,
                                 sorter.getOptions()));
+
+                sortJoins.add(join);
             }
         }
 
         orders.forEach(o -> orderByFields.add(o.sortField));
 
+        @SuppressWarnings("unchecked")
+        List<Object> seekValues = (List<Object>) query.getOptions().get(KeysetIterator.SEEK_QUERY_OPTION);
+
+        if (seekValues != null) {
+            whereCondition = whereCondition.and(createSeekCondition(sortJoins, seekValues));
+        }
+
         // Join all index tables used so far.
         for (SqlJoin join : joins) {
             if (!join.symbolIds.isEmpty()) {
@@ -199,6 +219,61 @@ class SqlQuery {
         return table;
     }
 
+    // Creates jOOQ Condition that matches the rows sorted after the given
+    // values, e.g. a >= ? AND (a > ? OR (a = ? AND id > ?)), using the same
+    // columns as the ORDER BY so that no other joins are needed. Both H2 and
+    // MySQL sort NULLs before all the other values, so once an ascending
+    // seek is past them, the first index table can be inner joined and read
+    // as a range instead of being looked up for every record.
+    private Condition createSeekCondition(List<SqlJoin> sortJoins, List<Object> values) {
+        List<Sorter> sorters = query.getSorters();
+        int size = sorters.size();
+
+        if (values.size() != size || sortJoins.contains(null)) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't seek past %s in [%s]!", values, query));
+        }
+
+        Condition condition = null;
+        Condition bound = null;
+
+        for (int i = size - 1; i >= 0; -- i) {
+            SqlJoin join = sortJoins.get(i);
+            Field<Object> field = join.valueField;
+            Object value = values.get(i);
+            boolean ascending = Sorter.ASCENDING_OPERATOR.equals(sorters.get(i).getOperator());
+            Condition after;
+            Condition same;
+
+            if (value == null) {
+                after = ascending ? field.isNotNull() : DSL.falseCondition();
+                same = field.isNull();
+                bound = null;
+
+            } else {
+                Object inlined = join.value(value);
+
+                after = ascending ? field.gt(inlined) : field.lt(inlined).or(field.isNull());
+                same = field.eq(inlined);
+                bound = ascending ? field.ge(inlined) : null;
+            }
+
+            condition = condition != null
+                    ? after.or(same.and(condition))
+                    : after;
+        }
+
+        // Repeat the bound on the first column on its own, so that it can
+        // be used to read the index as a range.
+        if (bound != null) {
+            sortJoins.get(0).useInner();
+            return bound.and(condition);
+
+        } else {
+            return condition;
+        }
+    }
+
     // Creates jOOQ Condition from Dari Predicate.
     private Condition createWhereCondition(Predicate predicate, boolean usesLeftJoin) {
         if (predicate instanceof CompoundPredicate) {
@@ -2,6 +2,7 @@ package com.psddev.dari.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -11,6 +12,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParseException;
@@ -235,21 +237,9 @@ public class JsonProcessor {
     /** Generates a JSON string from the given {@code object}. */
     public String generate(Object object) {
         StringWriter writer = new StringWriter();
-        JsonGenerator generator = null;
 
         try {
-            try {
-                generator = getJsonFactory().createJsonGenerator(writer);
-                if (isIndentOutput()) {
-                    generator.useDefaultPrettyPrinter();
-                }
-                writeAny(generator, new IdentityHashMap<Object, Object>(), object);
-
-            } finally {
-                if (generator != null) {
-                    generator.close();
-                }
-            }
+            generateAny(getJsonFactory().createJsonGenerator(writer), object);
 
         } catch (IOException ex) {
             throw new IllegalStateException(ex);
@@ -258,6 +248,31 @@ public class JsonProcessor {
         return writer.toString();
     }
 
+    /**
+     * Generates JSON from the given {@code object} and writes it to the
+     * given {@code output} as UTF-8 bytes, without creating an intermediate
+     * string. The given {@code output} isn't closed.
+     */
+    public void generate(OutputStream output, Object object) throws IOException {
+        JsonGenerator generator = getJsonFactory().createJsonGenerator(output, JsonEncoding.UTF8);
+
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generateAny(generator, object);
+    }
+
+    // Generates JSON from the given object using the given generator.
+    private void generateAny(JsonGenerator generator, Object object) throws IOException {
+        try {
+            if (isIndentOutput()) {
+                generator.useDefaultPrettyPrinter();
+            }
+            writeAny(generator, new IdentityHashMap<Object, Object>(), object);
+
+        } finally {
+            generator.close();
+        }
+    }
+
     /**
      * Writes the given object, optionally transforming it using the
      * transformer, to the given generator.